@@ -0,0 +1,175 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.auth;
+
+import org.jdom.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks for SimplePDP over synthetic policy sets shaped like the
+ * ones that grow in real deployments: a group, a role and a couple of
+ * policies per project, each policy scoped to the project's part of the
+ * resource tree, plus a few policies that apply everywhere.
+ *
+ * The linearScan benchmark evaluates the same policies the way SimplePDP
+ * used to, resolving the user's roles and trying every policy for every
+ * role, so the two can be compared directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimplePdpBenchmark {
+
+    private static final int REQUEST_COUNT = 1024;
+
+    @Param({"10", "100", "1000"})
+    public int projectCount;
+
+    private SimplePDP pdp;
+    private List<Policy> policies;
+
+    private String[] userIds;
+    private String[] resourceIds;
+    private String[] queryStrings;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws ConfigurationException {
+
+        Element config = new Element("PolicyDecisionPoint");
+        Element memberships = new Element("Memberships");
+
+        for (int p = 0; p < projectCount; p++) {
+            Element group = new Element("group").setAttribute("id", "project" + p + "-members");
+            for (int u = 0; u < 5; u++) {
+                group.addContent(new Element("user")
+                        .setAttribute("id", "user" + p + "-" + u)
+                        .setAttribute("authContext", "urs"));
+            }
+            memberships.addContent(group);
+
+            memberships.addContent(new Element("role").setAttribute("id", "project" + p)
+                    .addContent(new Element("group").setAttribute("id", "project" + p + "-members")));
+
+            config.addContent(policy("project" + p, "^/opendap/hyrax/project" + p + "/.*$", null, "GET", "HEAD"));
+            config.addContent(policy("project" + p, "^/opendap/hyrax/project" + p + "/restricted/.*\\.h5$",
+                    "^dap4\\.ce=.*$", "GET", "POST"));
+        }
+        // Public areas that anyone may read.
+        config.addContent(policy("^.*$", "^/opendap/hyrax/public/.*$", null, "GET", "HEAD"));
+        config.addContent(policy("^.*$", "^/opendap/hyrax/docs/.*$", null, "GET"));
+        config.addContent(memberships);
+
+        pdp = new SimplePDP();
+        pdp.init(config);
+
+        policies = new ArrayList<>();
+        for (Object o : config.getChildren("Policy")) {
+            RegexPolicy policy = new RegexPolicy();
+            policy.init((Element) o);
+            policies.add(policy);
+        }
+
+        // A mix of requests that are allowed, requests that are denied and
+        // requests for public content.
+        Random random = new Random(0);
+        userIds = new String[REQUEST_COUNT];
+        resourceIds = new String[REQUEST_COUNT];
+        queryStrings = new String[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            int project = random.nextInt(projectCount);
+            userIds[i] = "user" + project + "-" + random.nextInt(5);
+            switch (random.nextInt(4)) {
+                case 0:
+                    resourceIds[i] = "/opendap/hyrax/project" + project + "/granule" + i + ".nc.dmr";
+                    break;
+                case 1:
+                    resourceIds[i] = "/opendap/hyrax/project" + random.nextInt(projectCount) + "/granule" + i + ".nc.dap";
+                    break;
+                case 2:
+                    resourceIds[i] = "/opendap/hyrax/project" + project + "/restricted/granule" + i + ".h5";
+                    break;
+                default:
+                    resourceIds[i] = "/opendap/hyrax/public/granule" + i + ".nc.html";
+                    break;
+            }
+            queryStrings[i] = random.nextBoolean() ? "" : "dap4.ce=/temperature";
+        }
+        next = 0;
+    }
+
+    private static Element policy(String role, String resource, String query, String... actions) {
+        Element policy = new Element("Policy").setAttribute("class", RegexPolicy.class.getName());
+        policy.addContent(new Element("role").setText(role));
+        policy.addContent(new Element("resource").setText(resource));
+        if (query != null)
+            policy.addContent(new Element("query").setText(query));
+        for (String action : actions)
+            policy.addContent(new Element("allowedAction").setText(action));
+        return policy;
+    }
+
+    @Benchmark
+    public boolean simplePdp() {
+        int i = next++ & (REQUEST_COUNT - 1);
+        return pdp.evaluate(userIds[i], "urs", resourceIds[i], queryStrings[i], "GET");
+    }
+
+    @Benchmark
+    public boolean linearScan() {
+        int i = next++ & (REQUEST_COUNT - 1);
+        HashSet<String> userRoles = MembershipRulesManager.getUserRoles(userIds[i], "urs");
+        if (userRoles.isEmpty())
+            userRoles.add("");
+        for (String role : userRoles) {
+            for (Policy policy : policies) {
+                if (policy.evaluate(role, resourceIds[i], queryStrings[i], "GET"))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
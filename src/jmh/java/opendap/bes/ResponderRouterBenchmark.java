@@ -0,0 +1,195 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.bes.dap2Responders.Ascii;
+import opendap.bes.dap2Responders.BesApi;
+import opendap.bes.dap2Responders.CovJson;
+import opendap.bes.dap2Responders.CsvData;
+import opendap.bes.dap2Responders.DAS;
+import opendap.bes.dap2Responders.DDS;
+import opendap.bes.dap2Responders.DDX;
+import opendap.bes.dap2Responders.Dap2Data;
+import opendap.bes.dap2Responders.DatasetInfoHtmlPage;
+import opendap.bes.dap2Responders.GeoTiff;
+import opendap.bes.dap2Responders.GmlJpeg2000;
+import opendap.bes.dap2Responders.Ijson;
+import opendap.bes.dap2Responders.Iso19115;
+import opendap.bes.dap2Responders.Json;
+import opendap.bes.dap2Responders.Netcdf3;
+import opendap.bes.dap2Responders.Netcdf4;
+import opendap.bes.dap2Responders.RDF;
+import opendap.bes.dap2Responders.XmlData;
+import opendap.bes.dap4Responders.Dap4Responder;
+import opendap.bes.dap4Responders.DataResponse.NormativeDR;
+import opendap.bes.dap4Responders.DatasetMetadata.NormativeDMR;
+import opendap.bes.dap4Responders.DatasetServices.NormativeDSR;
+import opendap.bes.dap4Responders.FileAccess;
+import opendap.bes.dap4Responders.Iso19115.IsoDMR;
+import opendap.bes.dap4Responders.Iso19115.IsoRubricDMR;
+import opendap.coreServlet.HttpResponder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks for choosing the BesDapDispatcher responder for a request.
+ * The responders are the ones BesDapDispatcher.init() builds for DAP4
+ * service, in the same order.
+ *
+ * The linearScan benchmark asks every responder in turn, the way
+ * BesDapDispatcher used to. The router benchmark asks only the candidates
+ * the ResponderRouter picks. Neither asks the BES whether the data source
+ * exists, so these measure the routing alone.
+ *
+ * The URL mixes are: "metadata", the DMR/DDS/DAS/DSR requests that dominate
+ * cache-hit-heavy traffic; "data", DAP2 and DAP4 data and file-out requests;
+ * and "mixed", both of those plus requests no responder matches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponderRouterBenchmark {
+
+    private static final int REQUEST_COUNT = 1024;
+
+    private static final String[] METADATA_SUFFIXES = {
+            ".dmr", ".dmr.xml", ".dmr.html", ".dds", ".das", ".ddx", ".html", ".dsr", ".info", ".ver"
+    };
+    private static final String[] DATA_SUFFIXES = {
+            ".dap", ".dods", ".nc", ".nc4", ".dap.nc4", ".ascii", ".csv", ".dap.csv", ".json", ".covjson", ".tiff"
+    };
+    private static final String[] UNMATCHED_SUFFIXES = {
+            "", ".h5", ".gz", ".txt", ".png"
+    };
+
+    @Param({"metadata", "data", "mixed"})
+    public String mix;
+
+    private Vector<Dap4Responder> responders;
+    private ResponderRouter router;
+
+    private String[] relativeUrls;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String systemPath = "/tmp";
+        BesApi besApi = new BesApi();
+
+        responders = new Vector<>();
+        responders.add(new NormativeDSR(systemPath, null, ".dsr", besApi, responders));
+        responders.add(new NormativeDR(systemPath, besApi, false));
+        responders.add(new NormativeDMR(systemPath, besApi, false, false));
+        responders.add(new IsoDMR(systemPath, besApi));
+        responders.add(new opendap.bes.dap4Responders.Version(systemPath, besApi));
+        responders.add(new FileAccess(systemPath, besApi));
+        responders.add(new NormativeDSR(systemPath, besApi, responders));
+        responders.add(new Dap2Data(systemPath, besApi, false));
+        responders.add(new Ascii(systemPath, besApi));
+        responders.add(new CsvData(systemPath, besApi));
+        responders.add(new Netcdf3(systemPath, besApi, false));
+        responders.add(new Netcdf4(systemPath, besApi, false));
+        responders.add(new XmlData(systemPath, besApi, false));
+        responders.add(new GeoTiff(systemPath, besApi, false));
+        responders.add(new GmlJpeg2000(systemPath, besApi, false));
+        responders.add(new Json(systemPath, besApi, false));
+        responders.add(new Ijson(systemPath, besApi, false));
+        responders.add(new CovJson(systemPath, besApi, false));
+        responders.add(new DDX(systemPath, besApi));
+        responders.add(new DDS(systemPath, besApi));
+        responders.add(new DAS(systemPath, besApi));
+        responders.add(new RDF(systemPath, besApi, false));
+        responders.add(new DatasetInfoHtmlPage(systemPath, besApi));
+        responders.add(new Iso19115(systemPath, besApi));
+        Dap4Responder rubric = new IsoRubricDMR(systemPath, null, ".rubric", besApi);
+        rubric.clearAltResponders();
+        rubric.setCombinedRequestSuffixRegex(rubric.buildRequestMatchingRegex());
+        responders.add(rubric);
+
+        router = new ResponderRouter(responders);
+
+        Random random = new Random(0);
+        relativeUrls = new String[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            String suffix;
+            if (mix.equals("metadata")) {
+                suffix = pick(random, METADATA_SUFFIXES);
+            } else if (mix.equals("data")) {
+                suffix = pick(random, DATA_SUFFIXES);
+            } else {
+                int which = random.nextInt(10);
+                suffix = which < 5 ? pick(random, METADATA_SUFFIXES) :
+                        which < 9 ? pick(random, DATA_SUFFIXES) : pick(random, UNMATCHED_SUFFIXES);
+            }
+            relativeUrls[i] = "/data/project" + random.nextInt(20) + "/2020/" + random.nextInt(366) +
+                    "/granule_" + i + (random.nextBoolean() ? ".nc" : ".h5") + suffix;
+        }
+        next = 0;
+    }
+
+    private static String pick(Random random, String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    @Benchmark
+    public HttpResponder router() {
+        String relativeUrl = relativeUrls[next++ & (REQUEST_COUNT - 1)];
+        for (int i : router.candidates(relativeUrl)) {
+            Dap4Responder r = (Dap4Responder) router.getResponder(i);
+            if (r.matches(relativeUrl, false))
+                return r;
+        }
+        return null;
+    }
+
+    @Benchmark
+    public HttpResponder linearScan() {
+        String relativeUrl = relativeUrls[next++ & (REQUEST_COUNT - 1)];
+        for (Dap4Responder r : responders) {
+            if (r.matches(relativeUrl, false))
+                return r;
+        }
+        return null;
+    }
+}
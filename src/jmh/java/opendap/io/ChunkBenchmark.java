@@ -0,0 +1,157 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.io;
+
+import opendap.ppt.FakeBes;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks for the PPT chunking code, without any sockets involved.
+ * Messages are encoded into, and decoded from, memory so that the cost of
+ * the chunking itself is what gets measured.
+ *
+ * Run with the gc profiler (the Gradle build does) to see the allocation
+ * rate along with the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkBenchmark {
+
+    @Param({"4096", "65535"})
+    public int chunkSize;
+
+    @Param({"1024", "65536", "4194304"})
+    public int responseSize;
+
+    @Param({"0", "65536"})
+    public int coalesceBufferSize;
+
+    private byte[] message;
+    private byte[] chunkedMessage;
+    private ByteArrayInputStream chunkedSource;
+    private ChunkedInputStream chunkedInputStream;
+    private ByteArrayOutputStream sink;
+    private byte[] readBuffer;
+
+    private byte[] headers;
+    private ByteArrayInputStream headerSource;
+    private byte[] header;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ChunkedInputStream.setStreamingPolicy(coalesceBufferSize, ChunkedInputStream.FlushPolicy.MESSAGE);
+
+        message = FakeBes.makeResponse(responseSize);
+        chunkedMessage = FakeBes.chunk(message, chunkSize);
+        chunkedSource = new ByteArrayInputStream(chunkedMessage);
+        chunkedInputStream = new ChunkedInputStream(chunkedSource);
+        sink = new ByteArrayOutputStream(chunkedMessage.length);
+        readBuffer = new byte[8192];
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i = 0; i < 1024; i++)
+            Chunk.writeChunkHeader(baos, chunkSize, Chunk.DATA);
+        headers = baos.toByteArray();
+        headerSource = new ByteArrayInputStream(headers);
+        header = new byte[Chunk.HEADER_SIZE];
+    }
+
+    /**
+     * Encodes a response as the BES would send it.
+     */
+    @Benchmark
+    public int writeChunkedMessage() throws Exception {
+        sink.reset();
+        ChunkedOutputStream cos = new ChunkedOutputStream(sink, chunkSize);
+        cos.write(message);
+        cos.finish();
+        return sink.size();
+    }
+
+    /**
+     * Decodes a response into an OutputStream. This is the path taken by
+     * data responses on their way to the client.
+     */
+    @Benchmark
+    public boolean readChunkedMessage() throws IOException {
+        // The ChunkedInputStream reads one message after another off of the
+        // same stream, so rewinding the source is all it takes to read the
+        // message again.
+        chunkedSource.reset();
+        sink.reset();
+        return chunkedInputStream.readChunkedMessage(sink, NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    /**
+     * Decodes a response as an InputStream. This is the path taken by XML
+     * responses on their way to the parser.
+     */
+    @Benchmark
+    public long readMessageStream(Blackhole bh) throws IOException {
+        chunkedSource.reset();
+        ChunkedInputStream.MessageStream ms = chunkedInputStream.openMessage();
+        int ret;
+        while ((ret = ms.read(readBuffer, 0, readBuffer.length)) >= 0)
+            bh.consume(ret);
+        ms.finish(NullOutputStream.NULL_OUTPUT_STREAM);
+        return ms.getBytesRead();
+    }
+
+    /**
+     * Reads 1024 chunk headers.
+     */
+    @Benchmark
+    public int readChunkHeaders() throws IOException {
+        headerSource.reset();
+        int total = 0;
+        for (int i = 0; i < 1024; i++)
+            total += Chunk.readChunkHeader(headerSource, header, 0);
+        return total;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.ppt;
+
+import opendap.namespaces.BES;
+import org.apache.commons.io.output.NullOutputStream;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a complete BES transaction through OPeNDAPClient: the request
+ * is serialized and chunked, sent over a loopback socket to a FakeBes, and
+ * the response is read back and either streamed to an OutputStream or
+ * parsed into a Document.
+ *
+ * Every benchmark thread has its own OPeNDAPClient, just as every request
+ * thread checks out its own client from the BES pool. The *Concurrent
+ * variants run 8 threads against the one FakeBes; use the JMH -t option to
+ * try other thread counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BesTransactionBenchmark {
+
+    /**
+     * The FakeBes shared by all of the benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"4096", "65535"})
+        public int chunkSize;
+
+        @Param({"1024", "65536", "4194304"})
+        public int responseSize;
+
+        FakeBes bes;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            bes = new FakeBes(responseSize, chunkSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            bes.close();
+        }
+    }
+
+    /**
+     * The connection, request and parser used by a single benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        OPeNDAPClient oc;
+        Document request;
+        SAXBuilder parser;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws PPTException {
+            oc = new OPeNDAPClient();
+            oc.startClient(server.bes.getHost(), server.bes.getPort(), 0);
+
+            Element root = new Element("request", BES.BES_NS);
+            root.setAttribute("reqID", "BesTransactionBenchmark");
+            root.addContent(new Element("showVersion", BES.BES_NS));
+            request = new Document(root);
+
+            parser = new SAXBuilder();
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws PPTException {
+            oc.shutdownClient();
+        }
+    }
+
+    /**
+     * The path taken by data responses: the response is written to a stream.
+     */
+    @Benchmark
+    public boolean streamResponse(Client client) throws PPTException {
+        return client.oc.sendRequest(client.request, NullOutputStream.NULL_OUTPUT_STREAM, NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean streamResponseConcurrent(Client client) throws PPTException {
+        return streamResponse(client);
+    }
+
+    /**
+     * The path taken by catalog and metadata requests: the response is
+     * parsed as it is read from the socket.
+     */
+    @Benchmark
+    public Document parseResponse(Client client) throws PPTException, JDOMException {
+        Document response = new Document();
+        client.oc.sendRequest(client.request, client.parser, response, NullOutputStream.NULL_OUTPUT_STREAM);
+        return response;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Document parseResponseConcurrent(Client client) throws PPTException, JDOMException {
+        return parseResponse(client);
+    }
+}
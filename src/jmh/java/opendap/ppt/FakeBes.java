@@ -0,0 +1,201 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.ppt;
+
+import opendap.io.ChunkedInputStream;
+import opendap.io.ChunkedOutputStream;
+import opendap.io.HyraxStringEncoding;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A stand-in for the BES that speaks just enough PPT to be used by
+ * OPeNDAPClient. It listens on a loopback port, completes the PPT handshake
+ * with each client that connects, and answers every request with the same
+ * canned response. The response is chunked once, up front, so that the
+ * server costs as little as possible and the benchmarks measure the client.
+ *
+ * Each connection is handled by its own thread. A connection ends when the
+ * client sends the PPT exit command or closes its socket.
+ */
+public class FakeBes implements Closeable {
+
+    private static final byte[] HANDSHAKE_REQUEST =
+            PPTSessionProtocol.PPTCLIENT_TESTING_CONNECTION.getBytes(HyraxStringEncoding.getCharset());
+    private static final byte[] HANDSHAKE_RESPONSE =
+            PPTSessionProtocol.PPTSERVER_CONNECTION_OK.getBytes(HyraxStringEncoding.getCharset());
+
+    private final ServerSocket serverSocket;
+    private final byte[] chunkedResponse;
+    private final ExecutorService workers;
+
+    /**
+     * Starts a FakeBes.
+     *
+     * @param responseSize The (approximate) size, in bytes, of the XML
+     *                     document sent in reply to every request.
+     * @param chunkSize The size of the PPT chunks used to send the response.
+     * @throws IOException When the server socket can't be opened.
+     */
+    public FakeBes(int responseSize, int chunkSize) throws IOException {
+        chunkedResponse = chunk(makeResponse(responseSize), chunkSize);
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FakeBes-" + serverSocket.getLocalPort());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // The server socket was closed.
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+
+            byte[] handshake = new byte[HANDSHAKE_REQUEST.length];
+            int n = 0;
+            while (n < handshake.length) {
+                int ret = in.read(handshake, n, handshake.length - n);
+                if (ret < 0)
+                    return;
+                n += ret;
+            }
+            out.write(HANDSHAKE_RESPONSE);
+            out.flush();
+
+            ChunkedInputStream requests = new ChunkedInputStream(in);
+            while (true) {
+                // The exit command and a closed socket both show up as a
+                // message with no data in it.
+                CountingOutputStream request = new CountingOutputStream(new NullOutputStream());
+                requests.readChunkedMessage(request, request);
+                if (request.getByteCount() == 0)
+                    return;
+                out.write(chunkedResponse);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away.
+        }
+    }
+
+    /**
+     * Makes an XML document of at least size bytes that looks like a BES
+     * response.
+     *
+     * @param size The minimum size, in bytes, of the document.
+     * @return The document.
+     */
+    public static byte[] makeResponse(int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<response xmlns=\"http://xml.opendap.org/ns/bes/1.0#\" reqID=\"FakeBes\">");
+        sb.append("<showNode>");
+        String end = "</showNode></response>\n";
+        int i = 0;
+        while (sb.length() + end.length() < size) {
+            sb.append("<item name=\"granule_").append(i++)
+                    .append(".nc\" isData=\"true\" size=\"1048576\" lastModified=\"2020-01-01T00:00:00Z\"/>\n");
+        }
+        sb.append(end);
+        return sb.toString().getBytes(HyraxStringEncoding.getCharset());
+    }
+
+    /**
+     * Encodes a message as a PPT chunked message.
+     *
+     * @param message The message.
+     * @param chunkSize The size of the chunks.
+     * @return The chunked message, including the closing chunk.
+     * @throws IOException When chunkSize is too large.
+     */
+    public static byte[] chunk(byte[] message, int chunkSize) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(message.length + message.length / chunkSize * 8 + 16);
+        ChunkedOutputStream cos;
+        try {
+            cos = new ChunkedOutputStream(baos, chunkSize);
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        cos.write(message);
+        cos.finish();
+        return baos.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        workers.shutdownNow();
+    }
+}
@@ -29,6 +29,7 @@ package opendap.aggregation;
 import opendap.bes.BESError;
 import opendap.bes.BadConfigurationException;
 import opendap.bes.dap2Responders.BesApi;
+import opendap.bes.dap4Responders.MediaType;
 import opendap.coreServlet.*;
 import opendap.dap.User;
 import opendap.http.error.BadRequest;
@@ -52,9 +53,14 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
@@ -123,8 +129,22 @@ import java.util.zip.ZipOutputStream;
  * testing: MOD04_L2.A2015021.0030.051.NRT.hdf.nc   OK
  * No errors detected in compressed data of data2.zip.
  *
+ * Granules are retrieved from the BES several at a time, each one is held
+ * (in memory or in a temporary file) until the granules before it have been
+ * written. The servlet's init-params control this:
+ *
+ * MaxParallelGranules: The number of granules a single request may have
+ * in progress at once. 1 restores the original behavior of streaming one
+ * granule at a time straight from the BES. Default: 4
+ * MaxFetchThreads: The number of granules that all of the requests together
+ * may have in progress at once. Default: 16
+ * SpoolMemoryLimit: The number of bytes of a granule that are held in memory
+ * before it is moved to a temporary file. Default: 8388608
+ * SpoolMemoryBudget: The number of bytes that the granules of all of the
+ * requests together may hold in memory. Past it, granules are moved to
+ * temporary files. Default: 67108864
+ *
  * TODO Write a /help response?
- * TODO (Hard) Make  parallel requests to the BES.
  * TODO Add an option to return tar.gz: 
  * http://www.selikoff.net/2010/07/28/creating-a-tar-gz-file-in-java/
  *
@@ -136,7 +156,6 @@ public class AggregationServlet extends HttpServlet {
 
 	private static final Logger log = LoggerFactory.getLogger(AggregationServlet.class);
     private static BesApi besApi = new BesApi();
-    private static ConcurrentSkipListSet<String> granuleNames = new ConcurrentSkipListSet<>(String.CASE_INSENSITIVE_ORDER);
 
     private static final String INVOCATION_ERROR =
             "I expected the operation to be one of: version, file, netcdf3, netcdf4, ascii or csv but got: ";
@@ -147,6 +166,20 @@ public class AggregationServlet extends HttpServlet {
     private static final String APPLICATION_X_ZIP_COMPRESSED = "application/x-zip-compressed";
     private static final String CONTENT_DISPOSITION = "Content-Disposition";
 
+    private static final String MAX_PARALLEL_GRANULES = "MaxParallelGranules";
+    private static final String MAX_FETCH_THREADS = "MaxFetchThreads";
+    private static final String SPOOL_MEMORY_LIMIT = "SpoolMemoryLimit";
+    private static final String SPOOL_MEMORY_BUDGET = "SpoolMemoryBudget";
+    private static final int MAX_PARALLEL_GRANULES_DEFAULT = 4;
+
+    // Files with these extensions are already compressed, so they are
+    // stored in the zip file rather than deflated.
+    private static final String[] COMPRESSED_FILE_EXTENSIONS = {
+            ".nc4", ".h5", ".he5", ".hdf5", ".gz", ".tgz", ".bz2", ".xz", ".zip", ".jp2", ".jpg", ".jpeg", ".png"
+    };
+
+    private int maxParallelGranules = MAX_PARALLEL_GRANULES_DEFAULT;
+
     private enum ResponseFormat {
         NETCDF_3,
         NETCDF_4,
@@ -161,6 +194,12 @@ public class AggregationServlet extends HttpServlet {
 
         log.info(VERSION_INFO);
 
+        maxParallelGranules = getIntInitParameter(MAX_PARALLEL_GRANULES, MAX_PARALLEL_GRANULES_DEFAULT);
+        if (maxParallelGranules > 1)
+            GranuleFetcher.init(getIntInitParameter(MAX_FETCH_THREADS, -1), getIntInitParameter(SPOOL_MEMORY_LIMIT, -1),
+                    getIntInitParameter(SPOOL_MEMORY_BUDGET, -1));
+        log.info("init() - {}: {}", MAX_PARALLEL_GRANULES, maxParallelGranules);
+
         Runtime runtime = Runtime.getRuntime();
 
         NumberFormat format = NumberFormat.getInstance();
@@ -180,6 +219,33 @@ public class AggregationServlet extends HttpServlet {
         }
     }
 
+    @Override
+    public void destroy() {
+        GranuleFetcher.destroy();
+        super.destroy();
+    }
+
+    /**
+     * Reads an integer valued init-param.
+     *
+     * @param name The name of the init-param.
+     * @param defaultValue Returned if the init-param is missing or not an integer.
+     * @return The value.
+     */
+    private int getIntInitParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init() - The value of init-param {} must be an integer, not '{}'. Using: {}",
+                    new Object[]{name, value, defaultValue});
+            return defaultValue;
+        }
+    }
+
     /**
      * Given a pathname, split it into two parts, the basename and the
      * directories leading up to that basename.
@@ -215,11 +281,13 @@ public class AggregationServlet extends HttpServlet {
      * on machines with case insensitive file systems will have duplicate
      * names even when Unix thinks they are unique...
      *
+     * @param granuleNames The names already used in this Zip file. The
+     *                     returned name is added to the set.
      * @param granule The name of the current granule, which is about
      *                to be added to the Zip file
      * @return Use this name for the granule in the Zip file
      */
-    private String getNameForZip(String granule, ResponseFormat format) {
+    private static String getNameForZip(Set<String> granuleNames, String granule, ResponseFormat format) {
 
         if (!granuleNames.contains(granule)) {
             // In the simple case, don't fiddle with the name, just record that
@@ -250,7 +318,128 @@ public class AggregationServlet extends HttpServlet {
             int i = 1;
             while (granuleNames.contains(granule + "_" + i))
                 ++i;
-            return getNameForZip(granule + "_" + i, format);
+            return getNameForZip(granuleNames, granule + "_" + i, format);
+        }
+    }
+
+    /**
+     * @return A new, empty, set of names for getNameForZip(). Each Zip file
+     * gets its own.
+     */
+    private static Set<String> newGranuleNames() {
+        return new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Is the content of the granule already compressed? NetCDF4 responses
+     * are (by the HDF5 library), and so are files with the extensions in
+     * COMPRESSED_FILE_EXTENSIONS. Deflating them again costs CPU and saves
+     * next to nothing.
+     *
+     * @param granule The granule pathname
+     * @param format The format in which the granule is being returned.
+     * @return True if the granule should be stored rather than deflated.
+     */
+    private static boolean isCompressed(String granule, ResponseFormat format) {
+        switch (format) {
+            case NETCDF_4:
+                return true;
+            case PLAIN:
+                String name = granule.toLowerCase();
+                for (String extension : COMPRESSED_FILE_EXTENSIONS) {
+                    if (name.endsWith(extension))
+                        return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Begins a Zip entry whose content will be streamed into the Zip file.
+     * The CRC of streamed content isn't known in advance, which a STORED
+     * entry requires, so content that's already compressed is deflated with
+     * no compression instead. That's almost as cheap.
+     *
+     * @param zos The Zip file.
+     * @param name The name of the entry.
+     * @param compressed Is the content already compressed?
+     * @throws IOException When the Zip file can't be written.
+     */
+    private static void putStreamedEntry(ZipOutputStream zos, String name, boolean compressed) throws IOException {
+        zos.setLevel(compressed ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        zos.putNextEntry(new ZipEntry(name));
+    }
+
+    /**
+     * Writes a spooled granule to the Zip file as a single entry. Since the
+     * size and CRC of the spooled granule are known, content that's already
+     * compressed is STORED.
+     *
+     * @param zos The Zip file.
+     * @param name The name of the entry.
+     * @param compressed Is the content already compressed?
+     * @param spool The granule.
+     * @throws IOException When the Zip file can't be written.
+     */
+    private static void writeSpooledEntry(ZipOutputStream zos, String name, boolean compressed,
+                                          GranuleFetcher.GranuleSpool spool) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (compressed) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(spool.getSize());
+            entry.setCompressedSize(spool.getSize());
+            entry.setCrc(spool.getCrc());
+        }
+        else {
+            zos.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
+        zos.putNextEntry(entry);
+        spool.writeTo(zos);
+        zos.closeEntry();
+    }
+
+    /**
+     * Retrieves the granules with a GranuleFetcher and writes each one to
+     * the Zip file as it becomes available, in the order of granulePaths.
+     * A ZipException is reported to the client and the remaining granules
+     * are still written.
+     *
+     * @param zos The Zip file.
+     * @param out The stream the Zip file is written to, used to report errors.
+     * @param granuleNames The names already used in the Zip file.
+     * @param granulePaths The granules' pathnames, in order.
+     * @param granules Writes each of the granules, in the same order.
+     * @param format The format of the granules.
+     * @param where Identifies the caller in the log.
+     * @throws IOException
+     * @throws PPTException
+     * @throws BadConfigurationException
+     * @throws BESError
+     */
+    private void writeSpooledGranules(ZipOutputStream zos, ServletOutputStream out, Set<String> granuleNames,
+                                      List<String> granulePaths, List<GranuleFetcher.Granule> granules,
+                                      ResponseFormat format, String where)
+            throws IOException, PPTException, BadConfigurationException, BESError {
+
+        try (GranuleFetcher fetcher = new GranuleFetcher(granules, maxParallelGranules)) {
+            for (int i = 0; fetcher.hasNext(); ++i) {
+                String granule = granulePaths.get(i);
+                String granuleName = getNameForZip(granuleNames, basename(granule)[1], format);
+                GranuleFetcher.GranuleSpool spool = fetcher.next();
+                try {
+                    writeSpooledEntry(zos, granuleName, isCompressed(granule, format), spool);
+                }
+                catch (ZipException ze) {
+                    out.println("Aggregation Error: " + ze.getMessage());
+
+                    logError(ze, where);
+                }
+                finally {
+                    spool.delete();
+                }
+            }
         }
     }
 
@@ -341,20 +530,43 @@ public class AggregationServlet extends HttpServlet {
 
         Map<String, String[]> queryParameters = request.getParameterMap();
 
-        User user = new User(request);
+        final User user = new User(request);
 
         response.setContentType(APPLICATION_X_ZIP_COMPRESSED);
         response.setHeader(CONTENT_DISPOSITION, "attachment; filename=file.zip");
 
         ZipOutputStream zos = new ZipOutputStream(out);
+        Set<String> granuleNames = newGranuleNames();
 
         int numParams = queryParameters.get("file").length;
+        if (maxParallelGranules > 1 && numParams > 1) {
+            List<GranuleFetcher.Granule> granules = new ArrayList<>();
+            for (final String granule : queryParameters.get("file")) {
+                granules.add(new GranuleFetcher.Granule() {
+                    @Override
+                    public void write(OutputStream os) throws IOException, BadConfigurationException {
+                        writeSinglePlainGranule(user, granule, os);
+                    }
+                });
+            }
+            try {
+                writeSpooledGranules(zos, out, granuleNames, Arrays.asList(queryParameters.get("file")), granules,
+                        ResponseFormat.PLAIN, "in writePlainGranules():");
+            }
+            catch (PPTException | BESError e) {
+                // writeSinglePlainGranule() turns these into the granule's content.
+                throw new IOException(e);
+            }
+            zos.finish();
+            return;
+        }
+
         for (int i = 0; i < numParams; ++i) {
             String granule = queryParameters.get("file")[i];
 
-            String granuleName = getNameForZip(basename(granule)[1], ResponseFormat.PLAIN);
+            String granuleName = getNameForZip(granuleNames, basename(granule)[1], ResponseFormat.PLAIN);
             try {
-                zos.putNextEntry(new ZipEntry(granuleName));
+                putStreamedEntry(zos, granuleName, isCompressed(granule, ResponseFormat.PLAIN));
                 writeSinglePlainGranule(user, granule, zos);
                 zos.closeEntry();
             }
@@ -416,6 +628,36 @@ public class AggregationServlet extends HttpServlet {
 
     }
 
+    /**
+     * The media type used to encode an error for the format. This is the
+     * same media type writeSingleFormattedGranule() stashes in the
+     * RequestCache.
+     */
+    private static MediaType getErrorMediaType(ResponseFormat format) {
+        switch (format) {
+            case NETCDF_3:
+                return new Netcdf3();
+            case NETCDF_4:
+                return new Netcdf4();
+            default:
+                return new TextPlain();
+        }
+    }
+
+    /**
+     * Wraps writeSingleFormattedGranule() so that it can be run by a
+     * GranuleFetcher.
+     */
+    private GranuleFetcher.Granule formattedGranule(final User user, final String granule, final String ce,
+                                                    final ResponseFormat format) {
+        return new GranuleFetcher.Granule() {
+            @Override
+            public void write(OutputStream os) throws IOException, PPTException, BadConfigurationException, BESError {
+                writeSingleFormattedGranule(user, granule, ce, os, format);
+            }
+        };
+    }
+
     /**
      * Write a set of netCDF3 files to the client, wrapped up in a zip file.
      *
@@ -447,16 +689,35 @@ public class AggregationServlet extends HttpServlet {
         response.setContentType(APPLICATION_X_ZIP_COMPRESSED);
         response.setHeader(CONTENT_DISPOSITION, "attachment; filename=netcdf3.zip");
 
-        User user = new User(request);
+        final User user = new User(request);
 
         ZipOutputStream zos = new ZipOutputStream(out);
+        Set<String> granuleNames = newGranuleNames();
+
+        if (maxParallelGranules > 1 && N > 1) {
+            List<GranuleFetcher.Granule> granules = new ArrayList<>();
+            for (int i = 0; i < N; ++i)
+                granules.add(formattedGranule(user, params.getFilename(i), params.getArrayCE(i), format));
+
+            // writeSingleFormattedGranule() runs on the fetch threads, so
+            // the media type for the error handler is stashed here too.
+            RequestCache.put(OPeNDAPException.ERROR_RESPONSE_MEDIA_TYPE_KEY, getErrorMediaType(format));
+
+            List<String> granulePaths = new ArrayList<>(N);
+            for (int i = 0; i < N; ++i)
+                granulePaths.add(params.getFilename(i));
+
+            writeSpooledGranules(zos, out, granuleNames, granulePaths, granules, format, "in writeFormattedGranules():");
+            zos.finish();
+            return;
+        }
 
         for (int i = 0; i < N; ++i) {
             String granule = params.getFilename(i);
             String ce = params.getArrayCE(i);
 
             try {
-                zos.putNextEntry(new ZipEntry(getNameForZip(basename(granule)[1], format)));
+                putStreamedEntry(zos, getNameForZip(granuleNames, basename(granule)[1], format), isCompressed(granule, format));
                 writeSingleFormattedGranule(user, granule, ce, zos, format);
                 zos.closeEntry();
             } catch (ZipException ze) {
@@ -489,11 +750,38 @@ public class AggregationServlet extends HttpServlet {
 
         response.setContentType(TEXT_PLAIN);
 
-        User user = new User(request);
+        final User user = new User(request);
 
         FilterAsciiHeaderStream filter = new FilterAsciiHeaderStream(out);
         filter.set(false);// let the first set of header lines through
 
+        if (maxParallelGranules > 1 && numFiles > 1) {
+            List<GranuleFetcher.Granule> granules = new ArrayList<>();
+            for (int i = 0; i < numFiles; ++i)
+                granules.add(formattedGranule(user, params.getFilename(i), params.getTableCE(i), ResponseFormat.ASCII));
+
+            RequestCache.put(OPeNDAPException.ERROR_RESPONSE_MEDIA_TYPE_KEY, getErrorMediaType(ResponseFormat.ASCII));
+
+            try (GranuleFetcher fetcher = new GranuleFetcher(granules, maxParallelGranules)) {
+                while (fetcher.hasNext()) {
+                    try {
+                        GranuleFetcher.GranuleSpool spool = fetcher.next();
+                        try {
+                            spool.writeTo(filter);
+                        }
+                        finally {
+                            spool.delete();
+                        }
+                        filter.set(true);// filter out all the remaining header lines
+                    } catch (IOException ioe) {
+                        out.println("Aggregation error building table of values: " + ioe.getMessage());
+                        logError(ioe, "in writeGranulesSingleTable():");
+                    }
+                }
+            }
+            return;
+        }
+
         for (int i = 0; i < numFiles; ++i) {
             String granule = params.getFilename(i);
             String ce = params.getTableCE(i);
@@ -520,9 +808,6 @@ public class AggregationServlet extends HttpServlet {
      * @param response The HttpServletResponse object
      */
     private void processRequest(HttpServletRequest request, HttpServletResponse response) {
-        // forget the names used in/by previous requests
-        granuleNames.clear();
-
 
         try {
             ServletOutputStream out = response.getOutputStream();
@@ -0,0 +1,394 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.aggregation;
+
+import opendap.bes.BESError;
+import opendap.bes.BadConfigurationException;
+import opendap.coreServlet.RequestCache;
+import opendap.ppt.PPTException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Retrieves the granules of an aggregation from the BES several at a time
+ * and hands them back in their original order.
+ *
+ * Each request may have at most maxParallel granules being retrieved at
+ * once, so a single large aggregation can't tie up every BES connection.
+ * All of the aggregation requests share one pool of fetch threads which
+ * bounds the total. A granule is spooled to memory, or to a temporary file
+ * once it grows past spoolMemoryLimit bytes, until the writer gets to it.
+ * All of the spools together hold at most spoolMemoryBudget bytes in memory,
+ * a spool that would go over it is moved to a temporary file at once.
+ *
+ * Typical use:
+ * <pre>
+ *     GranuleFetcher fetcher = new GranuleFetcher(granules, maxParallel);
+ *     try {
+ *         while(fetcher.hasNext()) {
+ *             GranuleSpool spool = fetcher.next();
+ *             spool.writeTo(os);
+ *             spool.delete();
+ *         }
+ *     }
+ *     finally {
+ *         fetcher.close();
+ *     }
+ * </pre>
+ */
+class GranuleFetcher implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(GranuleFetcher.class);
+
+    private static final int FETCH_THREADS_DEFAULT = 16;
+    private static final int SPOOL_MEMORY_LIMIT_DEFAULT = 8 * 1024 * 1024;
+    private static final long SPOOL_MEMORY_BUDGET_DEFAULT = 64L * 1024 * 1024;
+
+    private static volatile ThreadPoolExecutor executor = null;
+    private static volatile int spoolMemoryLimit = SPOOL_MEMORY_LIMIT_DEFAULT;
+
+    /** The bytes all of the spools together may hold in memory. */
+    private static volatile long spoolMemoryBudget = SPOOL_MEMORY_BUDGET_DEFAULT;
+    /** The bytes all of the spools together hold in memory now. */
+    private static final AtomicLong spoolMemoryInUse = new AtomicLong(0);
+
+    /**
+     * Writes a single granule to the passed stream.
+     */
+    interface Granule {
+        void write(OutputStream os) throws IOException, PPTException, BadConfigurationException, BESError;
+    }
+
+    private final List<Granule> granules;
+    private final int maxParallel;
+    private final Deque<Future<GranuleSpool>> inFlight;
+    private int nextToSubmit;
+    private final Map<String, String> contextMap;
+    private final AtomicBoolean closed;
+
+    /**
+     * @param granules The granules, in the order they are to be returned.
+     * @param maxParallel The maximum number of granules to retrieve at once.
+     */
+    GranuleFetcher(List<Granule> granules, int maxParallel) {
+        this.granules = granules;
+        this.maxParallel = Math.max(1, maxParallel);
+        inFlight = new ArrayDeque<>();
+        nextToSubmit = 0;
+        closed = new AtomicBoolean(false);
+        // The BES log entries made for each granule are built from the MDC
+        // so the fetch threads need the request's logging context.
+        @SuppressWarnings("unchecked")
+        Map<String, String> mdc = MDC.getCopyOfContextMap();
+        contextMap = mdc;
+    }
+
+    /**
+     * Starts the shared pool of fetch threads.
+     *
+     * @param fetchThreads The number of threads shared by all aggregation
+     *                     requests. Values less than 1 get the default.
+     * @param memoryLimit The number of bytes of a granule that are held in
+     *                    memory before it is spooled to a file. Values less
+     *                    than 0 get the default.
+     * @param memoryBudget The number of bytes that all of the granules
+     *                     together may hold in memory. Values less than 0
+     *                     get the default.
+     */
+    static synchronized void init(int fetchThreads, int memoryLimit, long memoryBudget) {
+        if (executor != null)
+            return;
+        if (fetchThreads < 1)
+            fetchThreads = FETCH_THREADS_DEFAULT;
+        spoolMemoryLimit = memoryLimit < 0 ? SPOOL_MEMORY_LIMIT_DEFAULT : memoryLimit;
+        spoolMemoryBudget = memoryBudget < 0 ? SPOOL_MEMORY_BUDGET_DEFAULT : memoryBudget;
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(
+                fetchThreads, fetchThreads,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GranuleFetcher-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        tpe.allowCoreThreadTimeOut(true);
+        executor = tpe;
+        log.info("init() - fetchThreads: {}  spoolMemoryLimit: {} bytes  spoolMemoryBudget: {} bytes",
+                new Object[]{fetchThreads, spoolMemoryLimit, spoolMemoryBudget});
+    }
+
+    static synchronized void destroy() {
+        if (executor != null)
+            executor.shutdownNow();
+        executor = null;
+    }
+
+    boolean hasNext() {
+        return nextToSubmit < granules.size() || !inFlight.isEmpty();
+    }
+
+    /**
+     * Returns the next granule, waiting for it to be retrieved if need be.
+     * Before waiting, retrieval of the following granules is started, up to
+     * maxParallel at once.
+     *
+     * @return The spooled granule. The caller must delete() it.
+     * @throws IOException When retrieving the granule did, or when this
+     * thread is interrupted.
+     * @throws PPTException When retrieving the granule did.
+     * @throws BadConfigurationException When retrieving the granule did.
+     * @throws BESError When retrieving the granule did.
+     */
+    GranuleSpool next() throws IOException, PPTException, BadConfigurationException, BESError {
+        while (nextToSubmit < granules.size() && inFlight.size() < maxParallel)
+            inFlight.addLast(submit(granules.get(nextToSubmit++)));
+
+        Future<GranuleSpool> future = inFlight.removeFirst();
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a granule.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof PPTException)
+                throw (PPTException) cause;
+            if (cause instanceof BadConfigurationException)
+                throw (BadConfigurationException) cause;
+            if (cause instanceof BESError)
+                throw (BESError) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private Future<GranuleSpool> submit(final Granule granule) {
+        ThreadPoolExecutor tpe = executor;
+        if (tpe == null)
+            throw new IllegalStateException("GranuleFetcher has not been initialized.");
+
+        return tpe.submit(new Callable<GranuleSpool>() {
+            @Override
+            public GranuleSpool call() throws Exception {
+                if (contextMap != null)
+                    MDC.setContextMap(contextMap);
+                RequestCache.openThreadCache();
+                GranuleSpool spool = new GranuleSpool(spoolMemoryLimit, closed);
+                try {
+                    granule.write(spool);
+                    spool.close();
+                    return spool;
+                }
+                catch (Exception e) {
+                    spool.delete();
+                    throw e;
+                }
+                finally {
+                    RequestCache.closeThreadCache();
+                    MDC.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops retrieving any granules that have not been returned by next()
+     * and discards their spools. Granules that are being retrieved are
+     * abandoned at their next write to the spool.
+     */
+    @Override
+    public void close() {
+        closed.set(true);
+        Future<GranuleSpool> future;
+        while ((future = inFlight.pollFirst()) != null) {
+            if (!future.cancel(false)) {
+                try {
+                    future.get().delete();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException | CancellationException e) {
+                    // The granule failed, there's nothing to clean up.
+                }
+            }
+        }
+        nextToSubmit = granules.size();
+    }
+
+
+    /**
+     * An OutputStream that keeps what's written to it in memory until it
+     * holds more than memoryLimit bytes, or the memory held by all of the
+     * spools would pass spoolMemoryBudget, and in a temporary file after that.
+     * The size and CRC-32 of the content are computed as it's written so
+     * that it can be STORED in a Zip file without reading it twice.
+     */
+    static class GranuleSpool extends OutputStream {
+        private final int memoryLimit;
+        private final AtomicBoolean abandoned;
+        private final CRC32 crc;
+        private long size;
+        private long reserved;
+        private ByteArrayOutputStream memory;
+        private File file;
+        private OutputStream fileStream;
+
+        GranuleSpool(int memoryLimit, AtomicBoolean abandoned) {
+            this.memoryLimit = memoryLimit;
+            this.abandoned = abandoned;
+            crc = new CRC32();
+            size = 0;
+            reserved = 0;
+            memory = new ByteArrayOutputStream(Math.min(memoryLimit, 65536));
+            file = null;
+            fileStream = null;
+        }
+
+        /**
+         * Takes len bytes from the memory budget shared by all the spools.
+         *
+         * @return false if there aren't that many left.
+         */
+        private boolean reserve(int len) {
+            long budget = spoolMemoryBudget;
+            long inUse;
+            do {
+                inUse = spoolMemoryInUse.get();
+                if (inUse + len > budget)
+                    return false;
+            } while (!spoolMemoryInUse.compareAndSet(inUse, inUse + len));
+            reserved += len;
+            return true;
+        }
+
+        private void releaseMemory() {
+            spoolMemoryInUse.addAndGet(-reserved);
+            reserved = 0;
+            memory = null;
+        }
+
+        private OutputStream target(int len) throws IOException {
+            if (abandoned.get())
+                throw new InterruptedIOException("The aggregation request was abandoned.");
+            if (fileStream != null)
+                return fileStream;
+            if (memory.size() + len <= memoryLimit && reserve(len))
+                return memory;
+
+            file = File.createTempFile("granule", ".spool");
+            fileStream = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            memory.writeTo(fileStream);
+            releaseMemory();
+            log.debug("Spooling granule to {}", file);
+            return fileStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target(1).write(b);
+            crc.update(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target(len).write(b, off, len);
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getCrc() {
+            return crc.getValue();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileStream != null)
+                fileStream.close();
+        }
+
+        /**
+         * Writes the spooled granule to os.
+         */
+        void writeTo(OutputStream os) throws IOException {
+            if (file == null) {
+                memory.writeTo(os);
+                return;
+            }
+            try (InputStream is = new FileInputStream(file)) {
+                IOUtils.copyLarge(is, os);
+            }
+        }
+
+        /**
+         * Releases the memory and temporary file used by the spool.
+         */
+        void delete() {
+            releaseMemory();
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                }
+                catch (IOException e) {
+                    log.warn("delete() - Failed to close {} Msg: {}", file, e.getMessage());
+                }
+            }
+            if (file != null && !file.delete())
+                log.warn("delete() - Failed to delete {}", file);
+            file = null;
+            fileStream = null;
+        }
+    }
+}
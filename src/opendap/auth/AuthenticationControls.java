@@ -147,17 +147,27 @@ public class AuthenticationControls {
     }
 
 
+    /**
+     * @param request The request being serviced.
+     * @return The id of the user associated with the request, or null if
+     * the request is not from a logged in user.
+     */
+    public static String getUserId(HttpServletRequest request) {
+        String userId = null;
+        Principal userPrinciple = request.getUserPrincipal();
+        if (request.getRemoteUser() != null) {
+            userId = request.getRemoteUser();
+
+        } else if (userPrinciple != null) {
+            userId = userPrinciple.getName();
+        }
+        return userId;
+    }
+
     public static void setLoginParameters(Transformer transformer, HttpServletRequest request) throws SaxonApiException {
 
         if(initialized) {
-            String userId = null;
-            Principal userPrinciple = request.getUserPrincipal();
-            if (request.getRemoteUser() != null) {
-                userId = request.getRemoteUser();
-
-            } else if (userPrinciple != null) {
-                userId = userPrinciple.getName();
-            }
+            String userId = getUserId(request);
 
             log.debug("xsltDir() - UserId: {}", userId);
             if (userId != null) {
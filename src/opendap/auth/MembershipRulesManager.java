@@ -28,8 +28,10 @@ package opendap.auth;
 
 import org.jdom.Element;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,10 +45,17 @@ public class MembershipRulesManager {
     private static ConcurrentHashMap<String, AuthGroup> authGroups;
     private static ConcurrentHashMap<String, HashSet<String>> authRoles;
     private static ReentrantLock configLock;
+
+    // Roles already worked out for a uid and authContext. It's thrown away
+    // when it gets too big rather than tracking which entries are in use.
+    private static final int MAX_RESOLVED_ROLE_SETS = 10000;
+    private static ConcurrentHashMap<String, Set<String>> resolvedRoles;
+
     static {
         authGroups = new ConcurrentHashMap<>();
         authRoles = new ConcurrentHashMap<>();
         configLock = new ReentrantLock();
+        resolvedRoles = new ConcurrentHashMap<>();
     }
 
     public static void init(Element config) throws ConfigurationException {
@@ -62,6 +71,7 @@ public class MembershipRulesManager {
                 Element roleElem = (Element) o;
                 addRole(roleElem);
             }
+            resolvedRoles.clear();
         }
         finally {
             configLock.unlock();
@@ -166,4 +176,25 @@ public class MembershipRulesManager {
          return userRoles;
     }
 
+    /**
+     * Like getUserRoles() but the result is remembered, so repeat requests
+     * from the same user don't have to check every group and role again.
+     *
+     * @param uid The user id.
+     * @param authContext The authentication context of the user.
+     * @return An unmodifiable set of the role ids held by the user.
+     */
+    public static Set<String> getResolvedUserRoles(String uid, String authContext){
+
+        String key = uid + '\u0000' + authContext;
+        Set<String> userRoles = resolvedRoles.get(key);
+        if(userRoles == null){
+            userRoles = Collections.unmodifiableSet(getUserRoles(uid, authContext));
+            if(resolvedRoles.size() >= MAX_RESOLVED_ROLE_SETS)
+                resolvedRoles.clear();
+            resolvedRoles.put(key, userRoles);
+        }
+        return userRoles;
+    }
+
 }
@@ -29,6 +29,7 @@ package opendap.auth;
 import opendap.coreServlet.OPeNDAPException;
 import opendap.coreServlet.ServletUtil;
 import opendap.logging.LogUtil;
+import opendap.logging.PhaseTimer;
 import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.slf4j.Logger;
@@ -48,6 +49,8 @@ import java.security.Principal;
  */
 public class PEPFilter implements Filter {
 
+    private static final PhaseTimer DECISION_TIMER = PhaseTimer.named("auth.decision");
+
     private Logger log;
     private PolicyDecisionPoint pdp;
     private boolean everyOneMustHaveUid;
@@ -204,6 +207,8 @@ public class PEPFilter implements Filter {
 
     @Override
     public void destroy() {
+        if (pdp != null)
+            pdp.destroy();
         log = null;
     }
 
@@ -219,7 +224,13 @@ public class PEPFilter implements Filter {
             queryString = "";
         }
         String action       = request.getMethod();
-        return pdp.evaluate(userId, authContext, resourceId,queryString,action);
+        long timerStart = DECISION_TIMER.start();
+        try {
+            return pdp.evaluate(userId, authContext, resourceId,queryString,action);
+        }
+        finally {
+            DECISION_TIMER.stop(timerStart);
+        }
     }
 
 }
@@ -45,6 +45,12 @@ public abstract class PolicyDecisionPoint {
 
     public abstract boolean evaluate(String userId, String authContext, String resourceId, String queryString, String actionId);
 
+    /**
+     * Releases any resources held by the PolicyDecisionPoint.
+     */
+    public void destroy() {
+    }
+
     public static PolicyDecisionPoint pdpFactory(Element config) throws ConfigurationException {
         Logger log = LoggerFactory.getLogger(PolicyDecisionPoint.class);
         String msg;
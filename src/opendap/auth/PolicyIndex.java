@@ -0,0 +1,317 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled form of a set of policies that answers the same question as
+ * evaluating each Policy in turn, but without trying every policy for every
+ * request.
+ * <p/>
+ * RegexPolicy instances are indexed by HTTP method and by the literal prefix
+ * of their resource pattern, so only the policies that could match the
+ * resource are tried. Policies in the same index bucket that share their role
+ * and query patterns have their resource patterns merged into a single
+ * alternation. Other Policy implementations are evaluated as they are.
+ * <p/>
+ * A PolicyIndex is immutable and may be shared between threads.
+ */
+class PolicyIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(PolicyIndex.class);
+
+    private final EnumMap<Policy.HTTP_METHOD, MethodIndex> byMethod;
+    private final List<Policy> otherPolicies;
+
+
+    PolicyIndex(Collection<Policy> policies) {
+
+        byMethod = new EnumMap<>(Policy.HTTP_METHOD.class);
+        otherPolicies = new ArrayList<>();
+
+        // method -> resource prefix -> role and query patterns -> resource patterns
+        EnumMap<Policy.HTTP_METHOD, Map<String, Map<String, List<RegexPolicy>>>> groups =
+                new EnumMap<>(Policy.HTTP_METHOD.class);
+
+        for (Policy policy : policies) {
+            if (!(policy instanceof RegexPolicy)) {
+                otherPolicies.add(policy);
+                continue;
+            }
+            RegexPolicy regexPolicy = (RegexPolicy) policy;
+            String prefix = literalPrefix(regexPolicy.getResourcePattern().pattern());
+            String ruleKey = regexPolicy.getRolePattern().pattern() + '\u0000' +
+                    regexPolicy.getQueryStringPattern().pattern();
+
+            for (Policy.HTTP_METHOD method : EnumSet.copyOf(regexPolicy.getAllowedActions())) {
+                Map<String, Map<String, List<RegexPolicy>>> byPrefix = groups.get(method);
+                if (byPrefix == null) {
+                    byPrefix = new HashMap<>();
+                    groups.put(method, byPrefix);
+                }
+                Map<String, List<RegexPolicy>> byRule = byPrefix.get(prefix);
+                if (byRule == null) {
+                    byRule = new LinkedHashMap<>();
+                    byPrefix.put(prefix, byRule);
+                }
+                List<RegexPolicy> members = byRule.get(ruleKey);
+                if (members == null) {
+                    members = new ArrayList<>();
+                    byRule.put(ruleKey, members);
+                }
+                members.add(regexPolicy);
+            }
+        }
+
+        int ruleCount = 0;
+        for (Map.Entry<Policy.HTTP_METHOD, Map<String, Map<String, List<RegexPolicy>>>> methodEntry : groups.entrySet()) {
+            HashMap<String, Rule[]> rulesByPrefix = new HashMap<>();
+            TreeSet<Integer> prefixLengths = new TreeSet<>();
+
+            for (Map.Entry<String, Map<String, List<RegexPolicy>>> prefixEntry : methodEntry.getValue().entrySet()) {
+                List<Rule> rules = new ArrayList<>();
+                for (List<RegexPolicy> members : prefixEntry.getValue().values()) {
+                    rules.addAll(compileRules(members));
+                }
+                ruleCount += rules.size();
+                rulesByPrefix.put(prefixEntry.getKey(), rules.toArray(new Rule[rules.size()]));
+                prefixLengths.add(prefixEntry.getKey().length());
+            }
+
+            int[] lengths = new int[prefixLengths.size()];
+            int i = 0;
+            for (Integer length : prefixLengths) {
+                lengths[i++] = length;
+            }
+            byMethod.put(methodEntry.getKey(), new MethodIndex(lengths, rulesByPrefix));
+        }
+        log.debug("PolicyIndex() - Compiled {} policies into {} rules.", policies.size(), ruleCount);
+    }
+
+
+    /**
+     * @param roles        The roles held by the user. Not empty.
+     * @param resourceId   The requested resource.
+     * @param queryString  The query string of the request.
+     * @param httpMethod   The HTTP method of the request.
+     * @return True if any of the policies allows the request for any of the roles.
+     */
+    boolean evaluate(Set<String> roles, String resourceId, String queryString, String httpMethod) {
+
+        if (resourceId != null && queryString != null && httpMethod != null) {
+            MethodIndex methodIndex = null;
+            try {
+                methodIndex = byMethod.get(Policy.HTTP_METHOD.valueOf(httpMethod));
+            } catch (IllegalArgumentException e) {
+                log.debug("evaluate() - No policy allows the HTTP method {}", httpMethod);
+            }
+            if (methodIndex != null && methodIndex.evaluate(roles, resourceId, queryString))
+                return true;
+        }
+
+        for (String role : roles) {
+            for (Policy policy : otherPolicies) {
+                if (policy.evaluate(role, resourceId, queryString, httpMethod))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Builds the rules for policies that share their role and query patterns,
+     * merging their resource patterns where that's safe to do.
+     */
+    private static List<Rule> compileRules(List<RegexPolicy> members) {
+        List<Rule> rules = new ArrayList<>();
+        Pattern rolePattern = members.get(0).getRolePattern();
+        Pattern queryPattern = members.get(0).getQueryStringPattern();
+
+        List<Pattern> mergeable = new ArrayList<>();
+        List<Pattern> unmerged = new ArrayList<>();
+        for (RegexPolicy member : members) {
+            // Back references are numbered by group, merging would renumber them.
+            if (canMerge(member.getResourcePattern().pattern()))
+                mergeable.add(member.getResourcePattern());
+            else
+                unmerged.add(member.getResourcePattern());
+        }
+
+        if (mergeable.size() == 1) {
+            unmerged.add(mergeable.get(0));
+        } else if (mergeable.size() > 1) {
+            StringBuilder merged = new StringBuilder();
+            for (Pattern resourcePattern : mergeable) {
+                if (merged.length() > 0)
+                    merged.append('|');
+                merged.append("(?:").append(resourcePattern.pattern()).append(')');
+            }
+            try {
+                rules.add(new Rule(rolePattern, queryPattern, Pattern.compile(merged.toString())));
+            } catch (PatternSyntaxException e) {
+                // Duplicate named groups, for example. Keep them apart.
+                unmerged.addAll(mergeable);
+            }
+        }
+        for (Pattern resourcePattern : unmerged) {
+            rules.add(new Rule(rolePattern, queryPattern, resourcePattern));
+        }
+        return rules;
+    }
+
+    private static boolean canMerge(String regex) {
+        for (int i = 0; i + 1 < regex.length(); i++) {
+            if (regex.charAt(i) == '\\') {
+                char next = regex.charAt(i + 1);
+                if (Character.isDigit(next) || next == 'k')
+                    return false;
+                i++;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns the literal text that every string matched by regex must start
+     * with. This is conservative, an empty string is always a safe answer.
+     *
+     * @param regex A regular expression that is used with Matcher.matches().
+     * @return The literal prefix of the regex.
+     */
+    static String literalPrefix(String regex) {
+
+        // Alternation could put anything first.
+        if (regex.indexOf('|') >= 0)
+            return "";
+
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char literal;
+            int length;
+            if (c == '\\') {
+                if (i + 1 >= regex.length())
+                    break;
+                char escaped = regex.charAt(i + 1);
+                // \d, \Q, \1 and friends aren't simple literals.
+                if (Character.isLetterOrDigit(escaped))
+                    break;
+                literal = escaped;
+                length = 2;
+            } else if (".[]()*+?{}^$|".indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                length = 1;
+            }
+
+            int next = i + length;
+            if (next < regex.length() && "*+?{".indexOf(regex.charAt(next)) >= 0) {
+                // A quantified character is only certain to be there if it's '+'.
+                if (regex.charAt(next) == '+')
+                    prefix.append(literal);
+                break;
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+
+    /**
+     * The rules for a single HTTP method, by the literal prefix of their
+     * resource patterns.
+     */
+    private static class MethodIndex {
+        private final int[] prefixLengths;
+        private final HashMap<String, Rule[]> rulesByPrefix;
+
+        MethodIndex(int[] prefixLengths, HashMap<String, Rule[]> rulesByPrefix) {
+            this.prefixLengths = prefixLengths;
+            this.rulesByPrefix = rulesByPrefix;
+        }
+
+        boolean evaluate(Set<String> roles, String resourceId, String queryString) {
+            for (int length : prefixLengths) {
+                if (length > resourceId.length())
+                    break;
+                Rule[] rules = rulesByPrefix.get(resourceId.substring(0, length));
+                if (rules == null)
+                    continue;
+                for (Rule rule : rules) {
+                    if (rule.evaluate(roles, resourceId, queryString))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
+    private static class Rule {
+        private final Pattern rolePattern;
+        private final Pattern queryPattern;
+        private final Pattern resourcePattern;
+
+        Rule(Pattern rolePattern, Pattern queryPattern, Pattern resourcePattern) {
+            this.rolePattern = rolePattern;
+            this.queryPattern = queryPattern;
+            this.resourcePattern = resourcePattern;
+        }
+
+        boolean evaluate(Set<String> roles, String resourceId, String queryString) {
+            boolean roleMatched = false;
+            for (String role : roles) {
+                if (rolePattern.matcher(role).matches()) {
+                    roleMatched = true;
+                    break;
+                }
+            }
+            return roleMatched
+                    && resourcePattern.matcher(resourceId).matches()
+                    && queryPattern.matcher(queryString).matches();
+        }
+    }
+}
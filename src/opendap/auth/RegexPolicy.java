@@ -121,6 +121,23 @@ public class RegexPolicy implements Policy {
     }
 
 
+    Pattern getRolePattern() {
+        return rolePattern;
+    }
+
+    Pattern getResourcePattern() {
+        return resourcePattern;
+    }
+
+    Pattern getQueryStringPattern() {
+        return queryStringPattern;
+    }
+
+    List<HTTP_METHOD> getAllowedActions() {
+        return allowedActions;
+    }
+
+
     @Override
     public boolean evaluate(String roleId, String resourceId, String queryString, String httpMethod) {
 
@@ -133,13 +150,13 @@ public class RegexPolicy implements Policy {
             if(resourcePattern.matcher(resourceId).matches()){
                 if(queryStringPattern.matcher(queryString).matches()) {
                     if (allowedActions.contains(HTTP_METHOD.valueOf(httpMethod))) {
-                        log.info("evaluate() - Policy Matched! RETURNING TRUE");
+                        log.debug("evaluate() - Policy Matched! RETURNING TRUE");
                         return true;
                     }
                 }
             }
         }
-        log.info("evaluate() - Policy Did Not Match! RETURNING FALSE");
+        log.debug("evaluate() - Policy Did Not Match! RETURNING FALSE");
         return false;
 
     }
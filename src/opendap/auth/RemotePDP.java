@@ -28,9 +28,11 @@ package opendap.auth;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -39,23 +41,61 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RemotePDP is a client of a PDPService which can be used in a PEPFilter to delegate the decision making to a remote
  * PDPService instance.
+ * <p/>
+ * Requests to the PDPService are made over a pool of keep-alive connections, and the decisions it returns are
+ * cached for a while so that repeated requests for the same resource don't each cost a round trip. Allow and deny
+ * decisions have their own time to live. Failures to reach the PDPService are not cached.
+ * <p/>
+ * The connection pool is the RemotePDP's own rather than the shared HttpClientPool. Every request that needs an
+ * authorization decision waits on the PDPService, so its connections get short timeouts and are never left
+ * queued behind the long data transfers that hold the shared pool's connections.
  */
 public class RemotePDP extends PolicyDecisionPoint {
 
     public static final String DEFAULT_PDP_SERVICE = "http://localhost:8080/opendap/pdpService";
+
+    public static final int  DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int  DEFAULT_CONNECT_TIMEOUT = 5000;  // milliseconds
+    public static final int  DEFAULT_SOCKET_TIMEOUT  = 10000; // milliseconds
+    public static final int  DEFAULT_DECISION_CACHE_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_ALLOW_TTL = 300; // seconds
+    public static final long DEFAULT_DENY_TTL  = 30;  // seconds
+
+    private static final long IDLE_CONNECTION_TIMEOUT = 60; // seconds
+
     private Logger log;
     private URI pdpServiceEndpoint;
 
+    private CloseableHttpClient httpClient;
+
+    private int  decisionCacheMaxEntries;
+    private long allowTtl;
+    private long denyTtl;
+    private Map<String, Decision> decisionCache;
+
+    private static final AtomicLong cacheHits = new AtomicLong(0);
+    private static final AtomicLong cacheMisses = new AtomicLong(0);
+    private static final AtomicLong remoteEvaluations = new AtomicLong(0);
+    private static final AtomicLong remoteFailures = new AtomicLong(0);
+
 
     RemotePDP() {
         log = LoggerFactory.getLogger(this.getClass());
         pdpServiceEndpoint = null;
+        httpClient = null;
+        decisionCache = null;
     }
 
 
@@ -70,6 +110,21 @@ public class RemotePDP extends PolicyDecisionPoint {
 
     }
 
+    /**
+     * Configuration:
+     * <pre>
+     * &lt;PolicyDecisionPoint class="opendap.auth.RemotePDP"&gt;
+     *     &lt;PDPServiceEndpoint&gt;https://localhost:8443/pdp&lt;/PDPServiceEndpoint&gt;
+     *     &lt;Connections max="20" connectTimeout="5000" socketTimeout="10000" /&gt;
+     *     &lt;DecisionCache maxEntries="10000" allowTtl="300" denyTtl="30" /&gt;
+     * &lt;/PolicyDecisionPoint&gt;
+     * </pre>
+     * Timeouts are in milliseconds and time to live values are in seconds. Setting maxEntries to zero turns off
+     * the decision cache.
+     *
+     * @param config The PolicyDecisionPoint element.
+     * @throws ConfigurationException When the configuration is missing or has a bad value.
+     */
     @Override
     public void init(Element config) throws ConfigurationException {
 
@@ -97,10 +152,72 @@ public class RemotePDP extends PolicyDecisionPoint {
             throw new ConfigurationException(e1);
         }
 
+        int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        int socketTimeout  = DEFAULT_SOCKET_TIMEOUT;
+        e = config.getChild("Connections");
+        if (e != null) {
+            maxConnections = (int) getNonNegativeLong(e, "max", maxConnections);
+            connectTimeout = (int) getNonNegativeLong(e, "connectTimeout", connectTimeout);
+            socketTimeout  = (int) getNonNegativeLong(e, "socketTimeout", socketTimeout);
+        }
+        if (maxConnections < 1) {
+            throw new ConfigurationException("The Connections attribute max must be at least 1.");
+        }
+
+        decisionCacheMaxEntries = DEFAULT_DECISION_CACHE_MAX_ENTRIES;
+        allowTtl = DEFAULT_ALLOW_TTL;
+        denyTtl  = DEFAULT_DENY_TTL;
+        e = config.getChild("DecisionCache");
+        if (e != null) {
+            decisionCacheMaxEntries = (int) getNonNegativeLong(e, "maxEntries", decisionCacheMaxEntries);
+            allowTtl = getNonNegativeLong(e, "allowTtl", allowTtl);
+            denyTtl  = getNonNegativeLong(e, "denyTtl", denyTtl);
+        }
+        log.debug("init() - Connections max: {} connectTimeout: {} ms socketTimeout: {} ms",
+                new Object[]{maxConnections, connectTimeout, socketTimeout});
+        log.debug("init() - DecisionCache maxEntries: {} allowTtl: {} s denyTtl: {} s",
+                new Object[]{decisionCacheMaxEntries, allowTtl, denyTtl});
+
+        decisionCache = new DecisionCache(decisionCacheMaxEntries);
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS)
+                .build();
 
    }
 
 
+    private long getNonNegativeLong(Element e, String attrName, long defaultValue) throws ConfigurationException {
+        String s = e.getAttributeValue(attrName);
+        if (s == null)
+            return defaultValue;
+        try {
+            long value = Long.parseLong(s.trim());
+            if (value >= 0)
+                return value;
+        }
+        catch (NumberFormatException nfe) {
+            // Fall through.
+        }
+        throw new ConfigurationException("The " + e.getName() + " attribute " + attrName +
+                " must be a non-negative integer. Found: " + s);
+    }
+
+
     @Override
     public boolean addPolicy(Policy policy) {
         throw new UnsupportedOperationException("Adding policies to a remote PDP is not supported.");
@@ -114,19 +231,58 @@ public class RemotePDP extends PolicyDecisionPoint {
     @Override
     public boolean evaluate(String userId, String authContext, String resourceId, String queryString, String actionId) {
 
+        String key = userId + '\u0000' + authContext + '\u0000' + resourceId + '\u0000' + queryString + '\u0000' + actionId;
+
+        if (decisionCacheMaxEntries > 0) {
+            Decision cached;
+            synchronized (decisionCache) {
+                cached = decisionCache.get(key);
+            }
+            if (cached != null && cached.expires > System.currentTimeMillis()) {
+                cacheHits.incrementAndGet();
+                log.debug("evaluate() - Cached decision: {}", cached.allowed);
+                return cached.allowed;
+            }
+            cacheMisses.incrementAndGet();
+        }
 
-        boolean result = false;
+        Boolean result = evaluateRemotely(userId, authContext, resourceId, queryString, actionId);
+        if (result == null) {
+            // We couldn't get an answer, which is a deny but not one that should stick.
+            return false;
+        }
+
+        if (decisionCacheMaxEntries > 0) {
+            long ttl = result ? allowTtl : denyTtl;
+            if (ttl > 0) {
+                Decision decision = new Decision(result, System.currentTimeMillis() + ttl * 1000);
+                synchronized (decisionCache) {
+                    decisionCache.put(key, decision);
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Asks the PDPService for a decision.
+     *
+     * @return The decision, or null if the PDPService could not be reached or failed to make one.
+     */
+    private Boolean evaluateRemotely(String userId, String authContext, String resourceId, String queryString, String actionId) {
+
+        remoteEvaluations.incrementAndGet();
 
-        CloseableHttpClient httpclient = HttpClients.createDefault();
         try {
 
             StringBuilder requestUrl = new StringBuilder();
             requestUrl.append(pdpServiceEndpoint);
-            requestUrl.append("?uid=").append(userId);
-            requestUrl.append("?authContext=").append(authContext);
-            requestUrl.append("&resourceId=").append(resourceId);
-            requestUrl.append("&query=").append(queryString);
-            requestUrl.append("&action=").append(actionId);
+            requestUrl.append("?uid=").append(encode(userId));
+            requestUrl.append("&authContext=").append(encode(authContext));
+            requestUrl.append("&resourceId=").append(encode(resourceId));
+            requestUrl.append("&query=").append(encode(queryString));
+            requestUrl.append("&action=").append(encode(actionId));
 
             HttpGet httpget = new HttpGet(requestUrl.toString());
 
@@ -146,6 +302,9 @@ public class RemotePDP extends PolicyDecisionPoint {
                         log.debug(entity != null ? EntityUtils.toString(entity) : "null");
 
                         return true;
+                    } else if (status >= 500) {
+                        log.error("evaluate() - PDPService returned status {}", status);
+                        return null;
                     } else {
                         return false;
                     }
@@ -154,18 +313,125 @@ public class RemotePDP extends PolicyDecisionPoint {
             };
             // -------------------------------------------------------
 
-            result = httpclient.execute(httpget, responseHandler);
+            Boolean result = httpClient.execute(httpget, responseHandler);
+            if (result == null)
+                remoteFailures.incrementAndGet();
+            return result;
+
         } catch (Exception e) {
+            remoteFailures.incrementAndGet();
             log.error("evaluate() - Caught {} Message: {}",e.getClass().getName(),e.getMessage() );
-        } finally {
+        }
+
+        return null;
+    }
+
+
+    private static String encode(String s) throws UnsupportedEncodingException {
+        return s == null ? "" : URLEncoder.encode(s, "UTF-8");
+    }
+
+
+    /**
+     * @return The number of decisions answered from the decision cache.
+     */
+    public static long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return The number of decisions that were not in the decision cache.
+     */
+    public static long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @return The number of requests made to the PDPService.
+     */
+    public static long getRemoteEvaluationCount() {
+        return remoteEvaluations.get();
+    }
+
+    /**
+     * @return The number of requests to the PDPService that failed to produce a decision.
+     */
+    public static long getRemoteFailureCount() {
+        return remoteFailures.get();
+    }
+
+    /**
+     * Writes the decision cache and PDPService request counts, summed over all RemotePDP instances, in the
+     * Prometheus text exposition format.
+     *
+     * @param sb The metrics are appended to this.
+     */
+    public static void writeMetrics(StringBuilder sb) {
+        sb.append("# HELP olfs_remote_pdp_decision_cache_lookups_total Authorization decisions looked up in the RemotePDP decision cache.\n");
+        sb.append("# TYPE olfs_remote_pdp_decision_cache_lookups_total counter\n");
+        sb.append("olfs_remote_pdp_decision_cache_lookups_total{result=\"hit\"} ").append(cacheHits.get()).append("\n");
+        sb.append("olfs_remote_pdp_decision_cache_lookups_total{result=\"miss\"} ").append(cacheMisses.get()).append("\n");
+        sb.append("# HELP olfs_remote_pdp_requests_total Requests made to the PDPService.\n");
+        sb.append("# TYPE olfs_remote_pdp_requests_total counter\n");
+        sb.append("olfs_remote_pdp_requests_total ").append(remoteEvaluations.get()).append("\n");
+        sb.append("# HELP olfs_remote_pdp_failures_total Requests to the PDPService that failed to produce a decision.\n");
+        sb.append("# TYPE olfs_remote_pdp_failures_total counter\n");
+        sb.append("olfs_remote_pdp_failures_total ").append(remoteFailures.get()).append("\n");
+    }
+
+    public void clearDecisionCache() {
+        if (decisionCache != null) {
+            synchronized (decisionCache) {
+                decisionCache.clear();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        log.info("destroy() - Decision cache hits: {} misses: {} PDPService requests: {} failures: {}",
+                new Object[]{getCacheHitCount(), getCacheMissCount(), getRemoteEvaluationCount(), getRemoteFailureCount()});
+        clearDecisionCache();
+        if (httpClient != null) {
             try {
-                httpclient.close();
+                httpClient.close();
             } catch (IOException e) {
-                log.error("evaluate() - Caught {} Message: {}",e.getClass().getName(),e.getMessage() );
+                log.error("destroy() - Caught {} Message: {}",e.getClass().getName(),e.getMessage() );
                 // oh well...
             }
+            httpClient = null;
         }
+    }
 
-        return result;
+
+    /**
+     * The decisions most recently used, at most maxEntries of them. Access
+     * is synchronized on the instance.
+     */
+    private static class DecisionCache extends LinkedHashMap<String, Decision> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        DecisionCache(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+
+    private static class Decision {
+        final boolean allowed;
+        final long expires;
+
+        Decision(boolean allowed, long expires) {
+            this.allowed = allowed;
+            this.expires = expires;
+        }
     }
 }
@@ -33,8 +33,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -42,12 +43,18 @@ import java.util.Vector;
  */
 public class SimplePDP extends PolicyDecisionPoint {
 
+    private static final Set<String> NO_ROLES = Collections.singleton("");
+
     private Logger log;
     private Vector<Policy> policies;
 
+    // Compiled from policies on first use after they change.
+    private volatile PolicyIndex policyIndex;
+
     public SimplePDP(){
         log = LoggerFactory.getLogger(this.getClass());
         policies = new Vector<>();
+        policyIndex = null;
     }
 
     private Policy policyFactory(Element policyDef) throws ConfigurationException {
@@ -110,13 +117,33 @@ public class SimplePDP extends PolicyDecisionPoint {
     public boolean addPolicy(Policy policy) {
 
         log.debug("addPolicy() - Adding Policy {}",policy.toString());
-        return policies.add(policy);
+        synchronized (policies) {
+            policyIndex = null;
+            return policies.add(policy);
+        }
     }
 
     @Override
     public boolean removePolicy(Policy policy) {
         log.debug("removePolicy() - Removing Policy {}",policy.toString());
-        return policies.remove(policy);
+        synchronized (policies) {
+            policyIndex = null;
+            return policies.remove(policy);
+        }
+    }
+
+    private PolicyIndex getPolicyIndex() {
+        PolicyIndex index = policyIndex;
+        if (index == null) {
+            synchronized (policies) {
+                index = policyIndex;
+                if (index == null) {
+                    index = new PolicyIndex(policies);
+                    policyIndex = index;
+                }
+            }
+        }
+        return index;
     }
 
 
@@ -135,19 +162,14 @@ public class SimplePDP extends PolicyDecisionPoint {
                 "queryString: \""+queryString+"\", " +
                 "httpMethod:\""+httpMethod+"\"}");
 
-        HashSet<String> userRoles = MembershipRulesManager.getUserRoles(userId,authContext);
+        Set<String> userRoles = MembershipRulesManager.getResolvedUserRoles(userId,authContext);
 
         if(userRoles.isEmpty()){
-            userRoles.add("");
+            userRoles = NO_ROLES;
         }
-        for(String userInRole: userRoles){
-            for(Policy policy: policies){
-                log.debug("evaluate() - Evaluating Policy {}",policy.toString());
-                if(policy.evaluate(userInRole,resourceId,queryString, httpMethod)) {
-                    log.debug("evaluate() - END <**MATCH**>");
-                    return true;
-                }
-            }
+        if(getPolicyIndex().evaluate(userRoles,resourceId,queryString, httpMethod)) {
+            log.debug("evaluate() - END <**MATCH**>");
+            return true;
         }
         log.debug("evaluate() - END [NO MATCH])");
         return false;
@@ -28,8 +28,7 @@ package opendap.bes;
 
 import opendap.bes.dap2Responders.BesApi;
 import opendap.io.HyraxStringEncoding;
-import opendap.logging.Timer;
-import opendap.logging.Procedure;
+import opendap.logging.PhaseTimer;
 import opendap.ppt.OPeNDAPClient;
 import opendap.ppt.PPTException;
 import org.jdom.Document;
@@ -47,8 +46,15 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -68,6 +74,75 @@ public class BES {
     private ReentrantLock clientsMapLock;
     private int totalClients;
 
+    private ConcurrentLinkedQueue<BesClientCheckout> checkoutWaiters;
+    private AtomicInteger checkoutWaiterCount;
+    private AtomicLong rejectedCheckouts;
+    private ThreadLocal<BoundClient> boundClient;
+
+    private ScheduledFuture<?> poolMaintenanceTask;
+    private AtomicLong retiredClients;
+    private AtomicLong failedValidations;
+
+    /**
+     * Upper bounds (ms) of the checkout wait time histogram buckets. The last
+     * bucket counts everything longer.
+     */
+    private static final long[] WAIT_TIME_BUCKETS = {1, 10, 100, 1000, 10000};
+    private AtomicLongArray waitTimeCounts;
+    private AtomicLong totalWaitTime;
+
+    /*
+     * Health and load as seen from this side of the PPT connection, used by
+     * BesGroup to pick a BES. See recordTransaction().
+     */
+    private AtomicLong ewmaLatencyBits;
+    private AtomicInteger consecutiveFailures;
+    private AtomicInteger ejections;
+    private volatile long ejectedUntil;
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final int MAX_EJECTION_BACKOFF = 8;
+    private static volatile int ejectionFailureThreshold = 0; // Never eject
+    private static volatile long ejectionTime = 30000; // ms
+
+    /**
+     * How often the pool maintainer runs when idle clients aren't validated.
+     */
+    private static final long DEFAULT_POOL_MAINTENANCE_INTERVAL = 60000; // ms
+    private static final int PING_TIMEOUT = 10000; // ms
+
+    /**
+     * Fires the acquire timeouts of checkouts waiting on any BES.
+     */
+    private static final ScheduledThreadPoolExecutor CHECKOUT_TIMER;
+    static {
+        CHECKOUT_TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BesClientCheckoutTimer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        CHECKOUT_TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs the client pool maintenance for every BES.
+     */
+    private static final ScheduledThreadPoolExecutor POOL_MAINTAINER;
+    static {
+        POOL_MAINTAINER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BesClientPoolMaintainer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        POOL_MAINTAINER.setRemoveOnCancelPolicy(true);
+    }
+
     private ReentrantLock adminLock;
 
     private AdminInfo administratorInfo;
@@ -77,9 +152,22 @@ public class BES {
     private ReentrantLock versionDocLock;
     private Document serverVersionDocument;
 
+    /**
+     * Parses BES responses. SAXBuilder reuses its underlying parser between
+     * builds but isn't thread safe, so each thread gets its own.
+     */
+    private static final ThreadLocal<SAXBuilder> RESPONSE_PARSER = new ThreadLocal<SAXBuilder>() {
+        @Override
+        protected SAXBuilder initialValue() {
+            return new SAXBuilder();
+        }
+    };
+
     private static final Namespace BES_NS = opendap.namespaces.BES.BES_NS;
     private static final Namespace BES_ADMIN_NS = opendap.namespaces.BES.BES_ADMIN_NS;
 
+    private static final PhaseTimer TRANSACTION_TIMER = PhaseTimer.named("bes.transaction");
+
     private static final String BES_ADMIN_COMMAND = "BesAdminCmd";
     private static final String BES_ADMIN_SET_LOG_CONTEXT = "SetLogContext";
     private static final String BES_ADMIN_GET_CONFIG = "GetConfig";
@@ -98,6 +186,20 @@ public class BES {
         clientsMapLock = new ReentrantLock(true);
         totalClients = 0;
 
+        checkoutWaiters = new ConcurrentLinkedQueue<>();
+        checkoutWaiterCount = new AtomicInteger(0);
+        rejectedCheckouts = new AtomicLong(0);
+        boundClient = new ThreadLocal<>();
+        retiredClients = new AtomicLong(0);
+        failedValidations = new AtomicLong(0);
+        waitTimeCounts = new AtomicLongArray(WAIT_TIME_BUCKETS.length + 1);
+        totalWaitTime = new AtomicLong(0);
+
+        ewmaLatencyBits = new AtomicLong(Double.doubleToLongBits(0.0));
+        consecutiveFailures = new AtomicInteger(0);
+        ejections = new AtomicInteger(0);
+        ejectedUntil = 0;
+
         adminLock = new ReentrantLock(true);
         administratorInfo= null;
         supportEmail = null;
@@ -106,6 +208,7 @@ public class BES {
 
         log.debug("BES built with configuration:\n{}", this.config);
 
+        startPoolMaintainer();
     }
 
     /**
@@ -633,6 +736,7 @@ public class BES {
             sb.append("Releasing client checkout lock...").append("\n");
             log.info("{}",sb);
             clientCheckoutLock.unlock();
+            drainCheckoutWaiters();
         }
         return besResponse;
     }
@@ -785,8 +889,6 @@ public class BES {
         boolean besTrouble;
         PPTException pptException = null;
         BESError besFatalError;
-        SAXBuilder sb = new SAXBuilder();
-        Document doc;
 
         do {
             besTrouble = false;
@@ -812,28 +914,16 @@ public class BES {
                 besCommandLogger.info("BES COMMAND ({})\n{}\n", new Date(), showRequest(request));
             }
 
-            Procedure timedProc = Timer.start();
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                 ByteArrayOutputStream erros = new ByteArrayOutputStream()) {
+            long timedProc = TRANSACTION_TIMER.start();
+            long startTime = System.currentTimeMillis();
+            try (ByteArrayOutputStream erros = new ByteArrayOutputStream()) {
 
-                if (oc.sendRequest(request, baos, erros)) {
-                    log.debug("besTransaction() The BES returned this document:\n{}", baos);
-                    if (baos.size() != 0) {
-
-                        doc = sb.build(new ByteArrayInputStream(baos.toByteArray()));
-
-                        // Get the root element.
-                        Element root = doc.getRootElement();
-
-                        // Detach it from the document
-                        root.detach();
-
-                        // Pitch the root element that came with the passed catalog.
-                        // (There may not be one but whatever...)
-                        response.detachRootElement();
-
-                        // Set the root element to be the one sent from the BES.
-                        response.setRootElement(root);
+                // The response is parsed as it comes off the wire, and its
+                // root element replaces the one in the passed document.
+                if (oc.sendRequest(request, RESPONSE_PARSER.get(), response, erros)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("besTransaction() The BES returned this document:\n{}",
+                                new XMLOutputter(Format.getPrettyFormat()).outputString(response));
                     }
                 } else {
                     log.debug("BES returned this ERROR document:\n-----------\n{}-----------", erros);
@@ -883,8 +973,9 @@ public class BES {
                 pptException = e;
 
             } finally {
+                recordTransaction(System.currentTimeMillis() - startTime, !besTrouble);
                 returnClient(oc, besTrouble);
-                Timer.stop(timedProc);
+                TRANSACTION_TIMER.stop(timedProc);
             }
         }
         while(besTrouble && attempts < getMaxCommandAttempts());
@@ -945,10 +1036,12 @@ public class BES {
                 besCommandLogger.info("BES COMMAND ({})\n{}\n",new Date(),showRequest(request));
             }
 
-            Procedure timedProc = Timer.start();
+            long timedProc = TRANSACTION_TIMER.start();
+            long startTime = System.currentTimeMillis();
+            ClientOutputStream target = new ClientOutputStream(os);
             try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
 
-                boolean result = oc.sendRequest(request, os, baos);
+                boolean result = oc.sendRequest(request, target, baos);
                 log.debug("besTransaction() - Completed.");
                 if (!result) {
 
@@ -971,6 +1064,14 @@ public class BES {
                     }
                 }
             } catch (PPTException e) {
+                if (target.getFailure() != null) {
+                    // The BES was fine, it's whoever we were writing the
+                    // response to that went away, so there's no point in
+                    // trying again.
+                    log.debug("besTransaction() - Failed to write the BES response. Message: {}",
+                            target.getFailure().getMessage());
+                    throw target.getFailure();
+                }
                 besTrouble = true;
                 log.debug("OLFS Encountered a PPT Problem! Transaction attempt: {}  Message: {}", attempts, e.getMessage());
                 String msg = "Problem encountered with BES connection. Message: '" + e.getMessage() + "' " +
@@ -979,8 +1080,20 @@ public class BES {
                 e.setErrorMessage(msg);
                 pptException = e;
             } finally {
-                returnClient(oc, besTrouble);
-                Timer.stop(timedProc);
+                if (target.getFailure() == null) {
+                    // How long the BES took to start answering, not how long
+                    // it took the client to take the whole response.
+                    long firstByte = target.getFirstWriteTime();
+                    long end = firstByte > 0 ? firstByte : System.currentTimeMillis();
+                    recordTransaction(end - startTime, !besTrouble);
+                    returnClient(oc, besTrouble);
+                }
+                else {
+                    // The connection was left part way through a response
+                    // so it's no good, but it doesn't count against the BES.
+                    returnClient(oc, true);
+                }
+                TRANSACTION_TIMER.stop(timedProc);
             }
             attempts++;
         }
@@ -1101,70 +1214,224 @@ public class BES {
 
 
     /**
-     * The pool of availableInChunk OPeNDAPClient connections starts empty. When this
-     * method is called the pool is checked. If no client is availableInChunk, and the
+     * The pool of available OPeNDAPClient connections starts empty. When this
+     * method is called the pool is checked. If no client is available, and the
      * number of clientsMap has not reached the cap, then a new one is made,
-     * started, and returned. If no client is availableInChunk and the cap has been
-     * reached then this method will BLOCK until a client becomes availableInChunk.
-     * If a client is availableInChunk, it is returned.
+     * started, and returned. If no client is available and the cap has been
+     * reached then this method will BLOCK until a client becomes available,
+     * the acquire timeout expires, or the wait queue is found to be full.
+     * If a client has been bound to the calling thread (see
+     * BesClientCheckout.bindToCurrentThread()) and is not already in use it
+     * is returned instead.
      *
-     * @return The next availableInChunk OPeNDAPClient.
+     * @return The next available OPeNDAPClient.
      * @throws opendap.ppt.PPTException  .
-     * @throws BadConfigurationException .
+     * @throws BesClientUnavailable When no client could be had in time.
      */
     public OPeNDAPClient getClient()
             throws PPTException {
 
-        OPeNDAPClient besClient=null;
-
-        clientCheckoutLock.lock();
-        try {
-
-            // Acquiring this semaphore is what limits the number
-            // of clientsMap that will be in the pool. The number of
-            // semaphores available is set to MaxClients.
-            clientCheckOutFlag.acquire();
+        BoundClient bound = boundClient.get();
+        if (bound != null && !bound.inUse) {
+            bound.inUse = true;
+            log.debug("getClient() - Using BES Client (id:{}) bound to this thread.", bound.client.getID());
+            return bound.client;
+        }
+        return checkoutClient().getClient();
+    }
 
-            log.debug("clientQueue size: '{}'", clientQueue.size());
 
-            if (clientQueue.isEmpty()) {
-                besClient = getNewClient();
-            } else {
+    /**
+     * Starts a checkout of a client from the pool without blocking. The
+     * returned BesClientCheckout completes immediately if a client is
+     * available, otherwise it waits in line behind earlier checkouts. When
+     * the configured number of waiters (ClientPool@maxWaiters) has been
+     * reached the checkout fails straight away with a BesClientUnavailable,
+     * and a checkout that waits longer than ClientPool@acquireTimeout fails
+     * the same way.
+     *
+     * @return The pending checkout.
+     */
+    public BesClientCheckout checkoutClient() {
+
+        final BesClientCheckout checkout = new BesClientCheckout(this);
+
+        // Acquiring this semaphore is what limits the number
+        // of clientsMap that will be in the pool. The number of
+        // semaphores available is set to MaxClients. Only barge in
+        // when nobody is already waiting and the pool isn't being
+        // stopped (stopNice() and destroy() hold the checkout lock).
+        if (checkoutWaiters.isEmpty() && !clientCheckoutLock.isLocked() && clientCheckOutFlag.tryAcquire()) {
+            checkout.claim();
+            completeCheckout(checkout);
+            drainCheckoutWaiters();
+            return checkout;
+        }
 
-                // Get a client from the client pool.
-                besClient = clientQueue.take();
-                log.debug("getClient() - Retrieved BES Client (id:{}) from Pool.", besClient.getID());
+        if (checkoutWaiterCount.incrementAndGet() > config.getMaxClientWaiters()) {
+            checkoutWaiterCount.decrementAndGet();
+            rejectedCheckouts.incrementAndGet();
+            log.warn("checkoutClient() - BES '{}' has {} requests waiting for a client. Shedding load.",
+                    getPrefix(), config.getMaxClientWaiters());
+            checkout.fail(new BesClientUnavailable("The server is too busy to handle this request " +
+                    "right now. Please try again later."));
+            return checkout;
+        }
 
-                // If the bes connection is closed, or the client just is not connected, pitch the client
-                // and make a new one, if you can...
-                if(besClient.isClosed() || !besClient.isConnected()){
-                    log.warn("getClient() - BES Client (id:{}) appears to be dead, discarding...",besClient.getID());
-                    discardClient(besClient);
-                    besClient = getNewClient();
+        final long timeOut = config.getClientAcquireTimeOut();
+        if (timeOut > 0) {
+            checkout.setTimeout(CHECKOUT_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (checkout.expire(new BesClientUnavailable("Timed out after " + timeOut +
+                            " ms waiting for a connection to the BES. Please try again later."))) {
+                        rejectedCheckouts.incrementAndGet();
+                        log.warn("checkoutClient() - Checkout from BES '{}' timed out after {} ms",
+                                getPrefix(), timeOut);
+                    }
                 }
+            }, timeOut, TimeUnit.MILLISECONDS));
+        }
 
+        checkoutWaiters.offer(checkout);
+        log.debug("checkoutClient() - Queued checkout. {} waiting.", checkoutWaiterCount.get());
 
+        // A client may have come back while we were queueing.
+        drainCheckoutWaiters();
+        return checkout;
+    }
 
+    /**
+     * Hands free permits to queued checkouts, in arrival order, until one or
+     * the other runs out. Everything that frees a permit calls this after
+     * doing so, and everything that queues a checkout calls it after queueing,
+     * so a permit and a waiter can't miss each other. While the checkout lock
+     * is held the waiters stay queued; they are drained when it's released.
+     */
+    private void drainCheckoutWaiters() {
+        while (!checkoutWaiters.isEmpty() && !clientCheckoutLock.isLocked() && clientCheckOutFlag.tryAcquire()) {
+            BesClientCheckout waiter = checkoutWaiters.poll();
+            if (waiter == null) {
+                // Someone else got there first; whoever queues next will drain.
+                clientCheckOutFlag.release();
+                return;
+            }
+            checkoutWaiterCount.decrementAndGet();
+            if (waiter.claim()) {
+                completeCheckout(waiter);
+            }
+            else {
+                // Timed out or cancelled while in line.
+                clientCheckOutFlag.release();
             }
-            return besClient;
+        }
+    }
 
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            log.error("Whoops! Thread Interrupted!: {}", e.getMessage());
-            if (besClient != null) {
-                log.error("Attempting to discard BES Client (id:{}) ", besClient.getID());
+    /**
+     * Gives a permit back and hands it to the next waiter, if there is one.
+     */
+    private void releasePermit() {
+        clientCheckOutFlag.release();
+        drainCheckoutWaiters();
+    }
+
+    private void completeCheckout(BesClientCheckout checkout) {
+        try {
+            OPeNDAPClient oc = obtainClient();
+            recordWaitTime(checkout.getElapsedTime());
+            checkout.complete(oc);
+        }
+        catch (PPTException e) {
+            checkout.fail(e);
+        }
+    }
+
+    /**
+     * Takes a client from the pool, or makes a new one. The caller must hold
+     * a permit, which is released here if no client can be had.
+     */
+    private OPeNDAPClient obtainClient() throws PPTException {
+
+        log.debug("clientQueue size: '{}'", clientQueue.size());
+
+        // Get a client from the client pool.
+        OPeNDAPClient besClient = clientQueue.poll();
+        if (besClient == null)
+            return getNewClient();
+
+        log.debug("getClient() - Retrieved BES Client (id:{}) from Pool.", besClient.getID());
+
+        // If the bes connection is closed, or the client just is not connected, pitch the client
+        // and make a new one, if you can...
+        if (besClient.isClosed() || !besClient.isConnected()) {
+            log.warn("getClient() - BES Client (id:{}) appears to be dead, discarding...", besClient.getID());
+            try {
                 discardClient(besClient);
+            }
+            catch (PPTException e) {
                 clientCheckOutFlag.release(); // Release the client permit because this client is hosed...
+                throw e;
             }
-            throw new PPTException(e);
-        } finally {
-            clientCheckoutLock.unlock();
+            besClient = getNewClient();
+        }
+        return besClient;
+    }
+
+    /**
+     * Removes a checkout that timed out or was cancelled from the wait queue.
+     */
+    void removeCheckoutWaiter(BesClientCheckout checkout) {
+        if (checkoutWaiters.remove(checkout))
+            checkoutWaiterCount.decrementAndGet();
+    }
+
+    /**
+     * Binds oc to the calling thread. Until releaseBoundClient() is called
+     * every getClient() on this thread gets oc whenever it's not already in
+     * use, and returnClient() keeps it bound rather than putting it back in
+     * the pool (unless it is being discarded).
+     */
+    void bindClientToCurrentThread(OPeNDAPClient oc) {
+        boundClient.set(new BoundClient(oc));
+    }
+
+    /**
+     * Unbinds the client bound to the calling thread and returns it to the
+     * pool. If it's in use it goes back to the pool when the code using it
+     * calls returnClient().
+     */
+    void releaseBoundClient() throws PPTException {
+        BoundClient bound = boundClient.get();
+        if (bound != null) {
+            boundClient.remove();
+            if (!bound.inUse)
+                returnClient(bound.client, false);
         }
+    }
+
+    /**
+     * @return True if a checkout started now would complete without waiting.
+     */
+    public boolean hasAvailableClient() {
+        return checkoutWaiters.isEmpty() && clientCheckOutFlag.availablePermits() > 0;
+    }
 
+    /**
+     * @return The number of checkouts waiting for a client.
+     */
+    public int getCheckoutWaiterCount() {
+        return checkoutWaiterCount.get();
+    }
 
+    /**
+     * @return The number of checkouts turned away because the wait queue was
+     * full or the acquire timeout expired.
+     */
+    public long getRejectedCheckoutCount() {
+        return rejectedCheckouts.get();
     }
 
-    private OPeNDAPClient getNewClient() throws PPTException, InterruptedException  {
+    private OPeNDAPClient getNewClient() throws PPTException {
 
         // Make a new OPeNDAClient to connect to the BES
         OPeNDAPClient besClient = new OPeNDAPClient();
@@ -1178,6 +1445,7 @@ public class BES {
 
         }
         catch (PPTException ppte){
+            recordFailure();
             clientCheckOutFlag.release(); // Release the client permit because this client is hosed...
             String msg ="BES Client Failed To Start. Message: '" + ppte.getMessage()+"' ";
             besClient.setID(new Date().toString() + msg);
@@ -1208,6 +1476,259 @@ public class BES {
     }
 
 
+    private void startPoolMaintainer() {
+        long validationInterval = config.getClientValidationInterval();
+        if (config.getMinIdleClients() <= 0 && config.getClientMaxAge() <= 0 && validationInterval <= 0)
+            return;
+
+        long interval = validationInterval > 0 ? validationInterval : DEFAULT_POOL_MAINTENANCE_INTERVAL;
+        poolMaintenanceTask = POOL_MAINTAINER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintainClientPool();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        log.info("BES '{}' client pool maintainer will run every {} ms", getPrefix(), interval);
+    }
+
+    /**
+     * Looks after the idle clients in the pool: dead ones, ones past their
+     * maximum age, and ones that fail a ping (when validation is on) are
+     * discarded. Then the pool is topped up to ClientPool@minIdle, so that
+     * the first requests after a deploy or a BES restart find a connection
+     * waiting for them. The maintainer only uses permits nobody is waiting
+     * for, and stays out of the way while the pool is being stopped.
+     */
+    void maintainClientPool() {
+        try {
+            long now = System.currentTimeMillis();
+            long validationInterval = config.getClientValidationInterval();
+
+            int idle = clientQueue.size();
+            for (int i = 0; i < idle; i++) {
+                if (!checkoutWaiters.isEmpty() || clientCheckoutLock.isLocked() || !clientCheckOutFlag.tryAcquire())
+                    break;
+
+                OPeNDAPClient oc = clientQueue.poll();
+                if (oc == null) {
+                    releasePermit();
+                    break;
+                }
+
+                boolean discard = false;
+                if (oc.isClosed() || !oc.isConnected()) {
+                    log.warn("maintainClientPool() - BES Client (id:{}) appears to be dead, discarding...", oc.getID());
+                    discard = true;
+                }
+                else if (isPastMaxAge(oc, now)) {
+                    log.debug("maintainClientPool() - Retiring BES Client (id:{})", oc.getID());
+                    retiredClients.incrementAndGet();
+                    discard = true;
+                }
+                else if (validationInterval > 0 && now - oc.getLastUsedTime() >= validationInterval && !pingClient(oc)) {
+                    log.warn("maintainClientPool() - BES Client (id:{}) failed validation, discarding...", oc.getID());
+                    failedValidations.incrementAndGet();
+                    discard = true;
+                }
+                returnClient(oc, discard);
+            }
+
+            int minIdle = Math.min(config.getMinIdleClients(), getMaxClients());
+            while (clientQueue.size() < minIdle &&
+                    checkoutWaiters.isEmpty() &&
+                    !clientCheckoutLock.isLocked() &&
+                    clientCheckOutFlag.tryAcquire()) {
+                OPeNDAPClient oc;
+                try {
+                    oc = getNewClient();
+                }
+                catch (PPTException e) {
+                    // getNewClient() gave the permit back.
+                    drainCheckoutWaiters();
+                    log.warn("maintainClientPool() - Unable to pre-open a BES client, will try again later. Message: {}",
+                            e.getMessage());
+                    break;
+                }
+                returnClient(oc, false);
+            }
+
+            if (log.isDebugEnabled())
+                log.debug("maintainClientPool() - {}", getPoolMetrics());
+        }
+        catch (PPTException | RuntimeException e) {
+            log.error("maintainClientPool() - Client pool maintenance failed. {}: {}",
+                    e.getClass().getName(), e.getMessage());
+        }
+    }
+
+    private boolean isPastMaxAge(OPeNDAPClient oc, long now) {
+        return config.getClientMaxAge() > 0 && now - oc.getCreationTime() > config.getClientMaxAge();
+    }
+
+    /**
+     * Checks that an idle client can still talk to the BES by asking the BES
+     * for its version.
+     *
+     * @return True if the BES answered.
+     */
+    private boolean pingClient(OPeNDAPClient oc) {
+        try (ByteArrayOutputStream erros = new ByteArrayOutputStream()) {
+            Document request = new BesApi().getShowVersionRequestDocument();
+            tweakRequestId(request, oc);
+
+            // Don't let a hung BES hang the maintainer. If the timeout
+            // can't be put back the ping fails and the client is discarded.
+            int readTimeout = oc.getReadTimeout();
+            oc.setReadTimeout(PING_TIMEOUT);
+            boolean ok;
+            try {
+                ok = oc.sendRequest(request, RESPONSE_PARSER.get(), new Document(), erros);
+            }
+            finally {
+                oc.setReadTimeout(readTimeout);
+            }
+            if (ok)
+                return true;
+            log.warn("pingClient() - BES returned an error to BES Client (id:{}): {}", oc.getID(), erros);
+        }
+        catch (PPTException | JDOMException | IOException | BadConfigurationException e) {
+            log.warn("pingClient() - BES Client (id:{}) ping failed. {}: {}",
+                    new Object[]{oc.getID(), e.getClass().getName(), e.getMessage()});
+        }
+        return false;
+    }
+
+    private void recordWaitTime(long waitTime) {
+        int bucket = 0;
+        while (bucket < WAIT_TIME_BUCKETS.length && waitTime > WAIT_TIME_BUCKETS[bucket])
+            bucket++;
+        waitTimeCounts.incrementAndGet(bucket);
+        totalWaitTime.addAndGet(waitTime);
+    }
+
+    /**
+     * Sets when a BES is ejected from selection by BesGroup, for all BES
+     * instances.
+     *
+     * @param failureThreshold The number of consecutive failed transactions
+     *                         (or connection attempts) that eject a BES. A
+     *                         value of zero (the default) disables ejection.
+     * @param ejectionTimeMs How long, in ms, the first ejection lasts. A BES
+     *                       that fails again right after it is re-admitted is
+     *                       ejected for twice as long, up to 8 times this.
+     */
+    public static void setEjectionPolicy(int failureThreshold, long ejectionTimeMs) {
+        ejectionFailureThreshold = failureThreshold;
+        ejectionTime = ejectionTimeMs;
+    }
+
+    /**
+     * Records the outcome of a transaction with the BES. Successful
+     * transactions update the latency average and clear the failure count.
+     *
+     * @param elapsedMs How long the transaction took.
+     * @param success False if the transaction had BES or connection trouble.
+     */
+    void recordTransaction(long elapsedMs, boolean success) {
+        if (!success) {
+            recordFailure();
+            return;
+        }
+        double latency;
+        long bits;
+        do {
+            bits = ewmaLatencyBits.get();
+            double previous = Double.longBitsToDouble(bits);
+            latency = previous == 0.0 ? elapsedMs : previous + EWMA_WEIGHT * (elapsedMs - previous);
+        } while (!ewmaLatencyBits.compareAndSet(bits, Double.doubleToLongBits(latency)));
+
+        if (consecutiveFailures.getAndSet(0) > 0 && ejections.getAndSet(0) > 0)
+            log.info("BES '{}' ({}) is healthy again.", getPrefix(), getNickName());
+    }
+
+    private void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        int threshold = ejectionFailureThreshold;
+        if (threshold > 0 && failures >= threshold && !isEjected()) {
+            int n = ejections.incrementAndGet();
+            long duration = ejectionTime * Math.min(1L << Math.min(n - 1, 30), MAX_EJECTION_BACKOFF);
+            ejectedUntil = System.currentTimeMillis() + duration;
+            log.warn("BES '{}' ({}) failed {} times in a row, ejecting it for {} ms",
+                    new Object[]{getPrefix(), getNickName(), failures, duration});
+        }
+    }
+
+    /**
+     * @return True while the BES is ejected after repeated failures.
+     */
+    public boolean isEjected() {
+        return System.currentTimeMillis() < ejectedUntil;
+    }
+
+    /**
+     * @return The exponentially weighted moving average of the transaction
+     * time in ms, 0 if there haven't been any.
+     */
+    public double getLatencyAverage() {
+        return Double.longBitsToDouble(ewmaLatencyBits.get());
+    }
+
+    /**
+     * @return The number of requests using or waiting for a client.
+     */
+    public int getOutstandingRequestCount() {
+        return getActiveClientCount() + getCheckoutWaiterCount();
+    }
+
+    /**
+     * @return The number of clients sitting in the pool waiting to be used.
+     */
+    public int getIdleClientCount() {
+        return clientQueue.size();
+    }
+
+    /**
+     * @return The number of clients checked out of the pool.
+     */
+    public int getActiveClientCount() {
+        return getMaxClients() - clientCheckOutFlag.availablePermits();
+    }
+
+    /**
+     * @return A human readable report of the client pool's state and counters.
+     */
+    public String getPoolMetrics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BES '").append(getPrefix()).append("'");
+        if (getNickName() != null)
+            sb.append(" (").append(getNickName()).append(")");
+        sb.append(" client pool\n");
+        sb.append("    idle: ").append(getIdleClientCount()).append("\n");
+        sb.append("    active: ").append(getActiveClientCount()).append("\n");
+        sb.append("    maximum: ").append(getMaxClients()).append("\n");
+        sb.append("    waiters: ").append(getCheckoutWaiterCount()).append("\n");
+        sb.append("    rejected: ").append(getRejectedCheckoutCount()).append("\n");
+        sb.append("    retired: ").append(retiredClients.get()).append("\n");
+        sb.append("    failedValidations: ").append(failedValidations.get()).append("\n");
+        sb.append("    latencyAverage: ").append(Math.round(getLatencyAverage())).append(" ms\n");
+        sb.append("    consecutiveFailures: ").append(consecutiveFailures.get()).append("\n");
+        sb.append("    ejected: ").append(isEjected()).append("\n");
+
+        long checkouts = 0;
+        for (int i = 0; i < waitTimeCounts.length(); i++)
+            checkouts += waitTimeCounts.get(i);
+        sb.append("    checkouts: ").append(checkouts).append("\n");
+        sb.append("    meanWaitTime: ").append(checkouts > 0 ? totalWaitTime.get() / checkouts : 0).append(" ms\n");
+        sb.append("    waitTime histogram:\n");
+        for (int i = 0; i < WAIT_TIME_BUCKETS.length; i++) {
+            sb.append("        <= ").append(WAIT_TIME_BUCKETS[i]).append(" ms: ").append(waitTimeCounts.get(i)).append("\n");
+        }
+        sb.append("        >  ").append(WAIT_TIME_BUCKETS[WAIT_TIME_BUCKETS.length - 1]).append(" ms: ")
+                .append(waitTimeCounts.get(WAIT_TIME_BUCKETS.length)).append("\n");
+        return sb.toString();
+    }
+
+
     /**
      * When a piece of code is done using an OPeNDAPClient, it should return it
      * to the pool using this method.
@@ -1221,6 +1742,16 @@ public class BES {
 
         if (dapClient == null)
             return;
+
+        BoundClient bound = boundClient.get();
+        if (bound != null && bound.client == dapClient) {
+            if (!discard) {
+                bound.inUse = false;
+                return;
+            }
+            boundClient.remove();
+        }
+
         try {
 
             if (discard) {
@@ -1242,7 +1773,7 @@ public class BES {
 
             throw new PPTException(msg, e);
         } finally {
-            clientCheckOutFlag.release();
+            releasePermit();
         }
 
 
@@ -1252,7 +1783,14 @@ public class BES {
     private void checkInClient(OPeNDAPClient dapClient) throws PPTException {
 
 
-        if (config.getMaxCommands() > 0 && dapClient.getCommandCount() > config.getMaxCommands()) {
+        if (isPastMaxAge(dapClient, System.currentTimeMillis())) {
+            discardClient(dapClient);
+            retiredClients.incrementAndGet();
+            log.debug("checkInClient() OPeNDAPClient (id:{}) is older than {} ms, discarding client.",
+                    dapClient.getID(), config.getClientMaxAge());
+
+        } else if (config.getMaxCommands() > 0 && dapClient.getCommandCount() > config.getMaxCommands()) {
+            retiredClients.incrementAndGet();
             discardClient(dapClient);
             if(log.isDebugEnabled()) {
                 String msg = "checkInClient() This instance of OPeNDAPClient (id:" +
@@ -1326,6 +1864,15 @@ public class BES {
         boolean nicely = false;
         boolean gotClientCheckoutLock = false;
 
+        if (poolMaintenanceTask != null)
+            poolMaintenanceTask.cancel(false);
+
+        BesClientCheckout waiter;
+        while ((waiter = checkoutWaiters.peek()) != null) {
+            waiter.expire(new BesClientUnavailable("The BES connection pool is shutting down."));
+            removeCheckoutWaiter(waiter);
+        }
+
         try {
             if (clientCheckoutLock.tryLock(10, TimeUnit.SECONDS)) {
                 gotClientCheckoutLock = true;
@@ -1355,8 +1902,10 @@ public class BES {
             Thread.currentThread().interrupt();
             log.error("OUCH! Interrupted while shutting down BESPool", e);
         } finally {
-            if (gotClientCheckoutLock)
+            if (gotClientCheckoutLock) {
                 clientCheckoutLock.unlock();
+                drainCheckoutWaiters();
+            }
         }
 
 
@@ -1388,4 +1937,71 @@ public class BES {
 //------------------------------------------------------------------------------
 
 
+
+    /**
+     * A client checked out for, and bound to, the thread serving a request.
+     */
+    private static class BoundClient {
+        final OPeNDAPClient client;
+        boolean inUse;
+
+        BoundClient(OPeNDAPClient client) {
+            this.client = client;
+            inUse = false;
+        }
+    }
+
+
+    /**
+     * Passes the BES response on to the stream it's meant for and notes
+     * when the first byte arrived and whether writing to the stream failed,
+     * so that besTransaction() can tell a BES problem from a client that
+     * went away.
+     */
+    private static class ClientOutputStream extends FilterOutputStream {
+        private long firstWriteTime;
+        private IOException failure;
+
+        ClientOutputStream(OutputStream os) {
+            super(os);
+            firstWriteTime = 0;
+            failure = null;
+        }
+
+        long getFirstWriteTime() { return firstWriteTime; }
+        IOException getFailure() { return failure; }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (firstWriteTime == 0)
+                firstWriteTime = System.currentTimeMillis();
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            // The stream belongs to the caller.
+        }
+    }
+
 }
@@ -52,6 +52,11 @@ public class BESConfig  {
     private  int     _BesAdminPort;
     private  int     _BesMaxClients;
     private  int     _BesMaxCommands;
+    private  int     _BesMaxClientWaiters;
+    private  long    _BesClientAcquireTimeOut;  // in ms
+    private  int     _BesMinIdleClients;
+    private  long    _BesClientMaxAge;  // in ms
+    private  long    _BesClientValidationInterval;  // in ms
     private  int     _BesMaxResponseSize;
     private  String  _BesPrefix;
     private  int     _BesTimeOut;  // in ms
@@ -71,6 +76,11 @@ public class BESConfig  {
         _BesAdminPort = -1;
         _BesMaxClients = 200;
         _BesMaxCommands = 2000;
+        _BesMaxClientWaiters = Integer.MAX_VALUE;
+        _BesClientAcquireTimeOut = 0; // Wait forever
+        _BesMinIdleClients = 0;
+        _BesClientMaxAge = 0; // Never retire
+        _BesClientValidationInterval = 0; // Never validate
         _BesPrefix = "/";
         _BesMaxResponseSize = 0;
         _BesNickName = null;
@@ -102,6 +112,11 @@ public class BESConfig  {
         copy._BesMaxResponseSize = _BesMaxResponseSize;
         copy._BesMaxClients      = _BesMaxClients;
         copy._BesMaxCommands     = _BesMaxCommands;
+        copy._BesMaxClientWaiters     = _BesMaxClientWaiters;
+        copy._BesClientAcquireTimeOut = _BesClientAcquireTimeOut;
+        copy._BesMinIdleClients       = _BesMinIdleClients;
+        copy._BesClientMaxAge         = _BesClientMaxAge;
+        copy._BesClientValidationInterval = _BesClientValidationInterval;
         copy._BesPrefix          = _BesPrefix;
         copy._BesNickName        = _BesNickName;
         copy._BesTimeOut         = _BesTimeOut;
@@ -225,7 +240,8 @@ public class BESConfig  {
 
 
 
-        //  <ClientPool maximum="10" maxCmds="2000"/>
+        //  <ClientPool maximum="10" maxCmds="2000" maxWaiters="400" acquireTimeout="30"
+        //              minIdle="2" maxAge="3600" validationInterval="60"/>
 
         Element clientPool = besConfig.getChild("ClientPool");
 
@@ -294,6 +310,32 @@ public class BESConfig  {
             log.info("BES '{}' clients be used for at most {} commands",getPrefix(), getMaxCommands());
 
 
+            Integer maxWaiters = getNonNegativeIntAttribute(clientPool, "maxWaiters");
+            if(maxWaiters != null)
+                setMaxClientWaiters(maxWaiters);
+            log.info("BES '{}' will queue at most {} requests waiting for a client",getPrefix(), getMaxClientWaiters());
+
+            Integer acquireTimeout = getNonNegativeIntAttribute(clientPool, "acquireTimeout");
+            if(acquireTimeout != null)
+                setClientAcquireTimeOut(acquireTimeout);
+            log.info("BES '{}' client acquire timeout is {} ms (0 waits forever)",getPrefix(), getClientAcquireTimeOut());
+
+            Integer minIdle = getNonNegativeIntAttribute(clientPool, "minIdle");
+            if(minIdle != null)
+                setMinIdleClients(minIdle);
+            log.info("BES '{}' will keep at least {} idle clients",getPrefix(), getMinIdleClients());
+
+            Integer maxAge = getNonNegativeIntAttribute(clientPool, "maxAge");
+            if(maxAge != null)
+                setClientMaxAge(maxAge);
+            log.info("BES '{}' clients will be retired after {} ms (0 never retires them)",getPrefix(), getClientMaxAge());
+
+            Integer validationInterval = getNonNegativeIntAttribute(clientPool, "validationInterval");
+            if(validationInterval != null)
+                setClientValidationInterval(validationInterval);
+            log.info("BES '{}' idle clients will be validated every {} ms (0 never validates them)",getPrefix(), getClientValidationInterval());
+
+
         }
 
 
@@ -312,6 +354,41 @@ public class BESConfig  {
     }
 
 
+    /**
+     * Reads an optional <ClientPool> attribute whose value must be an integer
+     * greater than or equal to 0 (zero).
+     *
+     * @return The value, or null if the attribute is missing.
+     */
+    private Integer getNonNegativeIntAttribute(Element clientPool, String name) throws BadConfigurationException {
+
+        Attribute attr = clientPool.getAttribute(name);
+        if(attr == null)
+            return null;
+
+        log.debug("@{}: {}", name, attr.getValue());
+
+        int value;
+        try {
+            value = attr.getIntValue();
+        }
+        catch (DataConversionException e) {
+            throw new BadConfigurationException("Configuration Element does not " +
+                    "contain correct content. The <ClientPool> element's " +
+                    "Attribute \""+name+"\" must evaluate to an integer value. " +
+                    "Found "+name+"=\""+attr.getValue()+"\"");
+        }
+
+        if(value<0){
+            throw new BadConfigurationException("Configuration Element does not " +
+                    "contain correct content. The <ClientPool> element " +
+                    "MAY contain an Attribute called \""+name+"\" whose " +
+                    "value is an integer greater than or equal to 0 (zero).");
+        }
+        return value;
+    }
+
+
     public void setBesName(String nickName){
         _BesNickName = nickName;
     }
@@ -329,6 +406,79 @@ public class BESConfig  {
         return _BesMaxCommands;
     }
 
+    /**
+     *
+     * @param max The maximum number of requests that may wait for a client
+     *            before new requests are turned away with a 503.
+     */
+    public void setMaxClientWaiters(int max){
+        _BesMaxClientWaiters = max;
+    }
+
+    public int getMaxClientWaiters(){
+        return _BesMaxClientWaiters;
+    }
+
+    /**
+     *
+     * @param timeOut  Number of seconds a request may wait for a client, 0 waits forever.
+     */
+    public void setClientAcquireTimeOut(int timeOut){
+        _BesClientAcquireTimeOut = timeOut * 1000L;
+    }
+
+    /**
+     *
+     * @return  Number of milliseconds a request may wait for a client, 0 waits forever.
+     */
+    public long getClientAcquireTimeOut(){
+        return _BesClientAcquireTimeOut;
+    }
+
+    /**
+     *
+     * @param min The number of idle clients the pool maintainer keeps open.
+     */
+    public void setMinIdleClients(int min){
+        _BesMinIdleClients = min;
+    }
+
+    public int getMinIdleClients(){
+        return _BesMinIdleClients;
+    }
+
+    /**
+     *
+     * @param maxAge  Number of seconds after which a client is retired, 0 never retires them.
+     */
+    public void setClientMaxAge(int maxAge){
+        _BesClientMaxAge = maxAge * 1000L;
+    }
+
+    /**
+     *
+     * @return  Number of milliseconds after which a client is retired, 0 never retires them.
+     */
+    public long getClientMaxAge(){
+        return _BesClientMaxAge;
+    }
+
+    /**
+     *
+     * @param interval  Number of seconds between checks of idle clients, 0 never checks them.
+     */
+    public void setClientValidationInterval(int interval){
+        _BesClientValidationInterval = interval * 1000L;
+    }
+
+    /**
+     *
+     * @return  Number of milliseconds between checks of idle clients, 0 never checks them.
+     */
+    public long getClientValidationInterval(){
+        return _BesClientValidationInterval;
+    }
+
 
 
     private  void writeConfiguration(String filename) throws IOException {
@@ -383,6 +533,12 @@ public class BESConfig  {
         Element clientPool = new Element("ClientPool");
         clientPool.setAttribute("maximum",Integer.toString(_BesMaxClients));
         clientPool.setAttribute("maxCmds",Integer.toString(_BesMaxCommands));
+        if(_BesMaxClientWaiters != Integer.MAX_VALUE)
+            clientPool.setAttribute("maxWaiters",Integer.toString(_BesMaxClientWaiters));
+        clientPool.setAttribute("acquireTimeout",Long.toString(_BesClientAcquireTimeOut/1000));
+        clientPool.setAttribute("minIdle",Integer.toString(_BesMinIdleClients));
+        clientPool.setAttribute("maxAge",Long.toString(_BesClientMaxAge/1000));
+        clientPool.setAttribute("validationInterval",Long.toString(_BesClientValidationInterval/1000));
 
         bes.addContent(prefix);
         bes.addContent(host);
@@ -455,6 +611,11 @@ public class BESConfig  {
         s += "        adminPort:  " + getAdminPort() + "\n";
         s += "        MaxClients: " + getMaxClients() + "\n";
         s += "        MaxCommands/client: " + getMaxCommands() + "\n";
+        s += "        MaxClientWaiters:   " + getMaxClientWaiters() + "\n";
+        s += "        ClientAcquireTimeout: " + getClientAcquireTimeOut() + " ms\n";
+        s += "        MinIdleClients:     " + getMinIdleClients() + "\n";
+        s += "        ClientMaxAge:       " + getClientMaxAge() + " ms\n";
+        s += "        ClientValidationInterval: " + getClientValidationInterval() + " ms\n";
 
 
 
@@ -27,9 +27,12 @@
 package opendap.bes;
 
 import opendap.PathBuilder;
+import opendap.bes.caching.BesIdentityCache;
+import opendap.bes.caching.BesMetadataCache;
 import opendap.bes.caching.BesNodeCache;
 import opendap.coreServlet.Scrub;
 import opendap.coreServlet.ServletUtil;
+import opendap.io.ChunkedInputStream;
 import opendap.ppt.PPTException;
 import org.jdom.Document;
 import org.jdom.Element;
@@ -61,6 +64,15 @@ public class BESManager {
 
     public static final String BES_MANAGER_CONFIG_ELEMENT = "BESManager";
 
+    public static final String RESPONSE_STREAMING_ELEMENT = "ResponseStreaming";
+    private static final String COALESCE_BUFFER_SIZE_ATTRIBUTE = "coalesceBufferSize";
+    private static final String FLUSH_POLICY_ATTRIBUTE = "flushPolicy";
+
+    public static final String BES_SELECTION_ELEMENT = "BesSelection";
+    private static final String STRATEGY_ATTRIBUTE = "strategy";
+    private static final String FAILURE_THRESHOLD_ATTRIBUTE = "failureThreshold";
+    private static final String EJECTION_TIME_ATTRIBUTE = "ejectionTime";
+
 
     private static Element config = null;
     private static BesGroup rootGroup;
@@ -97,6 +109,8 @@ public class BESManager {
     public static void destroy(){
         shutdown();
         BesNodeCache.destroy();
+        BesIdentityCache.destroy();
+        BesMetadataCache.destroy();
         LOG.info("Destroy complete.");
     }
 
@@ -160,6 +174,34 @@ public class BESManager {
             BesNodeCache.init(nodeCache);
         }
 
+        Element identityCache = besConfiguration.getChild(BesIdentityCache.IDENTITY_CACHE_ELEMENT_NAME);
+        // If identityCache is null no action needs to be taken because the
+        // IdentityCache will simply be disabled
+        if(identityCache!=null){
+            BesIdentityCache.init(identityCache);
+        }
+
+        Element metadataCache = besConfiguration.getChild(BesMetadataCache.METADATA_CACHE_ELEMENT_NAME);
+        // If metadataCache is null no action needs to be taken because the
+        // MetadataCache will simply be disabled
+        if(metadataCache!=null){
+            BesMetadataCache.init(metadataCache);
+        }
+
+        Element responseStreaming = besConfiguration.getChild(RESPONSE_STREAMING_ELEMENT);
+        // If responseStreaming is null the BES responses will be written and
+        // flushed one PPT chunk at a time, as they always have been.
+        if(responseStreaming!=null){
+            configureResponseStreaming(responseStreaming);
+        }
+
+        Element besSelection = besConfiguration.getChild(BES_SELECTION_ELEMENT);
+        // If besSelection is null the members of each BesGroup are used
+        // round-robin, as they always have been.
+        if(besSelection!=null){
+            configureBesSelection(besSelection);
+        }
+
         Element siteMapCache = besConfiguration.getChild(BesSiteMap.SITE_MAP_CACHE_ELEMENT_NAME);
         // The SiteMap cache is required, so if it's not in the configuration
         // then we need to gin one up.
@@ -184,6 +226,96 @@ public class BESManager {
     }
 
 
+    /**
+     * Configures how the PPT chunks of BES responses are written to the
+     * client. See ChunkedInputStream.setStreamingPolicy()
+     *
+     * @param config The ResponseStreaming configuration element.
+     * @throws BadConfigurationException When the attribute values are broken.
+     */
+    private static void configureResponseStreaming(Element config) throws BadConfigurationException {
+
+        int coalesceBufferSize = ChunkedInputStream.getCoalesceBufferSize();
+        String s = config.getAttributeValue(COALESCE_BUFFER_SIZE_ATTRIBUTE);
+        if(s!=null) {
+            try {
+                coalesceBufferSize = Integer.parseInt(s);
+            } catch (NumberFormatException nfe) {
+                throw new BadConfigurationException("Failed to parse value of " +
+                        RESPONSE_STREAMING_ELEMENT + "@" + COALESCE_BUFFER_SIZE_ATTRIBUTE +
+                        "! Value must be an integer. Found: " + s);
+            }
+        }
+
+        ChunkedInputStream.FlushPolicy flushPolicy = ChunkedInputStream.getFlushPolicy();
+        s = config.getAttributeValue(FLUSH_POLICY_ATTRIBUTE);
+        if(s!=null) {
+            flushPolicy = ChunkedInputStream.FlushPolicy.fromString(s);
+            if(flushPolicy==null)
+                throw new BadConfigurationException("Failed to parse value of " +
+                        RESPONSE_STREAMING_ELEMENT + "@" + FLUSH_POLICY_ATTRIBUTE +
+                        "! Value must be one of chunk, buffer, or message. Found: " + s);
+        }
+
+        ChunkedInputStream.setStreamingPolicy(coalesceBufferSize, flushPolicy);
+        LOG.info("BES response streaming: coalesceBufferSize: {} flushPolicy: {}",
+                ChunkedInputStream.getCoalesceBufferSize(), ChunkedInputStream.getFlushPolicy());
+    }
+
+    /**
+     * Configures how BesGroup picks a BES and when a failing BES is taken out
+     * of rotation.
+     *
+     *   <BesSelection strategy="powerOfTwoChoices" failureThreshold="3" ejectionTime="30"/>
+     *
+     * A BES is never ejected unless failureThreshold is set.
+     *
+     * @param config The BesSelection element.
+     * @throws BadConfigurationException When the values don't parse.
+     */
+    private static void configureBesSelection(Element config) throws BadConfigurationException {
+
+        String s = config.getAttributeValue(STRATEGY_ATTRIBUTE);
+        if(s!=null) {
+            BesSelectionStrategy strategy = BesSelectionStrategy.fromString(s);
+            if(strategy==null)
+                throw new BadConfigurationException("Failed to parse value of " +
+                        BES_SELECTION_ELEMENT + "@" + STRATEGY_ATTRIBUTE +
+                        "! Value must be one of roundRobin, leastOutstanding, ewmaLatency, or " +
+                        "powerOfTwoChoices. Found: " + s);
+            BesGroup.setSelectionStrategy(strategy);
+        }
+
+        int failureThreshold = 0;
+        s = config.getAttributeValue(FAILURE_THRESHOLD_ATTRIBUTE);
+        if(s!=null) {
+            try {
+                failureThreshold = Integer.parseInt(s);
+            } catch (NumberFormatException nfe) {
+                throw new BadConfigurationException("Failed to parse value of " +
+                        BES_SELECTION_ELEMENT + "@" + FAILURE_THRESHOLD_ATTRIBUTE +
+                        "! Value must be an integer. Found: " + s);
+            }
+        }
+
+        long ejectionTime = 30;
+        s = config.getAttributeValue(EJECTION_TIME_ATTRIBUTE);
+        if(s!=null) {
+            try {
+                ejectionTime = Long.parseLong(s);
+            } catch (NumberFormatException nfe) {
+                throw new BadConfigurationException("Failed to parse value of " +
+                        BES_SELECTION_ELEMENT + "@" + EJECTION_TIME_ATTRIBUTE +
+                        "! Value must be an integer number of seconds. Found: " + s);
+            }
+        }
+        BES.setEjectionPolicy(failureThreshold, ejectionTime * 1000);
+
+        LOG.info("BES selection: strategy: {} failureThreshold: {} ejectionTime: {} s",
+                new Object[]{BesGroup.getSelectionStrategy(), failureThreshold, ejectionTime});
+    }
+
+
     public static void addBes(BES bes) throws BadConfigurationException {
 
         Iterator<BesGroup> i = BESManager.getBesGroups();
@@ -57,6 +57,7 @@ public class BESResource implements ResourceInfo {
     private String _name;
     private long _size;
     private Date _lastModified;
+    private boolean _besFailure;
 
     private String requestedDataSource;
 
@@ -80,8 +81,7 @@ public class BESResource implements ResourceInfo {
         _name                = null;
         _size = -1;
         _lastModified = null;
-
-        Document nodeDoc = new Document();
+        _besFailure = false;
 
         if(besApi == null){
             _exists        = false;
@@ -98,7 +98,7 @@ public class BESResource implements ResourceInfo {
 
 
         try {
-            besApi.getBesNode(dataSourceName, nodeDoc);
+            Document nodeDoc = besApi.getSharedBesNode(dataSourceName);
 
             _exists = true;
             _accessible = true;
@@ -168,6 +168,7 @@ public class BESResource implements ResourceInfo {
             _name          = null;
             _size = -1;
             _lastModified = null;
+            _besFailure = !err.notFound() && !err.forbidden();
             log.debug("BES request for info document for: \""+dataSourceName+"\" returned an error");
         }
     }
@@ -181,6 +182,17 @@ public class BESResource implements ResourceInfo {
     }
 
 
+    /**
+     * @return True if the BES answered with an error other than not found or
+     * forbidden (an internal error, for example). Then sourceExists() and
+     * sourceIsAccesible() only say that the BES didn't deny the resource, not
+     * what it is.
+     */
+    public boolean isBesFailure(){
+        return _besFailure;
+    }
+
+
     public  boolean isNode(){
         return _isNode;
     }
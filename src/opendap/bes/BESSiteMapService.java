@@ -5,8 +5,7 @@ import opendap.PathBuilder;
 import opendap.coreServlet.*;
 import opendap.dap.Request;
 import opendap.logging.LogUtil;
-import opendap.logging.Procedure;
-import opendap.logging.Timer;
+import opendap.logging.PhaseTimer;
 import org.jdom.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +36,7 @@ public class BESSiteMapService extends HttpServlet {
      */
     private static final AtomicInteger REQ_NUMBER = new AtomicInteger(0);
     private static final Logger LOG = LoggerFactory.getLogger(BESSiteMapService.class);
+    private static final PhaseTimer REQUEST_TIMER = PhaseTimer.named("sitemap.request");
 
     private static final ReentrantLock INIT_LOCK = new ReentrantLock();
     private static final AtomicBoolean IS_INITIALIZED = new AtomicBoolean(false);
@@ -64,7 +64,6 @@ public class BESSiteMapService extends HttpServlet {
 
             LogUtil.initLogging(this);
             LOG.debug("init() start");
-            // Timer.enable();
             RequestCache.openThreadCache();
 
 
@@ -162,7 +161,7 @@ public class BESSiteMapService extends HttpServlet {
         int request_status = HttpServletResponse.SC_OK;
         int response_size = -1;
         try {
-            Procedure timedProcedure = Timer.start();
+            long timedProcedure = REQUEST_TIMER.start();
             RequestCache.openThreadCache();
             try {
 
@@ -203,7 +202,7 @@ public class BESSiteMapService extends HttpServlet {
                 response_size = dos.size();
             }
             finally {
-                Timer.stop(timedProcedure);
+                REQUEST_TIMER.stop(timedProcedure);
             }
         }
         catch (Throwable t) {
@@ -228,8 +227,6 @@ public class BESSiteMapService extends HttpServlet {
             RequestCache.closeThreadCache();
             LOG.info("Response completed.\n");
         }
-        LOG.info("Timing Report: \n{}", Timer.report());
-        Timer.reset();
     }
 
     @Override
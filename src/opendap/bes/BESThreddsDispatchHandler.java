@@ -60,7 +60,7 @@ import java.util.regex.Pattern;
  * Date: Apr 16, 2007
  * Time: 11:28:25 AM
  */
-public class BESThreddsDispatchHandler implements DispatchHandler {
+public class BESThreddsDispatchHandler implements BesDispatchHandler {
 
     private HttpServlet _servlet;
     private String _systemPath;
@@ -163,8 +163,7 @@ public class BESThreddsDispatchHandler implements DispatchHandler {
 
         // Get the BES catalog for this node.
         XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
-        Document showNodeDoc = new Document();
-        _besApi.getBesNode(besCatalogName, showNodeDoc);
+        Document showNodeDoc = _besApi.getSharedBesNode(besCatalogName);
         _log.debug(xmlo.outputString(showNodeDoc));
 
         // Load the XSL for BESCatalog -> THREDDS catalog
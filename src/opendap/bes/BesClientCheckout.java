@@ -0,0 +1,299 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.ppt.OPeNDAPClient;
+import opendap.ppt.PPTException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pending checkout of an OPeNDAPClient from a BES client pool. Obtained
+ * from BES.checkoutClient(), it completes when a client becomes available,
+ * or fails with a BesClientUnavailable when the pool's wait queue is full or
+ * the acquire timeout expires.
+ *
+ * Callers that can't afford to park a thread register a listener with
+ * addListener() and pick up the client when it runs. The listener runs on
+ * whichever thread completes the checkout (typically the one returning a
+ * client to the pool) so it should be short and must not block.
+ *
+ * Once the checkout completes the caller owns the client and must hand it
+ * back with BES.returnClient(), or call abandon() if it no longer wants it.
+ */
+public class BesClientCheckout implements Future<OPeNDAPClient> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BesClientCheckout.class);
+
+    private static final int WAITING = 0;
+    private static final int CLAIMED = 1;
+    private static final int DONE    = 2;
+    private static final int FAILED  = 3;
+
+    private final BES bes;
+    private final AtomicInteger state;
+    private final CountDownLatch completed;
+    private final long startTime;
+
+    private volatile OPeNDAPClient client;
+    private volatile PPTException failure;
+    private volatile boolean cancelled;
+    private volatile ScheduledFuture<?> timeout;
+
+    private final List<Runnable> listeners;  // guarded by this
+    private boolean listenersFired;          // guarded by this
+
+    BesClientCheckout(BES bes) {
+        this.bes = bes;
+        state = new AtomicInteger(WAITING);
+        completed = new CountDownLatch(1);
+        startTime = System.currentTimeMillis();
+        client = null;
+        failure = null;
+        cancelled = false;
+        timeout = null;
+        listeners = new ArrayList<>();
+        listenersFired = false;
+    }
+
+    /**
+     * @return The BES whose pool this checkout is waiting on.
+     */
+    public BES getBes() {
+        return bes;
+    }
+
+    /**
+     * @return The number of milliseconds since the checkout was started.
+     */
+    public long getElapsedTime() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+
+    /**
+     * Registers a task to run once the checkout completes, successfully or
+     * not. If the checkout is already complete the task runs immediately on
+     * the calling thread.
+     *
+     * @param listener The task to run.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!listenersFired) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    /**
+     * Waits for the checkout to complete and returns the client.
+     *
+     * @return The checked out client.
+     * @throws PPTException When the checkout failed, was cancelled, or the
+     * thread was interrupted while waiting.
+     */
+    public OPeNDAPClient getClient() throws PPTException {
+        try {
+            completed.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon();
+            throw new PPTException(e);
+        }
+        if (failure != null)
+            throw failure;
+        return client;
+    }
+
+    /**
+     * Makes the checked out client the one that BES.getClient() on this
+     * thread will use until unbindFromCurrentThread() is called, so that
+     * code written against the blocking API picks up the client this
+     * checkout waited for.
+     *
+     * @throws PPTException When the checkout failed.
+     */
+    public void bindToCurrentThread() throws PPTException {
+        bes.bindClientToCurrentThread(getClient());
+    }
+
+    /**
+     * Unbinds the client bound by bindToCurrentThread() and returns it to
+     * the pool.
+     */
+    public void unbindFromCurrentThread() {
+        try {
+            bes.releaseBoundClient();
+        }
+        catch (PPTException e) {
+            LOG.error("unbindFromCurrentThread() - Failed to return unused BES client. Message: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Gives up on the checkout. If it's still waiting it is cancelled,
+     * otherwise the client (once there is one) goes back to the pool.
+     */
+    public void abandon() {
+        if (cancel(false))
+            return;
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                OPeNDAPClient oc = client;
+                if (oc != null) {
+                    try {
+                        bes.returnClient(oc, false);
+                    }
+                    catch (PPTException e) {
+                        LOG.error("abandon() - Failed to return BES client. Message: {}", e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (state.compareAndSet(WAITING, FAILED)) {
+            cancelled = true;
+            failure = new PPTException("The BES client checkout was cancelled.");
+            bes.removeCheckoutWaiter(this);
+            finish();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return completed.getCount() == 0;
+    }
+
+    @Override
+    public OPeNDAPClient get() throws InterruptedException, ExecutionException {
+        completed.await();
+        return report();
+    }
+
+    @Override
+    public OPeNDAPClient get(long time, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completed.await(time, unit))
+            throw new TimeoutException("Timed out waiting for a BES client.");
+        return report();
+    }
+
+    private OPeNDAPClient report() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException(failure.getMessage());
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return client;
+    }
+
+
+    /*
+     * Pool side. A checkout moves from WAITING to CLAIMED when the pool
+     * assigns it a permit and then to DONE once the client is in hand.
+     * Timeouts and cancellation can only move a checkout out of WAITING,
+     * so a claimed permit is never lost.
+     */
+
+    boolean claim() {
+        return state.compareAndSet(WAITING, CLAIMED);
+    }
+
+    void setTimeout(ScheduledFuture<?> timeout) {
+        this.timeout = timeout;
+        if (isDone())
+            timeout.cancel(false);
+    }
+
+    boolean expire(PPTException reason) {
+        if (state.compareAndSet(WAITING, FAILED)) {
+            failure = reason;
+            bes.removeCheckoutWaiter(this);
+            finish();
+            return true;
+        }
+        return false;
+    }
+
+    void complete(OPeNDAPClient oc) {
+        client = oc;
+        state.set(DONE);
+        finish();
+    }
+
+    void fail(PPTException reason) {
+        failure = reason;
+        state.set(FAILED);
+        finish();
+    }
+
+    private void finish() {
+        ScheduledFuture<?> t = timeout;
+        if (t != null)
+            t.cancel(false);
+
+        completed.countDown();
+
+        List<Runnable> toRun;
+        synchronized (this) {
+            listenersFired = true;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun)
+            runListener(listener);
+    }
+
+    private void runListener(Runnable listener) {
+        try {
+            listener.run();
+        }
+        catch (RuntimeException e) {
+            LOG.error("BES client checkout listener failed. {}: {}", e.getClass().getName(), e.getMessage());
+        }
+    }
+
+}
@@ -3,7 +3,7 @@
  * // This file is part of the "Hyrax Data Server" project.
  * //
  * //
- * // Copyright (c) 2015 OPeNDAP, Inc.
+ * // Copyright (c) 2020 OPeNDAP, Inc.
  * // Author: Nathan David Potter  <ndp@opendap.org>
  * //
  * // This library is free software; you can redistribute it and/or
@@ -23,44 +23,27 @@
  * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
  * /////////////////////////////////////////////////////////////////////////////
  */
-package opendap.logging;
+
+package opendap.bes;
+
+import opendap.ppt.PPTException;
+
+import javax.servlet.http.HttpServletResponse;
 
 /**
- * A Simple helper class for the Timer. Because Timer has static methods Procedure
- * could not be an inner class without becoming a singlton.
- *
- * Created by ndp on 5/18/15.
- *
- *
+ * Thrown when a connection to the BES can't be checked out of the client
+ * pool, either because too many requests are already waiting for one or
+ * because the wait took longer than the configured acquire timeout. It
+ * results in an HTTP 503 (Service Unavailable) response so that clients
+ * can back off and try again.
  */
-public class Procedure {
-    String name;
-    long start;
-    long end;
+public class BesClientUnavailable extends PPTException {
 
-    /**
-     * Records System.nanoTime() as the start value and sets end to same value as start;
-     */
-    public void start(){
-        start = System.nanoTime();
-        end = start;
-    }
+    private static final long serialVersionUID = 1L;
 
-    /**
-     *  Records System.nanoTime() as the end value
-     */
-    public void end(){
-        end = System.nanoTime();
+    public BesClientUnavailable(String msg) {
+        super(msg);
+        setHttpStatusCode(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     }
 
-    /**
-     *
-     * @return   Elapsed time for this procedure in milliseconds.
-     * If the returned time is zero chances are extremely good that the end() method was not called.
-     */
-    public double elapsedTime(){
-        return (end - start)/1000000.00;
-    }
-
-
 }
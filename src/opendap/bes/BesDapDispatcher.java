@@ -36,7 +36,6 @@ import opendap.bes.dap4Responders.Iso19115.IsoDMR;
 import opendap.bes.dap4Responders.Iso19115.IsoRubricDMR;
 //import opendap.bes.dap4Responders.DataResponse.JsonDR;
 import opendap.bes.dap4Responders.Version;
-import opendap.coreServlet.DispatchHandler;
 import opendap.coreServlet.HttpResponder;
 import opendap.coreServlet.ReqInfo;
 import opendap.coreServlet.ServletUtil;
@@ -61,7 +60,7 @@ import java.util.Vector;
  * Time: 4:33 PM
  * To change this template use File | Settings | File Templates.
  */
-public class BesDapDispatcher implements DispatchHandler {
+public class BesDapDispatcher implements BesDispatchHandler {
 
     private Logger _log;
     private boolean _initialized;
@@ -78,11 +77,18 @@ public class BesDapDispatcher implements DispatchHandler {
 
     private BesApi _besApi;
 
+    private volatile ResponderRouter _router;
+    private final String _routeAttributeName;
+
 
 
     public BesDapDispatcher() {
         _log = LoggerFactory.getLogger(getClass());
         _responders = new Vector<>();
+        _router = null;
+        // Each dispatcher keeps its own routing decision on the request.
+        _routeAttributeName = BesDapDispatcher.class.getName() + ".route@" +
+                Integer.toHexString(System.identityHashCode(this));
 
     }
 
@@ -107,6 +113,50 @@ public class BesDapDispatcher implements DispatchHandler {
 
     protected void addResponder(Dap4Responder r) {
         _responders.add(r);
+        _router = null;
+    }
+
+
+    private ResponderRouter getRouter() {
+        ResponderRouter router = _router;
+        if (router == null || router.size() != _responders.size()) {
+            router = new ResponderRouter(_responders);
+            _router = router;
+        }
+        return router;
+    }
+
+
+    /**
+     * Finds the first responder (in the order in which they were added) that
+     * matches the request. The ResponderRouter narrows the responders down to
+     * those whose suffix matches the URL and only those are asked to match it.
+     * The decision is kept on the request so that getLastModified(),
+     * requestCanBeHandled() and handleRequest() make it just once.
+     *
+     * @param request The request.
+     * @param relativeUrl The relative URL of the request.
+     * @return The responder, or null if none of them match the request.
+     */
+    protected HttpResponder getMatchingResponder(HttpServletRequest request, String relativeUrl) {
+
+        Object cached = request.getAttribute(_routeAttributeName);
+        if (cached instanceof Route && ((Route) cached).relativeUrl.equals(relativeUrl))
+            return ((Route) cached).responder;
+
+        HttpResponder responder = null;
+        ResponderRouter router = getRouter();
+        for (int i : router.candidates(relativeUrl)) {
+            HttpResponder r = router.getResponder(i);
+            if (_log.isDebugEnabled())
+                _log.debug("Checking responder: {} (pathPrefix: {})", r.getClass().getSimpleName(), r.getPathPrefix());
+            if (r.matches(relativeUrl)) {
+                responder = r;
+                break;
+            }
+        }
+        request.setAttribute(_routeAttributeName, new Route(relativeUrl, responder));
+        return responder;
     }
 
 
@@ -357,25 +407,19 @@ public class BesDapDispatcher implements DispatchHandler {
             return false;
 
 
-        for (HttpResponder r : _responders) {
-            _log.debug("Checking responder: " + r.getClass().getSimpleName() + " (pathPrefix: " + r.getPathPrefix() + ")");
-            if (r.matches(relativeUrl)) {
-
-                _log.info("The relative URL: " + relativeUrl + " matches " +
-                        "the pattern: \"" + r.getRequestMatchRegexString() + "\"");
+        HttpResponder r = getMatchingResponder(request, relativeUrl);
+        if (r == null)
+            return false;
 
-                if (sendResponse){
+        _log.info("The relative URL: {} matches the pattern: \"{}\"", relativeUrl, r.getRequestMatchRegexString());
 
-                    r.respondToHttpGetRequest(request, response);
+        if (sendResponse){
 
-                }
+            r.respondToHttpGetRequest(request, response);
 
-                return true;
-            }
         }
 
-
-        return false;
+        return true;
 
     }
 
@@ -387,27 +431,25 @@ public class BesDapDispatcher implements DispatchHandler {
         if(!_initialized)
             return new Date().getTime();
 
-        for (HttpResponder r : _responders) {
-            if (r.matches(relativeUrl)) {
-                if(_log.isInfoEnabled()) {
-                    String msg = "The relative URL: " + relativeUrl +
-                            " matches the pattern: \"" +
-                            r.getRequestMatchRegexString() +
-                            "\" (responder: " + r.getClass().getName() +
-                            ")";
-                    _log.info(msg);
-                }
-                try {
-
-                    long lmt =  r.getLastModified(req);
-                    _log.debug("getLastModified(): Returning: {}", new Date(lmt));
-                    return lmt;
+        HttpResponder r = getMatchingResponder(req, relativeUrl);
+        if (r != null) {
+            if(_log.isInfoEnabled()) {
+                String msg = "The relative URL: " + relativeUrl +
+                        " matches the pattern: \"" +
+                        r.getRequestMatchRegexString() +
+                        "\" (responder: " + r.getClass().getName() +
+                        ")";
+                _log.info(msg);
+            }
+            try {
 
-                } catch (Exception e) {
-                    _log.debug("getLastModified(): Returning: -1");
-                    return new Date().getTime();
-                }
+                long lmt =  r.getLastModified(req);
+                _log.debug("getLastModified(): Returning: {}", new Date(lmt));
+                return lmt;
 
+            } catch (Exception e) {
+                _log.debug("getLastModified(): Returning: -1");
+                return new Date().getTime();
             }
 
         }
@@ -425,4 +467,18 @@ public class BesDapDispatcher implements DispatchHandler {
     }
 
 
+    /**
+     * The responder chosen for a request, kept as a request attribute.
+     */
+    private static class Route {
+        final String relativeUrl;
+        final HttpResponder responder;
+
+        Route(String relativeUrl, HttpResponder responder) {
+            this.relativeUrl = relativeUrl;
+            this.responder = responder;
+        }
+    }
+
+
 }
@@ -36,9 +36,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -47,6 +50,12 @@ import java.util.Vector;
  **/
 public class BesGroup extends CyclicGroup<BES> {
 
+    private static final String GET_NEXT_CACHE_KEY = BesGroup.class.getName()+".getNext()";
+
+    private static volatile BesSelectionStrategy selectionStrategy = BesSelectionStrategy.ROUND_ROBIN;
+
+    private final AtomicInteger selectionSequence = new AtomicInteger(0);
+
     Logger log;
     private String prefix;
 
@@ -95,6 +104,57 @@ public class BesGroup extends CyclicGroup<BES> {
         }
     }
 
+    /**
+     * Picks a member using the current selection strategy. Ejected members
+     * are passed over unless every member has been ejected.
+     *
+     * @return The chosen BES.
+     */
+    private BES select() {
+        BES[] all = toArray(new BES[0]);
+        if (all.length == 1)
+            return all[0];
+
+        List<BES> candidates = new ArrayList<>(all.length);
+        for (BES bes : all) {
+            if (!bes.isEjected())
+                candidates.add(bes);
+        }
+        if (candidates.isEmpty()) {
+            log.warn("select() - Every BES in the group '{}' has been ejected, using them anyway.", prefix);
+            candidates = Arrays.asList(all);
+        }
+
+        int sequence = selectionSequence.getAndIncrement() & Integer.MAX_VALUE;
+        BES bes = selectionStrategy.select(candidates, sequence);
+        log.debug("select() - {} chose BES '{}'", selectionStrategy, bes.getNickName());
+        return bes;
+    }
+
+    /**
+     * Sets the strategy every BesGroup uses to pick a member.
+     *
+     * @param strategy The strategy.
+     */
+    public static void setSelectionStrategy(BesSelectionStrategy strategy) {
+        selectionStrategy = strategy;
+    }
+
+    public static BesSelectionStrategy getSelectionStrategy() {
+        return selectionStrategy;
+    }
+
+    /**
+     * Makes the passed BES the one that getNext() returns for the rest of the
+     * current request. Used when the request has already been handed a client
+     * from that BES's pool (see DispatchServlet).
+     *
+     * @param bes The BES to use.
+     */
+    public static void useForThisRequest(BES bes){
+        RequestCache.put(GET_NEXT_CACHE_KEY,bes);
+    }
+
     /**
      *
      * @return
@@ -102,11 +162,11 @@ public class BesGroup extends CyclicGroup<BES> {
     @Override
     public BES getNext(){
         BES bes;
-        String responseCacheKey = this.getClass().getName()+".getNext()";
+        String responseCacheKey = GET_NEXT_CACHE_KEY;
         Object o  = RequestCache.get(responseCacheKey);
 
         if(o == null){
-            bes = super.getNext();
+            bes = select();
             RequestCache.put(responseCacheKey,bes);
         }
         else {
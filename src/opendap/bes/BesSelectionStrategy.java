@@ -0,0 +1,154 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The ways a BesGroup can pick which of its members services a request.
+ * Every strategy chooses from the members that aren't ejected (see
+ * BES.isEjected()); BesGroup only offers the ejected ones when nothing else
+ * is left.
+ */
+public enum BesSelectionStrategy {
+
+    /**
+     * Takes the members in turn, ignoring load.
+     */
+    ROUND_ROBIN {
+        @Override
+        public BES select(List<BES> candidates, int sequence) {
+            return candidates.get(sequence % candidates.size());
+        }
+    },
+
+    /**
+     * Picks the member with the fewest requests using or waiting for one of
+     * its clients. Ties go round-robin.
+     */
+    LEAST_OUTSTANDING {
+        @Override
+        public BES select(List<BES> candidates, int sequence) {
+            int n = candidates.size();
+            BES best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                BES bes = candidates.get((sequence + i) % n);
+                int load = bes.getOutstandingRequestCount();
+                if (load < bestLoad) {
+                    best = bes;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+    },
+
+    /**
+     * Picks the member with the lowest expected wait: its average
+     * transaction time weighted by the number of requests ahead of this
+     * one. Members with no history yet score as the fastest so they get
+     * tried.
+     */
+    EWMA_LATENCY {
+        @Override
+        public BES select(List<BES> candidates, int sequence) {
+            int n = candidates.size();
+            BES best = null;
+            double bestScore = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                BES bes = candidates.get((sequence + i) % n);
+                double score = score(bes);
+                if (score < bestScore) {
+                    best = bes;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+    },
+
+    /**
+     * Compares two members chosen at random and takes the less loaded one.
+     * Nearly as good as LEAST_OUTSTANDING without herding every request onto
+     * whichever member looked idle a moment ago.
+     */
+    POWER_OF_TWO_CHOICES {
+        @Override
+        public BES select(List<BES> candidates, int sequence) {
+            int n = candidates.size();
+            if (n == 1)
+                return candidates.get(0);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(n);
+            int j = random.nextInt(n - 1);
+            if (j >= i)
+                j++;
+
+            BES a = candidates.get(i);
+            BES b = candidates.get(j);
+            int loadA = a.getOutstandingRequestCount();
+            int loadB = b.getOutstandingRequestCount();
+            if (loadA != loadB)
+                return loadA < loadB ? a : b;
+            return score(a) <= score(b) ? a : b;
+        }
+    };
+
+
+    /**
+     * @param candidates The members to choose from, never empty.
+     * @param sequence A number that goes up by one with every selection made
+     *                 by the group, for strategies that rotate.
+     * @return The chosen member.
+     */
+    public abstract BES select(List<BES> candidates, int sequence);
+
+
+    private static double score(BES bes) {
+        return bes.getLatencyAverage() * (bes.getOutstandingRequestCount() + 1);
+    }
+
+    /**
+     * Accepts the enum names as well as the camel case forms used in the
+     * configuration, e.g. "leastOutstanding" or "powerOfTwoChoices".
+     *
+     * @param s The name of the strategy.
+     * @return The matching strategy, or null if there isn't one.
+     */
+    public static BesSelectionStrategy fromString(String s) {
+        String name = s.trim().replace("_", "");
+        for (BesSelectionStrategy strategy : values()) {
+            if (strategy.name().replace("_", "").equalsIgnoreCase(name))
+                return strategy;
+        }
+        return null;
+    }
+
+}
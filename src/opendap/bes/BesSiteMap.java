@@ -9,15 +9,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This servlet works with the BES system to build site map responses for Hyrax.
  *
+ * The site map is held in a single cache file. When the cache file is made the
+ * BES response is sorted, its duplicates are removed, and it is cut into the
+ * smap_N.txt pseudo files. The file ends with an index of the byte offset at
+ * which each pseudo file starts so a request for one of them is answered by
+ * handing that range of the file to FileChannel.transferTo() without reading
+ * the rest of the site map. When the cache file expires a new one is made by
+ * a background thread and moved into place atomically, until then requests
+ * are answered from the old one.
  */
 public class BesSiteMap {
     private static final Logger LOG = LoggerFactory.getLogger(BesSiteMap.class);
@@ -26,9 +46,13 @@ public class BesSiteMap {
     public static final String REFRESH_INTERVAL_ATTRIBUTE_NAME = "refreshInterval";
     public static final String CACHE_FILE_ATTRIBUTE_NAME = "cacheFile";
 
-    private static final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    // Held while the cache file is being made, and by init().
+    private static final ReentrantLock cacheLock = new ReentrantLock();
     private static final AtomicBoolean ENABLED = new AtomicBoolean(false);
 
+    // True while a background thread is making a new cache file.
+    private static final AtomicBoolean REFRESHING = new AtomicBoolean(false);
+
     private static final String PseudoFileOpener ="smap_";
     private static final String PseudoFileCloser =".txt";
 
@@ -43,11 +67,20 @@ public class BesSiteMap {
     public static final long DEFAULT_CACHE_REFRESH_INTERVAL = 600; // Ten minutes worth of seconds.
     private static AtomicLong cacheRefreshInterval_ms = new AtomicLong(DEFAULT_CACHE_REFRESH_INTERVAL * 1000);
 
+    // The last 8 bytes of a cache file in the indexed format ("SMAPIDX1").
+    private static final long CACHE_FILE_MAGIC = 0x534d415049445831L;
+
+    // The size of the count and the magic number at the end of the cache file.
+    private static final int CACHE_FILE_TRAILER_BYTES = 12;
+
+    // The number of site map entries sorted in memory at one time while the
+    // cache file is being made. Larger site maps are sorted in runs that are
+    // then merged.
+    private static final int SORT_RUN_MAX_ENTRIES = 100000;
+
     private Logger log;
-    private TreeSet<String> siteMap;
     private int siteMapFileCount;
     private String dapServicePrefix;
-    private long siteMapCharCount;
     private Date creation;
 
 
@@ -65,10 +98,8 @@ public class BesSiteMap {
             throw new BadConfigurationException("BESSiteMap has not been initialized.");
         }
         log = LoggerFactory.getLogger(getClass());
-        siteMap = new TreeSet<>();
-        siteMapFileCount = 1;
         this.dapServicePrefix = dapServicePrefix;
-        siteMapCharCount = getSiteMap();
+        siteMapFileCount = getSiteMap();
         creation = new Date();
     }
 
@@ -129,7 +160,7 @@ public class BesSiteMap {
      */
     public static void init(String cacheFileName, long refreshIntervalSeconds)
             throws BadConfigurationException {
-        cacheLock.writeLock().lock();
+        cacheLock.lock();
         try {
             if (ENABLED.get()) {
                 LOG.error("BESSiteMap has already been initialized!  " +
@@ -152,7 +183,7 @@ public class BesSiteMap {
                     cacheRefreshInterval_ms.get()/(1000));
         }
         finally {
-            cacheLock.writeLock().unlock();
+            cacheLock.unlock();
         }
     }
 
@@ -165,7 +196,7 @@ public class BesSiteMap {
      *
      * @return Returns true is the cache file is expired, false otherwise.
      */
-    private boolean cacheExpired(){
+    private static boolean cacheExpired(){
 
         File cacheFile = new File(SiteMapCacheFileName);
         boolean expired;
@@ -184,56 +215,87 @@ public class BesSiteMap {
             msg = "SiteMap Cache is EXPIRED. (No Cache File Found: "+
                     SiteMapCacheFileName+")";
         }
-        log.debug(msg);
+        LOG.debug(msg);
         return expired;
     }
 
 
     /**
+     * Makes sure there is a usable cache file and returns the number of
+     * pseudo files in it. If there is no cache file (or it was written by an
+     * older version of the server) a new one is made before this method
+     * returns. If the cache file has expired it is used as is while a new
+     * one is made in the background.
      *
-     * @return The number of items in the site map.
+     * @return The number of pseudo files in the site map.
      * @throws BESError
      * @throws BadConfigurationException
      * @throws PPTException
      * @throws IOException
      */
-    private long getSiteMap() throws BESError, BadConfigurationException, PPTException, IOException {
+    private int getSiteMap() throws BESError, BadConfigurationException, PPTException, IOException {
 
         File smcFile = new File(SiteMapCacheFileName);
 
-        cacheLock.readLock().lock();
-        if(cacheExpired()){
-            cacheLock.readLock().unlock(); // dump read lock
-            cacheLock.writeLock().lock();  // grab write lock
-            // Lock upgraded to write lock.
+        long[] offsets = readIndex(smcFile);
+        if(offsets==null){
+            cacheLock.lock();
             try {
-                // Recheck expired condition as it may have changed before we
-                // got the writeLock
-                if(cacheExpired()){
-                    makeCacheFileAsRequired();
-                    log.debug("UPDATING SiteMap file: {}", smcFile.getAbsolutePath());
-                    try (FileOutputStream fos = new FileOutputStream(smcFile)) {
-                        writeBesSiteMap(fos);
-                    }
+                // Recheck as another thread may have made the cache file
+                // while we waited for the lock.
+                offsets = readIndex(smcFile);
+                if(offsets==null){
+                    writeSiteMapCacheFile(dapServicePrefix);
+                    offsets = readIndex(smcFile);
                 }
-                // Downgrade lock to readLock
-                cacheLock.readLock().lock();
             }
             finally {
-                cacheLock.writeLock().unlock();
-            }
-        }
-
-        try {
-            log.debug("Ingesting SiteMap file: {}", smcFile.getAbsolutePath());
-            try (FileInputStream smcIs = new FileInputStream(smcFile)) {
-                return ingestSiteMap(smcIs);
+                cacheLock.unlock();
             }
+            if(offsets==null)
+                throw new IOException("Unable to read the SiteMap cache file: "+smcFile.getAbsolutePath());
         }
-        finally {
-            cacheLock.readLock().unlock();
+        else if(cacheExpired()){
+            scheduleRefresh(dapServicePrefix);
         }
+        return offsets.length - 1;
+    }
 
+    /**
+     * Starts a background thread that makes a new cache file, unless one is
+     * already underway.
+     *
+     * @param dapServicePrefix The DAP service prefix for the site map entries.
+     */
+    private static void scheduleRefresh(final String dapServicePrefix){
+
+        if(!REFRESHING.compareAndSet(false, true))
+            return;
+
+        Thread refresher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cacheLock.lock();
+                    try {
+                        if (cacheExpired())
+                            writeSiteMapCacheFile(dapServicePrefix);
+                    }
+                    finally {
+                        cacheLock.unlock();
+                    }
+                }
+                catch (Exception e) {
+                    LOG.error("Failed to refresh the SiteMap cache file {} Msg: {}",
+                            SiteMapCacheFileName, e.getMessage());
+                }
+                finally {
+                    REFRESHING.set(false);
+                }
+            }
+        }, SITE_MAP_CACHE_ELEMENT_NAME + "-refresh");
+        refresher.setDaemon(true);
+        refresher.start();
     }
 
     /**
@@ -280,86 +342,266 @@ public class BesSiteMap {
 
 
     /**
-     * Creates the cache file (and any required parent directories)
+     * Creates the parent directories of the cache file, if required.
      *
-     * @throws IOException If the parent directories or or the cache file cannot
-     * be created.
+     * @return The directory that holds the cache file.
+     * @throws IOException If the parent directories cannot be created.
      */
-    private static void makeCacheFileAsRequired() throws IOException{
+    private static File makeCacheDirAsRequired() throws IOException{
 
         File cacheFile = new File(SiteMapCacheFileName);
-
-        if(cacheFile.exists()) {
-            return;
-        }
-        File parent = cacheFile.getParentFile();
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
         if(parent.mkdirs()){
-            LOG.debug("Created cache dir: '{}'",cacheFile.getParentFile().getAbsolutePath());
+            LOG.debug("Created cache dir: '{}'",parent.getAbsolutePath());
         }
         else if(parent.exists()){
-            LOG.debug("Cache dir: '{}' is present.",cacheFile.getParentFile().getAbsolutePath());
+            LOG.debug("Cache dir: '{}' is present.",parent.getAbsolutePath());
         }
         else {
             throw new IOException("Unable to find or create the cache " +
                     "directory: "+parent.getAbsolutePath());
         }
-
-        if (cacheFile.createNewFile()) {
-            LOG.debug("Created new SiteMap cache file: {}", cacheFile.getAbsolutePath());
-        }
+        return parent;
     }
 
 
     /**
-     * Writes the BES SiteMap to the passed InputStream;
-     * @param os
+     * Gets the site map from the BES and writes a new cache file. The BES
+     * response is spooled to disk, sorted in runs of SORT_RUN_MAX_ENTRIES
+     * entries, and the runs are merged (dropping duplicates) into the cache
+     * file. The new cache file is written beside the old one and then moved
+     * over it, so threads that are reading the old one are not disturbed.
+     *
+     * @param dapServicePrefix The DAP service prefix for the site map entries.
      * @throws BadConfigurationException
      * @throws PPTException
      * @throws IOException
      * @throws BESError
      */
-    private void writeBesSiteMap(OutputStream os) throws BadConfigurationException, PPTException, IOException, BESError {
-        BesApi besApi = new BesApi();
-        besApi.writeCombinedSiteMapResponse(dapServicePrefix,os);
+    private static void writeSiteMapCacheFile(String dapServicePrefix)
+            throws BadConfigurationException, PPTException, IOException, BESError {
+
+        File smcFile = new File(SiteMapCacheFileName);
+        File cacheDir = makeCacheDirAsRequired();
+        LOG.debug("UPDATING SiteMap file: {}", smcFile.getAbsolutePath());
+
+        File besResponse = File.createTempFile(smcFile.getName() + "-", ".bes", cacheDir);
+        List<File> runs = new ArrayList<>();
+        File newCacheFile = null;
+        try {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(besResponse))) {
+                BesApi besApi = new BesApi();
+                besApi.writeCombinedSiteMapResponse(dapServicePrefix, os);
+            }
+            sortIntoRuns(besResponse, cacheDir, smcFile.getName(), runs);
+
+            newCacheFile = File.createTempFile(smcFile.getName() + "-", ".tmp", cacheDir);
+            int fileCount = mergeRuns(runs, newCacheFile);
+
+            Files.move(newCacheFile.toPath(), smcFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            newCacheFile = null;
+            LOG.debug("SiteMap file {} holds {} pseudo files.", smcFile.getAbsolutePath(), fileCount);
+        }
+        finally {
+            deleteQuietly(besResponse);
+            for(File run : runs)
+                deleteQuietly(run);
+            if(newCacheFile!=null)
+                deleteQuietly(newCacheFile);
+        }
+    }
+
+    private static void deleteQuietly(File file){
+        if(!file.delete() && file.exists())
+            LOG.warn("Unable to delete temporary SiteMap file: {}", file.getAbsolutePath());
     }
 
     /**
-     * Retrieves the entire site map from the BES by populating a TreeSet<String>.
-     * @return The number of characters in the site map response from the BES.
-     * @throws BadConfigurationException
-     * @throws PPTException
+     * Reads the site map entries in source and writes them to one or more
+     * files (runs), each of which holds no more than SORT_RUN_MAX_ENTRIES
+     * entries in sorted order.
+     *
+     * @param source The unsorted site map.
+     * @param dir The directory in which to make the runs.
+     * @param prefix The prefix for the names of the runs.
+     * @param runs The runs are added to this list as they are made.
      * @throws IOException
-     * @throws BESError
      */
-    private long ingestSiteMap(InputStream smcIs) throws IOException {
-
-        log.debug("Ingesting SiteMap from Stream");
-
-        BufferedReader bfr = new BufferedReader(new InputStreamReader(smcIs, HyraxStringEncoding.getCharset()));
-        siteMapFileCount = 1;
-        long charsInSiteMapPseudoFile = 0;
-        long linesInSiteMapPseudoFile = 0;
-
-        int i = 0;
-        String line = bfr.readLine();
-        long char_count = 0;
-        while (line != null) {
-            i++;
-            siteMap.add(line);
-            char_count += line.length();
-            linesInSiteMapPseudoFile++;
-            charsInSiteMapPseudoFile += line.length();
-            if (charsInSiteMapPseudoFile > SITE_MAP_FILE_MAX_BYTES || linesInSiteMapPseudoFile > SITE_MAP_FILE_MAX_ENTRIES) {
-                siteMapFileCount++;
-                charsInSiteMapPseudoFile = 0;
-                linesInSiteMapPseudoFile = 0;
+    private static void sortIntoRuns(File source, File dir, String prefix, List<File> runs) throws IOException {
+
+        Charset charset = HyraxStringEncoding.getCharset();
+        List<String> entries = new ArrayList<>();
+        long count = 0;
+        try (BufferedReader bfr = new BufferedReader(new InputStreamReader(new FileInputStream(source), charset))) {
+            String line = bfr.readLine();
+            while (line != null) {
+                count++;
+                entries.add(line);
+                if (entries.size() >= SORT_RUN_MAX_ENTRIES) {
+                    runs.add(writeRun(entries, dir, prefix));
+                    entries.clear();
+                }
+                line = bfr.readLine();
             }
-            line = bfr.readLine();
         }
-        log.debug("getSiteMapFromBes() - Processed {} lines.", i);
-        log.debug("getSiteMapFromBes() - siteMap has {} entries, {} characters.", siteMap.size(), char_count);
+        if (!entries.isEmpty() || runs.isEmpty())
+            runs.add(writeRun(entries, dir, prefix));
+        LOG.debug("sortIntoRuns() - Processed {} lines into {} runs.", count, runs.size());
+    }
 
-        return char_count;
+    private static File writeRun(List<String> entries, File dir, String prefix) throws IOException {
+        Collections.sort(entries);
+        File run = File.createTempFile(prefix + "-", ".run", dir);
+        try (BufferedWriter bw = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(run), HyraxStringEncoding.getCharset()))) {
+            for (String entry : entries) {
+                bw.write(entry);
+                bw.write('\n');
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Merges the sorted runs into a cache file, dropping duplicate entries,
+     * and cuts the result into pseudo files no larger than
+     * SITE_MAP_FILE_MAX_ENTRIES entries and SITE_MAP_FILE_MAX_BYTES
+     * characters. The cache file is the entries, one per line, followed by
+     * the byte offset of the start of each pseudo file (and of the end of the
+     * last one), the number of pseudo files, and CACHE_FILE_MAGIC.
+     *
+     * @param runs The sorted runs.
+     * @param target The file to write.
+     * @return The number of pseudo files in the site map.
+     * @throws IOException
+     */
+    private static int mergeRuns(List<File> runs, File target) throws IOException {
+
+        Charset charset = HyraxStringEncoding.getCharset();
+        List<BufferedReader> readers = new ArrayList<>();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+
+            PriorityQueue<RunHead> heads = new PriorityQueue<>();
+            for (File run : runs) {
+                BufferedReader bfr = new BufferedReader(new InputStreamReader(new FileInputStream(run), charset));
+                readers.add(bfr);
+                String line = bfr.readLine();
+                if (line != null)
+                    heads.add(new RunHead(line, bfr));
+            }
+
+            List<Long> offsets = new ArrayList<>();
+            offsets.add(0L);
+            long position = 0;
+            long charsInPseudoFile = 0;
+            long linesInPseudoFile = 0;
+            String previous = null;
+
+            while (!heads.isEmpty()) {
+                RunHead head = heads.poll();
+                String line = head.line;
+                String next = head.reader.readLine();
+                if (next != null) {
+                    head.line = next;
+                    heads.add(head);
+                }
+                if (line.equals(previous))
+                    continue;
+                previous = line;
+
+                linesInPseudoFile++;
+                charsInPseudoFile += line.length();
+                if (charsInPseudoFile > SITE_MAP_FILE_MAX_BYTES || linesInPseudoFile > SITE_MAP_FILE_MAX_ENTRIES) {
+                    offsets.add(position);
+                    charsInPseudoFile = line.length();
+                    linesInPseudoFile = 1;
+                }
+                byte[] bytes = line.getBytes(charset);
+                dos.write(bytes);
+                dos.write('\n');
+                position += bytes.length + 1;
+            }
+            offsets.add(position);
+
+            for (long offset : offsets)
+                dos.writeLong(offset);
+            dos.writeInt(offsets.size() - 1);
+            dos.writeLong(CACHE_FILE_MAGIC);
+            return offsets.size() - 1;
+        }
+        finally {
+            for (BufferedReader bfr : readers) {
+                try {
+                    bfr.close();
+                } catch (IOException e) {
+                    LOG.debug("Failed to close SiteMap run. Msg: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the pseudo file index from the cache file.
+     *
+     * @param smcFile The cache file.
+     * @return The byte offsets of the pseudo files, or null if the cache file
+     * is missing or is not in the indexed format.
+     * @throws IOException
+     */
+    private static long[] readIndex(File smcFile) throws IOException {
+        try (FileChannel fc = FileChannel.open(smcFile.toPath(), StandardOpenOption.READ)) {
+            return readIndex(fc);
+        }
+        catch (NoSuchFileException | FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the pseudo file index from the end of an open cache file.
+     *
+     * @param fc The cache file.
+     * @return The byte offsets of the pseudo files, the last value being the
+     * end of the last pseudo file, or null if fc is not in the indexed format.
+     * @throws IOException
+     */
+    private static long[] readIndex(FileChannel fc) throws IOException {
+
+        long size = fc.size();
+        if (size < CACHE_FILE_TRAILER_BYTES)
+            return null;
+
+        ByteBuffer trailer = ByteBuffer.allocate(CACHE_FILE_TRAILER_BYTES);
+        readFully(fc, trailer, size - CACHE_FILE_TRAILER_BYTES);
+        int fileCount = trailer.getInt(0);
+        if (trailer.getLong(4) != CACHE_FILE_MAGIC || fileCount < 1)
+            return null;
+
+        long indexBytes = 8L * (fileCount + 1);
+        long indexStart = size - CACHE_FILE_TRAILER_BYTES - indexBytes;
+        if (indexStart < 0)
+            return null;
+
+        ByteBuffer index = ByteBuffer.allocate((int) indexBytes);
+        readFully(fc, index, indexStart);
+        long[] offsets = new long[fileCount + 1];
+        for (int i = 0; i <= fileCount; i++) {
+            offsets[i] = index.getLong(i * 8);
+            if (i > 0 && offsets[i] < offsets[i - 1])
+                return null;
+        }
+        if (offsets[0] != 0 || offsets[fileCount] != indexStart)
+            return null;
+        return offsets;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = fc.read(buffer, position + buffer.position());
+            if (n < 0)
+                throw new EOFException("Unexpected end of SiteMap cache file.");
+        }
     }
 
 
@@ -389,14 +631,15 @@ public class BesSiteMap {
      * Sends a partial siteMap response as a pseudo file .
      *  If we are here then the request should be asking for a siteMap sub file.
      *   If not then we return the top level site map response...
-     *   We look at the total number of siteMapfiles in this siteMap (computed)
-     *    and then form the ith file based on their URL path.
+     *   The byte range of the requested pseudo file is read from the index at
+     *   the end of the cache file and sent from the cache file with
+     *   FileChannel.transferTo().
      * @param siteMapServicePrefix
-     * @param ps
+     * @param os
      * @param pseudoFilename
      * @throws IOException
      */
-    public void send_pseudoSiteMapFile(String siteMapServicePrefix , PrintStream ps, String pseudoFilename ) throws IOException  {
+    public void send_pseudoSiteMapFile(String siteMapServicePrefix , OutputStream os, String pseudoFilename ) throws IOException  {
 
         // We try to "parse" the request URL to see if it's a site map sub file.
         int indx = pseudoFilename.indexOf(PseudoFileOpener);
@@ -417,34 +660,51 @@ public class BesSiteMap {
         }
 
         // Did the parse effort succeed?
-        if(targetFileIndex <0 || targetFileIndex >= siteMapFileCount) {
-            // If the parse effort failed we just return the top level file index.
-            ps.println(getSiteMapEntryForRobotsDotText(siteMapServicePrefix));
-            return;
-        }
-
-        int i=0;
-        long char_count=0;
-        int currentPseudoFile = 0;
-
-        for(String line: siteMap){
-            i++;
-            char_count += line.length();
-            if( char_count > SITE_MAP_FILE_MAX_BYTES || i > SITE_MAP_FILE_MAX_ENTRIES){
-                currentPseudoFile++;
-                char_count = line.length();
-                i = 1;
-            }
-            if(currentPseudoFile == targetFileIndex) {
-                ps.println(line);
+        if(targetFileIndex >= 0 && targetFileIndex < siteMapFileCount) {
+            // The index is read again from the open file because a new cache
+            // file may have been moved into place since getSiteMap().
+            try (FileChannel fc = FileChannel.open(new File(SiteMapCacheFileName).toPath(), StandardOpenOption.READ)) {
+                long[] offsets = readIndex(fc);
+                if (offsets != null && targetFileIndex < offsets.length - 1) {
+                    WritableByteChannel target = Channels.newChannel(os);
+                    long position = offsets[targetFileIndex];
+                    long end = offsets[targetFileIndex + 1];
+                    while (position < end) {
+                        long sent = fc.transferTo(position, end - position, target);
+                        if (sent <= 0)
+                            throw new EOFException("Unexpected end of SiteMap cache file.");
+                        position += sent;
+                    }
+                    return;
+                }
             }
-            if(currentPseudoFile > targetFileIndex)
-                    break;
         }
 
+        // If the parse effort failed we just return the top level file index.
+        String index = getSiteMapEntryForRobotsDotText(siteMapServicePrefix) + "\n";
+        os.write(index.getBytes(HyraxStringEncoding.getCharset()));
     }
 
     public Date created(){ return creation; }
 
 
+    /**
+     * The next entry from one of the sorted runs being merged by mergeRuns().
+     */
+    private static class RunHead implements Comparable<RunHead> {
+        String line;
+        final BufferedReader reader;
+
+        RunHead(String line, BufferedReader reader){
+            this.line = line;
+            this.reader = reader;
+        }
+
+        @Override
+        public int compareTo(RunHead other) {
+            return line.compareTo(other.line);
+        }
+    }
+
+
 }
@@ -27,6 +27,7 @@
 package opendap.bes;
 
 import opendap.bes.dap2Responders.BesApi;
+import opendap.bes.caching.BesIdentityCache;
 import opendap.PathBuilder;
 import opendap.auth.AuthenticationControls;
 import opendap.coreServlet.*;
@@ -52,7 +53,7 @@ import java.util.Date;
  * Date: Apr 16, 2007
  * Time: 4:34:20 PM
  */
-public class DirectoryDispatchHandler implements DispatchHandler {
+public class DirectoryDispatchHandler implements BesDispatchHandler {
 
     private Logger log;
     private boolean initialized;
@@ -111,7 +112,7 @@ public class DirectoryDispatchHandler implements DispatchHandler {
 
 
         try {
-            ResourceInfo dsi = new BESResource(collectionName,_besApi);
+            ResourceInfo dsi = BesIdentityCache.getResourceInfo(_besApi, collectionName);
             log.debug("getLastModified():  Returning: " + new Date(dsi.lastModified()));
 
             return dsi.lastModified();
@@ -168,7 +169,7 @@ public class DirectoryDispatchHandler implements DispatchHandler {
                 isContentsRequest = true;
 
         } else {
-            ResourceInfo dsi = new BESResource(dsName,_besApi);
+            ResourceInfo dsi = BesIdentityCache.getResourceInfo(_besApi, dsName);
             if (dsi.sourceExists() &&
                     dsi.isNode() ) {
                     isDirectoryResponse = true;
@@ -226,8 +227,7 @@ public class DirectoryDispatchHandler implements DispatchHandler {
         String collectionName  = getCollectionName(oreq);
         String collectionURL = PathBuilder.pathConcat(ReqInfo.getServiceUrl(request),collectionName);
 
-        Document showNodeDoc = new Document();
-        _besApi.getBesNode(collectionName, showNodeDoc);
+        Document showNodeDoc = _besApi.getSharedBesNode(collectionName);
 
         if(log.isDebugEnabled()){
             XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
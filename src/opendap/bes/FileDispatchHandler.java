@@ -26,6 +26,7 @@
 
 package opendap.bes;
 
+import opendap.bes.caching.BesIdentityCache;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.bes.dap4Responders.MediaType;
 import opendap.coreServlet.*;
@@ -49,7 +50,7 @@ import java.util.Date;
  * Provides access to files held in the BES that the BES does not recognize as data.
  *
  */
-public class FileDispatchHandler implements DispatchHandler {
+public class FileDispatchHandler implements BesDispatchHandler {
 
     private org.slf4j.Logger log;
     //private static boolean allowDirectDataSourceAccess = false;
@@ -96,7 +97,7 @@ public class FileDispatchHandler implements DispatchHandler {
         log.debug("getLastModified(): Tomcat requesting getlastModified() for collection: " + name );
 
         try {
-            ResourceInfo dsi = new BESResource(name,_besApi);
+            ResourceInfo dsi = BesIdentityCache.getResourceInfo(_besApi, name);
             log.debug("getLastModified(): Returning: " + new Date(dsi.lastModified()));
 
             return dsi.lastModified();
@@ -136,10 +137,10 @@ public class FileDispatchHandler implements DispatchHandler {
         String localUrl = ReqInfo.getLocalUrl(request);
 
         // TODO: Is this the correct order of eval? Should it check for the ".file" suffix first?
-        ResourceInfo dsi = new BESResource(localUrl,_besApi);
+        ResourceInfo dsi = BesIdentityCache.getResourceInfo(_besApi, localUrl);
         if (!dsi.sourceExists() && localUrl.endsWith(FileService.getFileServiceSuffix())) {
             localUrl =  localUrl.substring(0,localUrl.lastIndexOf(FileService.getFileServiceSuffix()));
-            dsi = new BESResource(localUrl,_besApi);
+            dsi = BesIdentityCache.getResourceInfo(_besApi, localUrl);
         }
 
         boolean isFileResponse = false;
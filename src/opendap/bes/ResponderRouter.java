@@ -0,0 +1,385 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.bes.dap4Responders.Dap4Responder;
+import opendap.coreServlet.HttpResponder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks out the responders whose request suffix matches a relative URL in a
+ * single pass over the end of the URL, instead of running every responder's
+ * suffix regex in turn.
+ *
+ * The request match regex of a responder (for a Dap4Responder, see
+ * Dap4Responder.buildRequestMatchingRegex()) describes a small, finite set
+ * of suffixes: the normative media suffix optionally followed by one of the
+ * alternative representations' suffixes. A Dap4Responder matches with its
+ * combined suffix regex, which may be set on its own, so the suffixes of
+ * that regex are added as well. The suffixes are stored, reversed, in a
+ * trie. Walking the trie from the last character of the URL towards the
+ * first visits every suffix of the URL that some responder could match. An
+ * unescaped '.' in a regex matches any character, as it does for the regex.
+ * Responders whose regexes use any other construct can't be expanded and
+ * are always returned as candidates, so the router never excludes a
+ * responder that would have matched.
+ *
+ * The regexes are case insensitive (for US-ASCII), and so is the trie.
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class ResponderRouter {
+
+    /** Stands for the regex '.' (any character) in an expanded suffix. */
+    public static final char ANY = '\uFFFF';
+
+    /** The most suffixes a single regex may expand into. */
+    private static final int MAX_EXPANSION = 1024;
+
+    private final HttpResponder[] responders;
+    private final Node root;
+    private final int[] fallbacks;
+
+
+    /**
+     * @param responders The responders, in the order in which they are to be
+     *                   tried.
+     */
+    public ResponderRouter(List<? extends HttpResponder> responders) {
+        this.responders = responders.toArray(new HttpResponder[responders.size()]);
+        root = new Node();
+
+        List<Integer> unexpandable = new ArrayList<>();
+        for (int i = 0; i < this.responders.length; i++) {
+            List<String> suffixes = suffixes(this.responders[i]);
+            if (suffixes == null) {
+                unexpandable.add(i);
+                continue;
+            }
+            for (String suffix : suffixes)
+                insert(suffix, i);
+        }
+        fallbacks = new int[unexpandable.size()];
+        for (int i = 0; i < fallbacks.length; i++)
+            fallbacks[i] = unexpandable.get(i);
+    }
+
+
+    int size() {
+        return responders.length;
+    }
+
+    HttpResponder getResponder(int index) {
+        return responders[index];
+    }
+
+
+    /**
+     * @param relativeUrl The relative URL of the request.
+     * @return The indices, in increasing order, of the responders whose
+     * request suffix may match the URL.
+     */
+    public int[] candidates(String relativeUrl) {
+        boolean[] marked = new boolean[responders.length];
+        int count = 0;
+
+        for (int i : fallbacks) {
+            marked[i] = true;
+            count++;
+        }
+        count += mark(root, marked);
+
+        // Usually one node is active, a second only where a responder's
+        // suffix contains an ANY.
+        Node[] active = new Node[]{root};
+        int activeCount = 1;
+        Node[] next = new Node[4];
+
+        for (int pos = relativeUrl.length() - 1; pos >= 0 && activeCount > 0; pos--) {
+            char c = relativeUrl.charAt(pos);
+            if (c >= 'A' && c <= 'Z')
+                c = (char) (c + ('a' - 'A'));
+
+            int nextCount = 0;
+            for (int a = 0; a < activeCount; a++) {
+                Node node = active[a];
+                Node child = node.child(c);
+                if (child != null) {
+                    if (nextCount == next.length)
+                        next = Arrays.copyOf(next, nextCount * 2);
+                    next[nextCount++] = child;
+                }
+                if (node.any != null) {
+                    if (nextCount == next.length)
+                        next = Arrays.copyOf(next, nextCount * 2);
+                    next[nextCount++] = node.any;
+                }
+            }
+            for (int n = 0; n < nextCount; n++)
+                count += mark(next[n], marked);
+
+            Node[] t = active;
+            active = next;
+            next = t.length >= active.length ? t : new Node[active.length];
+            activeCount = nextCount;
+        }
+
+        int[] result = new int[count];
+        int r = 0;
+        for (int i = 0; i < marked.length && r < count; i++) {
+            if (marked[i])
+                result[r++] = i;
+        }
+        return r == count ? result : Arrays.copyOf(result, r);
+    }
+
+
+    private static int mark(Node node, boolean[] marked) {
+        int count = 0;
+        for (int i : node.terminals) {
+            if (!marked[i]) {
+                marked[i] = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private void insert(String suffix, int responderIndex) {
+        Node node = root;
+        for (int i = suffix.length() - 1; i >= 0; i--) {
+            char c = suffix.charAt(i);
+            if (c == ANY) {
+                if (node.any == null)
+                    node.any = new Node();
+                node = node.any;
+            } else {
+                if (c >= 'A' && c <= 'Z')
+                    c = (char) (c + ('a' - 'A'));
+                node = node.addChild(c);
+            }
+        }
+        node.addTerminal(responderIndex);
+    }
+
+
+    /**
+     * @return The suffixes of all the regexes the responder's matches() may
+     * run, or null if any one of them can't be expanded.
+     */
+    static List<String> suffixes(HttpResponder responder) {
+        List<String> suffixes = expand(responder.getRequestMatchRegexString());
+        if (suffixes == null || !(responder instanceof Dap4Responder))
+            return suffixes;
+
+        // Dap4Responder.matches() runs the combined regex, which is usually
+        // the same as the request match regex but may be set on its own.
+        String combined = ((Dap4Responder) responder).getCombinedRequestSuffixRegex();
+        if (combined == null || combined.equals(responder.getRequestMatchRegexString()))
+            return suffixes;
+        List<String> more = expand(combined);
+        if (more == null)
+            return null;
+        suffixes = new ArrayList<>(suffixes);
+        for (String s : more) {
+            if (!suffixes.contains(s))
+                suffixes.add(s);
+        }
+        return suffixes;
+    }
+
+
+    /**
+     * Expands a suffix regex, which must end in '$', into the set of suffixes
+     * it matches.
+     *
+     * @return The suffixes, with ANY standing for the regex '.', or null if
+     * the regex uses constructs other than literals, escaped punctuation,
+     * '.', groups, alternation and '?'.
+     */
+    public static List<String> expand(String regex) {
+        if (regex == null || !regex.endsWith("$") || regex.endsWith("\\$"))
+            return null;
+        try {
+            Expander expander = new Expander(regex.substring(0, regex.length() - 1));
+            List<String> suffixes = expander.alternation();
+            if (!expander.atEnd())
+                return null;
+            return suffixes;
+        } catch (UnsupportedRegexException e) {
+            return null;
+        }
+    }
+
+
+    private static class Node {
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+        private static final int[] NO_TERMINALS = new int[0];
+
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        Node any;
+        int[] terminals = NO_TERMINALS;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+
+        void addTerminal(int responderIndex) {
+            for (int t : terminals) {
+                if (t == responderIndex)
+                    return;
+            }
+            terminals = Arrays.copyOf(terminals, terminals.length + 1);
+            terminals[terminals.length - 1] = responderIndex;
+        }
+    }
+
+
+    private static class UnsupportedRegexException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedRegexException(String msg) {
+            super(msg);
+        }
+    }
+
+
+    /**
+     * A recursive descent expander for the suffix regex grammar:
+     * <pre>
+     *   alternation := sequence ('|' sequence)*
+     *   sequence    := (atom '?'?)*
+     *   atom        := '(' alternation ')' | '\' punctuation | '.' | literal
+     * </pre>
+     */
+    private static class Expander {
+        private static final String UNSUPPORTED = "*+{}[]^$";
+
+        private final String regex;
+        private int pos;
+
+        Expander(String regex) {
+            this.regex = regex;
+            pos = 0;
+        }
+
+        boolean atEnd() {
+            return pos >= regex.length();
+        }
+
+        List<String> alternation() throws UnsupportedRegexException {
+            List<String> result = new ArrayList<>(sequence());
+            while (!atEnd() && regex.charAt(pos) == '|') {
+                pos++;
+                for (String s : sequence()) {
+                    if (!result.contains(s))
+                        result.add(s);
+                }
+                checkSize(result.size());
+            }
+            return result;
+        }
+
+        private List<String> sequence() throws UnsupportedRegexException {
+            List<String> result = Collections.singletonList("");
+            while (!atEnd() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                List<String> atom = atom();
+                if (!atEnd() && regex.charAt(pos) == '?') {
+                    pos++;
+                    atom = new ArrayList<>(atom);
+                    if (!atom.contains(""))
+                        atom.add("");
+                }
+                checkSize(result.size() * atom.size());
+                List<String> product = new ArrayList<>(result.size() * atom.size());
+                for (String head : result) {
+                    for (String tail : atom) {
+                        String s = head + tail;
+                        if (!product.contains(s))
+                            product.add(s);
+                    }
+                }
+                result = product;
+            }
+            return result;
+        }
+
+        private List<String> atom() throws UnsupportedRegexException {
+            char c = regex.charAt(pos++);
+            if (c == '(') {
+                if (!atEnd() && regex.charAt(pos) == '?')
+                    throw new UnsupportedRegexException("Special group at " + pos);
+                List<String> group = alternation();
+                if (atEnd() || regex.charAt(pos) != ')')
+                    throw new UnsupportedRegexException("Unbalanced group at " + pos);
+                pos++;
+                return group;
+            }
+            if (c == '\\') {
+                if (atEnd())
+                    throw new UnsupportedRegexException("Trailing escape");
+                char escaped = regex.charAt(pos++);
+                if (Character.isLetterOrDigit(escaped))
+                    throw new UnsupportedRegexException("Escape sequence \\" + escaped);
+                return Collections.singletonList(String.valueOf(escaped));
+            }
+            if (c == '.')
+                return Collections.singletonList(String.valueOf(ANY));
+            if (c == '?' || c == '|' || c == ')' || c == ANY || UNSUPPORTED.indexOf(c) >= 0)
+                throw new UnsupportedRegexException("Unsupported character '" + c + "' at " + (pos - 1));
+            return Collections.singletonList(String.valueOf(c));
+        }
+
+        private static void checkSize(int size) throws UnsupportedRegexException {
+            if (size > MAX_EXPANSION)
+                throw new UnsupportedRegexException("The regex matches too many suffixes.");
+        }
+    }
+}
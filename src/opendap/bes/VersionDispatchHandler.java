@@ -27,7 +27,6 @@
 package opendap.bes;
 
 import opendap.bes.dap2Responders.BesApi;
-import opendap.coreServlet.DispatchHandler;
 import opendap.coreServlet.ReqInfo;
 import opendap.io.HyraxStringEncoding;
 import org.jdom.Document;
@@ -49,7 +48,7 @@ import java.util.regex.Pattern;
  * Date: Apr 19, 2007
  * Time: 12:23:49 PM
  */
-public class VersionDispatchHandler implements DispatchHandler {
+public class VersionDispatchHandler implements BesDispatchHandler {
 
 
     private org.slf4j.Logger log;
@@ -0,0 +1,409 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.caching;
+
+import opendap.bes.BESResource;
+import opendap.bes.BadConfigurationException;
+import opendap.bes.dap2Responders.BesApi;
+import opendap.coreServlet.ResourceInfo;
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory cache of what the BES says a path is: whether it exists, if
+ * it is accessible, if it is a node and/or a dataset, and when it was last
+ * modified. This class is a singleton.
+ *
+ * The dispatchers ask these questions many times for each request, once for
+ * every responder that might handle it, so the answers are kept here rather
+ * than rebuilt from the showNode response each time. Paths that the BES
+ * does not know about (or will not show us) are cached too, but only for
+ * the (short) negativeTtl, so that bots probing for things that aren't
+ * there cost one BES transaction per path rather than several per request.
+ * Any other BES error (an internal error, say) is not cached at all, it
+ * says nothing about the path.
+ *
+ * When the BesNodeCache is enabled each entry is tied to the showNode
+ * response it was made from. The entry is dropped when that response is
+ * replaced or evicted, its TTL runs from when that response was retrieved,
+ * and a hit on the entry lets the BesNodeCache refresh a stale response.
+ */
+public class BesIdentityCache {
+
+    private static final AtomicBoolean INITIALIZED = new AtomicBoolean(false);
+
+    public  static final String IDENTITY_CACHE_ELEMENT_NAME = "IdentityCache";
+    private static final String MAX_ENTRIES_ATTRIBUTE_NAME = "maxEntries";
+    private static final String TTL_ATTRIBUTE_NAME = "ttl";
+    private static final String NEGATIVE_TTL_ATTRIBUTE_NAME = "negativeTtl";
+    private static final int IDENTITY_CACHE_MAX_ENTRIES_DEFAULT = 20000;
+    private static final long IDENTITY_CACHE_TTL_DEFAULT = 600;
+    private static final long IDENTITY_CACHE_NEGATIVE_TTL_DEFAULT = 15;
+    private static final long nanoInSeconds = 1000000000;
+
+    // Controls init() and destroy(). Not used when accessing the cache.
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    // Held (via tryLock()) by the thread that is pruning the cache so that
+    // other threads don't pile up doing the same work.
+    private static final ReentrantLock PRUNE_LOCK = new ReentrantLock();
+
+    // Evicts the least recently accessed identities, see prune().
+    private static final LruPruner<Identity> PRUNER = new LruPruner<Identity>() {
+        @Override
+        protected long getLastAccessed(Identity identity) {
+            return identity.lastAccessed;
+        }
+
+        @Override
+        protected long evict(Identity identity) {
+            return IDENTITY_CACHE.remove(identity.key, identity) ? 1 : 0;
+        }
+    };
+
+    // A static logger for this singleton class.
+    private static final Logger SLOG = LoggerFactory.getLogger(IDENTITY_CACHE_ELEMENT_NAME);
+
+    private static final AtomicInteger MAX_ENTRIES = new AtomicInteger(IDENTITY_CACHE_MAX_ENTRIES_DEFAULT);
+
+    // Times to live in nanoseconds.
+    private static final AtomicLong TTL = new AtomicLong(IDENTITY_CACHE_TTL_DEFAULT * nanoInSeconds);
+    private static final AtomicLong NEGATIVE_TTL = new AtomicLong(IDENTITY_CACHE_NEGATIVE_TTL_DEFAULT * nanoInSeconds);
+
+    private static final AtomicLong HITS = new AtomicLong(0);
+    private static final AtomicLong NEGATIVE_HITS = new AtomicLong(0);
+    private static final AtomicLong MISSES = new AtomicLong(0);
+    private static final AtomicLong INVALIDATIONS = new AtomicLong(0);
+    private static final AtomicLong EVICTIONS = new AtomicLong(0);
+
+    private static final ConcurrentHashMap<String,Identity> IDENTITY_CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * This is a singleton class and as such all methods are static and the
+     * constructor is private because an instance should never be created.
+     */
+    private BesIdentityCache(){}
+
+    /**
+     * Initialize the BesIdentityCache using an XML Element.
+     * @param config The IDENTITY_CACHE_ELEMENT_NAME configuration element
+     * @throws BadConfigurationException When the configuration is broken.
+     */
+    public static void init(Element config) throws BadConfigurationException {
+
+        if (config == null || !config.getName().equals(IDENTITY_CACHE_ELEMENT_NAME))
+            throw new BadConfigurationException("BesIdentityCache must be passed a " +
+                    "non-null configuration element named " + IDENTITY_CACHE_ELEMENT_NAME);
+
+        long maxEntries = getPositiveLongAttribute(config, MAX_ENTRIES_ATTRIBUTE_NAME, IDENTITY_CACHE_MAX_ENTRIES_DEFAULT);
+        long ttl = getPositiveLongAttribute(config, TTL_ATTRIBUTE_NAME, IDENTITY_CACHE_TTL_DEFAULT);
+        long negativeTtl = getPositiveLongAttribute(config, NEGATIVE_TTL_ATTRIBUTE_NAME, IDENTITY_CACHE_NEGATIVE_TTL_DEFAULT);
+
+        init((int) Math.min(maxEntries, Integer.MAX_VALUE), ttl, negativeTtl);
+    }
+
+    /**
+     * Reads the value of an attribute that must be an integer larger than
+     * zero. An unparsable or out of range value is logged and the default
+     * used in its place.
+     */
+    private static long getPositiveLongAttribute(Element config, String name, long defaultValue){
+        String s = config.getAttributeValue(name);
+        if(s==null)
+            return defaultValue;
+        try {
+            long value = Long.parseLong(s);
+            if(value > 0)
+                return value;
+        } catch (NumberFormatException nfe) {
+            // Fall through to the error message.
+        }
+        SLOG.error("Failed to parse value of {}! Value must be an integer > 0. Using default value: {}",
+                IDENTITY_CACHE_ELEMENT_NAME + "@" + name, defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * The _actual_ init method that sets up the cache. This must be called
+     * prior to using the cache.
+     * @param maxEntries The maximum number of entries in the cache
+     * @param ttlSeconds The time the answer for a path that exists may be
+     *                   used before the BES is asked again.
+     * @param negativeTtlSeconds The time the answer for a path that does not
+     *                           exist, or is not accessible, may be used
+     *                           before the BES is asked again.
+     */
+    public static void init(int maxEntries, long ttlSeconds, long negativeTtlSeconds) {
+        LOCK.lock();
+        try {
+            if (INITIALIZED.get()) {
+                SLOG.error("BesIdentityCache has already been initialized!  " +
+                                "MAX_ENTRIES: {}  TTL: {} s",
+                        MAX_ENTRIES.get(),
+                        TTL.get()/(nanoInSeconds*1.0));
+                return;
+            }
+            clear();
+            MAX_ENTRIES.set(maxEntries);
+            TTL.set(ttlSeconds * nanoInSeconds);
+            NEGATIVE_TTL.set(negativeTtlSeconds * nanoInSeconds);
+            INITIALIZED.set(true);
+            SLOG.debug("INITIALIZED  MAX_ENTRIES: {}  TTL: {} s  NEGATIVE_TTL: {} s",
+                    new Object[]{maxEntries, ttlSeconds, negativeTtlSeconds});
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
+
+    public static boolean isInitialized(){
+        return INITIALIZED.get();
+    }
+
+    /**
+     * Returns what the BES says about besPath. When the cache is disabled
+     * this is simply a new BESResource.
+     *
+     * The returned ResourceInfo is shared by every thread that asks about
+     * besPath and is immutable.
+     *
+     * @param besApi The instance of BesApi to use when accessing the BES.
+     * @param besPath The BES path (dataSource) of interest.
+     * @return The ResourceInfo for besPath.
+     * @throws Exception When the BES cannot be asked about besPath. Such
+     * failures are not cached, and neither are BES errors other than not
+     * found and forbidden.
+     */
+    public static ResourceInfo getResourceInfo(BesApi besApi, String besPath) throws Exception {
+
+        if(!INITIALIZED.get())
+            return new BESResource(besPath, besApi);
+
+        String key = besPath.startsWith("/") ? besPath : "/" + besPath;
+
+        Identity identity = IDENTITY_CACHE.get(key);
+        if(identity!=null) {
+            if(isValid(besApi, identity)) {
+                identity.lastAccessed = System.nanoTime();
+                if(identity.isNegative())
+                    NEGATIVE_HITS.incrementAndGet();
+                else
+                    HITS.incrementAndGet();
+                return identity;
+            }
+            IDENTITY_CACHE.remove(key, identity);
+        }
+        MISSES.incrementAndGet();
+
+        if(!BesNodeCache.isInitialized()) {
+            long retrieved = System.nanoTime();
+            BESResource resource = new BESResource(key, besApi);
+            if(resource.isBesFailure()) {
+                SLOG.debug("The BES failed to answer for \"{}\", not caching it.", key);
+                return resource;
+            }
+            identity = new Identity(key, resource, null, retrieved);
+        }
+        else {
+            // Only cache the answer when we know which showNode response it
+            // came from. If that response was replaced while we read it the
+            // answer is returned but not kept, the next lookup will keep it.
+            NodeTransaction before = BesNodeCache.getCachedTransaction(key);
+            BESResource resource = new BESResource(key, besApi);
+            NodeTransaction source = BesNodeCache.getCachedTransaction(key);
+            if(resource.isBesFailure()) {
+                SLOG.debug("The BES failed to answer for \"{}\", not caching it.", key);
+                return resource;
+            }
+            if(source==null || source!=before) {
+                SLOG.debug("The showNode response for \"{}\" changed during the lookup, not caching it.", key);
+                return resource;
+            }
+            identity = new Identity(key, resource, source, source.getTimeCreated());
+        }
+
+        if(IDENTITY_CACHE.put(key, identity) == null && IDENTITY_CACHE.size() > MAX_ENTRIES.get())
+            prune();
+
+        SLOG.debug("Cached identity of \"{}\" exists: {} isDataset: {}",
+                new Object[]{key, identity.sourceExists(), identity.isDataset()});
+        return identity;
+    }
+
+    /**
+     * Drops the cached answer for besPath, if there is one. Called when the
+     * BesNodeCache gets a new showNode response for besPath, or evicts the
+     * one it has.
+     *
+     * @param besPath The BES path (dataSource) whose answer is now out of date.
+     */
+    public static void invalidate(String besPath){
+        if(besPath==null || IDENTITY_CACHE.isEmpty())
+            return;
+        if(IDENTITY_CACHE.remove(besPath) != null) {
+            INVALIDATIONS.incrementAndGet();
+            SLOG.debug("Invalidated identity of \"{}\"", besPath);
+        }
+    }
+
+    private static boolean isExpired(Identity identity){
+        long ttl = identity.isNegative() ? NEGATIVE_TTL.get() : TTL.get();
+        return System.nanoTime() - identity.retrieved > ttl;
+    }
+
+    /**
+     * An identity is valid until it expires and, if it came from the
+     * BesNodeCache, for as long as the showNode response it came from is
+     * still the one cached for its path.
+     */
+    private static boolean isValid(BesApi besApi, Identity identity){
+        if(isExpired(identity))
+            return false;
+        return identity.source==null || BesNodeCache.isCurrent(besApi, identity.source);
+    }
+
+    /**
+     * Removes expired entries and then, if the cache still holds more than
+     * MAX_ENTRIES, the least recently accessed ones down to the LruPruner
+     * low-water mark. If another thread is already pruning then this method
+     * returns immediately.
+     */
+    private static void prune() {
+        if (!PRUNE_LOCK.tryLock())
+            return;
+        try {
+            int evicted = 0;
+            for (Identity identity : IDENTITY_CACHE.values()) {
+                if (isExpired(identity) && IDENTITY_CACHE.remove(identity.key, identity))
+                    evicted++;
+            }
+            evicted += PRUNER.prune(IDENTITY_CACHE.values(), IDENTITY_CACHE.size(), MAX_ENTRIES.get());
+            EVICTIONS.addAndGet(evicted);
+            SLOG.debug("Pruned {} entries from the cache. size(): {}", evicted, IDENTITY_CACHE.size());
+        }
+        finally {
+            PRUNE_LOCK.unlock();
+        }
+    }
+
+    public static long getHitCount(){ return HITS.get(); }
+    public static long getNegativeHitCount(){ return NEGATIVE_HITS.get(); }
+    public static long getMissCount(){ return MISSES.get(); }
+    public static long getInvalidationCount(){ return INVALIDATIONS.get(); }
+    public static long getEvictionCount(){ return EVICTIONS.get(); }
+    public static int getEntryCount(){ return IDENTITY_CACHE.size(); }
+
+    /**
+     * Appends the state of the cache to sb in the Prometheus text format.
+     * @param sb The StringBuilder to which the metrics are appended.
+     */
+    public static void writeMetrics(StringBuilder sb) {
+        sb.append("# HELP olfs_bes_identity_cache_requests_total BES path lookups answered by the identity cache, by outcome.\n");
+        sb.append("# TYPE olfs_bes_identity_cache_requests_total counter\n");
+        sb.append("olfs_bes_identity_cache_requests_total{outcome=\"hit\"} ").append(getHitCount()).append("\n");
+        sb.append("olfs_bes_identity_cache_requests_total{outcome=\"negative_hit\"} ").append(getNegativeHitCount()).append("\n");
+        sb.append("olfs_bes_identity_cache_requests_total{outcome=\"miss\"} ").append(getMissCount()).append("\n");
+        sb.append("# HELP olfs_bes_identity_cache_removals_total Entries removed from the identity cache, by reason.\n");
+        sb.append("# TYPE olfs_bes_identity_cache_removals_total counter\n");
+        sb.append("olfs_bes_identity_cache_removals_total{reason=\"invalidated\"} ").append(getInvalidationCount()).append("\n");
+        sb.append("olfs_bes_identity_cache_removals_total{reason=\"evicted\"} ").append(getEvictionCount()).append("\n");
+        sb.append("# HELP olfs_bes_identity_cache_entries Entries held by the identity cache.\n");
+        sb.append("# TYPE olfs_bes_identity_cache_entries gauge\n");
+        sb.append("olfs_bes_identity_cache_entries ").append(getEntryCount()).append("\n");
+    }
+
+    private static void clear(){
+        IDENTITY_CACHE.clear();
+        HITS.set(0);
+        NEGATIVE_HITS.set(0);
+        MISSES.set(0);
+        INVALIDATIONS.set(0);
+        EVICTIONS.set(0);
+    }
+
+    /**
+     * Drops all references from the cache.
+     */
+    public static void destroy(){
+        LOCK.lock();
+        try {
+            INITIALIZED.set(false);
+            clear();
+            SLOG.info("Destroy complete.");
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
+
+
+    /**
+     * The parts of a BESResource that the dispatchers need, and the
+     * information needed to decide if they are still valid.
+     */
+    private static class Identity implements ResourceInfo {
+        final String key;
+        final boolean exists;
+        final boolean accessible;
+        final boolean isNode;
+        final boolean isDataset;
+        final long lastModified;
+        // The showNode response this came from, null if the BesNodeCache is disabled.
+        final NodeTransaction source;
+        // When the showNode response was retrieved from the BES (System.nanoTime()).
+        final long retrieved;
+        volatile long lastAccessed;
+
+        Identity(String key, ResourceInfo ri, NodeTransaction source, long retrieved){
+            this.key = key;
+            exists = ri.sourceExists();
+            accessible = ri.sourceIsAccesible();
+            isNode = ri.isNode();
+            isDataset = ri.isDataset();
+            lastModified = ri.lastModified();
+            this.source = source;
+            this.retrieved = retrieved;
+            lastAccessed = System.nanoTime();
+        }
+
+        boolean isNegative(){ return !exists || !accessible; }
+
+        @Override public boolean sourceExists(){ return exists; }
+        @Override public boolean sourceIsAccesible(){ return accessible; }
+        @Override public boolean isNode(){ return isNode; }
+        @Override public boolean isDataset(){ return isDataset; }
+        @Override public long lastModified(){ return lastModified; }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.bes.caching;
+
+import opendap.bes.BESError;
+import opendap.bes.dap2Responders.BesApi;
+import opendap.coreServlet.ResourceInfo;
+import opendap.namespaces.BES;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests which BES answers the BesIdentityCache keeps. The BES is a stub
+ * BesApi that counts the showNode requests made of it.
+ *
+ * Run the test using "ant check"
+ */
+public class BesIdentityCacheTest {
+
+    /**
+     * Answers every showNode request with a dataset, or with a BESError of
+     * the given code.
+     */
+    private static class StubBesApi extends BesApi {
+        private final int errorCode;
+        int requests = 0;
+
+        /**
+         * @param errorCode The BESError code to answer with, or -1 to
+         *                  answer with a dataset.
+         */
+        StubBesApi(int errorCode) {
+            this.errorCode = errorCode;
+        }
+
+        @Override
+        public Document getSharedBesNode(String dataSource) throws BESError {
+            requests++;
+            if (errorCode != -1) {
+                BESError error = new BESError("Stub BES error for " + dataSource);
+                error.setBesErrorCode(errorCode);
+                throw error;
+            }
+            Element item = new Element("item", BES.BES_NS);
+            item.setAttribute("name", dataSource);
+            item.setAttribute("type", "leaf");
+            item.setAttribute("isData", "true");
+            item.setAttribute("size", "42");
+            Element showNode = new Element("showNode", BES.BES_NS);
+            showNode.addContent(item);
+            Element response = new Element("response", BES.BES_NS);
+            response.addContent(showNode);
+            return new Document(response);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        BesIdentityCache.init(100, 600, 15);
+    }
+
+    @After
+    public void tearDown() {
+        BesIdentityCache.destroy();
+    }
+
+    @Test
+    public void internalErrorIsNotCached() throws Exception {
+        StubBesApi besApi = new StubBesApi(BESError.INTERNAL_ERROR);
+
+        ResourceInfo ri = BesIdentityCache.getResourceInfo(besApi, "/data/granule.nc");
+        Assert.assertFalse(ri.isDataset());
+        BesIdentityCache.getResourceInfo(besApi, "/data/granule.nc");
+
+        Assert.assertEquals(2, besApi.requests);
+        Assert.assertEquals(0, BesIdentityCache.getEntryCount());
+    }
+
+    @Test
+    public void internalErrorDoesNotHideTheDataset() throws Exception {
+        BesIdentityCache.getResourceInfo(new StubBesApi(BESError.INTERNAL_FATAL_ERROR), "/data/granule.nc");
+
+        StubBesApi besApi = new StubBesApi(-1);
+        ResourceInfo ri = BesIdentityCache.getResourceInfo(besApi, "/data/granule.nc");
+        Assert.assertEquals(1, besApi.requests);
+        Assert.assertTrue(ri.sourceExists());
+        Assert.assertTrue(ri.isDataset());
+    }
+
+    @Test
+    public void notFoundIsCached() throws Exception {
+        StubBesApi besApi = new StubBesApi(BESError.NOT_FOUND_ERROR);
+
+        ResourceInfo ri = BesIdentityCache.getResourceInfo(besApi, "/data/missing.nc");
+        Assert.assertFalse(ri.sourceExists());
+        ri = BesIdentityCache.getResourceInfo(besApi, "/data/missing.nc");
+        Assert.assertFalse(ri.sourceExists());
+
+        Assert.assertEquals(1, besApi.requests);
+        Assert.assertEquals(1, BesIdentityCache.getNegativeHitCount());
+    }
+
+    @Test
+    public void forbiddenIsCached() throws Exception {
+        StubBesApi besApi = new StubBesApi(BESError.FORBIDDEN_ERROR);
+
+        BesIdentityCache.getResourceInfo(besApi, "/data/secret.nc");
+        ResourceInfo ri = BesIdentityCache.getResourceInfo(besApi, "/data/secret.nc");
+
+        Assert.assertFalse(ri.sourceIsAccesible());
+        Assert.assertEquals(1, besApi.requests);
+    }
+
+    @Test
+    public void datasetIsCached() throws Exception {
+        StubBesApi besApi = new StubBesApi(-1);
+
+        BesIdentityCache.getResourceInfo(besApi, "/data/granule.nc");
+        ResourceInfo ri = BesIdentityCache.getResourceInfo(besApi, "/data/granule.nc");
+
+        Assert.assertTrue(ri.isDataset());
+        Assert.assertEquals(1, besApi.requests);
+        Assert.assertEquals(1, BesIdentityCache.getHitCount());
+    }
+}
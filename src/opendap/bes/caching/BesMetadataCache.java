@@ -0,0 +1,446 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.caching;
+
+import opendap.bes.BadConfigurationException;
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory cache for the DAP metadata responses (DDX, DMR, DDS and DAS)
+ * that the BES returns. This class is a singleton and its contents are shared
+ * by every request.
+ *
+ * Entries are kept as the bytes the BES sent, keyed on the dataset, the
+ * constraint and whatever part of the user's context changes the response.
+ * The cache is bounded by the total number of bytes it holds, the least
+ * recently used entries being dropped first. An entry is discarded when it
+ * has been in the cache longer than the TTL, or when the last modified time
+ * the BES reports for its dataset no longer matches the one recorded with it.
+ * The last modified time is only checked when the BesNodeCache is enabled,
+ * see BesApi.getMetadataLastModified().
+ */
+public class BesMetadataCache {
+
+    private static final AtomicBoolean INITIALIZED = new AtomicBoolean(false);
+
+    public  static final String METADATA_CACHE_ELEMENT_NAME = "MetadataCache";
+    private static final String MAX_SIZE_ATTRIBUTE_NAME = "maxSize";
+    private static final String MAX_ENTRY_SIZE_ATTRIBUTE_NAME = "maxEntrySize";
+    private static final String TTL_ATTRIBUTE_NAME = "ttl";
+    private static final long METADATA_CACHE_MAX_SIZE_DEFAULT = 64L * 1024 * 1024;
+    private static final long METADATA_CACHE_MAX_ENTRY_SIZE_DEFAULT = 1024 * 1024;
+    private static final long METADATA_CACHE_TTL_DEFAULT = 600;
+    private static final long nanoInSeconds = 1000000000;
+
+    // Controls init() and destroy(). Not used when accessing the cache.
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    // Held (via tryLock()) by the thread that is pruning the cache so that
+    // other threads don't pile up doing the same work.
+    private static final ReentrantLock PRUNE_LOCK = new ReentrantLock();
+
+    // Evicts the least recently accessed responses, see prune().
+    private static final LruPruner<CachedResponse> PRUNER = new LruPruner<CachedResponse>() {
+        @Override
+        protected long getLastAccessed(CachedResponse cr) {
+            return cr.lastAccessed;
+        }
+
+        @Override
+        protected long evict(CachedResponse cr) {
+            return remove(cr) ? cr.bytes.length : 0;
+        }
+    };
+
+    // A static logger for this singleton class.
+    private static final Logger SLOG = LoggerFactory.getLogger(METADATA_CACHE_ELEMENT_NAME);
+
+    private static final AtomicLong MAX_SIZE = new AtomicLong(METADATA_CACHE_MAX_SIZE_DEFAULT);
+    private static final AtomicLong MAX_ENTRY_SIZE = new AtomicLong(METADATA_CACHE_MAX_ENTRY_SIZE_DEFAULT);
+
+    // Time to live in nanoseconds.
+    private static final AtomicLong TTL = new AtomicLong(METADATA_CACHE_TTL_DEFAULT * nanoInSeconds);
+
+    // The number of bytes held by the entries in METADATA_CACHE
+    private static final AtomicLong CURRENT_SIZE = new AtomicLong(0);
+
+    private static final AtomicLong HITS = new AtomicLong(0);
+    private static final AtomicLong MISSES = new AtomicLong(0);
+    private static final AtomicLong INVALIDATIONS = new AtomicLong(0);
+    private static final AtomicLong EVICTIONS = new AtomicLong(0);
+
+    private static final ConcurrentHashMap<String,CachedResponse> METADATA_CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * This is a singleton class and as such all methods are static and the
+     * constructor is private because an instance should never be created.
+     */
+    private BesMetadataCache(){}
+
+    /**
+     * Initialize the BesMetadataCache using an XML Element.
+     * @param config The METADATA_CACHE_ELEMENT_NAME configuration element
+     * @throws BadConfigurationException When the configuration is broken.
+     */
+    public static void init(Element config) throws BadConfigurationException {
+
+        if (config == null || !config.getName().equals(METADATA_CACHE_ELEMENT_NAME))
+            throw new BadConfigurationException("BesMetadataCache must be passed a " +
+                    "non-null configuration element named " + METADATA_CACHE_ELEMENT_NAME);
+
+        long maxSize = getPositiveLongAttribute(config, MAX_SIZE_ATTRIBUTE_NAME, METADATA_CACHE_MAX_SIZE_DEFAULT);
+        long maxEntrySize = getPositiveLongAttribute(config, MAX_ENTRY_SIZE_ATTRIBUTE_NAME, METADATA_CACHE_MAX_ENTRY_SIZE_DEFAULT);
+        long ttl = getPositiveLongAttribute(config, TTL_ATTRIBUTE_NAME, METADATA_CACHE_TTL_DEFAULT);
+
+        init(maxSize, maxEntrySize, ttl);
+    }
+
+    /**
+     * Reads the value of an attribute that must be an integer larger than
+     * zero. An unparsable or out of range value is logged and the default
+     * used in its place.
+     */
+    private static long getPositiveLongAttribute(Element config, String name, long defaultValue){
+        String s = config.getAttributeValue(name);
+        if(s==null)
+            return defaultValue;
+        try {
+            long value = Long.parseLong(s);
+            if(value > 0)
+                return value;
+        } catch (NumberFormatException nfe) {
+            // Fall through to the error message.
+        }
+        SLOG.error("Failed to parse value of {}! Value must be an integer > 0. Using default value: {}",
+                METADATA_CACHE_ELEMENT_NAME + "@" + name, defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * The _actual_ init method that sets up the cache. This must be called
+     * prior to using the cache.
+     * @param maxSize The maximum number of bytes held by the cache.
+     * @param maxEntrySize Responses larger than this many bytes are not cached.
+     * @param ttlSeconds The time any response may reside in the cache
+     *                   before it is discarded.
+     */
+    public static void init(long maxSize, long maxEntrySize, long ttlSeconds) {
+        LOCK.lock();
+        try {
+            if (INITIALIZED.get()) {
+                SLOG.error("BesMetadataCache has already been initialized!  " +
+                                "MAX_SIZE: {}  TTL: {} s",
+                        MAX_SIZE.get(),
+                        TTL.get()/(nanoInSeconds*1.0));
+                return;
+            }
+            clear();
+            MAX_SIZE.set(maxSize);
+            MAX_ENTRY_SIZE.set(Math.min(maxEntrySize, maxSize));
+            TTL.set(ttlSeconds * nanoInSeconds);
+            INITIALIZED.set(true);
+            SLOG.debug("INITIALIZED  MAX_SIZE: {}  MAX_ENTRY_SIZE: {}  TTL: {} s",
+                    new Object[]{maxSize, MAX_ENTRY_SIZE.get(), ttlSeconds});
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
+
+    public static boolean isInitialized(){
+        return INITIALIZED.get();
+    }
+
+    /**
+     * @return The size, in bytes, of the largest response that will be cached.
+     */
+    public static long getMaxEntrySize(){
+        return MAX_ENTRY_SIZE.get();
+    }
+
+    /**
+     * Retrieves a cached response.
+     *
+     * @param key The key for the response.
+     * @param lastModified The time, in ms since the epoch, that the BES says
+     *                     the dataset was last modified, or -1 if that is not
+     *                     known.
+     * @return The bytes of the cached response, or null if there is no usable
+     * entry for key. The returned array is shared and must not be modified.
+     */
+    public static byte[] get(String key, long lastModified){
+        if(!INITIALIZED.get())
+            return null;
+
+        CachedResponse cr = METADATA_CACHE.get(key);
+        if(cr==null){
+            MISSES.incrementAndGet();
+            SLOG.debug("MISS key: {}", key);
+            return null;
+        }
+        if(cr.lastModified != lastModified || isExpired(cr)){
+            if(remove(cr))
+                INVALIDATIONS.incrementAndGet();
+            MISSES.incrementAndGet();
+            SLOG.debug("INVALID key: {}  cached lastModified: {}  current lastModified: {}",
+                    new Object[]{key, cr.lastModified, lastModified});
+            return null;
+        }
+        cr.lastAccessed = System.nanoTime();
+        HITS.incrementAndGet();
+        SLOG.debug("HIT key: {}", key);
+        return cr.bytes;
+    }
+
+    /**
+     * Adds a response to the cache, replacing any existing entry for key.
+     * Responses larger than getMaxEntrySize() are ignored.
+     *
+     * @param key The key for the response.
+     * @param lastModified The last modified time of the dataset, as was
+     *                     passed to the get() that missed.
+     * @param bytes The complete response. The cache keeps a reference to this
+     *              array so it must not be modified after this call.
+     */
+    public static void put(String key, long lastModified, byte[] bytes){
+        if(!INITIALIZED.get() || bytes==null || bytes.length > MAX_ENTRY_SIZE.get())
+            return;
+
+        CachedResponse cr = new CachedResponse(key, lastModified, bytes);
+        CachedResponse old = METADATA_CACHE.put(key, cr);
+        CURRENT_SIZE.addAndGet(cr.bytes.length);
+        if(old!=null)
+            CURRENT_SIZE.addAndGet(-old.bytes.length);
+
+        if(CURRENT_SIZE.get() > MAX_SIZE.get())
+            prune();
+    }
+
+    /**
+     * Wraps the passed stream so that what is written to it is also captured
+     * for the cache. See CapturingOutputStream.
+     *
+     * @param os The stream to which the response is being written.
+     * @return A stream that writes to os and keeps a copy of up to
+     * getMaxEntrySize() bytes.
+     */
+    public static CapturingOutputStream capture(OutputStream os){
+        return new CapturingOutputStream(os, (int) MAX_ENTRY_SIZE.get());
+    }
+
+    private static boolean isExpired(CachedResponse cr){
+        return System.nanoTime() - cr.created > TTL.get();
+    }
+
+    private static boolean remove(CachedResponse cr){
+        if(METADATA_CACHE.remove(cr.key, cr)){
+            CURRENT_SIZE.addAndGet(-cr.bytes.length);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the least recently accessed entries once the cache holds more
+     * than MAX_SIZE bytes, down to the LruPruner low-water mark. If another
+     * thread is already pruning then this method returns immediately.
+     */
+    private static void prune() {
+        if (!PRUNE_LOCK.tryLock())
+            return;
+        try {
+            int evicted = PRUNER.prune(METADATA_CACHE.values(), CURRENT_SIZE.get(), MAX_SIZE.get());
+            EVICTIONS.addAndGet(evicted);
+            SLOG.debug("Pruned {} entries from the cache. size: {} bytes", evicted, CURRENT_SIZE.get());
+        }
+        finally {
+            PRUNE_LOCK.unlock();
+        }
+    }
+
+    public static long getHitCount(){ return HITS.get(); }
+    public static long getMissCount(){ return MISSES.get(); }
+    public static long getInvalidationCount(){ return INVALIDATIONS.get(); }
+    public static long getEvictionCount(){ return EVICTIONS.get(); }
+    public static long getSize(){ return CURRENT_SIZE.get(); }
+    public static int getEntryCount(){ return METADATA_CACHE.size(); }
+
+    /**
+     * @return The fraction of get() calls that were answered from the cache,
+     * or 0 if there have been none.
+     */
+    public static double getHitRate(){
+        long hits = HITS.get();
+        long total = hits + MISSES.get();
+        return total==0 ? 0.0 : hits/(total*1.0);
+    }
+
+    /**
+     * @return A plain text report of the state of the cache.
+     */
+    public static String getStatistics(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("BesMetadataCache\n");
+        sb.append("    enabled:       ").append(INITIALIZED.get()).append("\n");
+        sb.append("    entries:       ").append(getEntryCount()).append("\n");
+        sb.append("    size:          ").append(getSize()).append(" of ").append(MAX_SIZE.get()).append(" bytes\n");
+        sb.append("    hits:          ").append(getHitCount()).append("\n");
+        sb.append("    misses:        ").append(getMissCount()).append("\n");
+        sb.append("    hit rate:      ").append(String.format("%.3f", getHitRate())).append("\n");
+        sb.append("    invalidations: ").append(getInvalidationCount()).append("\n");
+        sb.append("    evictions:     ").append(getEvictionCount()).append("\n");
+        return sb.toString();
+    }
+
+    private static void clear(){
+        METADATA_CACHE.clear();
+        CURRENT_SIZE.set(0);
+        HITS.set(0);
+        MISSES.set(0);
+        INVALIDATIONS.set(0);
+        EVICTIONS.set(0);
+    }
+
+    /**
+     * Drops all references from the cache.
+     */
+    public static void destroy(){
+        LOCK.lock();
+        try {
+            INITIALIZED.set(false);
+            clear();
+            SLOG.info("Destroy complete.");
+        }
+        finally {
+            LOCK.unlock();
+        }
+    }
+
+
+    /**
+     * A cached response and the information needed to decide if it is still
+     * valid.
+     */
+    private static class CachedResponse {
+        final String key;
+        final long lastModified;
+        final byte[] bytes;
+        final long created;
+        volatile long lastAccessed;
+
+        CachedResponse(String key, long lastModified, byte[] bytes){
+            this.key = key;
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+            created = System.nanoTime();
+            lastAccessed = created;
+        }
+    }
+
+
+    /**
+     * An OutputStream that passes everything written to it on to another
+     * stream while keeping a copy. Once more than limit bytes have been
+     * written the copy is abandoned, so a response too large to cache costs
+     * no more than limit bytes of memory.
+     */
+    public static class CapturingOutputStream extends OutputStream {
+        private final OutputStream os;
+        private final int limit;
+        private byte[] buf;
+        private int count;
+        private boolean overflow;
+
+        CapturingOutputStream(OutputStream os, int limit){
+            this.os = os;
+            this.limit = limit;
+            buf = new byte[Math.min(limit, 8192)];
+            count = 0;
+            overflow = false;
+        }
+
+        private void keep(byte[] b, int off, int len){
+            if(overflow)
+                return;
+            if(count + len > limit){
+                overflow = true;
+                buf = null;
+                return;
+            }
+            if(count + len > buf.length)
+                buf = Arrays.copyOf(buf, (int) Math.min(limit, Math.max(count + len, 2L * buf.length)));
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            os.write(b);
+            keep(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            keep(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        /**
+         * The underlying stream is not closed, it belongs to the caller.
+         */
+        @Override
+        public void close() throws IOException {
+            os.flush();
+        }
+
+        /**
+         * @return The bytes written to this stream, or null if there were
+         * more than the limit.
+         */
+        public byte[] getCapturedBytes(){
+            if(overflow)
+                return null;
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+}
@@ -12,12 +12,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An in-memory LRU cache for BES showNode responses. This class is a singleton.
+ *
+ * Cache hits never block. Concurrent misses for the same key are coalesced so
+ * that only one showNode transaction is made with the BES and every waiting
+ * thread receives its result. When an entry becomes stale the old value
+ * continues to be served while a replacement is retrieved from the BES by a
+ * background thread.
  */
 public class BesNodeCache {
 
@@ -30,15 +38,32 @@ public class BesNodeCache {
     private static final long NODE_CACHE_REFRESH_INTERVAL_DEFAULT = 60;
     private static final long nanoInSeconds = 1000000000;
 
+    // The number of background threads used to refresh stale entries.
+    private static final int REFRESH_THREADS = 2;
+
+    // Controls init() and destroy(). Not used when accessing the cache.
     private static final ReentrantLock LOCK = new ReentrantLock();
 
+    // Held (via tryLock()) by the thread that is pruning the cache so that
+    // other threads don't pile up doing the same work.
+    private static final ReentrantLock PRUNE_LOCK = new ReentrantLock();
+
     // A static logger for this singleton class.
     private static final Logger SLOG = LoggerFactory.getLogger(NODE_CACHE_ELEMENT_NAME);
 
     // Update interval in seconds
     private static final AtomicLong UPDATE_INTERVAL = new AtomicLong(NODE_CACHE_REFRESH_INTERVAL_DEFAULT);
 
-    private static LRUCache<String,NodeTransaction> lruCache = null;
+    private static final AtomicInteger MAX_ENTRIES = new AtomicInteger(NODE_CACHE_MAX_ENTRIES_DEFAULT);
+
+    private static final ConcurrentHashMap<String,NodeTransaction> NODE_CACHE = new ConcurrentHashMap<>();
+
+    // The BES transactions that are currently underway, by key. Any thread that
+    // needs a key that is already in here waits on the existing transaction
+    // rather than starting its own.
+    private static final ConcurrentHashMap<String,FutureTask<NodeTransaction>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private static volatile ThreadPoolExecutor refreshExecutor = null;
 
     /**
      * This is a singleton class and as such all methods are static and the
@@ -111,13 +136,23 @@ public class BesNodeCache {
             if (INITIALIZED.get()) {
                 SLOG.error("BesNodeCache has already been initialized!  " +
                                 "MAX_CACHE_ENTRIES: {}  UPDATE_INTERVAL: {} s",
-                        lruCache.maxEntries(),
+                        MAX_ENTRIES.get(),
                         UPDATE_INTERVAL.get()/(nanoInSeconds*1.0));
                 return;
             }
 
-            int initCap = 1 + (int)(maxEntries * .20);
-            lruCache = new LRUCache<>(maxEntries,initCap);
+            NODE_CACHE.clear();
+            IN_FLIGHT.clear();
+            MAX_ENTRIES.set(maxEntries);
+
+            // The queue can never hold more than one refresh per cache entry
+            // because refreshes are coalesced through IN_FLIGHT.
+            refreshExecutor = new ThreadPoolExecutor(
+                    REFRESH_THREADS, REFRESH_THREADS,
+                    60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(maxEntries),
+                    new RefreshThreadFactory());
+            refreshExecutor.allowCoreThreadTimeOut(true);
 
             UPDATE_INTERVAL.set(updateIntervalSeconds * nanoInSeconds);
             INITIALIZED.set(true);
@@ -135,6 +170,11 @@ public class BesNodeCache {
      * The primary public method used to retrieve BES showNode command responses.
      * The caching happens within this call.
      *
+     * The response Document receives a private copy of the cached response
+     * so this method should be used by callers that intend to modify the
+     * result. Read-only callers should use getSharedNode() which avoids the
+     * copy.
+     *
      * @param besApi THe instance of BesApi to use when accessing the BES.
      * @param key The name of the BES node to retrieve.
      * @param response The Document into which the BES showNode response will
@@ -156,6 +196,42 @@ public class BesNodeCache {
             IOException,
             BESError {
 
+        Document cachedNodeDoc = getSharedNode(besApi, key);
+        Element root = cachedNodeDoc.getRootElement();
+        Element newRoot =  (Element) root.clone();
+        newRoot.detach();
+        response.setRootElement(newRoot);
+
+    }
+
+    /**
+     * Retrieves the BES showNode response for key without copying it. The
+     * returned Document is the instance held in the cache and is shared by
+     * every thread that asks for key, so it MUST NOT be modified in any way.
+     * It may be read, serialized, or handed to an XSLT transform as a
+     * JDOMSource. Callers that need to change the result should use
+     * getNode() instead.
+     *
+     * @param besApi THe instance of BesApi to use when accessing the BES.
+     * @param key The name of the BES node to retrieve.
+     * @return The cached, read-only, BES showNode response document.
+     * @throws JDOMException When the response cannot be parsed.
+     * @throws BadConfigurationException When this method is called and the
+     * init(...) method has not been called.
+     * @throws PPTException When there is a communication problem with the BES.
+     * @throws IOException When there is a low-level communication (socket etc)
+     * issue communicating with the BES, or when the passed value of "key" is
+     * null.
+     * @throws BESError When the BES response to the showNode command is a
+     * BESError object.
+     */
+    public static Document getSharedNode(BesApi besApi, String key)
+            throws JDOMException,
+            BadConfigurationException,
+            PPTException,
+            IOException,
+            BESError {
+
         if(!INITIALIZED.get()) {
             throw new BadConfigurationException("Ouch! The BesNodeCache has not been initialized!");
         }
@@ -163,20 +239,16 @@ public class BesNodeCache {
         if(key==null)
             throw new IOException("The BesApi.getNode() method was passed a key value of null. That's bad.");
 
-        NodeTransaction nodeTransaction;
-
-        LOCK.lock();
-        try {
-
-            nodeTransaction = lruCache.get(key);
+        NodeTransaction nodeTransaction = NODE_CACHE.get(key);
 
-            if(staleOrMissing(nodeTransaction)){
-                nodeTransaction = getAndCacheNodeTransaction(besApi,key);
-            }
+        if(nodeTransaction == null) {
+            nodeTransaction = awaitNodeTransaction(besApi, key);
         }
-        finally {
-            LOCK.unlock();
+        else if(isStale(nodeTransaction)) {
+            // Serve what we have and let a background thread get a new one.
+            scheduleRefresh(besApi, key);
         }
+        nodeTransaction.touch();
 
         if(nodeTransaction.isError()) {
             SLOG.debug("Found BESError object for dataSource=\"{}\" msg: {}",
@@ -184,12 +256,40 @@ public class BesNodeCache {
             throw nodeTransaction.getBesError();
         }
 
-        Document cachedNodeDoc = nodeTransaction.getResponseDocument();
-        Element root = cachedNodeDoc.getRootElement();
-        Element newRoot =  (Element) root.clone();
-        newRoot.detach();
-        response.setRootElement(newRoot);
+        return nodeTransaction.getResponseDocument();
+    }
 
+    /**
+     * Returns the NodeTransaction held for key without touching it or
+     * contacting the BES.
+     *
+     * @param key The name of the BES node.
+     * @return The cached NodeTransaction, or null if there isn't one.
+     */
+    static NodeTransaction getCachedTransaction(String key) {
+        return NODE_CACHE.get(key);
+    }
+
+    /**
+     * For callers that keep information taken from a cached showNode
+     * response: checks that nodeTransaction is still the one held for its
+     * key. A hit on that information counts as a hit on the showNode
+     * response, so if it is stale a background refresh is scheduled just as
+     * getSharedNode() would.
+     *
+     * @param besApi The instance of BesApi to use when accessing the BES.
+     * @param nodeTransaction The NodeTransaction the information came from.
+     * @return True if nodeTransaction is still cached, false if it has been
+     * replaced or evicted.
+     */
+    static boolean isCurrent(BesApi besApi, NodeTransaction nodeTransaction) {
+        String key = nodeTransaction.getKey();
+        if (NODE_CACHE.get(key) != nodeTransaction)
+            return false;
+        if (isStale(nodeTransaction))
+            scheduleRefresh(besApi, key);
+        nodeTransaction.touch();
+        return true;
     }
 
     /**
@@ -201,6 +301,106 @@ public class BesNodeCache {
         return INITIALIZED.get();
     }
 
+    /**
+     * Retrieves the NodeTransaction for key from the BES. If another thread is
+     * already retrieving key then this thread waits for, and shares, that
+     * result rather than making a second request of the BES. A fresh entry
+     * that was cached after the caller looked is used as it is.
+     *
+     * @param besApi The instance of BesApi to use when accessing the BES.
+     * @param key The name of the node to retrieve from the BES using the
+     *            showNode command.
+     * @return The NodeTransaction built from the BES response.
+     * @throws BadConfigurationException When a BES cannot be located.
+     * @throws PPTException When the PPT exchange between the BES process and
+     * the OLFS fails.
+     * @throws JDOMException When the documents cannot be parsed.
+     * @throws IOException When things cannot be read or written, or when the
+     * thread is interrupted while waiting.
+     */
+    private static NodeTransaction awaitNodeTransaction(BesApi besApi, String key)
+            throws BadConfigurationException, PPTException, JDOMException, IOException {
+
+        // The caller missed the cache, but another thread's transaction may
+        // have cached key and left IN_FLIGHT since then, so the winner looks
+        // in the cache again before it goes to the BES.
+        FutureTask<NodeTransaction> task = new FutureTask<>(new NodeTransactionCallable(besApi, key, true));
+        FutureTask<NodeTransaction> inFlight = IN_FLIGHT.putIfAbsent(key, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            }
+            finally {
+                IN_FLIGHT.remove(key, task);
+            }
+        }
+        else {
+            SLOG.debug("Waiting for in-flight showNode transaction for key: \"{}\"", key);
+        }
+
+        try {
+            return inFlight.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the BES showNode response for key: \"" + key + "\"", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BadConfigurationException) throw (BadConfigurationException) cause;
+            if (cause instanceof PPTException) throw (PPTException) cause;
+            if (cause instanceof JDOMException) throw (JDOMException) cause;
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Submits a background refresh of key unless one is already underway. If
+     * the refresh fails the stale entry stays in the cache and the next
+     * request for key will try again.
+     *
+     * @param besApi The instance of BesApi to use when accessing the BES.
+     * @param key The name of the node to refresh.
+     */
+    private static void scheduleRefresh(BesApi besApi, final String key) {
+
+        ThreadPoolExecutor executor = refreshExecutor;
+        if (executor == null)
+            return;
+
+        final FutureTask<NodeTransaction> task = new FutureTask<NodeTransaction>(new NodeTransactionCallable(besApi, key, false)) {
+            @Override
+            protected void done() {
+                IN_FLIGHT.remove(key, this);
+                try {
+                    get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (CancellationException | ExecutionException e) {
+                    SLOG.error("Background refresh of key \"{}\" failed. Msg: {}", key, e.getMessage());
+                }
+            }
+        };
+
+        if (IN_FLIGHT.putIfAbsent(key, task) != null)
+            return;
+
+        try {
+            SLOG.debug("Scheduling background refresh for key: \"{}\"", key);
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            IN_FLIGHT.remove(key, task);
+            SLOG.warn("Unable to schedule background refresh for key: \"{}\" Msg: {}", key, e.getMessage());
+        }
+    }
+
     /**
      * Solicits a showNode response from the BES for the passed parameter key.
      * Once the response is received the response is used to make a new
@@ -220,32 +420,72 @@ public class BesNodeCache {
     private static NodeTransaction getAndCacheNodeTransaction(BesApi besApi, String key)
             throws BadConfigurationException, PPTException, JDOMException, IOException {
 
-        SLOG.debug("BEGIN  NODE_CACHE.size(): {} ", lruCache.size());
+        SLOG.debug("BEGIN  NODE_CACHE.size(): {} ", NODE_CACHE.size());
 
         Document response = new Document();
         NodeTransaction result;
         try {
             besApi.getBesNodeNoCache(key,response);
-            SLOG.debug("Caching copy of BES showNode response for key: \"{}\"",key);
-            result = new NodeTransaction(key, (Document) response.clone());
+            // The response Document was made here and nobody else has a
+            // reference to it so it can go into the cache without a copy.
+            SLOG.debug("Caching BES showNode response for key: \"{}\"",key);
+            result = new NodeTransaction(key, response);
 
         } catch (BESError be) {
             SLOG.debug("The BES returned a BESError for key: \"{} \" CACHING BESError",key);
             result = new NodeTransaction(key, be);
         }
 
-        NodeTransaction previous = lruCache.put(key, result);
-        if (result == previous) {
-            SLOG.warn("NodeTransaction cache updated with new (replacement) object for key: \"{}\"",key);
+        NodeTransaction previous = NODE_CACHE.put(key, result);
+        // Whatever was known about key came from the response just replaced.
+        BesIdentityCache.invalidate(key);
+        if (previous != null) {
+            SLOG.debug("NodeTransaction cache updated with new (replacement) object for key: \"{}\"",key);
         } else {
             SLOG.debug("NodeTransaction cache updated by adding new object to cache using key \"{}\"",key);
+            if (NODE_CACHE.size() > MAX_ENTRIES.get())
+                prune(NODE_CACHE, MAX_ENTRIES.get());
         }
 
-        SLOG.debug("END  LRUCache.size(): {}  ", lruCache.size());
+        SLOG.debug("END  NODE_CACHE.size(): {}  ", NODE_CACHE.size());
 
         return result;
     }
 
+    /**
+     * Removes the least recently accessed entries from cache once it holds
+     * more than maxEntries, down to the LruPruner low-water mark. If another
+     * thread is already pruning the cache this method returns immediately,
+     * the cache may briefly exceed maxEntries.
+     *
+     * @param cache The cache to prune.
+     * @param maxEntries The maximum number of entries allowed in the cache.
+     */
+    private static void prune(final ConcurrentHashMap<String,NodeTransaction> cache, int maxEntries) {
+        if (!PRUNE_LOCK.tryLock())
+            return;
+        try {
+            int evicted = new LruPruner<NodeTransaction>() {
+                @Override
+                protected long getLastAccessed(NodeTransaction nt) {
+                    return nt.getLastAccessed();
+                }
+
+                @Override
+                protected long evict(NodeTransaction nt) {
+                    if (!cache.remove(nt.getKey(), nt))
+                        return 0;
+                    BesIdentityCache.invalidate(nt.getKey());
+                    return 1;
+                }
+            }.prune(cache.values(), cache.size(), maxEntries);
+            SLOG.debug("Pruned {} entries from the cache. size(): {}", evicted, cache.size());
+        }
+        finally {
+            PRUNE_LOCK.unlock();
+        }
+    }
+
     /**
      * Check to see if the passed NodeTransaction is stale. This is based
      * comparing its time in the cache with the UPDATE_INTERVAL.
@@ -254,20 +494,15 @@ public class BesNodeCache {
      * @return Returns true is the NodeTransaction has been in the cache longer
      *         the UPDATE_INTERVAL.
      */
-    private static boolean staleOrMissing(NodeTransaction nodeTransaction){
-        boolean isStale = true;
-        // If it's null it's stale, if it's not null it might be stale...
-        if(nodeTransaction!=null) {
-            long timeInCache = System.nanoTime() - nodeTransaction.getTimeCreated();
-            // Is it stale?
-            isStale = timeInCache > UPDATE_INTERVAL.get();
-            if(SLOG.isDebugEnabled()) {
-                String msg ="nodeTransaction["+nodeTransaction.getKey()+
-                        "] has been in cache for " +
-                        timeInCache / (nanoInSeconds * 1.0) + " s  it's " +
-                        (isStale?"STALE":"FRESH");
-                SLOG.debug(msg);
-            }
+    private static boolean isStale(NodeTransaction nodeTransaction){
+        long timeInCache = System.nanoTime() - nodeTransaction.getTimeCreated();
+        boolean isStale = timeInCache > UPDATE_INTERVAL.get();
+        if(SLOG.isDebugEnabled()) {
+            String msg ="nodeTransaction["+nodeTransaction.getKey()+
+                    "] has been in cache for " +
+                    timeInCache / (nanoInSeconds * 1.0) + " s  it's " +
+                    (isStale?"STALE":"FRESH");
+            SLOG.debug(msg);
         }
         return isStale;
     }
@@ -280,10 +515,12 @@ public class BesNodeCache {
     public static void destroy(){
         LOCK.lock();
         try {
-            if(lruCache!=null)
-                lruCache.clear();
-            lruCache=null;
             INITIALIZED.set(false);
+            if(refreshExecutor!=null)
+                refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+            IN_FLIGHT.clear();
+            NODE_CACHE.clear();
             SLOG.info("Destroy complete.");
         }
         finally {
@@ -321,37 +558,78 @@ public class BesNodeCache {
 
         Logger log = LoggerFactory.getLogger(BesNodeCache.class);
 
-        LRUCache<String,NodeTransaction> cache = new LRUCache<>(5,3);
+        ConcurrentHashMap<String,NodeTransaction> cache = new ConcurrentHashMap<>();
 
         String[] testKeys = {"foo", "bar", "moo", "soo", "bar", "baz"};
 
         NodeTransaction nt;
-        NodeTransaction first = null;
-        String msgFormat = "nodeTransaction - key: %s getLastAccessedTime(): %d set.size(): %d";
+        String msgFormat = "nodeTransaction - key: %s getLastAccessed(): %d set.size(): %d";
         String msg;
 
         for(String key: testKeys){
             nt = getDummyCachedNodeTransaction(key);
             cache.put(key,nt);
-            msg = String.format(msgFormat,nt.getKey(),nt.getTimeCreated(),cache.size());
+            msg = String.format(msgFormat,nt.getKey(),nt.getLastAccessed(),cache.size());
             log.info(msg);
-            if(first==null)
-                first = nt;
         }
 
         log.info("Original List: ");
         for(Map.Entry<String,NodeTransaction> entry : cache.entrySet()){
-            log.info(" node[{}]: {}",entry.getKey(),entry.getValue().getTimeCreated());
+            log.info(" node[{}]: {}",entry.getKey(),entry.getValue().getLastAccessed());
         }
 
-        cache.get("foo");
+        cache.get("foo").touch();
+        prune(cache, 3);
 
-        log.info("List after get: ");
+        log.info("List after get and prune: ");
         for(Map.Entry<String,NodeTransaction> entry : cache.entrySet()) {
-            log.info(" node[{}]: {}", entry.getKey(), entry.getValue().getTimeCreated());
+            log.info(" node[{}]: {}", entry.getKey(), entry.getValue().getLastAccessed());
         }
     }
 
 
+    /**
+     * Wraps getAndCacheNodeTransaction() so that it can be run as a FutureTask.
+     * If useFreshEntry is set a fresh entry already in the cache is returned
+     * instead of asking the BES again.
+     */
+    private static class NodeTransactionCallable implements Callable<NodeTransaction> {
+        private BesApi besApi;
+        private String key;
+        private boolean useFreshEntry;
+
+        NodeTransactionCallable(BesApi besApi, String key, boolean useFreshEntry){
+            this.besApi = besApi;
+            this.key = key;
+            this.useFreshEntry = useFreshEntry;
+        }
+
+        @Override
+        public NodeTransaction call() throws Exception {
+            if (useFreshEntry) {
+                NodeTransaction cached = NODE_CACHE.get(key);
+                if (cached != null && !isStale(cached)) {
+                    SLOG.debug("Using the showNode response cached while waiting for key: \"{}\"", key);
+                    return cached;
+                }
+            }
+            return getAndCacheNodeTransaction(besApi, key);
+        }
+    }
+
+    /**
+     * Makes named daemon threads for the background refresh executor so that
+     * they never hold up the shutdown of the servlet container.
+     */
+    private static class RefreshThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, NODE_CACHE_ELEMENT_NAME + "-refresh-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 
 }
@@ -0,0 +1,227 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.caching;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A directory of files that is kept below a maximum size by deleting the
+ * least recently used files. The on-disk caches are built on this.
+ *
+ * Each file is identified by a name that is safe to use as a file name. The
+ * files are written by the caller to a temporary file, obtained from
+ * createTempFile(), which is then moved into place atomically by commit() so
+ * that readers only ever see complete files. Readers don't lock, a file may
+ * be deleted by a prune while it's being read, and a reader must treat that
+ * as a miss.
+ *
+ * The files found in the directory when the store is made are adopted, and
+ * temporary files left behind by writes that never finished are deleted.
+ */
+public class LruFileStore {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private Logger _log;
+
+    private File _dir;
+    private String _suffix;
+    private long _maxSize;
+
+    private ReentrantLock _pruneLock;
+    private ConcurrentHashMap<String, StoredFile> _index;
+    private AtomicLong _currentSize;
+
+    /**
+     * @param dir The directory in which to keep the files. It is created if
+     *            it doesn't exist.
+     * @param suffix The suffix of the files, it's appended to their names.
+     * @param maxSize The maximum number of bytes to keep in the directory.
+     * @throws IOException When the directory can't be created or written.
+     */
+    public LruFileStore(File dir, String suffix, long maxSize) throws IOException {
+        _log = LoggerFactory.getLogger(getClass());
+
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Unable to create cache directory " + dir);
+        if (!dir.isDirectory() || !dir.canWrite())
+            throw new IOException("The cache directory " + dir + " is not a writable directory.");
+
+        _dir = dir;
+        _suffix = suffix;
+        _maxSize = maxSize;
+        _pruneLock = new ReentrantLock();
+        _index = new ConcurrentHashMap<>();
+        _currentSize = new AtomicLong(0);
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String fileName = f.getName();
+                if (fileName.endsWith(TEMP_SUFFIX)) {
+                    if (!f.delete())
+                        _log.warn("Unable to delete abandoned temporary file {}", f);
+                } else if (fileName.endsWith(suffix)) {
+                    String name = fileName.substring(0, fileName.length() - suffix.length());
+                    record(name, f.length(), f.lastModified());
+                }
+            }
+        }
+        _log.info("Cache directory: {} ({} files, {} bytes)", new Object[]{dir, _index.size(), _currentSize.get()});
+        prune();
+    }
+
+    /**
+     * @param name The name of a file in the store.
+     * @return The file, which may not exist.
+     */
+    public File getFile(String name) {
+        return new File(_dir, name + _suffix);
+    }
+
+    /**
+     * Notes that the named file was just used, so that it's the last to be
+     * pruned.
+     *
+     * @param name The name of a file in the store.
+     */
+    public void touch(String name) {
+        StoredFile stored = _index.get(name);
+        if (stored != null)
+            stored.lastAccessed = System.currentTimeMillis();
+    }
+
+    /**
+     * @param name The name of the file that is going to be written.
+     * @return A new, empty, temporary file in the store's directory. The
+     * caller must commit() it or delete it.
+     * @throws IOException When the file can't be made.
+     */
+    public File createTempFile(String name) throws IOException {
+        return File.createTempFile(name + "-", TEMP_SUFFIX, _dir);
+    }
+
+    /**
+     * Moves tmpFile into place as the named file, replacing any previous
+     * version of it, and then prunes the store if it's too large.
+     *
+     * @param tmpFile A file made by createTempFile().
+     * @param name The name of the file.
+     * @throws IOException When the file can't be moved.
+     */
+    public void commit(File tmpFile, String name) throws IOException {
+        File file = getFile(name);
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        record(name, file.length(), System.currentTimeMillis());
+        prune();
+    }
+
+    /**
+     * Deletes the named file, if it's in the store.
+     *
+     * @param name The name of the file.
+     */
+    public void remove(String name) {
+        StoredFile stored = _index.remove(name);
+        if (stored != null) {
+            _currentSize.addAndGet(-stored.size);
+            delete(name);
+        }
+    }
+
+    /**
+     * @return The number of bytes held by the files in the store.
+     */
+    public long getCurrentSize() {
+        return _currentSize.get();
+    }
+
+    private void record(String name, long size, long lastAccessed) {
+        StoredFile previous = _index.put(name, new StoredFile(size, lastAccessed));
+        _currentSize.addAndGet(size - (previous == null ? 0 : previous.size));
+    }
+
+    private void delete(String name) {
+        File file = getFile(name);
+        if (file.exists() && !file.delete())
+            _log.warn("Unable to delete {}", file);
+    }
+
+    /**
+     * Deletes the least recently used files once the store is larger than
+     * its maximum size, down to the LruPruner low-water mark. If another
+     * thread is already pruning this returns immediately.
+     */
+    private void prune() {
+        if (!_pruneLock.tryLock())
+            return;
+        try {
+            int evicted = new LruPruner<Map.Entry<String, StoredFile>>() {
+                @Override
+                protected long getLastAccessed(Map.Entry<String, StoredFile> entry) {
+                    return entry.getValue().lastAccessed;
+                }
+
+                @Override
+                protected long evict(Map.Entry<String, StoredFile> entry) {
+                    StoredFile stored = entry.getValue();
+                    if (!_index.remove(entry.getKey(), stored))
+                        return 0;
+                    _currentSize.addAndGet(-stored.size);
+                    delete(entry.getKey());
+                    return stored.size;
+                }
+            }.prune(_index.entrySet(), _currentSize.get(), _maxSize);
+            if (evicted > 0)
+                _log.debug("prune() - Deleted {} files from {}, {} bytes in {} files remain.",
+                        new Object[]{evicted, _dir, _currentSize.get(), _index.size()});
+        } finally {
+            _pruneLock.unlock();
+        }
+    }
+
+    private static class StoredFile {
+        final long size;
+        volatile long lastAccessed;
+
+        StoredFile(long size, long lastAccessed) {
+            this.size = size;
+            this.lastAccessed = lastAccessed;
+        }
+    }
+}
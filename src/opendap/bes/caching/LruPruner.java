@@ -0,0 +1,121 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.caching;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.PriorityQueue;
+
+/**
+ * Evicts the least recently used entries from a cache that has grown past
+ * its limit. The limit may be a number of entries or a number of bytes.
+ *
+ * A cache that is over its limit is pruned down to a low-water mark below
+ * it, so that the next few additions don't each trigger another pass over
+ * the whole cache. Each pass heapifies a snapshot of the access times and
+ * takes only as many of the oldest entries as it needs, rather than sorting
+ * all of them.
+ *
+ * Callers serialize calls to prune() themselves, usually with a tryLock()
+ * so that threads don't pile up doing the same work.
+ *
+ * @param <E> The type of the cache entries.
+ */
+public abstract class LruPruner<E> {
+
+    /**
+     * @param entry A cache entry.
+     * @return When the entry was last accessed. Only the order matters.
+     */
+    protected abstract long getLastAccessed(E entry);
+
+    /**
+     * Removes the entry from the cache.
+     *
+     * @param entry The entry to remove.
+     * @return How much the cache shrank, in the units of the limit passed
+     * to prune(). Zero if the entry was not removed, for instance because
+     * it was replaced or removed by another thread.
+     */
+    protected abstract long evict(E entry);
+
+    /**
+     * @param limit The limit of a cache.
+     * @return The size to which a cache over limit is pruned.
+     */
+    public static long getLowWaterMark(long limit) {
+        return limit - limit / 10;
+    }
+
+    /**
+     * If total exceeds limit, evicts the least recently used of entries
+     * until total is no more than getLowWaterMark(limit).
+     *
+     * @param entries The entries of the cache, typically the values() of a
+     *                ConcurrentHashMap.
+     * @param total The current size of the cache.
+     * @param limit The maximum size of the cache.
+     * @return The number of entries evicted.
+     */
+    public int prune(Collection<E> entries, long total, long limit) {
+        if (total <= limit)
+            return 0;
+
+        // Snapshot the access times, they change while we work.
+        ArrayList<Candidate<E>> snapshot = new ArrayList<>(entries.size());
+        for (E entry : entries) {
+            snapshot.add(new Candidate<>(entry, getLastAccessed(entry)));
+        }
+        PriorityQueue<Candidate<E>> oldest = new PriorityQueue<>(snapshot);
+
+        long target = getLowWaterMark(limit);
+        int evicted = 0;
+        while (total > target && !oldest.isEmpty()) {
+            long freed = evict(oldest.poll().entry);
+            if (freed > 0) {
+                total -= freed;
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private static class Candidate<E> implements Comparable<Candidate<E>> {
+        final E entry;
+        final long lastAccessed;
+
+        Candidate(E entry, long lastAccessed) {
+            this.entry = entry;
+            this.lastAccessed = lastAccessed;
+        }
+
+        @Override
+        public int compareTo(Candidate<E> other) {
+            return Long.compare(lastAccessed, other.lastAccessed);
+        }
+    }
+}
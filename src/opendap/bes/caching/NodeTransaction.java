@@ -9,10 +9,14 @@ import org.jdom.Document;
  * is being cached along the creation time and the Node's key (aka datasource)
  * string. The creation time is used by the cache to determine when the cached
  * object has become "stale" and needs to be refreshed.
+ *
+ * The wrapped Document is shared by every thread that retrieves it from the
+ * cache and so it is never modified once the NodeTransaction is created.
  */
 class NodeTransaction  {
 
     private long timeCreated;
+    private volatile long lastAccessed;
     private String key;
 
     private Document besResponseDoc;
@@ -31,6 +35,7 @@ class NodeTransaction  {
         this.besResponseDoc = response;
         this.besError = null;
         timeCreated = System.nanoTime();
+        lastAccessed = timeCreated;
     }
 
     /**
@@ -45,6 +50,7 @@ class NodeTransaction  {
         this.besResponseDoc = null;
         this.besError = error;
         timeCreated = System.nanoTime();
+        lastAccessed = timeCreated;
     }
 
     /**
@@ -65,9 +71,27 @@ class NodeTransaction  {
         return timeCreated;
     }
 
+    /**
+     *
+     * @return The time (aka System.nanoTime()) that this NodeTransaction
+     * instance was last retrieved from the cache.
+     */
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * Marks this NodeTransaction as having been accessed "now". The cache uses
+     * this to decide which entries to drop when it becomes full.
+     */
+    void touch() {
+        lastAccessed = System.nanoTime();
+    }
+
     /**
      * @return The BES showNode response returned by the BES in response to a
-     * showNode request for "key".
+     * showNode request for "key". This is the shared instance and must not
+     * be modified.
      */
     Document getResponseDocument(){ return besResponseDoc; }
 
@@ -30,13 +30,14 @@ import opendap.PathBuilder;
 import opendap.auth.EarthDataLoginAccessToken;
 import opendap.auth.UserProfile;
 import opendap.bes.*;
+import opendap.bes.caching.BesIdentityCache;
+import opendap.bes.caching.BesMetadataCache;
 import opendap.bes.caching.BesNodeCache;
 import opendap.coreServlet.ResourceInfo;
 import opendap.dap.User;
 import opendap.dap4.QueryParameters;
 import opendap.logging.LogUtil;
-import opendap.logging.Procedure;
-import opendap.logging.Timer;
+import opendap.logging.PhaseTimer;
 import opendap.ppt.PPTException;
 
 import org.jdom.Document;
@@ -76,6 +77,11 @@ public class BesApi implements Cloneable {
 
     private static Logger staticLog = LoggerFactory.getLogger(BesApi.class);
 
+    // Separates the parts of a BesMetadataCache key. It can't appear in a URL.
+    private static final char METADATA_KEY_SEPARATOR = '\u0000';
+
+    private static final PhaseTimer SHOW_NODE_TIMER = PhaseTimer.named("bes.showNode");
+
     public static final String DAP4_DATA  = "dap";
     public static final String DAP4_DMR   = "dmr";
 
@@ -156,6 +162,7 @@ public class BesApi implements Cloneable {
 
 
     public static final String MATCH_LAST_DOT_SUFFIX_REGEX_STRING = "\\.(?=[^.]*$).*$" ;
+    private static final Pattern MATCH_LAST_DOT_SUFFIX_PATTERN = Pattern.compile(MATCH_LAST_DOT_SUFFIX_REGEX_STRING);
 
 
 
@@ -244,7 +251,9 @@ public class BesApi implements Cloneable {
                                 OutputStream os)
             throws BadConfigurationException, BESError, IOException, PPTException {
 
-        besTransaction(
+        String cacheKey = getMetadataCacheKey(DDX, user, dataSource, constraintExpression, xmlBase);
+        metadataTransaction(
+                cacheKey,
                 dataSource,
                 getDDXRequest(user, dataSource, constraintExpression, xmlBase),
                 os);
@@ -269,7 +278,11 @@ public class BesApi implements Cloneable {
                         OutputStream os)
             throws BadConfigurationException, BESError, IOException, PPTException {
 
-        besTransaction(
+        String cacheKey = getMetadataCacheKey(DAP4_DMR, user, dataSource,
+                qp.getCe(), xmlBase,
+                qp.getFunc(), qp.getCloudyDap(), qp.getAsync(), qp.getStoreResultRequestServiceUrl());
+        metadataTransaction(
+                cacheKey,
                 dataSource,
                 getDMRRequest(user, dataSource,qp,xmlBase),
                 os);
@@ -403,7 +416,9 @@ public class BesApi implements Cloneable {
             IOException,
             PPTException {
 
-        besTransaction(
+        String cacheKey = getMetadataCacheKey(DDS, user, dataSource, constraintExpression);
+        metadataTransaction(
+                cacheKey,
                 dataSource,
                 getDDSRequest(user, dataSource, constraintExpression),
                 os);
@@ -459,7 +474,9 @@ public class BesApi implements Cloneable {
             IOException,
             PPTException {
 
-        besTransaction(
+        String cacheKey = getMetadataCacheKey(DAS, user, dataSource, constraintExpression);
+        metadataTransaction(
+                cacheKey,
                 dataSource,
                 getDASRequest(user,dataSource,constraintExpression),
                 os);
@@ -1358,7 +1375,7 @@ public class BesApi implements Cloneable {
         if(!dataSource.startsWith("/"))
             dataSource = "/" + dataSource;
 
-        Procedure timedProc = Timer.start();
+        long timedProc = SHOW_NODE_TIMER.start();
         try {
 
             if (BesNodeCache.isInitialized()) {
@@ -1371,12 +1388,48 @@ public class BesApi implements Cloneable {
             }
         }
         finally {
-            Timer.stop(timedProc);
+            SHOW_NODE_TIMER.stop(timedProc);
 
         }
 
     }
 
+    /**
+     * Returns the BES catalog document for the specified dataSource without
+     * copying it out of the BesNodeCache. The returned Document may be shared
+     * with other threads and so it MUST NOT be modified. Callers that need to
+     * change the result should use getBesNode(String, Document).
+     *
+     * @param dataSource The data source whose information is to be retrieved
+     * @return The read-only BES showNode response for dataSource.
+     * @throws PPTException              .
+     * @throws BadConfigurationException .
+     * @throws IOException               .
+     * @throws JDOMException             .
+     * @throws BESError                  .
+     */
+    public Document getSharedBesNode(String dataSource)
+            throws BadConfigurationException, PPTException, JDOMException, IOException, BESError {
+
+        if(!dataSource.startsWith("/"))
+            dataSource = "/" + dataSource;
+
+        long timedProc = SHOW_NODE_TIMER.start();
+        try {
+            if (BesNodeCache.isInitialized()) {
+                log.info("Using BesNodeCache to acquire shared showNode response for dataSource \"{}\"", dataSource);
+                return BesNodeCache.getSharedNode(this, dataSource);
+            }
+            log.info("BesNodeCache DISABLED. Acquiring BES showNode response for dataSource \"{}\"",dataSource);
+            Document response = new Document();
+            getBesNodeNoCache(dataSource, response);
+            return response;
+        }
+        finally {
+            SHOW_NODE_TIMER.stop(timedProc);
+        }
+    }
+
     public void getBesNodeNoCache(String dataSource, Document response)
             throws JDOMException, BadConfigurationException, PPTException, BESError, IOException {
 
@@ -1458,6 +1511,97 @@ public class BesApi implements Cloneable {
     }
 
 
+    /**
+     * Executes a BES transaction for a metadata response (DDX, DMR, DDS, DAS)
+     * using the shared BesMetadataCache. If the cache holds a valid response
+     * for cacheKey it is written to os and the BES is not contacted.
+     * Otherwise the transaction is made and, if it succeeds, the response is
+     * added to the cache as it is written to os.
+     *
+     * @param cacheKey The key for the response, see getMetadataCacheKey()
+     * @param dataSource The BES datasource that is going to be accessed.
+     * @param request The BES request document.
+     * @param os The outputstream to write the BES response to.
+     * @throws BadConfigurationException
+     * @throws IOException
+     * @throws PPTException
+     * @throws BESError
+     */
+    public void metadataTransaction(String cacheKey, String dataSource, Document request, OutputStream os)
+            throws BadConfigurationException, IOException, PPTException, BESError {
+
+        if(!BesMetadataCache.isInitialized()){
+            besTransaction(dataSource, request, os);
+            return;
+        }
+
+        long lastModified = getMetadataLastModified(dataSource);
+        byte[] cached = BesMetadataCache.get(cacheKey, lastModified);
+        if(cached!=null){
+            log.debug("metadataTransaction() - Using cached response for dataSource \"{}\"", dataSource);
+            os.write(cached);
+            return;
+        }
+
+        BesMetadataCache.CapturingOutputStream capture = BesMetadataCache.capture(os);
+        besTransaction(dataSource, request, capture);
+        BesMetadataCache.put(cacheKey, lastModified, capture.getCapturedBytes());
+    }
+
+    /**
+     * Returns the time the dataSource was last modified as reported by the
+     * BES showNode response. Cached metadata responses are discarded when
+     * this value changes. The showNode response is only consulted when it
+     * can come from the BesNodeCache, otherwise checking would cost a BES
+     * transaction on every hit and the cached responses are only limited by
+     * the BesMetadataCache TTL.
+     *
+     * @param dataSource The dataSource
+     * @return The last modified time in ms since the epoch, or -1 if it is
+     * not known.
+     */
+    public long getMetadataLastModified(String dataSource) {
+        if(!BesNodeCache.isInitialized())
+            return -1;
+        try {
+            return new BESResource(dataSource, this).lastModified();
+        }
+        catch (Exception e) {
+            log.debug("getMetadataLastModified() - Unable to determine lastModified for dataSource \"{}\" Msg: {}",
+                    dataSource, e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Builds the BesMetadataCache key for a response. The key includes
+     * everything that is sent to the BES and that can change the response:
+     * the BesApi implementation, the response type, the dataSource, the
+     * requesting user, and the passed request parts (constraint, xml:base,
+     * etc.)
+     *
+     * @param type The type of response, DDX, DMR etc.
+     * @param user The requesting User.
+     * @param dataSource The dataSource.
+     * @param parts The other request parameters, any of which may be null.
+     * @return The cache key.
+     */
+    public String getMetadataCacheKey(String type, User user, String dataSource, String... parts){
+        StringBuilder key = new StringBuilder();
+        key.append(getClass().getName()).append(METADATA_KEY_SEPARATOR);
+        key.append(type).append(METADATA_KEY_SEPARATOR);
+        key.append(dataSource).append(METADATA_KEY_SEPARATOR);
+        key.append(user.getUID()==null?"not_logged_in":user.getUID()).append(METADATA_KEY_SEPARATOR);
+        key.append(user.getMaxResponseSize());
+        for(String part: parts){
+            key.append(METADATA_KEY_SEPARATOR);
+            if(part!=null)
+                key.append(part);
+        }
+        return key.toString();
+    }
+
+
 
 
 /*##########################################################################*/
@@ -2573,9 +2717,7 @@ public class BesApi implements Cloneable {
      */
     public String getBesDataSourceID(String relativeUrl, boolean checkWithBes){
 
-        Pattern lastDotSuffixPattern= Pattern.compile(MATCH_LAST_DOT_SUFFIX_REGEX_STRING);
-
-        return getBesDataSourceID(relativeUrl,lastDotSuffixPattern,checkWithBes);
+        return getBesDataSourceID(relativeUrl,MATCH_LAST_DOT_SUFFIX_PATTERN,checkWithBes);
 
     }
 
@@ -2620,7 +2762,7 @@ public class BesApi implements Cloneable {
      */
     public String getBesDataSourceID(String relativeUrl, Pattern matchPattern, boolean checkWithBes){
 
-        log.debug("getBesDataSourceID() - relativeUrl: " + relativeUrl);
+        log.debug("getBesDataSourceID() - relativeUrl: {}", relativeUrl);
 
         Matcher suffixMatcher = matchPattern.matcher(relativeUrl);
 
@@ -2642,7 +2784,7 @@ public class BesApi implements Cloneable {
                 log.debug("Asking BES about resource: {}", besDataSourceId);
 
                 try {
-                    ResourceInfo dsi = new BESResource(besDataSourceId, this);
+                    ResourceInfo dsi = BesIdentityCache.getResourceInfo(this, besDataSourceId);
                     // Q: Why this test and not dsi.sourceExists()??
                     // A: Because this check is only for things the BES views as data. Regular (non data)
                     //    files are handled by the "FileDispatchHandler"
@@ -2657,7 +2799,7 @@ public class BesApi implements Cloneable {
             }
         }
 
-        log.debug("getBesDataSourceID() - besDataSourceId: " + besDataSourceId);
+        log.debug("getBesDataSourceID() - besDataSourceId: {}", besDataSourceId);
 
         return besDataSourceId;
 
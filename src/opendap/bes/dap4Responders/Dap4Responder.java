@@ -59,6 +59,7 @@ public abstract class Dap4Responder extends BesDapResponder  {
     private MediaType _normativeMediaType;
     private Vector<Dap4Responder> _altResponders;
     private String _combinedRequestSuffixRegex;
+    private volatile Pattern _combinedRequestSuffixPattern;
     private boolean _addTypeSuffixToDownloadFilename;
 
 
@@ -334,10 +335,23 @@ public abstract class Dap4Responder extends BesDapResponder  {
         return result;
 
     }
+    /**
+     * @return The (case insensitive) compiled form of the combined request suffix regex. It's compiled again only
+     * when the regex changes.
+     */
+    private Pattern getCombinedRequestSuffixPattern(){
+        String regex = _combinedRequestSuffixRegex;
+        Pattern pattern = _combinedRequestSuffixPattern;
+        if(pattern==null || !pattern.pattern().equals(regex)){
+            pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+            _combinedRequestSuffixPattern = pattern;
+        }
+        return pattern;
+    }
+
     public String getResourceId(String requestedResource, boolean checkWithBes){
 
-        Pattern suffixPattern = Pattern.compile(_combinedRequestSuffixRegex, Pattern.CASE_INSENSITIVE);
-        return getBesApi().getBesDataSourceID(requestedResource, suffixPattern, checkWithBes);
+        return getBesApi().getBesDataSourceID(requestedResource, getCombinedRequestSuffixPattern(), checkWithBes);
 
     }
 
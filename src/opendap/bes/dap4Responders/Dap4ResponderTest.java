@@ -32,16 +32,27 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import opendap.bes.ResponderRouter;
 import opendap.bes.dap2Responders.BesApi;
+import opendap.bes.dap2Responders.DAS;
+import opendap.bes.dap2Responders.DDS;
+import opendap.bes.dap2Responders.Dap2Data;
+import opendap.bes.dap4Responders.DataResponse.NormativeDR;
+import opendap.bes.dap4Responders.DatasetMetadata.NormativeDMR;
+import opendap.bes.dap4Responders.Iso19115.IsoRubricDMR;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @brief Test Dap4Responder.
- * This currently only tests getDownloadFileName() which now (5/26/16)
+ * This tests getDownloadFileName() which now (5/26/16)
  * has a new behavior that it can selectively replace an existing extension
- * or use the old behavior and always apply an extension.
+ * or use the old behavior and always apply an extension. It also tests that
+ * the ResponderRouter expands the request match regexes of real responders.
  * 
  * Run the test using "ant check"
  * 
@@ -119,4 +130,79 @@ public class Dap4ResponderTest {
     	Assert.assertEquals(new_rule.getDownloadFileName("fi.h5"), "fi.nc");
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExpandResponderRegex() throws Exception {
+        BesApi besApi = new BesApi();
+
+        Assert.assertEquals(Arrays.asList(".dds"),
+                ResponderRouter.expand(new DDS("", besApi).getRequestMatchRegexString()));
+
+        List<String> dmr = ResponderRouter.expand(
+                new NormativeDMR("", besApi, false, false).getRequestMatchRegexString());
+        Assert.assertNotNull(dmr);
+        Assert.assertTrue(dmr.contains(".dmr"));
+        Assert.assertTrue(dmr.contains(".dmr.xml"));
+        Assert.assertTrue(dmr.contains(".dmr.html"));
+        Assert.assertFalse(dmr.contains(".xml"));
+
+        List<String> dap = ResponderRouter.expand(
+                new NormativeDR("", besApi, false).getRequestMatchRegexString());
+        Assert.assertNotNull(dap);
+        Assert.assertTrue(dap.contains(".dap"));
+        Assert.assertTrue(dap.contains(".dap.nc4"));
+        Assert.assertTrue(dap.contains(".dap.csv"));
+
+        Assert.assertEquals(Arrays.asList("." + ResponderRouter.ANY + "s"), ResponderRouter.expand("\\..s$"));
+        Assert.assertNull(ResponderRouter.expand("^.*\\.dds$"));
+        Assert.assertNull(ResponderRouter.expand("\\.dds"));
+        Assert.assertNull(ResponderRouter.expand("\\.d[ad]s$"));
+    }
+
+    @Test
+    public void testRouterCandidates() throws Exception {
+        BesApi besApi = new BesApi();
+        List<Dap4Responder> responders = new ArrayList<>();
+        responders.add(new NormativeDMR("", besApi, false, false)); // 0
+        responders.add(new NormativeDR("", besApi, false));         // 1
+        responders.add(new DDS("", besApi));                        // 2
+        responders.add(new DAS("", besApi));                        // 3
+        responders.add(new Dap2Data("", besApi, false));            // 4
+
+        // The dispatcher sets this one's combined regex on its own.
+        Dap4Responder rubric = new IsoRubricDMR("", null, ".rubric", besApi);
+        rubric.clearAltResponders();
+        rubric.setCombinedRequestSuffixRegex(rubric.buildRequestMatchingRegex());
+        responders.add(rubric);                                      // 5
+
+        ResponderRouter router = new ResponderRouter(responders);
+
+        Assert.assertArrayEquals(new int[]{2}, router.candidates("/data/nc/fnoc1.nc.dds"));
+        Assert.assertArrayEquals(new int[]{3}, router.candidates("/data/nc/fnoc1.nc.DAS"));
+        Assert.assertArrayEquals(new int[]{4}, router.candidates("/data/nc/fnoc1.nc.dods"));
+        Assert.assertArrayEquals(new int[]{0}, router.candidates("/data/nc/fnoc1.nc.dmr"));
+        Assert.assertArrayEquals(new int[]{0}, router.candidates("/data/nc/fnoc1.nc.dmr.xml"));
+        Assert.assertArrayEquals(new int[]{1}, router.candidates("/data/nc/fnoc1.nc.dap.nc4"));
+        Assert.assertArrayEquals(new int[]{5}, router.candidates("/data/nc/fnoc1.nc.rubric"));
+        Assert.assertArrayEquals(new int[0], router.candidates("/data/nc/fnoc1.nc"));
+        Assert.assertArrayEquals(new int[0], router.candidates("/data/nc/fnoc1.nc.xml"));
+
+        // Every candidate's own regex agrees with the router.
+        for (String url : new String[]{"/data/x.dds", "/data/x.dmr.json", "/data/x.dap", "/data/x.rubric"}) {
+            for (int i = 0; i < responders.size(); i++) {
+                boolean candidate = Arrays.binarySearch(router.candidates(url), i) >= 0;
+                boolean regexMatches = responders.get(i).getRequestSuffixMatchPattern().matcher(url).find();
+                if (regexMatches)
+                    Assert.assertTrue(url + " " + i, candidate);
+            }
+        }
+
+        // A responder whose regex can't be expanded is always a candidate.
+        Dap4Responder any = new DDS("", besApi);
+        any.setRequestMatchRegex("^.*\\.dds$");
+        responders.add(any);                                         // 6
+        router = new ResponderRouter(responders);
+        Assert.assertArrayEquals(new int[]{6}, router.candidates("/data/nc/fnoc1.nc"));
+        Assert.assertArrayEquals(new int[]{2, 6}, router.candidates("/data/nc/fnoc1.nc.dds"));
+    }
+}
@@ -28,11 +28,18 @@ package opendap.coreServlet;
 
 
 import opendap.auth.AuthenticationControls;
+import opendap.bes.BES;
 import opendap.bes.BESManager;
+import opendap.bes.BadConfigurationException;
+import opendap.bes.BesClientCheckout;
+import opendap.bes.BesDispatchHandler;
+import opendap.bes.BesGroup;
+import opendap.http.HttpClientPool;
+import opendap.http.HttpResponseCache;
 import opendap.http.error.NotFound;
 import opendap.logging.LogUtil;
-import opendap.logging.Procedure;
-import opendap.logging.Timer;
+import opendap.logging.PhaseTimer;
+import opendap.ppt.PPTException;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -40,6 +47,10 @@ import org.jdom.input.SAXBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -87,6 +98,14 @@ public class DispatchServlet extends HttpServlet {
      */
     private static final AtomicInteger reqNumber = new AtomicInteger(0);
     private static final AtomicBoolean IS_INITIALIZED = new AtomicBoolean(false);
+
+    private static final PhaseTimer REQUEST_TIMER = PhaseTimer.named("olfs.request");
+    private static final PhaseTimer LAST_MODIFIED_TIMER = PhaseTimer.named("olfs.lastModified");
+
+    private static final String DISPATCH_HANDLER_ATTRIBUTE = DispatchServlet.class.getName() + ".dispatchHandler";
+
+    // The default location, relative to the configuration directory, of the disk tier of the HttpResponseCache.
+    private static final String HTTP_CACHE_DIR = "cache" + File.separator + "http";
     private static final ReentrantLock INIT_LOCK = new ReentrantLock();
 
     private static final ArrayList<DispatchHandler> httpGetDispatchHandlers = new ArrayList<>();
@@ -94,6 +113,8 @@ public class DispatchServlet extends HttpServlet {
 
     private static final Logger log = LoggerFactory.getLogger(DispatchServlet.class);
 
+    private static final String BES_CLIENT_CHECKOUT = DispatchServlet.class.getName() + ".besClientCheckout";
+
     protected static Document configDoc;
 
     /**
@@ -115,8 +136,6 @@ public class DispatchServlet extends HttpServlet {
             initDebug();
             LogUtil.initLogging(this);
 
-            // Timer.enable()
-
             RequestCache.openThreadCache();
 
             log.debug("BEGIN");
@@ -152,16 +171,16 @@ public class DispatchServlet extends HttpServlet {
             }
 
 
-            Element timer = config.getChild("Timer");
-            String timerStatus = "DISABLED";
-            if (timer != null) {
-                String enabled = timer.getAttributeValue("enabled");
-                if (enabled != null && enabled.equalsIgnoreCase("true")) {
-                    Timer.enable();
-                    timerStatus = "ENABLED";
-                }
+            // The phase timers are always on, there's nothing to configure.
+            if (config.getChild("Timer") != null) {
+                log.info("init() - The Timer element is no longer used. Phase timings are always " +
+                        "collected and may be viewed through the admin interface (hai).");
             }
-            log.info("init() - Timer is {}", timerStatus);
+
+            // Configures the shared outbound HTTP connection pool. Defaults are used if the element is missing.
+            HttpClientPool.init(config.getChild(HttpClientPool.CONFIG_ELEMENT));
+            HttpResponseCache.init(config.getChild(HttpResponseCache.CONFIG_ELEMENT),
+                    new File(ServletUtil.getConfigPath(this), HTTP_CACHE_DIR));
 
             initBesManager();
 
@@ -381,6 +400,164 @@ public class DispatchServlet extends HttpServlet {
 
     }
 
+    /**
+     * Keeps requests that have to wait for a BES connection from holding a
+     * container thread while they wait. When the BES that will service a GET
+     * request has no free client, and the request's handler needs the BES
+     * (see needsBesClient()), the request is put into asynchronous mode
+     * and its thread goes back to the container. Once a client is checked
+     * out for it the request is dispatched again, the client is bound to
+     * the new thread, and the request is handled as usual. If no client can
+     * be had (the wait queue is full or the acquire timeout expired) the
+     * request gets a 503.
+     *
+     * @param request
+     * @param response
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            Object o = request.getAttribute(BES_CLIENT_CHECKOUT);
+            if (o instanceof BesClientCheckout) {
+                request.removeAttribute(BES_CLIENT_CHECKOUT);
+                serviceWithCheckout((BesClientCheckout) o, request, response);
+                return;
+            }
+        }
+        else if ("GET".equals(request.getMethod()) &&
+                request.getDispatcherType() == DispatcherType.REQUEST &&
+                request.isAsyncSupported() &&
+                BESManager.isConfigured()) {
+
+            // The BES checked here is pinned in the request cache, so
+            // getLastModified() and doGet() use that same BES.
+            RequestCache.openThreadCache();
+            try {
+                if (waitForBesClient(request, response))
+                    return;
+                super.service(request, response);
+            }
+            finally {
+                // A request that went asynchronous gets a new cache, and the
+                // BES of its checkout, when it is dispatched again.
+                RequestCache.closeThreadCache();
+            }
+            return;
+        }
+        super.service(request, response);
+    }
+
+    /**
+     * If the request will need a BES client and none is available, starts a
+     * checkout and takes the request asynchronous until it completes. The
+     * request cache must be open, the BES that is checked is pinned in it
+     * for the rest of the request.
+     *
+     * @return True if the request was made asynchronous.
+     */
+    private boolean waitForBesClient(HttpServletRequest request, HttpServletResponse response) {
+
+        BES bes;
+        try {
+            bes = BESManager.getBES(ReqInfo.getLocalUrl(request));
+        } catch (BadConfigurationException e) {
+            return false;
+        }
+        if (bes == null)
+            return false;
+        BesGroup.useForThisRequest(bes);
+
+        if (bes.hasAvailableClient() || !needsBesClient(request))
+            return false;
+
+        final BesClientCheckout checkout = bes.checkoutClient();
+        request.setAttribute(BES_CLIENT_CHECKOUT, checkout);
+
+        // Pass the request and response along so that the ASYNC dispatch
+        // gets them as they are here, wrapped by IdFilter and the PEP,
+        // rather than the container's unwrapped originals.
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(0); // The checkout has its own timeout.
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) { }
+            @Override
+            public void onTimeout(AsyncEvent event) { checkout.abandon(); }
+            @Override
+            public void onError(AsyncEvent event) { checkout.abandon(); }
+            @Override
+            public void onStartAsync(AsyncEvent event) { }
+        });
+        checkout.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    asyncContext.dispatch();
+                }
+                catch (IllegalStateException e) {
+                    log.error("Failed to dispatch request waiting for a BES client. Message: {}", e.getMessage());
+                    checkout.abandon();
+                }
+            }
+        });
+        log.debug("waitForBesClient() - No BES client available, request is waiting asynchronously.");
+        return true;
+    }
+
+    private void serviceWithCheckout(BesClientCheckout checkout,
+                                     HttpServletRequest request,
+                                     HttpServletResponse response) throws ServletException, IOException {
+
+        log.debug("serviceWithCheckout() - BES client arrived after {} ms", checkout.getElapsedTime());
+        RequestCache.openThreadCache();
+        BesGroup.useForThisRequest(checkout.getBes());
+        try {
+            checkout.bindToCurrentThread();
+        } catch (PPTException e) {
+            try {
+                LogUtil.logServerAccessStart(request, LogUtil.HYRAX_ACCESS_LOG_ID, "HTTP-GET", Long.toString(reqNumber.incrementAndGet()));
+                int status = OPeNDAPException.anyExceptionHandler(e, this, response);
+                LogUtil.logServerAccessEnd(status, LogUtil.HYRAX_ACCESS_LOG_ID);
+            } finally {
+                RequestCache.closeThreadCache();
+            }
+            return;
+        }
+        try {
+            super.service(request, response);
+        } finally {
+            checkout.unbindFromCurrentThread();
+            RequestCache.closeThreadCache();
+        }
+    }
+
+    /**
+     * Decides whether a GET request has to wait for a BES client. Only
+     * requests taken by a BesDispatchHandler do. Other requests are served
+     * at once, even when the BES has no client free.
+     *
+     * This is only asked once the pinned BES has no free client. Finding
+     * the handler may itself need the BES (BesDapDispatcher asks it about
+     * the dataset), but the choice is kept on the request so it is made
+     * only once.
+     *
+     * @param request The request.
+     * @return True if the request must wait for a BES client.
+     */
+    protected boolean needsBesClient(HttpServletRequest request) {
+        try {
+            return getDispatchHandler(request, httpGetDispatchHandlers) instanceof BesDispatchHandler;
+        } catch (Exception e) {
+            // doGet() looks again and reports the problem.
+            log.debug("needsBesClient() - Failed to find a handler. {}: {}", e.getClass().getName(), e.getMessage());
+            return false;
+        }
+    }
+
+
     /**
      * ***********************************************************************
      * Handles incoming requests from clients. Parses the request and determines
@@ -419,7 +596,7 @@ public class DispatchServlet extends HttpServlet {
         int request_status = HttpServletResponse.SC_OK;
 
         try {
-            Procedure timedProcedure = Timer.start();
+            long timedProcedure = REQUEST_TIMER.start();
 
             RequestCache.openThreadCache();
 
@@ -459,7 +636,7 @@ public class DispatchServlet extends HttpServlet {
                     request_status = OPeNDAPException.anyExceptionHandler(new NotFound("Failed to locate resource: " + relativeUrl), this, response);
                 }
             } finally {
-                Timer.stop(timedProcedure);
+                REQUEST_TIMER.stop(timedProcedure);
             }
         } catch (Throwable t) {
             try {
@@ -480,9 +657,6 @@ public class DispatchServlet extends HttpServlet {
             RequestCache.closeThreadCache();
             log.info("Response completed.\n");
         }
-
-        log.info("Timing Report: \n{}", Timer.report());
-        Timer.reset();
     }
     //**************************************************************************
 
@@ -567,7 +741,9 @@ public class DispatchServlet extends HttpServlet {
 
     /**
      * Returns the first handler in the vector of DispatchHandlers that claims
-     * be able to handle the incoming request.
+     * be able to handle the incoming request. The choice is kept on the
+     * request so that the search made by getLastModified() isn't repeated by
+     * doGet().
      *
      * @param request The request we are looking to handle
      * @param dhvec   A Vector of DispatchHandlers that will be asked if they can
@@ -577,13 +753,31 @@ public class DispatchServlet extends HttpServlet {
      * @throws Exception For bad behaviour.
      */
     private DispatchHandler getDispatchHandler(HttpServletRequest request, List<DispatchHandler> dhvec) throws Exception {
+        Object cached = request.getAttribute(DISPATCH_HANDLER_ATTRIBUTE);
+        if (cached instanceof HandlerChoice && ((HandlerChoice) cached).handlers == dhvec)
+            return ((HandlerChoice) cached).handler;
+
+        DispatchHandler handler = null;
         for (DispatchHandler dh : dhvec) {
             log.debug("Checking handler: {}", dh.getClass().getName());
             if (dh.requestCanBeHandled(request)) {
-                return dh;
+                handler = dh;
+                break;
             }
         }
-        return null;
+        request.setAttribute(DISPATCH_HANDLER_ATTRIBUTE, new HandlerChoice(dhvec, handler));
+        return handler;
+    }
+
+
+    private static class HandlerChoice {
+        final List<DispatchHandler> handlers;
+        final DispatchHandler handler;
+
+        HandlerChoice(List<DispatchHandler> handlers, DispatchHandler handler) {
+            this.handlers = handlers;
+            this.handler = handler;
+        }
     }
 
 
@@ -605,7 +799,7 @@ public class DispatchServlet extends HttpServlet {
 
         long lmt = new Date().getTime();
 
-        Procedure timedProcedure = Timer.start();
+        long timedProcedure = LAST_MODIFIED_TIMER.start();
         try {
             if (ReqInfo.isServiceOnlyRequest(req)) {
                 return lmt;
@@ -623,7 +817,7 @@ public class DispatchServlet extends HttpServlet {
             lmt = new Date().getTime();
         } finally {
             LogUtil.logServerAccessEnd(HttpServletResponse.SC_OK, LogUtil.HYRAX_LAST_MODIFIED_ACCESS_LOG_ID);
-            Timer.stop(timedProcedure);
+            LAST_MODIFIED_TIMER.stop(timedProcedure);
         }
         return lmt;
     }
@@ -639,6 +833,7 @@ public class DispatchServlet extends HttpServlet {
             dh.destroy();
         }
         BESManager.destroy();
+        HttpClientPool.destroy();
         super.destroy();
     }
 
@@ -0,0 +1,144 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.dap4;
+
+import opendap.namespaces.DAP4;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.output.SAXOutputter;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.UnmarshallerHandler;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * Holds the one JAXBContext for the opendap.dap4 model. Building a
+ * JAXBContext means introspecting every class in the model, which costs far
+ * more than the unmarshalling itself, and since a JAXBContext is thread safe
+ * there's no reason to do it more than once. (Unmarshallers are not thread
+ * safe, so each call gets its own.)
+ */
+public class Dap4JaxbContext {
+
+    private static volatile JAXBContext context = null;
+
+    /**
+     * This class should never be instantiated.
+     */
+    private Dap4JaxbContext(){ throw new IllegalStateException("opendap.dap4.Dap4JaxbContext class"); }
+
+    /**
+     * @return The shared JAXBContext for Dataset and the rest of the model.
+     * @throws JAXBException When the context can't be built.
+     */
+    public static JAXBContext getContext() throws JAXBException {
+        JAXBContext jc = context;
+        if (jc == null) {
+            synchronized (Dap4JaxbContext.class) {
+                jc = context;
+                if (jc == null) {
+                    jc = JAXBContext.newInstance(Dataset.class);
+                    context = jc;
+                }
+            }
+        }
+        return jc;
+    }
+
+    /**
+     * Builds a Dataset from a DMR that's already been parsed into JDOM. The
+     * JDOM tree is fed to JAXB as SAX events so the DMR is never serialized
+     * and re-parsed.
+     *
+     * @param dmr The root element of the DMR.
+     * @return The Dataset, or null if JAXB didn't produce one.
+     * @throws JAXBException When the DMR can't be unmarshalled.
+     */
+    public static Dataset unmarshal(Element dmr) throws JAXBException {
+        Unmarshaller um = getContext().createUnmarshaller();
+        UnmarshallerHandler handler = um.getUnmarshallerHandler();
+
+        Dap4NamespaceFilter filter = new Dap4NamespaceFilter();
+        filter.setContentHandler(handler);
+        try {
+            new SAXOutputter(filter).output(dmr);
+        } catch (JDOMException e) {
+            throw new JAXBException(e.getMessage(), e);
+        }
+        return (Dataset) handler.getResult();
+    }
+
+    /**
+     * Builds a Dataset from a DMR document, such as the response stream
+     * from the BES, without building a JDOM tree first.
+     *
+     * @param dmr The DMR document.
+     * @return The Dataset, or null if JAXB didn't produce one.
+     * @throws JAXBException When the DMR can't be unmarshalled.
+     * @throws XMLStreamException When the DMR can't be parsed.
+     */
+    public static Dataset unmarshal(InputStream dmr) throws JAXBException, XMLStreamException {
+        Unmarshaller um = getContext().createUnmarshaller();
+        XMLStreamReader xsr = opendap.xml.Util.getXmlInputFactory().createXMLStreamReader(dmr);
+        try {
+            return (Dataset) um.unmarshal(new XMLReaderWithNamespaceInMyPackageDotInfo(xsr));
+        }
+        finally {
+            xsr.close();
+        }
+    }
+
+    /**
+     * The SAX equivalent of XMLReaderWithNamespaceInMyPackageDotInfo: every
+     * element is placed in the DAP4 namespace and every attribute in no
+     * namespace, which is what the model's annotations expect.
+     */
+    private static class Dap4NamespaceFilter extends XMLFilterImpl {
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            AttributesImpl localAtts = new AttributesImpl();
+            for (int i = 0; i < atts.getLength(); i++) {
+                String name = atts.getLocalName(i);
+                localAtts.addAttribute("", name, name, atts.getType(i), atts.getValue(i));
+            }
+            super.startElement(DAP4.NAMESPACE_STRING, localName, localName, localAtts);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            super.endElement(DAP4.NAMESPACE_STRING, localName, localName);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.dap4;
+
+import opendap.io.HyraxStringEncoding;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Tests that both of the Dap4JaxbContext unmarshal() methods build the same
+ * Dataset as unmarshalling the DMR with a JAXBContext of its own, the way
+ * DatasetTest does.
+ *
+ * Run the test using "ant check"
+ */
+public class Dap4JaxbContextTest {
+
+    private byte[] dmrBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        dmrBytes = Files.readAllBytes(Paths.get("./resources/WCS/2.0/tests/xml/dmrDataset_01.xml"));
+    }
+
+    private Dataset unmarshalWithNewContext() throws Exception {
+        JAXBContext jc = JAXBContext.newInstance(Dataset.class);
+        XMLStreamReader xsr = opendap.xml.Util.getXmlInputFactory().createXMLStreamReader(new ByteArrayInputStream(dmrBytes));
+        return (Dataset) jc.createUnmarshaller().unmarshal(new XMLReaderWithNamespaceInMyPackageDotInfo(xsr));
+    }
+
+    private static void assertSameDataset(Dataset expected, Dataset actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.getName(), actual.getName());
+        Assert.assertEquals(expected.getVariables().size(), actual.getVariables().size());
+        Assert.assertEquals(expected.getFloat32Vars().size(), actual.getFloat32Vars().size());
+        Assert.assertEquals(expected.getDimension("/lat").getSize(), actual.getDimension("/lat").getSize());
+        Assert.assertEquals(expected.getDimension("/lon").getSize(), actual.getDimension("/lon").getSize());
+        Assert.assertEquals(expected.usesCfConventions(), actual.usesCfConventions());
+    }
+
+    @Test
+    public void contextIsShared() throws Exception {
+        Assert.assertSame(Dap4JaxbContext.getContext(), Dap4JaxbContext.getContext());
+    }
+
+    @Test
+    public void unmarshalStream() throws Exception {
+        Dataset expected = unmarshalWithNewContext();
+        Dataset dataset;
+        try (InputStream is = new ByteArrayInputStream(dmrBytes)) {
+            dataset = Dap4JaxbContext.unmarshal(is);
+        }
+        assertSameDataset(expected, dataset);
+        Assert.assertEquals(5, dataset.getFloat32Vars().size());
+    }
+
+    @Test
+    public void unmarshalJdom() throws Exception {
+        Dataset expected = unmarshalWithNewContext();
+        String dmrXml = new String(dmrBytes, HyraxStringEncoding.getCharset());
+        Element dmr = new SAXBuilder().build(new StringReader(dmrXml)).getRootElement();
+        assertSameDataset(expected, Dap4JaxbContext.unmarshal(dmr));
+    }
+}
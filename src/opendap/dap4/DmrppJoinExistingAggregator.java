@@ -245,6 +245,37 @@ public class DmrppJoinExistingAggregator {
         return aggDatasetTemplate;
     }
 
+    /**
+     * Performs the same aggregation as aggregate() but only the template
+     * granule is held as a JDOM Document. The other granules are read and
+     * parsed in parallel by a DmrppStreamingAggregator, which keeps just
+     * their chunk coordinates and streams them into the aggregated DMR++ as
+     * it is written.
+     *
+     * @param os Where to write the aggregated DMR++
+     * @param threads The number of granules to read and parse concurrently.
+     * @throws BadConfigurationException
+     * @throws IOException
+     * @throws JDOMException
+     */
+    public void aggregate(OutputStream os, int threads) throws BadConfigurationException, IOException, JDOMException {
+
+        if(aggFileList.isEmpty())
+            throw new BadConfigurationException("No files were specified, unable to perform aggregation.");
+
+        URL templateDmrppUrl = aggFileList.remove(0);
+        ingestTemplateDataset(Util.getDocument(templateDmrppUrl));
+
+        DmrppStreamingAggregator streamer =
+                new DmrppStreamingAggregator(dimensions, coordinateVars.keySet(), aggVarTemplates, threads);
+        int granuleCount = streamer.ingest(aggFileList, 1) + 1;
+        if(newAggDimensionElement!=null) {
+            newAggDimensionElement.setAttribute(DAP4.SIZE, granuleCount+"");
+        }
+
+        streamer.write(aggDatasetTemplate, os);
+    }
+
     /**
      *
      * @param datasetDoc
@@ -649,6 +680,7 @@ public class DmrppJoinExistingAggregator {
         String joinNewDimName = null;
         Level debugLevel = Level.OFF;
         String aggVarsFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
 
         try {
             //----------------------------------------------------------------------
@@ -694,6 +726,12 @@ public class DmrppJoinExistingAggregator {
                 aggVarsFile = cmd.getOptionValue("v");
             }
 
+            //---------------------------
+            // Number of granules to parse concurrently
+            if (cmd.hasOption("t")) {
+                threads = Integer.parseInt(cmd.getOptionValue("t"));
+            }
+
             //----------------------------------------------------------------------
             //----------------------------------------------------------------------
 
@@ -702,16 +740,13 @@ public class DmrppJoinExistingAggregator {
             dAgg.loadDmrppList(args);
             dAgg.loadAggVarsList();
 
-            Document aggDatasetDoc = dAgg.aggregate();
-
-            XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
-            if(outfile!=null){
+            if (outfile != null) {
                 try (FileOutputStream fos = new FileOutputStream(outfile)) {
-                    xmlo.output(aggDatasetDoc, fos);
+                    dAgg.aggregate(fos, threads);
                 }
-            }
-            else {
-                System.out.println(xmlo.outputString(aggDatasetDoc));
+            } else {
+                dAgg.aggregate(System.out, threads);
+                System.out.println();
             }
         }
         catch(Exception e){
@@ -733,6 +768,7 @@ public class DmrppJoinExistingAggregator {
         options.addOption("n", "dimName", true, "joinNew dimension name");
         options.addOption("v", "variablesFile", true, "A file containing a list of the " +
                 "names of the variables to be aggregated.");
+        options.addOption("t", "threads", true, "The number of granules to read and parse concurrently.");
         return options;
     }
 
@@ -0,0 +1,625 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.dap4;
+
+import opendap.namespaces.DAP4;
+import opendap.namespaces.DMRPP;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.ProcessingInstruction;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The chunk aggregation engine behind the DMR++ aggregators.
+ *
+ * The aggregators build their template from the first granule with JDOM, as
+ * before, because the template is what gets pruned, rewritten and finally
+ * returned. Every other granule is only a source of chunk coordinates, so
+ * rather than building (and holding on to) a complete JDOM Document for each
+ * one, they are read in parallel with StAX, checked against the template, and
+ * reduced to a few primitive arrays per aggregation variable. When the
+ * aggregated DMR++ is written the template is serialized with an XMLOutputter
+ * that streams each variable's aggregated chunk elements straight out of
+ * those arrays, so the aggregated chunks never exist as a JDOM tree.
+ *
+ * The result is the same document the DOM based aggregate() methods return.
+ */
+public class DmrppStreamingAggregator {
+
+    /**
+     * Target of the processing instructions that mark where the aggregated
+     * chunks of a variable go in the template's dmrpp:chunks element.
+     */
+    private static final String CHUNKS_MARKER = "dmrpp-aggregated-chunks";
+
+    private static final Set<String> CONTAINER_TYPES = new HashSet<>(Arrays.asList(
+            DAP4.GROUP, DAP4.STRUCTURE, DAP4.SEQUENCE));
+
+    private static final Set<String> ATOMIC_TYPES = new HashSet<>(Arrays.asList(
+            DAP4.INT8, DAP4.UINT8, DAP4.BYTE, DAP4.CHAR, DAP4.INT16, DAP4.UINT16,
+            DAP4.INT32, DAP4.UINT32, DAP4.INT64, DAP4.UINT64, DAP4.FLOAT32,
+            DAP4.FLOAT64, DAP4.STRING, DAP4.D_URI, DAP4.OPAQUE));
+
+    private Logger log;
+
+    private Map<String, String> dimensionSizes;
+    private Set<String> coordinateVarNames;
+    private Map<String, Element> aggVarTemplates;
+    private Map<String, VarTemplate> varTemplates;
+    private int threads;
+    private XMLInputFactory inputFactory;
+
+    private List<GranuleChunks> granules;
+
+    /**
+     * Captures what each granule is checked against. This has to happen
+     * before the calling aggregator amends the template variables (joinNew
+     * adds a Dim and a chunk dimension to each of them) because the granules
+     * are compared with the variables as they were read from the template
+     * granule.
+     *
+     * @param dimensions The template Dimension declarations, keyed by FQN.
+     * @param coordinateVarNames The FQNs of the (not aggregated) coordinate variables.
+     * @param aggVarTemplates The template aggregation variables, keyed by FQN.
+     * @param threads The number of granules to read and parse concurrently.
+     * @throws IOException When a template variable has no chunks or chunk dimension sizes.
+     */
+    public DmrppStreamingAggregator(Map<String, Element> dimensions,
+                                    Set<String> coordinateVarNames,
+                                    Map<String, Element> aggVarTemplates,
+                                    int threads) throws IOException {
+        log = LoggerFactory.getLogger(this.getClass());
+
+        dimensionSizes = new HashMap<>();
+        for (Map.Entry<String, Element> entry : dimensions.entrySet()) {
+            dimensionSizes.put(entry.getKey(), entry.getValue().getAttributeValue(DAP4.SIZE));
+        }
+        this.coordinateVarNames = new HashSet<>(coordinateVarNames);
+        this.aggVarTemplates = aggVarTemplates;
+
+        varTemplates = new HashMap<>();
+        for (Map.Entry<String, Element> entry : aggVarTemplates.entrySet()) {
+            varTemplates.put(entry.getKey(), new VarTemplate(entry.getKey(), entry.getValue()));
+        }
+
+        this.threads = threads < 1 ? 1 : threads;
+        granules = new ArrayList<>();
+
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Reads and parses the granules, up to threads of them at a time. The
+     * chunks of granules.get(i) are placed at index firstChunkIndex+i of the
+     * aggregation dimension.
+     *
+     * @param granuleUrls The DMR++ documents to aggregate, in aggregation order.
+     * @param firstChunkIndex The aggregation dimension index of the first granule.
+     * @return The number of granules ingested.
+     * @throws IOException When a granule can't be read or doesn't match the template.
+     */
+    public int ingest(List<URL> granuleUrls, int firstChunkIndex) throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, granuleUrls.size())));
+        try {
+            List<Future<GranuleChunks>> futures = new ArrayList<>(granuleUrls.size());
+            int chunkIndex = firstChunkIndex;
+            for (final URL url : granuleUrls) {
+                final int index = chunkIndex++;
+                futures.add(executor.submit(new Callable<GranuleChunks>() {
+                    @Override
+                    public GranuleChunks call() throws Exception {
+                        return parseGranule(url, index);
+                    }
+                }));
+            }
+            for (Future<GranuleChunks> future : futures) {
+                granules.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while ingesting granules.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return granuleUrls.size();
+    }
+
+    /**
+     * Writes the aggregated dataset. Each aggregation variable's dmrpp:chunks
+     * element in the template is followed by the chunks of every ingested
+     * granule, in aggregation order.
+     *
+     * @param aggDataset The (fully amended) template document.
+     * @param os Where to write the aggregated DMR++.
+     * @throws IOException When the output can't be written.
+     */
+    public void write(Document aggDataset, OutputStream os) throws IOException {
+
+        Map<String, Integer> markerLevels = new HashMap<>();
+        List<ProcessingInstruction> markers = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Element> entry : aggVarTemplates.entrySet()) {
+                Element chunks = entry.getValue().getChild(DMRPP.CHUNKS, DMRPP.NS);
+                if (chunks == null)
+                    continue;
+
+                int level = 1;
+                for (Element e = chunks; e.getParentElement() != null; e = e.getParentElement())
+                    level++;
+                markerLevels.put(entry.getKey(), level);
+
+                ProcessingInstruction marker = new ProcessingInstruction(CHUNKS_MARKER, entry.getKey());
+                chunks.addContent(marker);
+                markers.add(marker);
+            }
+
+            BufferedOutputStream bos = new BufferedOutputStream(os);
+            new ChunkStreamingOutputter(markerLevels).output(aggDataset, bos);
+            bos.flush();
+        } finally {
+            for (ProcessingInstruction marker : markers) {
+                marker.detach();
+            }
+        }
+    }
+
+    /**
+     * Pulls the chunk coordinates for every aggregation variable out of a
+     * granule, checking its Dimensions and variables against the template
+     * just as the DOM based aggregators do.
+     */
+    private GranuleChunks parseGranule(URL url, int chunkIndex) throws IOException {
+
+        log.debug("Parsing granule {} ({})", chunkIndex, url);
+
+        try (InputStream is = new BufferedInputStream(url.openStream())) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    // Skip the prolog.
+                }
+                if (!reader.isStartElement() || !DAP4.DATASET.equals(reader.getLocalName())) {
+                    throw new IOException("The document " + url + " is not a DAP4 " + DAP4.DATASET + ".");
+                }
+                String href = reader.getAttributeValue(DMRPP.NAMESPACE_STRING, DMRPP.HREF);
+                GranuleChunks granule = new GranuleChunks(chunkIndex, href == null ? null : new URL(href).toString());
+                parseContainer(reader, "", granule);
+                return granule;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse " + url + " Message: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Consumes the children of the container element the reader is positioned
+     * on, up to and including its end tag.
+     */
+    private void parseContainer(XMLStreamReader reader, String path, GranuleChunks granule)
+            throws XMLStreamException, IOException {
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String kind = reader.getLocalName();
+            String fqn = path + "/" + reader.getAttributeValue(null, DAP4.NAME);
+
+            if (CONTAINER_TYPES.contains(kind)) {
+                parseContainer(reader, fqn, granule);
+            } else if (kind.equals(DAP4.DIMENSION)) {
+                String tSize = dimensionSizes.get(fqn);
+                if (tSize == null) {
+                    throw new IOException("OUCH! Encountered non templated Dimension declaration for '" + fqn + "'");
+                }
+                String dSize = reader.getAttributeValue(null, DAP4.SIZE);
+                if (!tSize.equals(dSize)) {
+                    throw new IOException("OUCH! Agg dimension (" + fqn + ") size (" + dSize + ")" +
+                            " does not match template dimension size (" + tSize + ")");
+                }
+                skipElement(reader);
+            } else if (ATOMIC_TYPES.contains(kind) && !coordinateVarNames.contains(fqn)) {
+                VarTemplate template = varTemplates.get(fqn);
+                if (template == null) {
+                    log.warn("Unable to locate aggVarTemplate '{}' SKIPPING.", fqn);
+                    skipElement(reader);
+                } else {
+                    parseVariable(reader, template, granule);
+                }
+            } else {
+                if (kind.equals(DAP4.ENUMERATION) || kind.equals(DAP4.ENUM)) {
+                    log.warn("Skipping {} name: {}", kind, reader.getAttributeValue(null, DAP4.NAME));
+                }
+                skipElement(reader);
+            }
+        }
+    }
+
+    /**
+     * Consumes an aggregation variable, recording its chunks.
+     */
+    private void parseVariable(XMLStreamReader reader, VarTemplate template, GranuleChunks granule)
+            throws XMLStreamException, IOException {
+
+        int dimCount = 0;
+        boolean sawChunks = false;
+        String chunkDimSizes = null;
+        VarChunks chunks = new VarChunks(template.chunkDimSizes.length);
+
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            String name = reader.getLocalName();
+            boolean isDmrpp = DMRPP.NAMESPACE_STRING.equals(reader.getNamespaceURI());
+
+            if (depth == 2 && name.equals(DAP4.DIM) && DAP4.NAMESPACE_STRING.equals(reader.getNamespaceURI())) {
+                dimCount++;
+            } else if (depth == 2 && isDmrpp && name.equals(DMRPP.CHUNKS)) {
+                sawChunks = true;
+                continue;
+            } else if (depth == 3 && sawChunks && isDmrpp && name.equals(DMRPP.CHUNK_DIMENSION_SIZES)) {
+                chunkDimSizes = reader.getElementText().trim();
+                depth--;
+                continue;
+            } else if (depth == 3 && sawChunks && isDmrpp && name.equals(DMRPP.CHUNK)) {
+                addChunk(reader, template, granule, chunks);
+            }
+            skipElement(reader);
+            depth--;
+        }
+
+        if (dimCount != template.dimCount) {
+            throw new IOException("The template variable does not have the same number of Dimensions " +
+                    "as the aggregation variable. (name: " + template.fqn + ")");
+        }
+        if (!sawChunks) {
+            throw new IOException("The aggregation variable '" + template.fqn + "' has no chunks!");
+        }
+        if (chunkDimSizes == null) {
+            throw new IOException("The aggregation variable '" + template.fqn + "' has no dmrpp:" +
+                    DMRPP.CHUNK_DIMENSION_SIZES + " element!");
+        }
+        if (!Arrays.equals(parseChunkDimensionSizes(chunkDimSizes), template.chunkDimSizes)) {
+            throw new IOException("The template variable chunk dimension sizes (" +
+                    template.chunkDimSizesText + ") are not compatible " +
+                    "with the aggregation variable chunk dimension sizes (" +
+                    chunkDimSizes + ") (name: " + template.fqn + ")");
+        }
+        chunks.trim();
+        granule.vars.put(template.fqn, chunks);
+    }
+
+    /**
+     * Records the dmrpp:chunk element the reader is positioned on.
+     */
+    private void addChunk(XMLStreamReader reader, VarTemplate template, GranuleChunks granule, VarChunks chunks)
+            throws IOException {
+
+        long offset = -1;
+        long nBytes = -1;
+        String position = null;
+        boolean hasHref = false;
+        List<String> extras = null;
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String name = reader.getAttributeLocalName(i);
+            String value = reader.getAttributeValue(i);
+            String ns = reader.getAttributeNamespace(i);
+            boolean local = ns == null || ns.isEmpty();
+
+            if (local && name.equals(DMRPP.OFFSET)) {
+                offset = Long.parseLong(value.trim());
+            } else if (local && name.equals(DMRPP.NBYTES)) {
+                nBytes = Long.parseLong(value.trim());
+            } else if (local && name.equals(DMRPP.CHUNK_POSITION_IN_ARRAY)) {
+                position = value;
+            } else {
+                hasHref |= local && name.equals(DMRPP.HREF);
+                if (extras == null)
+                    extras = new ArrayList<>();
+                String prefix = reader.getAttributePrefix(i);
+                extras.add(prefix == null || prefix.isEmpty() ? name : prefix + ":" + name);
+                extras.add(value);
+            }
+        }
+
+        if (position == null) {
+            throw new IOException("A dmrpp:" + DMRPP.CHUNK + " of the aggregation variable '" + template.fqn +
+                    "' has no " + DMRPP.CHUNK_POSITION_IN_ARRAY + " attribute!");
+        }
+        if (!hasHref && granule.href == null) {
+            throw new IOException("A dmrpp:" + DMRPP.CHUNK + " of the aggregation variable '" + template.fqn +
+                    "' has no " + DMRPP.HREF + " and its dataset has no dmrpp:" + DMRPP.HREF + " either!");
+        }
+
+        chunks.add(offset, nBytes, parsePosition(position, template),
+                extras == null ? null : extras.toArray(new String[extras.size()]));
+    }
+
+    private static long[] parsePosition(String position, VarTemplate template) throws IOException {
+        String s = position.trim();
+        if (s.startsWith("["))
+            s = s.substring(1);
+        if (s.endsWith("]"))
+            s = s.substring(0, s.length() - 1);
+        String[] values = s.split(",");
+        if (values.length != template.chunkDimSizes.length) {
+            throw new IOException("The " + DMRPP.CHUNK_POSITION_IN_ARRAY + " '" + position + "' does not match " +
+                    "the rank of the aggregation variable '" + template.fqn + "'");
+        }
+        long[] result = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Long.parseLong(values[i].trim());
+        }
+        return result;
+    }
+
+    private static int[] parseChunkDimensionSizes(String text) {
+        String[] values = text.trim().split("\\s+");
+        int[] cds = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            cds[i] = Integer.parseInt(values[i]);
+        }
+        return cds;
+    }
+
+    /**
+     * Consumes the element the reader is positioned on, up to and including
+     * its end tag.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+
+    /**
+     * What a granule's copy of an aggregation variable has to agree with.
+     */
+    private static class VarTemplate {
+        final String fqn;
+        final int dimCount;
+        final int[] chunkDimSizes;
+        final String chunkDimSizesText;
+
+        VarTemplate(String fqn, Element var) throws IOException {
+            this.fqn = fqn;
+            dimCount = var.getChildren(DAP4.DIM, DAP4.NS).size();
+
+            Element chunks = var.getChild(DMRPP.CHUNKS, DMRPP.NS);
+            if (chunks == null) {
+                throw new IOException("The template variable '" + fqn + "' has no chunks!");
+            }
+            Element cds = chunks.getChild(DMRPP.CHUNK_DIMENSION_SIZES, DMRPP.NS);
+            if (cds == null) {
+                throw new IOException("The template variable '" + fqn + "' has no dmrpp:" +
+                        DMRPP.CHUNK_DIMENSION_SIZES + " element!");
+            }
+            chunkDimSizesText = cds.getTextTrim();
+            chunkDimSizes = parseChunkDimensionSizes(chunkDimSizesText);
+        }
+    }
+
+    /**
+     * The chunks of one granule, keyed by aggregation variable FQN.
+     */
+    private static class GranuleChunks {
+        final int chunkIndex;
+        final String href;
+        final Map<String, VarChunks> vars;
+
+        GranuleChunks(int chunkIndex, String href) {
+            this.chunkIndex = chunkIndex;
+            this.href = href;
+            vars = new HashMap<>();
+        }
+    }
+
+    /**
+     * The chunks of one variable in one granule. Offsets, sizes and positions
+     * are kept in parallel primitive arrays. Any other attributes, including
+     * an href of the chunk's own, are kept (as name/value pairs in document
+     * order) only for the chunks that have them; the rest get the granule's
+     * dmrpp:href when they are written.
+     */
+    private static class VarChunks {
+        final int rank;
+        int count;
+        long[] offsets;
+        long[] nBytes;
+        long[] positions;
+        String[][] extras;
+
+        VarChunks(int rank) {
+            this.rank = rank;
+            count = 0;
+            offsets = new long[8];
+            nBytes = new long[8];
+            positions = new long[8 * rank];
+        }
+
+        void add(long offset, long size, long[] position, String[] extra) {
+            if (count == offsets.length) {
+                int capacity = count * 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                nBytes = Arrays.copyOf(nBytes, capacity);
+                positions = Arrays.copyOf(positions, capacity * rank);
+                if (extras != null)
+                    extras = Arrays.copyOf(extras, capacity);
+            }
+            offsets[count] = offset;
+            nBytes[count] = size;
+            System.arraycopy(position, 0, positions, count * rank, rank);
+            if (extra != null) {
+                if (extras == null)
+                    extras = new String[offsets.length][];
+                extras[count] = extra;
+            }
+            count++;
+        }
+
+        void trim() {
+            offsets = Arrays.copyOf(offsets, count);
+            nBytes = Arrays.copyOf(nBytes, count);
+            positions = Arrays.copyOf(positions, count * rank);
+            if (extras != null)
+                extras = Arrays.copyOf(extras, count);
+        }
+    }
+
+    /**
+     * Serializes the template, replacing each chunks marker with the
+     * aggregated chunk elements of its variable. The markers are children of
+     * the dmrpp:chunks elements, so the outputter has already written the
+     * line break and indent for the first chunk by the time it gets here.
+     */
+    private class ChunkStreamingOutputter extends XMLOutputter {
+
+        private Map<String, Integer> markerLevels;
+
+        ChunkStreamingOutputter(Map<String, Integer> markerLevels) {
+            super(Format.getPrettyFormat());
+            this.markerLevels = markerLevels;
+        }
+
+        @Override
+        protected void printProcessingInstruction(Writer out, ProcessingInstruction pi) throws IOException {
+            if (!CHUNKS_MARKER.equals(pi.getTarget())) {
+                super.printProcessingInstruction(out, pi);
+                return;
+            }
+            String varFQN = pi.getData();
+            Element chunks = (Element) pi.getParent();
+            String prefix = chunks.getNamespacePrefix();
+            String chunkTag = "<" + (prefix.isEmpty() ? "" : prefix + ":") + DMRPP.CHUNK;
+
+            StringBuilder separator = new StringBuilder(currentFormat.getLineSeparator());
+            int level = markerLevels.get(varFQN);
+            for (int i = 0; i < level; i++) {
+                separator.append(currentFormat.getIndent());
+            }
+
+            StringBuilder sb = new StringBuilder();
+            boolean first = true;
+            for (GranuleChunks granule : granules) {
+                VarChunks vc = granule.vars.get(varFQN);
+                if (vc == null)
+                    continue;
+                for (int c = 0; c < vc.count; c++) {
+                    sb.setLength(0);
+                    if (!first)
+                        sb.append(separator);
+                    first = false;
+
+                    sb.append(chunkTag);
+                    if (vc.offsets[c] >= 0)
+                        sb.append(' ').append(DMRPP.OFFSET).append("=\"").append(vc.offsets[c]).append('"');
+                    if (vc.nBytes[c] >= 0)
+                        sb.append(' ').append(DMRPP.NBYTES).append("=\"").append(vc.nBytes[c]).append('"');
+
+                    sb.append(' ').append(DMRPP.CHUNK_POSITION_IN_ARRAY).append("=\"[").append(granule.chunkIndex);
+                    for (int d = c * vc.rank; d < (c + 1) * vc.rank; d++) {
+                        sb.append(',').append(vc.positions[d]);
+                    }
+                    sb.append("]\"");
+
+                    boolean hasHref = false;
+                    if (vc.extras != null && vc.extras[c] != null) {
+                        String[] extra = vc.extras[c];
+                        for (int e = 0; e < extra.length; e += 2) {
+                            hasHref |= extra[e].equals(DMRPP.HREF);
+                            sb.append(' ').append(extra[e]).append("=\"")
+                                    .append(escapeAttributeEntities(extra[e + 1])).append('"');
+                        }
+                    }
+                    if (!hasHref) {
+                        sb.append(' ').append(DMRPP.HREF).append("=\"")
+                                .append(escapeAttributeEntities(granule.href)).append('"');
+                    }
+                    sb.append(" />");
+                    out.write(sb.toString());
+                }
+            }
+        }
+    }
+}
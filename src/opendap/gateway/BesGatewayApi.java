@@ -38,10 +38,8 @@ import opendap.dap4.QueryParameters;
 import opendap.logging.LogUtil;
 import opendap.namespaces.BES;
 import opendap.ppt.PPTException;
-import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.HeadMethod;
+import opendap.http.HttpResponseCache;
+import org.apache.http.HttpStatus;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -49,7 +47,6 @@ import org.slf4j.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.regex.Pattern;
@@ -432,6 +429,27 @@ public class BesGatewayApi extends BesApi implements Cloneable {
         // getBesNodeRemote(dataSource, response);
     }
 
+    /**
+     * The showNode responses made by getBesNodeDummy() always report the
+     * current time as lastModified, so cached metadata responses for
+     * remote resources are expired by the BesMetadataCache TTL alone.
+     *
+     * @param dataSource The dataSource
+     * @return -1
+     */
+    @Override
+    public long getMetadataLastModified(String dataSource) {
+        return -1;
+    }
+
+    @Override
+    public Document getSharedBesNode(String dataSource)
+            throws BadConfigurationException, PPTException, JDOMException, IOException, BESError {
+        Document response = new Document();
+        getBesNode(dataSource, response);
+        return response;
+    }
+
     public void getBesNodeDummy(String dataSource, Document response) {
         Element rootElement = new Element("response",BES.BES_NS);
         response.setRootElement(rootElement);
@@ -452,11 +470,10 @@ public class BesGatewayApi extends BesApi implements Cloneable {
     public void getBesNodeRemote(String dataSourceUrl, Document response) throws IOException {
         // Go get the HEAD for the catalog
         // FIXME: This DOES NOT utilize the whitelist in the BES and this should to be MOVED to the BES
-        HttpClient httpClient = new HttpClient();
-        HeadMethod headReq = new HeadMethod(dataSourceUrl);
-
         try {
-            int statusCode = httpClient.executeMethod(headReq);
+            // Repeated requests for the same remote resource are answered (or revalidated) by the cache.
+            HttpResponseCache.Response headResp = HttpResponseCache.head(dataSourceUrl, null, null);
+            int statusCode = headResp.getStatus();
 
             if (statusCode != HttpStatus.SC_OK) {
                 log.error("Unable to HEAD remote resource: " + dataSourceUrl);
@@ -464,30 +481,15 @@ public class BesGatewayApi extends BesApi implements Cloneable {
                 throw new OPeNDAPException(statusCode, msg);
             }
 
-            Header lastModifiedHeader = headReq.getResponseHeader("Last-Modified");
             Date lastModified = new Date();
-
-            if (lastModifiedHeader != null) {
-                String lmtString = lastModifiedHeader.getValue();
-                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
-                try {
-                    lastModified = format.parse(lmtString);
-                } catch (ParseException e) {
-                    log.warn("Failed to parse last modified time. LMT String: {}, resource URL: {}", lmtString, dataSourceUrl);
-                }
-            }
+            if (headResp.getLastModified() >= 0)
+                lastModified = new Date(headResp.getLastModified());
 
             int size = -1;
-            Header contentLengthHeader = headReq.getResponseHeader("Content-Length");
-
-            if (contentLengthHeader != null) {
-                String sizeStr = contentLengthHeader.getValue();
-                try {
-                    size = Integer.parseInt(sizeStr);
-                } catch (NumberFormatException nfe) {
-                    log.warn("Received invalid content length from datasource: {}: ", dataSourceUrl);
-                }
-            }
+            long contentLength = headResp.getContentLength();
+            if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE)
+                size = (int) contentLength;
+
             Element catalogElement = getShowNodeResponseDocForDatasetUrl(dataSourceUrl, size, lastModified);
             response.detachRootElement();
             response.setRootElement(catalogElement);
@@ -29,6 +29,7 @@ import opendap.bes.BES;
 import opendap.bes.BESManager;
 import opendap.bes.BesAdminFail;
 import opendap.bes.BesGroup;
+import opendap.bes.caching.BesMetadataCache;
 import opendap.coreServlet.HttpResponder;
 import opendap.coreServlet.ResourceInfo;
 import opendap.coreServlet.Scrub;
@@ -270,7 +271,8 @@ public class BesControlApi extends HttpResponder {
         cmd, prefix,
         Start, StopNice, StopNow,
         getConfig, module, setConfig, CONFIGURATION,
-        getLog, lines, getLoggerState, setLoggerState, logger, state, setLoggerStates, enable, disable, on, off
+        getLog, lines, getLoggerState, setLoggerState, logger, state, setLoggerStates, enable, disable, on, off,
+        getPoolMetrics, getMetadataCacheStatistics
     }
 
 
@@ -313,6 +315,14 @@ public class BesControlApi extends HttpResponder {
                         sb.append(processStatus(bes.stopNow()));
                         break;
 
+                    case getPoolMetrics:
+                        sb.append(bes.getPoolMetrics());
+                        break;
+
+                    case getMetadataCacheStatistics:
+                        sb.append(BesMetadataCache.getStatistics());
+                        break;
+
                     case getConfig:
                         module = kvp.get(besCmds.module.toString());
                         /*
@@ -79,6 +79,7 @@ public class DispatchServlet extends opendap.coreServlet.DispatchServlet {
         systemPath = ServletUtil.getSystemPath(this, "");
         responders.add(new OlfsControlApi(systemPath));
         responders.add(new BesControlApi(systemPath));
+        responders.add(new MetricsResponder(systemPath));
         log.info("masterDispatchRegex=\"" + getDispatchRegex() + "\"");
         
         String devMode = getInitParameter("DeveloperMode");
@@ -145,6 +146,16 @@ public class DispatchServlet extends opendap.coreServlet.DispatchServlet {
     }
 
 
+    /**
+     * The admin interface, and the metrics in particular, must stay
+     * reachable when every BES client is busy, so its requests never wait
+     * for one.
+     */
+    @Override
+    protected boolean needsBesClient(HttpServletRequest request) {
+        return false;
+    }
+
     public Pattern getDispatchRegex() {
         String masterRegex = null;
 
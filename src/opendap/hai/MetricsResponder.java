@@ -0,0 +1,77 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.hai;
+
+import opendap.auth.RemotePDP;
+import opendap.bes.caching.BesIdentityCache;
+import opendap.coreServlet.HttpResponder;
+import opendap.coreServlet.ResourceInfo;
+import opendap.http.HttpClientPool;
+import opendap.http.HttpResponseCache;
+import opendap.logging.PhaseTimer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Date;
+
+/**
+ * Exposes the OLFS phase latency histograms, the outbound HTTP connection pool
+ * statistics, the HTTP response cache statistics, the BES identity cache
+ * statistics and the RemotePDP decision statistics in the Prometheus text exposition format so that they
+ * can be scraped from hai/metrics.
+ */
+public class MetricsResponder extends HttpResponder {
+
+    private static final String defaultRegex = ".*\\/metrics";
+
+    public MetricsResponder(String sysPath) {
+        super(sysPath, null, defaultRegex);
+    }
+
+    @Override
+    public ResourceInfo getResourceInfo(String resourceName) throws Exception {
+        return null;
+    }
+
+    @Override
+    public long getLastModified(HttpServletRequest request) throws Exception {
+        return new Date().getTime();
+    }
+
+    @Override
+    public void respondToHttpGetRequest(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        PhaseTimer.writeMetrics(sb);
+        HttpClientPool.writeMetrics(sb);
+        HttpResponseCache.writeMetrics(sb);
+        BesIdentityCache.writeMetrics(sb);
+        RemotePDP.writeMetrics(sb);
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().print(sb.toString());
+    }
+}
@@ -38,6 +38,7 @@ import ch.qos.logback.core.read.CyclicBufferAppender;
 import opendap.coreServlet.HttpResponder;
 import opendap.coreServlet.ResourceInfo;
 import opendap.coreServlet.Scrub;
+import opendap.logging.PhaseTimer;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.slf4j.LoggerFactory;
 
@@ -279,7 +280,7 @@ public class OlfsControlApi extends HttpResponder {
 
 
     private enum olfsCmds {
-        cmd, getLog, lines, getLogLevel, setLogLevel, logger, level
+        cmd, getLog, lines, getLogLevel, setLogLevel, logger, level, getPhaseTimings, resetPhaseTimings
     }
 
 
@@ -335,6 +336,17 @@ public class OlfsControlApi extends HttpResponder {
                     break;
 
 
+                case getPhaseTimings:
+                    sb.append(StringEscapeUtils.escapeXml(PhaseTimer.getReport()));
+                    break;
+
+
+                case resetPhaseTimings:
+                    PhaseTimer.resetAll();
+                    sb.append("Phase timings have been reset.");
+                    break;
+
+
                 default:
                     sb.append(" Unrecognized OLFS command: ").append(Scrub.simpleString(olfsCmd));
                     break;
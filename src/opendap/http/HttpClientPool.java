@@ -0,0 +1,303 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.http;
+
+import opendap.logging.PhaseTimer;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single, process-wide HTTP client used by the OLFS to retrieve content from remote servers (gateway
+ * and WCS access to remote DAP services, remote DMR and data retrieval, etc.).
+ *
+ * Connections are pooled per route and kept alive between requests, so repeated access to the same remote
+ * server doesn't pay for a new TCP/TLS handshake on every call. Connections that have been idle for too long,
+ * or that the server has closed, are evicted by a background thread.
+ *
+ * The pool is built with default settings the first time it is used. It can be configured from olfs.xml:
+ * <pre>
+ *     &lt;HttpClient maxConnections="200" maxPerRoute="20"
+ *                 connectTimeout="10000" socketTimeout="300000" leaseTimeout="30000"
+ *                 idleTimeout="30" timeToLive="600" /&gt;
+ * </pre>
+ * Timeouts are in milliseconds, idleTimeout and timeToLive are in seconds. A timeToLive of zero lets
+ * connections live for as long as the server keeps them open.
+ *
+ * Because the client is shared, credentials are supplied per request (see
+ * {@link #execute(HttpUriRequest, CredentialsProvider)}) and not bound to the client. For the same reason
+ * each request gets its own cookie store, so cookies set during one request's redirects are never sent with
+ * another's. GET and HEAD requests follow redirects, as the HttpClient 3 GetMethod and HeadMethod that this
+ * replaced did.
+ */
+public class HttpClientPool {
+
+    public static final String CONFIG_ELEMENT = "HttpClient";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 200;
+    private static final int DEFAULT_MAX_PER_ROUTE = 20;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_SOCKET_TIMEOUT = 300000;
+    private static final int DEFAULT_LEASE_TIMEOUT = 30000;
+    private static final int DEFAULT_IDLE_TIMEOUT = 30;
+    private static final int DEFAULT_TIME_TO_LIVE = 600;
+
+    private static final PhaseTimer REQUEST_TIMER = PhaseTimer.named("http.outbound");
+
+    private static final Logger log = LoggerFactory.getLogger(HttpClientPool.class);
+
+    private static final Object lock = new Object();
+    private static CloseableHttpClient client = null;
+    private static PoolingHttpClientConnectionManager connectionManager = null;
+
+    private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private static int leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+    private static int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private static int timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    private static final AtomicLong requests = new AtomicLong(0);
+    private static final AtomicLong failures = new AtomicLong(0);
+
+    private HttpClientPool() {
+    }
+
+
+    /**
+     * Applies the settings in the HttpClient configuration element. Any client that was already built is
+     * shut down and a new one is built with the new settings. A null element restores the defaults.
+     *
+     * @param config The HttpClient element from olfs.xml, may be null.
+     */
+    public static void init(Element config) {
+        synchronized (lock) {
+            maxConnections = getPositiveInt(config, "maxConnections", DEFAULT_MAX_CONNECTIONS);
+            maxPerRoute = getPositiveInt(config, "maxPerRoute", DEFAULT_MAX_PER_ROUTE);
+            if (maxPerRoute > maxConnections)
+                maxPerRoute = maxConnections;
+            connectTimeout = getNonNegativeInt(config, "connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+            socketTimeout = getNonNegativeInt(config, "socketTimeout", DEFAULT_SOCKET_TIMEOUT);
+            leaseTimeout = getNonNegativeInt(config, "leaseTimeout", DEFAULT_LEASE_TIMEOUT);
+            idleTimeout = getPositiveInt(config, "idleTimeout", DEFAULT_IDLE_TIMEOUT);
+            timeToLive = getNonNegativeInt(config, "timeToLive", DEFAULT_TIME_TO_LIVE);
+
+            log.info("init() - maxConnections: {} maxPerRoute: {} connectTimeout: {} ms socketTimeout: {} ms " +
+                            "leaseTimeout: {} ms idleTimeout: {} s timeToLive: {} s",
+                    new Object[]{maxConnections, maxPerRoute, connectTimeout, socketTimeout,
+                            leaseTimeout, idleTimeout, timeToLive});
+
+            closeClient();
+        }
+    }
+
+
+    /**
+     * @return The shared client, building it if needed. Callers must close the responses they get
+     * from it (which returns the connection to the pool) but must never close the client itself. Callers
+     * should use {@link #execute(HttpUriRequest, CredentialsProvider)}, which keeps their credentials and
+     * cookies to themselves.
+     */
+    public static CloseableHttpClient getClient() {
+        synchronized (lock) {
+            if (client == null) {
+                connectionManager = timeToLive > 0 ?
+                        new PoolingHttpClientConnectionManager(timeToLive, TimeUnit.SECONDS) :
+                        new PoolingHttpClientConnectionManager();
+                connectionManager.setMaxTotal(maxConnections);
+                connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+                RequestConfig requestConfig = RequestConfig.custom()
+                        .setRedirectsEnabled(true)
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout(leaseTimeout)
+                        .setSocketTimeout(socketTimeout)
+                        .build();
+
+                client = HttpClients.custom()
+                        .setConnectionManager(connectionManager)
+                        .setDefaultRequestConfig(requestConfig)
+                        .evictExpiredConnections()
+                        .evictIdleConnections((long) idleTimeout, TimeUnit.SECONDS)
+                        .build();
+                log.debug("getClient() - Built the shared HTTP client.");
+            }
+            return client;
+        }
+    }
+
+
+    /**
+     * Executes the request with the shared client.
+     *
+     * @param request The request to execute.
+     * @param credentialsProvider Credentials to use for this request, may be null.
+     * @return The response. The caller must close it.
+     * @throws IOException When the request can't be completed.
+     */
+    public static CloseableHttpResponse execute(HttpUriRequest request, CredentialsProvider credentialsProvider)
+            throws IOException {
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(new BasicCookieStore());
+        if (credentialsProvider != null)
+            context.setCredentialsProvider(credentialsProvider);
+
+        requests.incrementAndGet();
+        long start = REQUEST_TIMER.start();
+        try {
+            return getClient().execute(request, context);
+        }
+        catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+        finally {
+            REQUEST_TIMER.stop(start);
+        }
+    }
+
+
+    /**
+     * Shuts down the shared client and closes all of its pooled connections. The client will be rebuilt if it
+     * is used again.
+     */
+    public static void destroy() {
+        synchronized (lock) {
+            closeClient();
+        }
+    }
+
+
+    /**
+     * @return Connection pool totals, or null if the client hasn't been built.
+     */
+    public static PoolStats getPoolStats() {
+        synchronized (lock) {
+            return connectionManager == null ? null : connectionManager.getTotalStats();
+        }
+    }
+
+    public static long getRequestCount() {
+        return requests.get();
+    }
+
+    public static long getFailureCount() {
+        return failures.get();
+    }
+
+
+    /**
+     * Writes the pool metrics in the Prometheus text exposition format.
+     *
+     * @param sb The metrics are appended to this.
+     */
+    public static void writeMetrics(StringBuilder sb) {
+        PoolStats stats = getPoolStats();
+        int leased = 0, available = 0, pending = 0, max = maxConnections;
+        if (stats != null) {
+            leased = stats.getLeased();
+            available = stats.getAvailable();
+            pending = stats.getPending();
+            max = stats.getMax();
+        }
+        sb.append("# HELP olfs_http_client_connections Connections in the outbound HTTP connection pool.\n");
+        sb.append("# TYPE olfs_http_client_connections gauge\n");
+        sb.append("olfs_http_client_connections{state=\"leased\"} ").append(leased).append("\n");
+        sb.append("olfs_http_client_connections{state=\"available\"} ").append(available).append("\n");
+        sb.append("olfs_http_client_connections{state=\"pending\"} ").append(pending).append("\n");
+        sb.append("olfs_http_client_connections{state=\"max\"} ").append(max).append("\n");
+        sb.append("# HELP olfs_http_client_requests_total Requests made with the outbound HTTP client.\n");
+        sb.append("# TYPE olfs_http_client_requests_total counter\n");
+        sb.append("olfs_http_client_requests_total ").append(requests.get()).append("\n");
+        sb.append("# HELP olfs_http_client_failures_total Outbound HTTP requests that failed without a response.\n");
+        sb.append("# TYPE olfs_http_client_failures_total counter\n");
+        sb.append("olfs_http_client_failures_total ").append(failures.get()).append("\n");
+    }
+
+
+    private static void closeClient() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("closeClient() - Failed to close the shared HTTP client. Msg: {}", e.getMessage());
+            }
+            client = null;
+            connectionManager = null;
+        }
+    }
+
+    private static int getNonNegativeInt(Element config, String attrName, int defaultValue) {
+        int value = getInt(config, attrName, defaultValue);
+        if (value < 0) {
+            log.error("The {} attribute of {} may not be negative. Using the default value {}",
+                    new Object[]{attrName, CONFIG_ELEMENT, defaultValue});
+            return defaultValue;
+        }
+        return value;
+    }
+
+    private static int getPositiveInt(Element config, String attrName, int defaultValue) {
+        int value = getInt(config, attrName, defaultValue);
+        if (value < 1) {
+            log.error("The {} attribute of {} must be greater than zero. Using the default value {}",
+                    new Object[]{attrName, CONFIG_ELEMENT, defaultValue});
+            return defaultValue;
+        }
+        return value;
+    }
+
+    private static int getInt(Element config, String attrName, int defaultValue) {
+        if (config == null)
+            return defaultValue;
+        String s = config.getAttributeValue(attrName);
+        if (s == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            log.error("Unable to parse the {} attribute of {} ('{}'). Using the default value {}",
+                    new Object[]{attrName, CONFIG_ELEMENT, s, defaultValue});
+            return defaultValue;
+        }
+    }
+}
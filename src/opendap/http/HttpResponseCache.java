@@ -0,0 +1,684 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HeaderElement;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.util.EntityUtils;
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client side cache of the responses to the HTTP GET and HEAD requests the OLFS makes for remote metadata
+ * (the DMR of a remote dataset, the HEAD of a gateway data source, etc.).
+ *
+ * A cached response is used without contacting the remote server for as long as it is fresh, as determined by
+ * the response's Cache-Control (max-age, no-cache, no-store, must-revalidate) and Expires headers. When neither
+ * is present the freshness lifetime is taken to be 10% of the time since the resource's Last-Modified date, but
+ * no more than the configured heuristicTtl. Once a response is stale it's revalidated with If-None-Match and
+ * If-Modified-Since, so an unchanged resource costs a 304 and no body. If the revalidation fails with an I/O
+ * error or a 5xx response the stale response is used, unless it was marked must-revalidate.
+ *
+ * Only 200 responses are stored. Responses are kept in a size bounded memory tier and, when a directory is
+ * configured, a size bounded disk tier that survives restarts. Both evict the least recently used responses
+ * first. Concurrent requests for the same resource are coalesced so that they make a single trip to the
+ * remote server and share its response. Requests for other resources are not held up by it.
+ *
+ * The cache can be configured from olfs.xml:
+ * <pre>
+ *     &lt;HttpCache memorySize="16777216" diskSize="268435456" maxEntrySize="4194304" heuristicTtl="300" /&gt;
+ * </pre>
+ * Sizes are in bytes and heuristicTtl is in seconds. A memorySize or diskSize of zero disables that tier. The
+ * disk tier is kept in the directory named by the optional directory attribute, or in the default directory
+ * supplied by the servlet. Until init() is called the cache is memory only.
+ */
+public class HttpResponseCache {
+
+    public static final String CONFIG_ELEMENT = "HttpCache";
+
+    private static final long DEFAULT_MEMORY_SIZE = 16L * 1024 * 1024;
+    private static final long DEFAULT_DISK_SIZE = 256L * 1024 * 1024;
+    private static final long DEFAULT_MAX_ENTRY_SIZE = 4L * 1024 * 1024;
+    private static final long DEFAULT_HEURISTIC_TTL = 300;
+
+    // Memory accounted to a cached response in addition to its body.
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private static final Logger log = LoggerFactory.getLogger(HttpResponseCache.class);
+
+    private static volatile HttpResponseCache instance = null;
+
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong revalidations = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+    private static final AtomicLong staleResponses = new AtomicLong(0);
+
+    private final long maxMemorySize;
+    private final long maxEntrySize;
+    private final long heuristicTtl;
+
+    private final LinkedHashMap<String, Response> memory;
+    private long memorySize;
+
+    private final HttpResponseDiskStore disk;
+
+    // The requests being made of remote servers, by cache key. Others that want the same response wait for these.
+    private final ConcurrentHashMap<String, FutureTask<Response>> inFlight;
+
+
+    private HttpResponseCache(long maxMemorySize, long maxEntrySize, long heuristicTtl, HttpResponseDiskStore disk) {
+        this.maxMemorySize = maxMemorySize;
+        this.maxEntrySize = maxEntrySize;
+        this.heuristicTtl = heuristicTtl;
+        this.disk = disk;
+        memory = new LinkedHashMap<>(16, 0.75f, true);
+        memorySize = 0;
+        inFlight = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Configures the cache from the HttpCache element, replacing any responses that were cached in memory.
+     *
+     * @param config The HttpCache element from olfs.xml, may be null in which case the defaults are used.
+     * @param defaultDirectory The directory for the disk tier when the element doesn't name one. May be null,
+     *                         in which case the disk tier is only used if the element names a directory.
+     */
+    public static void init(Element config, File defaultDirectory) {
+        long memorySize = getNonNegativeLong(config, "memorySize", DEFAULT_MEMORY_SIZE);
+        long diskSize = getNonNegativeLong(config, "diskSize", DEFAULT_DISK_SIZE);
+        long maxEntrySize = getNonNegativeLong(config, "maxEntrySize", DEFAULT_MAX_ENTRY_SIZE);
+        long heuristicTtl = getNonNegativeLong(config, "heuristicTtl", DEFAULT_HEURISTIC_TTL);
+
+        File directory = defaultDirectory;
+        if (config != null && config.getAttributeValue("directory") != null)
+            directory = new File(config.getAttributeValue("directory"));
+
+        HttpResponseDiskStore disk = null;
+        if (diskSize > 0 && directory != null) {
+            try {
+                disk = new HttpResponseDiskStore(directory, diskSize);
+            } catch (IOException e) {
+                log.error("init() - Unable to use {} for the HTTP response cache, only the memory tier will " +
+                        "be used. Msg: {}", directory, e.getMessage());
+            }
+        }
+        log.info("init() - memorySize: {} bytes diskSize: {} bytes maxEntrySize: {} bytes heuristicTtl: {} s " +
+                        "directory: {}",
+                new Object[]{memorySize, disk == null ? 0 : diskSize, maxEntrySize, heuristicTtl,
+                        disk == null ? "none" : directory});
+
+        instance = new HttpResponseCache(memorySize, maxEntrySize, heuristicTtl, disk);
+    }
+
+
+    private static HttpResponseCache getInstance() {
+        HttpResponseCache cache = instance;
+        if (cache == null) {
+            synchronized (HttpResponseCache.class) {
+                if (instance == null)
+                    instance = new HttpResponseCache(DEFAULT_MEMORY_SIZE, DEFAULT_MAX_ENTRY_SIZE,
+                            DEFAULT_HEURISTIC_TTL, null);
+                cache = instance;
+            }
+        }
+        return cache;
+    }
+
+
+    /**
+     * GETs the resource at url, by way of the cache.
+     *
+     * @param url The resource to retrieve.
+     * @param credentialsProvider Credentials to use if the remote server requires authentication, may be null.
+     * @param variant Distinguishes responses to the same URL that must not be shared, for instance because
+     *                they were retrieved with different credentials. May be null.
+     * @return The response. Responses other than 200 are returned (but not cached) so the caller can
+     * report them.
+     * @throws IOException When the resource can't be retrieved and there's no usable cached response.
+     */
+    public static Response get(String url, CredentialsProvider credentialsProvider, String variant)
+            throws IOException {
+        return getInstance().fetch(true, url, credentialsProvider, variant);
+    }
+
+
+    /**
+     * Makes a HEAD request for the resource at url, by way of the cache.
+     *
+     * @see #get(String, CredentialsProvider, String)
+     */
+    public static Response head(String url, CredentialsProvider credentialsProvider, String variant)
+            throws IOException {
+        return getInstance().fetch(false, url, credentialsProvider, variant);
+    }
+
+
+    private Response fetch(final boolean isGet, final String url, final CredentialsProvider credentialsProvider,
+                           String variant) throws IOException {
+
+        final String key = (isGet ? "GET " : "HEAD ") + url + (variant == null ? "" : " " + variant);
+
+        Response cached = lookup(key);
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        FutureTask<Response> task = new FutureTask<>(new Callable<Response>() {
+            @Override
+            public Response call() throws IOException {
+                return retrieve(isGet, url, credentialsProvider, key);
+            }
+        });
+        FutureTask<Response> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            log.debug("fetch() - Waiting for the in-flight request for {}", key);
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+
+    /**
+     * Makes the request for key of the remote server, revalidating the cached response if there is one, and
+     * stores the result. Only one thread at a time does this for a given key, see fetch().
+     */
+    private Response retrieve(boolean isGet, String url, CredentialsProvider credentialsProvider, String key)
+            throws IOException {
+
+        // A retrieval that finished just before this one started may have stored a fresh response.
+        Response cached = lookup(key);
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        HttpRequestBase request = isGet ? new HttpGet(url) : new HttpHead(url);
+        if (cached != null) {
+            if (cached.etag != null)
+                request.setHeader(HttpHeaders.IF_NONE_MATCH, cached.etag);
+            if (cached.lastModifiedHeader != null)
+                request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModifiedHeader);
+        }
+
+        CloseableHttpResponse resp;
+        try {
+            resp = HttpClientPool.execute(request, credentialsProvider);
+        } catch (IOException e) {
+            if (cached != null && !cached.mustRevalidate) {
+                staleResponses.incrementAndGet();
+                log.warn("retrieve() - Unable to revalidate {}, using the stale response. Msg: {}", url,
+                        e.getMessage());
+                return cached;
+            }
+            throw e;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            int status = resp.getStatusLine().getStatusCode();
+
+            if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                revalidations.incrementAndGet();
+                Response revalidated = cached.revalidate(resp, now, heuristicTtl);
+                store(key, revalidated);
+                return revalidated;
+            }
+            if (status >= 500 && cached != null && !cached.mustRevalidate) {
+                EntityUtils.consume(resp.getEntity());
+                staleResponses.incrementAndGet();
+                log.warn("retrieve() - Revalidation of {} failed with status {}, using the stale response.",
+                        url, status);
+                return cached;
+            }
+
+            misses.incrementAndGet();
+            byte[] body = null;
+            HttpEntity entity = resp.getEntity();
+            if (isGet)
+                body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+            else
+                EntityUtils.consume(entity);
+
+            Response response = new Response(resp, status, body, now, heuristicTtl);
+            if (response.isStorable(now) && response.getSize() <= maxEntrySize)
+                store(key, response);
+            else
+                remove(key);
+            return response;
+        } finally {
+            resp.close();
+        }
+    }
+
+
+    private Response lookup(String key) {
+        synchronized (memory) {
+            Response response = memory.get(key);
+            if (response != null)
+                return response;
+        }
+        if (disk == null)
+            return null;
+
+        Response response = disk.get(key);
+        if (response != null)
+            putInMemory(key, response);
+        return response;
+    }
+
+    private void store(String key, Response response) {
+        putInMemory(key, response);
+        if (disk != null)
+            disk.put(key, response);
+    }
+
+    private void remove(String key) {
+        synchronized (memory) {
+            Response previous = memory.remove(key);
+            if (previous != null)
+                memorySize -= previous.getSize() + ENTRY_OVERHEAD;
+        }
+        if (disk != null)
+            disk.remove(key);
+    }
+
+    private void putInMemory(String key, Response response) {
+        long size = response.getSize() + ENTRY_OVERHEAD;
+        synchronized (memory) {
+            Response previous = memory.remove(key);
+            if (previous != null)
+                memorySize -= previous.getSize() + ENTRY_OVERHEAD;
+            if (size > maxMemorySize)
+                return;
+
+            memory.put(key, response);
+            memorySize += size;
+
+            Iterator<Map.Entry<String, Response>> it = memory.entrySet().iterator();
+            while (memorySize > maxMemorySize && it.hasNext()) {
+                Map.Entry<String, Response> eldest = it.next();
+                memorySize -= eldest.getValue().getSize() + ENTRY_OVERHEAD;
+                it.remove();
+            }
+        }
+    }
+
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static long getStaleResponseCount() {
+        return staleResponses.get();
+    }
+
+
+    /**
+     * Writes the cache metrics in the Prometheus text exposition format.
+     *
+     * @param sb The metrics are appended to this.
+     */
+    public static void writeMetrics(StringBuilder sb) {
+        HttpResponseCache cache = getInstance();
+        long memoryBytes;
+        synchronized (cache.memory) {
+            memoryBytes = cache.memorySize;
+        }
+        sb.append("# HELP olfs_http_cache_requests_total Remote metadata requests answered by the HTTP cache, by outcome.\n");
+        sb.append("# TYPE olfs_http_cache_requests_total counter\n");
+        sb.append("olfs_http_cache_requests_total{outcome=\"hit\"} ").append(hits.get()).append("\n");
+        sb.append("olfs_http_cache_requests_total{outcome=\"revalidated\"} ").append(revalidations.get()).append("\n");
+        sb.append("olfs_http_cache_requests_total{outcome=\"miss\"} ").append(misses.get()).append("\n");
+        sb.append("olfs_http_cache_requests_total{outcome=\"stale\"} ").append(staleResponses.get()).append("\n");
+        sb.append("# HELP olfs_http_cache_bytes Size of the HTTP cache tiers.\n");
+        sb.append("# TYPE olfs_http_cache_bytes gauge\n");
+        sb.append("olfs_http_cache_bytes{tier=\"memory\"} ").append(memoryBytes).append("\n");
+        sb.append("olfs_http_cache_bytes{tier=\"disk\"} ")
+                .append(cache.disk == null ? 0 : cache.disk.getCurrentSize()).append("\n");
+    }
+
+
+    private static long getNonNegativeLong(Element config, String attrName, long defaultValue) {
+        if (config == null)
+            return defaultValue;
+        String s = config.getAttributeValue(attrName);
+        if (s == null)
+            return defaultValue;
+        try {
+            long value = Long.parseLong(s.trim());
+            if (value >= 0)
+                return value;
+        } catch (NumberFormatException e) {
+            // Fall through and complain.
+        }
+        log.error("The {} attribute of {} must be a non-negative integer, not '{}'. Using the default value {}",
+                new Object[]{attrName, CONFIG_ELEMENT, s, defaultValue});
+        return defaultValue;
+    }
+
+
+    /**
+     * A response from a remote server, along with the information needed to decide if it may be reused. Instances
+     * are immutable and shared between threads, so the body must not be modified.
+     */
+    public static class Response {
+
+        private static final int FORMAT_VERSION = 1;
+
+        private final int status;
+        private final String etag;
+        private final String lastModifiedHeader;
+        private final String contentType;
+        private final long contentLength;
+        private final byte[] body;
+        private final long freshUntil;
+        private final boolean noStore;
+        private final boolean mustRevalidate;
+
+        private Response(int status, String etag, String lastModifiedHeader, String contentType,
+                         long contentLength, byte[] body, long freshUntil, boolean noStore, boolean mustRevalidate) {
+            this.status = status;
+            this.etag = etag;
+            this.lastModifiedHeader = lastModifiedHeader;
+            this.contentType = contentType;
+            this.contentLength = contentLength;
+            this.body = body;
+            this.freshUntil = freshUntil;
+            this.noStore = noStore;
+            this.mustRevalidate = mustRevalidate;
+        }
+
+        private Response(HttpResponse resp, int status, byte[] body, long now, long heuristicTtl) {
+            this.status = status;
+            this.etag = getHeaderValue(resp, HttpHeaders.ETAG);
+            this.lastModifiedHeader = getHeaderValue(resp, HttpHeaders.LAST_MODIFIED);
+            this.contentType = getHeaderValue(resp, HttpHeaders.CONTENT_TYPE);
+            this.body = body;
+
+            long length = -1;
+            String s = getHeaderValue(resp, HttpHeaders.CONTENT_LENGTH);
+            if (s != null) {
+                try {
+                    length = Long.parseLong(s.trim());
+                } catch (NumberFormatException e) {
+                    log.debug("Response() - Ignoring invalid Content-Length: {}", s);
+                }
+            }
+            if (length < 0 && body != null)
+                length = body.length;
+            this.contentLength = length;
+
+            Freshness freshness = new Freshness(resp, lastModifiedHeader, now, heuristicTtl);
+            this.freshUntil = freshness.freshUntil;
+            this.noStore = freshness.noStore;
+            this.mustRevalidate = freshness.mustRevalidate;
+        }
+
+        /**
+         * @return A copy of this response with its freshness (and any validators) updated by the headers of the
+         * 304 response to a revalidation.
+         */
+        private Response revalidate(HttpResponse notModified, long now, long heuristicTtl) {
+            String newEtag = getHeaderValue(notModified, HttpHeaders.ETAG);
+            String newLastModified = getHeaderValue(notModified, HttpHeaders.LAST_MODIFIED);
+            String lmt = newLastModified != null ? newLastModified : lastModifiedHeader;
+            Freshness freshness = new Freshness(notModified, lmt, now, heuristicTtl);
+            return new Response(status, newEtag != null ? newEtag : etag, lmt, contentType, contentLength, body,
+                    freshness.freshUntil, freshness.noStore, freshness.mustRevalidate || mustRevalidate);
+        }
+
+        private boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        private boolean isStorable(long now) {
+            return status == HttpStatus.SC_OK && !noStore &&
+                    (freshUntil > now || etag != null || lastModifiedHeader != null);
+        }
+
+        private long getSize() {
+            return body == null ? 0 : body.length;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return The Last-Modified time of the resource, in ms since the epoch, or -1 if it isn't known.
+         */
+        public long getLastModified() {
+            if (lastModifiedHeader == null)
+                return -1;
+            Date date = DateUtils.parseDate(lastModifiedHeader);
+            return date == null ? -1 : date.getTime();
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return The Content-Length of the resource, or -1 if it isn't known.
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * @return The body of a GET response, or null for a HEAD response. Don't modify it.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        public void writeBody(OutputStream os) throws IOException {
+            if (body != null)
+                os.write(body);
+        }
+
+        void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(status);
+            writeString(dos, etag);
+            writeString(dos, lastModifiedHeader);
+            writeString(dos, contentType);
+            dos.writeLong(contentLength);
+            dos.writeLong(freshUntil);
+            dos.writeBoolean(mustRevalidate);
+            if (body == null) {
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(body.length);
+                dos.write(body);
+            }
+        }
+
+        static Response read(DataInputStream dis) throws IOException {
+            int version = dis.readInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported cache file version " + version);
+            int status = dis.readInt();
+            String etag = readString(dis);
+            String lastModifiedHeader = readString(dis);
+            String contentType = readString(dis);
+            long contentLength = dis.readLong();
+            long freshUntil = dis.readLong();
+            boolean mustRevalidate = dis.readBoolean();
+            int bodyLength = dis.readInt();
+            byte[] body = null;
+            if (bodyLength >= 0) {
+                body = new byte[bodyLength];
+                dis.readFully(body);
+            }
+            return new Response(status, etag, lastModifiedHeader, contentType, contentLength, body, freshUntil,
+                    false, mustRevalidate);
+        }
+
+        private static void writeString(DataOutputStream dos, String s) throws IOException {
+            dos.writeBoolean(s != null);
+            if (s != null)
+                dos.writeUTF(s);
+        }
+
+        private static String readString(DataInputStream dis) throws IOException {
+            return dis.readBoolean() ? dis.readUTF() : null;
+        }
+
+        private static String getHeaderValue(HttpResponse resp, String name) {
+            Header header = resp.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+    }
+
+
+    /**
+     * Works out how long a response stays fresh from its Cache-Control, Expires, Date, Age and Last-Modified
+     * headers.
+     */
+    private static class Freshness {
+
+        long freshUntil;
+        boolean noStore;
+        boolean mustRevalidate;
+
+        Freshness(HttpResponse resp, String lastModifiedHeader, long now, long heuristicTtl) {
+            long maxAge = -1;
+            boolean noCache = false;
+            for (Header header : resp.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+                for (HeaderElement element : header.getElements()) {
+                    String name = element.getName().toLowerCase();
+                    if (name.equals("no-store")) {
+                        noStore = true;
+                    } else if (name.equals("no-cache")) {
+                        noCache = true;
+                    } else if (name.equals("must-revalidate") || name.equals("proxy-revalidate")) {
+                        mustRevalidate = true;
+                    } else if (name.equals("max-age") && element.getValue() != null) {
+                        try {
+                            maxAge = Long.parseLong(element.getValue().trim());
+                        } catch (NumberFormatException e) {
+                            // An invalid max-age means the response is stale.
+                            maxAge = 0;
+                        }
+                    }
+                }
+            }
+
+            Date date = parseDateHeader(resp, HttpHeaders.DATE);
+            long serverNow = date == null ? now : date.getTime();
+
+            long lifetime;
+            if (noCache) {
+                lifetime = 0;
+            } else if (maxAge >= 0) {
+                lifetime = maxAge * 1000;
+            } else if (resp.getFirstHeader(HttpHeaders.EXPIRES) != null) {
+                // An invalid Expires date means the response is already expired.
+                Date expires = parseDateHeader(resp, HttpHeaders.EXPIRES);
+                lifetime = expires == null ? 0 : Math.max(0, expires.getTime() - serverNow);
+            } else {
+                Date lastModified = lastModifiedHeader == null ? null : DateUtils.parseDate(lastModifiedHeader);
+                lifetime = lastModified == null ? 0 :
+                        Math.min(Math.max(0, serverNow - lastModified.getTime()) / 10, heuristicTtl * 1000);
+            }
+
+            long age = 0;
+            Header ageHeader = resp.getFirstHeader(HttpHeaders.AGE);
+            if (ageHeader != null) {
+                try {
+                    age = Math.max(0, Long.parseLong(ageHeader.getValue().trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    log.debug("Freshness() - Ignoring invalid Age: {}", ageHeader.getValue());
+                }
+            }
+            freshUntil = now + lifetime - age;
+        }
+
+        private static Date parseDateHeader(HttpResponse resp, String name) {
+            Header header = resp.getFirstHeader(name);
+            return header == null ? null : DateUtils.parseDate(header.getValue());
+        }
+    }
+}
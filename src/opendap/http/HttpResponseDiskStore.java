@@ -0,0 +1,134 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.http;
+
+import opendap.bes.caching.LruFileStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The disk tier of the {@link HttpResponseCache}.
+ *
+ * Each response is held in its own file of an {@link LruFileStore}, named by the SHA-256 hash of its cache key.
+ * The key is also stored in the file and checked when it's read. When the files exceed the maximum size the least
+ * recently used ones are deleted. Callers serialize writes of the same key.
+ */
+class HttpResponseDiskStore {
+
+    private static final String SUFFIX = ".http";
+
+    private Logger _log;
+
+    private LruFileStore _store;
+
+    /**
+     * @param dir The directory in which to keep the files. It is created if it doesn't exist. Files already in
+     *            it are adopted.
+     * @param maxSize The maximum number of bytes to keep on disk.
+     * @throws IOException When the directory can't be created or written.
+     */
+    HttpResponseDiskStore(File dir, long maxSize) throws IOException {
+        _log = LoggerFactory.getLogger(getClass());
+        _store = new LruFileStore(dir, SUFFIX, maxSize);
+    }
+
+    /**
+     * @return The stored response for the key, or null if there isn't one (or it can't be read).
+     */
+    HttpResponseCache.Response get(String key) {
+        String name = fileName(key);
+        File file = _store.getFile(name);
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!key.equals(dis.readUTF()))
+                return null;
+            HttpResponseCache.Response response = HttpResponseCache.Response.read(dis);
+            _store.touch(name);
+            return response;
+        } catch (IOException e) {
+            // Pruned out from under us, or damaged.
+            _log.debug("get() - Unable to read {} msg: {}", file, e.getMessage());
+            _store.remove(name);
+            return null;
+        }
+    }
+
+    void put(String key, HttpResponseCache.Response response) {
+        String name = fileName(key);
+        File tmpFile = null;
+        try {
+            tmpFile = _store.createTempFile(name);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                dos.writeUTF(key);
+                response.write(dos);
+            }
+            _store.commit(tmpFile, name);
+        } catch (IOException e) {
+            _log.warn("put() - Unable to write {} msg: {}", _store.getFile(name), e.getMessage());
+        } finally {
+            if (tmpFile != null && tmpFile.exists() && !tmpFile.delete())
+                _log.warn("Unable to delete temporary file {}", tmpFile);
+        }
+    }
+
+    void remove(String key) {
+        _store.remove(fileName(key));
+    }
+
+    long getCurrentSize() {
+        return _store.getCurrentSize();
+    }
+
+    private static String fileName(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
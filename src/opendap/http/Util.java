@@ -35,8 +35,6 @@ import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -98,12 +96,8 @@ public class Util {
     static public void writeRemoteContent(String url, CredentialsProvider _credsProvider, OutputStream os) throws IOException {
         _log.debug("writeRemoteContent() - URL: {}", url);
 
-        CloseableHttpClient httpclient = HttpClients.custom()
-                .setDefaultCredentialsProvider(_credsProvider)
-                .build();
-
         HttpGet httpGet = new HttpGet(url);
-        CloseableHttpResponse resp = httpclient.execute(httpGet);
+        CloseableHttpResponse resp = HttpClientPool.execute(httpGet, _credsProvider);
         try {
             _log.debug("writeRemoteContent() - HTTP STATUS: {}", resp.getStatusLine());
             HttpEntity entity1 = resp.getEntity();
@@ -136,17 +130,11 @@ public class Util {
 
         _log.debug("Retrieving URL: "+url);
 
-        // GetMethod contentRequest = new GetMethod(url);
         HttpGet contentRequest = new HttpGet(url);
-        //InputStream is = null;
-        try {
 
-            CloseableHttpClient httpClient = HttpClients.custom()
-                    .setDefaultCredentialsProvider(credentialsProvider)
-                    .build();
-
-            // Execute the method.
-            CloseableHttpResponse resp = httpClient.execute(contentRequest);
+        // Execute the method.
+        CloseableHttpResponse resp = HttpClientPool.execute(contentRequest, credentialsProvider);
+        try {
             // Did it work?
             StatusLine status = resp.getStatusLine();
             if (status.getStatusCode() != HttpStatus.SC_OK) {
@@ -178,7 +166,7 @@ public class Util {
         }
         finally {
             _log.debug("Releasing Http connection.");
-            contentRequest.releaseConnection();
+            resp.close();
         }
     }
 
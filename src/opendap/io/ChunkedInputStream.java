@@ -25,6 +25,7 @@
  */
 package opendap.io;
 
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 
 import java.io.IOException;
@@ -38,11 +39,41 @@ import java.io.OutputStream;
  */
 public class ChunkedInputStream  {
 
+    /**
+     * Controls when readChunkedMessage() flushes the OutputStream it is
+     * writing to.
+     */
+    public enum FlushPolicy {
+        /** Flush after every chunk is written. (The historical behavior) */
+        CHUNK,
+        /** Flush each time the coalescing buffer is written. */
+        BUFFER,
+        /** Only flush once the entire message has been written. */
+        MESSAGE;
+
+        /**
+         * @param s A FlushPolicy name, in any case.
+         * @return The matching FlushPolicy or null if there isn't one.
+         */
+        public static FlushPolicy fromString(String s){
+            for(FlushPolicy fp : values()){
+                if(fp.name().equalsIgnoreCase(s))
+                    return fp;
+            }
+            return null;
+        }
+    }
+
     private Logger log;
 
     private static int defaultBufferSize = 10240;
     private static int MaxBufferSize = 16777216;
 
+    // The streaming settings used by new instances. The defaults preserve the
+    // original write and flush every chunk behavior.
+    private static volatile int defaultCoalesceBufferSize = 0;
+    private static volatile FlushPolicy defaultFlushPolicy = FlushPolicy.CHUNK;
+
     protected InputStream is;
     protected boolean isClosed;
 
@@ -57,6 +88,9 @@ public class ChunkedInputStream  {
 
     private int currentChunkType;
 
+    private int coalesceBufferSize;
+    private FlushPolicy flushPolicy;
+
     //private ChunkProtocol chunkProtocol;
 
 
@@ -75,10 +109,48 @@ public class ChunkedInputStream  {
             currentChunkType   = Chunk.DATA;
             isClosed           = false;
             largestChunkDataSize = 0;
-            chunkBuffer = new byte[defaultBufferSize];
+            coalesceBufferSize = defaultCoalesceBufferSize;
+            flushPolicy = defaultFlushPolicy;
+            chunkBuffer = new byte[Math.max(defaultBufferSize, coalesceBufferSize)];
         }
 
 
+    /**
+     * Sets the streaming behavior of ChunkedInputStream instances created
+     * after this call.
+     *
+     * When coalesceBufferSize is larger than zero the data from consecutive
+     * DATA chunks are collected in a buffer of (at least) that size and only
+     * written to the target OutputStream when the buffer is full, when an
+     * extension chunk arrives, or when the message ends. This turns the many
+     * small chunks sent by the BES into a few large writes.
+     *
+     * @param coalesceBufferSize The size, in bytes, of the coalescing buffer.
+     *                           Values of zero or less disable coalescing.
+     * @param flushPolicy When to flush the target OutputStream.
+     */
+    public static void setStreamingPolicy(int coalesceBufferSize, FlushPolicy flushPolicy) {
+        if(coalesceBufferSize > MaxBufferSize)
+            coalesceBufferSize = MaxBufferSize;
+        defaultCoalesceBufferSize = Math.max(0, coalesceBufferSize);
+        defaultFlushPolicy = flushPolicy==null ? FlushPolicy.CHUNK : flushPolicy;
+    }
+
+    /**
+     * @return The size of the coalescing buffer used by new instances.
+     */
+    public static int getCoalesceBufferSize(){
+        return defaultCoalesceBufferSize;
+    }
+
+    /**
+     * @return The FlushPolicy used by new instances.
+     */
+    public static FlushPolicy getFlushPolicy(){
+        return defaultFlushPolicy;
+    }
+
+
 
     /**
      * Reads the next chunk header.
@@ -197,6 +269,13 @@ public class ChunkedInputStream  {
         String extensionContent;
         long totalBytesReadInMessage = 0;
 
+        // The number of DATA bytes waiting in chunkBuffer to be written to
+        // the pendingStream.
+        int pending = 0;
+        OutputStream pendingStream = null;
+
+        MessageStats stats = new MessageStats();
+
         log.debug("BEGIN");
 
         while(moreData && !isClosed){
@@ -217,6 +296,14 @@ public class ChunkedInputStream  {
                     moreData = false;
                 }
                 else {
+                    stats.chunks++;
+
+                    // Extensions may change the target stream, so the data
+                    // collected so far goes to the stream it was meant for.
+                    if(getCurrentChunkType()!=Chunk.DATA || pending + currentChunkDataSize > chunkBuffer.length){
+                        writePending(pendingStream, pending, flushPolicy!=FlushPolicy.MESSAGE, stats);
+                        pending = 0;
+                    }
 
                     // Check to see if the chunk size is bigger than the buffer
                     if(chunkBuffer.length < currentChunkDataSize){
@@ -243,8 +330,8 @@ public class ChunkedInputStream  {
             else {
 
                 try {
-                    // read the chunk body
-                    bytesReceived = Chunk.readFully(is, chunkBuffer, 0, availableInChunk());
+                    // read the chunk body, after any data that is waiting to be written.
+                    bytesReceived = Chunk.readFully(is, chunkBuffer, pending, availableInChunk());
                 } catch (IOException e) {
                     String msg = "ERROR! Failed to read ChunkBody. msg: "+e.getMessage();
                     log.error(msg);
@@ -252,7 +339,7 @@ public class ChunkedInputStream  {
                 }
 
                 log.debug("CurrentChunksize: "+ currentChunkDataSize+ " bytesReceived: "+ bytesReceived);
-                
+
                 // update the read pointer.
                 chunkReadPosition += bytesReceived;
 
@@ -264,13 +351,15 @@ public class ChunkedInputStream  {
                     case Chunk.DATA:
                         // write the data out to the appropriate stream,
                         // depending on the error status.
-                        try {
-                            (isError ? errStream : dStream).write(chunkBuffer, 0, bytesReceived);
-                            (isError ? errStream : dStream).flush();
-                        } catch (IOException e) {
-                            String msg = "ERROR! Failed to write to target OutputStream. msg: "+e.getMessage();
-                            log.error(msg);
-                            throw new IOException(msg,e);
+                        pendingStream = isError ? errStream : dStream;
+                        pending += bytesReceived;
+                        if(coalesceBufferSize <= 0 || pending >= coalesceBufferSize) {
+                            writePending(pendingStream, pending, flushPolicy!=FlushPolicy.MESSAGE, stats);
+                            pending = 0;
+                        }
+                        else if(flushPolicy == FlushPolicy.CHUNK && availableInChunk() <= 0) {
+                            writePending(pendingStream, pending, true, stats);
+                            pending = 0;
                         }
                         break;
 
@@ -298,11 +387,300 @@ public class ChunkedInputStream  {
 
         }
 
-        log.info("END: Message contained {} bytes. (status:{})",totalBytesReadInMessage,isError?"ERROR":"SUCCESS");
+        // Send whatever is left and make sure it all gets out the door.
+        writePending(pendingStream, pending, false, stats);
+        if(stats.writes > 0) {
+            flush(dStream, stats);
+            if (errStream != dStream)
+                flush(errStream, stats);
+        }
+
+        if(log.isInfoEnabled()) {
+            long elapsed = System.nanoTime() - stats.startTime;
+            log.info("END: Message contained {} bytes. (status:{}) {}", new Object[]{totalBytesReadInMessage,
+                    isError ? "ERROR" : "SUCCESS", stats.toString(totalBytesReadInMessage, elapsed)});
+        }
         return !isError;
     }
 
 
+    /**
+     * Opens the next chunked message as an InputStream so that its content
+     * can be consumed (e.g. by an XML parser) as it comes off the wire
+     * instead of first being collected in memory. The DATA chunks are read
+     * straight into the caller's buffer.
+     *
+     * The returned stream reports end of stream at the end of the message,
+     * or as soon as the message signals an error. Once the consumer is done
+     * with it, MessageStream.finish() must be called to read whatever is
+     * left of the message off of the underlying stream.
+     *
+     * @return The message content.
+     */
+    public MessageStream openMessage() {
+        return new MessageStream();
+    }
+
+
+    /**
+     * The content of a single chunked message. See openMessage().
+     */
+    public class MessageStream extends InputStream {
+
+        private boolean isError;
+        private boolean endOfData;
+        private boolean endOfMessage;
+        private long bytesRead;
+        private final MessageStats stats;
+        private final byte[] singleByte;
+
+        private MessageStream() {
+            isError = false;
+            endOfData = false;
+            endOfMessage = false;
+            bytesRead = 0;
+            stats = new MessageStats();
+            singleByte = new byte[1];
+            log.debug("BEGIN");
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(singleByte, 0, 1);
+            return n == -1 ? -1 : singleByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            if (!nextData())
+                return -1;
+
+            int n;
+            try {
+                n = is.read(b, off, Math.min(len, availableInChunk()));
+            } catch (IOException e) {
+                String msg = "ERROR! Failed to read ChunkBody. msg: " + e.getMessage();
+                log.error(msg);
+                throw new IOException(msg, e);
+            }
+            if (n == -1)
+                throw new IOException("ERROR! Encountered end of stream while reading ChunkBody.");
+
+            chunkReadPosition += n;
+            bytesRead += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return endOfData || getCurrentChunkType() != Chunk.DATA ? 0 : availableInChunk();
+        }
+
+        /**
+         * Parsers like to close their input when they are done. The message
+         * is not over until finish() says so, so this does nothing.
+         */
+        @Override
+        public void close() {
+        }
+
+        /**
+         * @return The number of DATA bytes read so far.
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * @return True if the message has signaled an error (so far).
+         */
+        public boolean isError() {
+            return isError;
+        }
+
+        /**
+         * Reads the rest of the message off of the underlying stream. Data the
+         * consumer did not read is discarded, unless it's error content, in
+         * which case it is written to errStream.
+         *
+         * @param errStream The stream into which to transfer error content.
+         * @return False if the message contained an extension with status
+         * equal to error, true otherwise.
+         * @throws IOException When there are problems reading from or
+         * interpreting the chunked message stream.
+         */
+        public boolean finish(OutputStream errStream) throws IOException {
+
+            if (endOfMessage) {
+                if (log.isInfoEnabled()) {
+                    long elapsed = System.nanoTime() - stats.startTime;
+                    log.info("END: Message contained {} bytes. (status:{}) {}", new Object[]{bytesRead,
+                            isError ? "ERROR" : "SUCCESS", stats.toString(bytesRead, elapsed)});
+                }
+                return !isError;
+            }
+
+            // Hand the remainder to readChunkedMessage(), which picks up
+            // in the middle of the current chunk.
+            log.debug("Consumer stopped after {} bytes, reading the rest of the message.", bytesRead);
+            OutputStream rest = isError ? errStream : NullOutputStream.NULL_OUTPUT_STREAM;
+            boolean success = readChunkedMessage(rest, errStream) && !isError;
+            endOfData = true;
+            endOfMessage = true;
+            return success;
+        }
+
+        /**
+         * Moves to the next DATA bytes in the message, processing any
+         * extensions along the way.
+         *
+         * @return True if there are DATA bytes to read, false at the end of
+         * the message or once an error has been signaled.
+         */
+        private boolean nextData() throws IOException {
+            while (!endOfData) {
+                if (availableInChunk() > 0) {
+                    if (getCurrentChunkType() == Chunk.DATA)
+                        return true;
+                    readExtension();
+                }
+                else if (isClosed) {
+                    endOfData = true;
+                    endOfMessage = true;
+                }
+                else {
+                    int ret;
+                    try {
+                        ret = readChunkHeader();
+                    } catch (IOException e) {
+                        String msg = "ERROR! Failed to read ChunkHeader. msg: " + e.getMessage();
+                        log.error(msg);
+                        throw new IOException(msg, e);
+                    }
+                    if (ret == -1 || isLastChunk()) {
+                        endOfData = true;
+                        endOfMessage = true;
+                    }
+                    else {
+                        stats.chunks++;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void readExtension() throws IOException {
+
+            int size = availableInChunk();
+            if (chunkBuffer.length < size) {
+                if (size > MaxBufferSize) {
+                    String msg = "Found a chunk size larger than I support. My max size " +
+                            MaxBufferSize + " bytes, currentChunkDataSize: " + size;
+                    log.error(msg);
+                    throw new IOException(msg);
+                }
+                chunkBuffer = new byte[size];
+            }
+
+            int bytesReceived;
+            try {
+                bytesReceived = Chunk.readFully(is, chunkBuffer, 0, size);
+            } catch (IOException e) {
+                String msg = "ERROR! Failed to read ChunkBody. msg: " + e.getMessage();
+                log.error(msg);
+                throw new IOException(msg, e);
+            }
+            chunkReadPosition += bytesReceived;
+
+            String extensionContent = new String(chunkBuffer, 0, bytesReceived, HyraxStringEncoding.getCharset());
+            try {
+                isError = processExtensionContent(extensionContent) || isError;
+            } catch (IOException e) {
+                String msg = "ERROR! Failed to correctly process ChunkExtension content. msg: " + e.getMessage();
+                log.error(msg);
+                throw new IOException(msg, e);
+            }
+
+            // Anything after an error is error content, not message data.
+            if (isError)
+                endOfData = true;
+        }
+    }
+
+
+    /**
+     * Writes the first pending bytes of chunkBuffer to os.
+     *
+     * @param os The stream to write to. If null nothing is written.
+     * @param pending The number of bytes to write.
+     * @param flush If true, os is flushed after the write.
+     * @param stats The statistics for the current message.
+     * @throws IOException When the write fails.
+     */
+    private void writePending(OutputStream os, int pending, boolean flush, MessageStats stats) throws IOException {
+        if(os==null || pending<=0)
+            return;
+        try {
+            os.write(chunkBuffer, 0, pending);
+            stats.writes++;
+            if(flush) {
+                os.flush();
+                stats.flushes++;
+            }
+        } catch (IOException e) {
+            String msg = "ERROR! Failed to write to target OutputStream. msg: "+e.getMessage();
+            log.error(msg);
+            throw new IOException(msg,e);
+        }
+    }
+
+
+    /**
+     * Flushes os.
+     *
+     * @param os The stream to flush. If null nothing is done.
+     * @param stats The statistics for the current message.
+     * @throws IOException When the flush fails.
+     */
+    private void flush(OutputStream os, MessageStats stats) throws IOException {
+        if(os==null)
+            return;
+        try {
+            os.flush();
+            stats.flushes++;
+        } catch (IOException e) {
+            String msg = "ERROR! Failed to flush target OutputStream. msg: "+e.getMessage();
+            log.error(msg);
+            throw new IOException(msg,e);
+        }
+    }
+
+
+    /**
+     * Per message counters, reported when the message is complete.
+     */
+    private static class MessageStats {
+        long startTime = System.nanoTime();
+        long chunks = 0;
+        long writes = 0;
+        long flushes = 0;
+
+        String toString(long bytes, long elapsedNanos) {
+            double seconds = elapsedNanos / 1.0e9;
+            long bytesPerSecond = seconds > 0 ? (long) (bytes / seconds) : 0;
+            long meanChunkSize = chunks > 0 ? bytes / chunks : 0;
+            return "chunks: " + chunks +
+                    " meanChunkSize: " + meanChunkSize +
+                    " writes: " + writes +
+                    " flushes: " + flushes +
+                    " elapsed: " + (elapsedNanos / 1000000) + " ms" +
+                    " rate: " + bytesPerSecond + " bytes/s";
+        }
+    }
+
 
 
 
@@ -0,0 +1,190 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.logging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named, always-on timers for the phases of request processing (BES
+ * transactions, XSLT, catalogs, authorization, ...). Each timer keeps a
+ * LatencyHistogram of the times recorded against it.
+ * <p/>
+ * Timers are meant to be held in static fields and used like this:
+ * <pre>
+ *     private static final PhaseTimer BES_TIMER = PhaseTimer.named("bes.transaction");
+ *     ...
+ *     long timerStart = BES_TIMER.start();
+ *     try {
+ *         ...
+ *     }
+ *     finally {
+ *         BES_TIMER.stop(timerStart);
+ *     }
+ * </pre>
+ * Starting and stopping a timer allocates nothing.
+ */
+public class PhaseTimer {
+
+    private static final ConcurrentHashMap<String, PhaseTimer> TIMERS = new ConcurrentHashMap<>();
+
+    private static final double[] REPORTED_QUANTILES = {0.5, 0.9, 0.99};
+
+    private final String name;
+    private final LatencyHistogram histogram;
+
+    private PhaseTimer(String name) {
+        this.name = name;
+        histogram = new LatencyHistogram();
+    }
+
+    /**
+     * Returns the timer with the given name, making it if need be.
+     *
+     * @param name The name of the phase, e.g. "bes.transaction".
+     * @return The timer.
+     */
+    public static PhaseTimer named(String name) {
+        PhaseTimer timer = TIMERS.get(name);
+        if (timer == null) {
+            PhaseTimer newTimer = new PhaseTimer(name);
+            timer = TIMERS.putIfAbsent(name, newTimer);
+            if (timer == null)
+                timer = newTimer;
+        }
+        return timer;
+    }
+
+    /**
+     * @return The start time to hand to stop().
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since startTime.
+     *
+     * @param startTime The value returned by start().
+     * @return The elapsed time in nanoseconds.
+     */
+    public long stop(long startTime) {
+        long elapsed = System.nanoTime() - startTime;
+        histogram.record(elapsed);
+        return elapsed;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return All of the timers, sorted by name.
+     */
+    public static List<PhaseTimer> getTimers() {
+        List<PhaseTimer> timers = new ArrayList<>(TIMERS.values());
+        Collections.sort(timers, new Comparator<PhaseTimer>() {
+            @Override
+            public int compare(PhaseTimer a, PhaseTimer b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return timers;
+    }
+
+    /**
+     * Forgets the times recorded by all of the timers.
+     */
+    public static void resetAll() {
+        for (PhaseTimer timer : TIMERS.values()) {
+            timer.histogram.reset();
+        }
+    }
+
+    /**
+     * @return A table of the count, mean, percentiles and maximum of each
+     * timer, in milliseconds, for people to read.
+     */
+    public static String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-32s %10s %10s %10s %10s %10s %10s%n",
+                "phase", "count", "mean_ms", "p50_ms", "p90_ms", "p99_ms", "max_ms"));
+        for (PhaseTimer timer : getTimers()) {
+            LatencyHistogram h = timer.histogram;
+            long count = h.getCount();
+            double mean = count == 0 ? 0 : h.getSum() / (double) count;
+            sb.append(String.format(Locale.US, "%-32s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+                    timer.name, count, millis(mean),
+                    millis(h.getPercentile(0.5)), millis(h.getPercentile(0.9)),
+                    millis(h.getPercentile(0.99)), millis(h.getMax())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the timers in the Prometheus text exposition format, as a
+     * summary named olfs_phase_seconds with a phase label.
+     *
+     * @param sb Where to write the metrics.
+     */
+    public static void writeMetrics(StringBuilder sb) {
+        sb.append("# HELP olfs_phase_seconds Time spent in each phase of OLFS request processing.\n");
+        sb.append("# TYPE olfs_phase_seconds summary\n");
+        for (PhaseTimer timer : getTimers()) {
+            LatencyHistogram h = timer.histogram;
+            String label = "phase=\"" + timer.name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+            for (double q : REPORTED_QUANTILES) {
+                sb.append("olfs_phase_seconds{").append(label).append(",quantile=\"").append(q).append("\"} ")
+                        .append(seconds(h.getPercentile(q))).append('\n');
+            }
+            sb.append("olfs_phase_seconds_sum{").append(label).append("} ").append(seconds(h.getSum())).append('\n');
+            sb.append("olfs_phase_seconds_count{").append(label).append("} ").append(h.getCount()).append('\n');
+        }
+        sb.append("# HELP olfs_phase_max_seconds Longest time spent in each phase of OLFS request processing.\n");
+        sb.append("# TYPE olfs_phase_max_seconds gauge\n");
+        for (PhaseTimer timer : getTimers()) {
+            String label = "phase=\"" + timer.name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+            sb.append("olfs_phase_max_seconds{").append(label).append("} ")
+                    .append(seconds(timer.histogram.getMax())).append('\n');
+        }
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1.0e6;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.US, "%.9f", nanos / 1.0e9);
+    }
+}
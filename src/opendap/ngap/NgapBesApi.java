@@ -478,6 +478,27 @@ public class NgapBesApi extends BesApi implements Cloneable {
         // getBesNodeRemote(dataSource, response);
     }
 
+    /**
+     * The showNode responses made by getBesNodeDummy() always report the
+     * current time as lastModified, so cached metadata responses for
+     * NGAP granules are expired by the BesMetadataCache TTL alone.
+     *
+     * @param dataSource The dataSource
+     * @return -1
+     */
+    @Override
+    public long getMetadataLastModified(String dataSource) {
+        return -1;
+    }
+
+    @Override
+    public Document getSharedBesNode(String dataSource)
+            throws BadConfigurationException, PPTException, JDOMException, IOException, BESError {
+        Document response = new Document();
+        getBesNode(dataSource, response);
+        return response;
+    }
+
     public void getBesNodeDummy(String dataSource, Document response) {
         Element rootElement = new Element("response",BES.BES_NS);
         response.setRootElement(rootElement);
@@ -29,8 +29,7 @@ package opendap.noaa_s3;
 import opendap.bes.BESManager;
 import opendap.coreServlet.*;
 import opendap.logging.LogUtil;
-import opendap.logging.Procedure;
-import opendap.logging.Timer;
+import opendap.logging.PhaseTimer;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -67,6 +66,9 @@ public class S3CatalogServlet extends HttpServlet {
     private static final String defaultCatalogServiceContext = "/catalog";
     private static final String defaultCacheDir = "/tmp/S3";
 
+    private static final PhaseTimer REQUEST_TIMER = PhaseTimer.named("s3.request");
+    private static final PhaseTimer LAST_MODIFIED_TIMER = PhaseTimer.named("s3.lastModified");
+
 
     public S3CatalogServlet() {
         _initialized = false;
@@ -339,7 +341,7 @@ public class S3CatalogServlet extends HttpServlet {
 
     public void doGet(HttpServletRequest request,
                       HttpServletResponse response) {
-        Procedure tKey = Timer.start();
+        long tKey = REQUEST_TIMER.start();
         int status = HttpServletResponse.SC_OK;
         try {
             LogUtil.logServerAccessStart(request, LogUtil.S3_SERVICE_ACCESS_LOG_ID, "HTTP-GET", Integer.toString(_reqNumber.incrementAndGet()));
@@ -379,14 +381,14 @@ public class S3CatalogServlet extends HttpServlet {
         } finally {
             RequestCache.closeThreadCache();
             LogUtil.logServerAccessEnd(status, LogUtil.S3_SERVICE_ACCESS_LOG_ID);
-            Timer.stop(tKey);
+            REQUEST_TIMER.stop(tKey);
         }
     }
 
     public long getLastModified(HttpServletRequest req) {
 
 
-        Procedure tKey = Timer.start();
+        long tKey = LAST_MODIFIED_TIMER.start();
         RequestCache.openThreadCache();
         long reqno = _reqNumber.incrementAndGet();
         long lmt = new Date().getTime();
@@ -406,7 +408,7 @@ public class S3CatalogServlet extends HttpServlet {
             return lmt;
         }
         finally {
-            Timer.stop(tKey);
+            LAST_MODIFIED_TIMER.stop(tKey);
             LogUtil.logServerAccessEnd(HttpServletResponse.SC_OK, LogUtil.S3_SERVICE_LAST_MODIFIED_LOG_ID);
         }
     }
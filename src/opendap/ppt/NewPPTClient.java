@@ -29,6 +29,9 @@ import opendap.bes.BESChunkedOutputStream;
 import opendap.io.ChunkedInputStream;
 import opendap.io.HyraxStringEncoding;
 import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 import org.slf4j.Logger;
@@ -160,6 +163,28 @@ public class NewPPTClient {
         return _mySock!=null && _mySock.isConnected();
     }
 
+    /**
+     * @return The socket read timeout in ms, 0 means wait forever.
+     */
+    public int getReadTimeout() throws PPTException {
+        try {
+            return _mySock.getSoTimeout();
+        } catch (SocketException e) {
+            throw new PPTException("Unable to get socket timeout. Message: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param timeOut The socket read timeout in ms, 0 means wait forever.
+     */
+    public void setReadTimeout(int timeOut) throws PPTException {
+        try {
+            _mySock.setSoTimeout(timeOut);
+        } catch (SocketException e) {
+            throw new PPTException("Unable to set socket timeout. Message: " + e.getMessage(), e);
+        }
+    }
+
 
     public int getChunkReadBufferSize(){
 
@@ -458,27 +483,57 @@ public class NewPPTClient {
 
 
 
-    /*
-
-
-
-    public Document getXMLResponse() throws JDOMException, PPTException {
+    /**
+     * Reads an XML response from the server, parsing it as it arrives.
+     *
+     * @param parser The parser to use.
+     * @param response If the server sends a document its root element
+     * replaces the root element of this Document. If the response is empty
+     * this Document is left alone.
+     * @param errorStream The stream to which to write any errors sent from
+     * the server.
+     * @return False if the server returns an error extension in the message,
+     * true otherwise.
+     * @throws JDOMException When the response isn't well formed XML.
+     * @throws PPTException Stuff happens
+     */
+    public boolean getXMLResponse(SAXBuilder parser, Document response, OutputStream errorStream)
+            throws JDOMException, PPTException {
 
         try {
+            ChunkedInputStream.MessageStream message = _in.openMessage();
 
-            SAXBuilder parser = new SAXBuilder("org.apache.xerces.parsers.SAXParser", true);
-            parser.setFeature("http://apache.org/xml/features/validation/schema", true);
+            Document doc = null;
+            JDOMException parseError = null;
+            try {
+                doc = parser.build(message);
+            }
+            catch (JDOMException e) {
+                parseError = e;
+            }
+
+            // The parser may quit early, but the rest of the message has
+            // to come off the wire before the connection can be reused.
+            if (!message.finish(errorStream))
+                return false;
 
-           return  parser.build(_in);
+            if (parseError != null) {
+                if (message.getBytesRead() == 0)
+                    return true;
+                throw parseError;
+            }
 
+            Element root = doc.getRootElement();
+            root.detach();
+            response.detachRootElement();
+            response.setRootElement(root);
+            return true;
         }
         catch (IOException e) {
             closeConnection(true);
-            throw new PPTException("Cannot read response to designated " +
-                    "stream. ", e);
+            throw new PPTException("Cannot read response from server. Message: " + e.getMessage(), e);
         }
     }
-    */
 
 
 
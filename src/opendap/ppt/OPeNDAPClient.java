@@ -32,6 +32,7 @@ import opendap.xml.Util;
 import org.apache.commons.cli.*;
 import org.jdom.Document;
 import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 import org.slf4j.Logger;
@@ -68,6 +69,8 @@ import java.io.*;
 
 public class OPeNDAPClient {
     private int commandCount;
+    private final long creationTime;
+    private volatile long lastUsedTime;
     private NewPPTClient _client = null;
     private OutputStream _stream = null;
     private boolean _isRunning;
@@ -85,6 +88,8 @@ public class OPeNDAPClient {
         _isRunning = false;
         log = org.slf4j.LoggerFactory.getLogger(getClass());
         commandCount = 0;
+        creationTime = System.currentTimeMillis();
+        lastUsedTime = creationTime;
 
     }
 
@@ -101,6 +106,20 @@ public class OPeNDAPClient {
         return commandCount;
     }
 
+    /**
+     * @return The time (ms since the epoch) this client was made.
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return The time (ms since the epoch) this client last sent a command.
+     */
+    public long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
 
     public boolean isRunning() {
         return _isRunning;
@@ -114,6 +133,14 @@ public class OPeNDAPClient {
         return _client.isConnected();
     }
 
+    public int getReadTimeout() throws PPTException {
+        return _client.getReadTimeout();
+    }
+
+    public void setReadTimeout(int timeOut) throws PPTException {
+        _client.setReadTimeout(timeOut);
+    }
+
     public String showConnectionProperties()  {
         return _client.showConnectionProperties();
     }
@@ -228,6 +255,7 @@ public class OPeNDAPClient {
         _client.sendRequest(cmd);
         boolean success = _client.getResponse(target,error);
         commandCount++;
+        lastUsedTime = System.currentTimeMillis();
         return success;
     }
 
@@ -291,9 +319,40 @@ public class OPeNDAPClient {
         _client.sendXMLRequest(request);
         boolean val = _client.getResponse(target,error);
         commandCount++;
+        lastUsedTime = System.currentTimeMillis();
         return val;
     }
 
+    /**
+     * Sends a single XML request document and parses the XML response as it
+     * is read from the BES, without first collecting it in memory.
+     *
+     * @param request The XML request that is sent to
+     *            the BES to handle.
+     * @param parser The parser for the response. Parsers may be reused,
+     *               but not by two threads at once.
+     * @param response Receives the root element of the response document.
+     * @param error The error OutputStream for errors returned by the server.
+     *
+     * @return True if successful, false if the server returned an error.
+     * @throws PPTException Thrown if there is a problem sending the request
+     *                      to the server or a problem receiving the response
+     *                      from the server.
+     * @throws JDOMException if the response fails to parse.
+     */
+    public boolean sendRequest( Document request,
+                                SAXBuilder parser,
+                                Document response,
+                                OutputStream error)
+            throws PPTException, JDOMException {
+
+
+        _client.sendXMLRequest(request);
+        commandCount++;
+        lastUsedTime = System.currentTimeMillis();
+        return _client.getXMLResponse(parser, response, error);
+    }
+
     /**
      * Execute each of the commands in the cmd_list, separated by a * semicolon.
      * <p/>
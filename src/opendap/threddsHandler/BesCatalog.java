@@ -492,8 +492,7 @@ public class BesCatalog implements Catalog {
         try {
             lock.lock();
             XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
-            Document node = new Document();
-            _besApi.getBesNode(_besCatalogResourceId, node);
+            Document node = _besApi.getSharedBesNode(_besCatalogResourceId);
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             xmlo.output(node, baos);
             _rawCatalogBuffer = baos.toByteArray();
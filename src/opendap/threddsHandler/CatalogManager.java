@@ -30,8 +30,8 @@ import opendap.PathBuilder;
 import opendap.bes.BESError;
 import opendap.bes.BadConfigurationException;
 import opendap.bes.dap2Responders.BesApi;
+import opendap.logging.PhaseTimer;
 import opendap.coreServlet.RequestCache;
-import opendap.coreServlet.Scrub;
 import opendap.namespaces.THREDDS;
 import opendap.ncml.NcmlManager;
 import opendap.ppt.PPTException;
@@ -45,7 +45,12 @@ import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
@@ -73,6 +78,10 @@ public class CatalogManager {
 
     private static ReentrantLock _catalogLock  = new ReentrantLock();
 
+    private static volatile CatalogWatcher _watcher = null;
+
+    private static final PhaseTimer LOOKUP_TIMER = PhaseTimer.named("catalog.lookup");
+
 
     private static boolean _isInitialized = false;
 
@@ -117,11 +126,13 @@ public class CatalogManager {
         }
 
         if(catalog !=null){
+            CatalogTree tree = new CatalogTree(new HashSet<String>());
+            buildCatalogTree(catalog, cacheCatalogFileContent, tree);
             try{
                 _catalogLock.lock();
                 _log.debug("addCatalog(): Catalog locked.");
 
-                addCatalog(catalog, cacheCatalogFileContent);
+                installCatalogTree(tree);
             }
             finally {
                 _catalogLock.unlock();
@@ -133,22 +144,47 @@ public class CatalogManager {
     }
 
 
-    private static void addCatalog(Catalog catalog,
-                                   boolean cacheCatalogFileContent)
+    /**
+     * The catalogs, children lists and DatasetScans ingested from a catalog
+     * and the catalogs it references. A tree is built without touching the
+     * shared collections and is then installed in one step, so readers see
+     * either the old catalogs or the new ones.
+     */
+    private static class CatalogTree {
+        final LinkedHashMap<String, Catalog> catalogs = new LinkedHashMap<>();
+        final HashMap<String, String[]> children = new HashMap<>();
+        final HashMap<String, DatasetScan> datasetScans = new HashMap<>();
+
+        // The keys of the installed catalogs this tree is replacing.
+        final Set<String> replacedKeys;
+
+        CatalogTree(Set<String> replacedKeys){
+            this.replacedKeys = replacedKeys;
+        }
+
+        boolean isInstalled(String catalogKey, Map<String, ?> installed){
+            return installed.containsKey(catalogKey) && !replacedKeys.contains(catalogKey);
+        }
+    }
+
+
+    private static void buildCatalogTree(Catalog catalog,
+                                         boolean cacheCatalogFileContent,
+                                         CatalogTree tree)
             throws Exception {
 
 
         String catalogKey = catalog.getCatalogKey();
 
         // If this catalog has already been added,  then don't mess with it.
-        if (_catalogs.containsKey(catalogKey)){
-            _log.warn("The catalog '"+catalogKey+"' is already in the collection. It must be removed (purgeCatalog()) " +
+        if (tree.catalogs.containsKey(catalogKey) || tree.isInstalled(catalogKey, _catalogs)){
+            _log.warn("The catalog '"+catalogKey+"' is already in the collection. It must be removed (refreshCatalog()) " +
                     "before it can be added again.");
             return;
         }
 
 
-        if (_children.containsKey(catalogKey)) {
+        if (tree.children.containsKey(catalogKey) || tree.isInstalled(catalogKey, _children)) {
             String msg = "addCatalog() Invalid State! Although the list of catalogs does not contain a " +
                     "reference to the catalog '" + catalogKey + "' the list of children does!!!";
             _log.error(msg);
@@ -217,7 +253,7 @@ public class CatalogManager {
                         _catalogIngestTransformFilename,
                         cacheCatalogFileContent);
 
-                    addCatalog(thisCatalog, cacheCatalogFileContent);
+                    buildCatalogTree(thisCatalog, cacheCatalogFileContent, tree);
                     String thisCatalogIndex = thisCatalog.getCatalogKey();
                     catalogChildren.add(thisCatalogIndex);
 
@@ -233,7 +269,7 @@ public class CatalogManager {
 
         if (!catalogChildren.isEmpty()) {
             String[] s = new String[catalogChildren.size()];
-            _children.put(catalogKey, catalogChildren.toArray(s));
+            tree.children.put(catalogKey, catalogChildren.toArray(s));
         }
 
 
@@ -256,28 +292,51 @@ public class CatalogManager {
             // For each one of them...
             Element dssElem = (Element) i.next();
 
-            addDatasetScan(catalog,dssElem);
+            addDatasetScan(catalog,dssElem,tree);
         }
 
         /** ###############################################################################  */
 
 
+        tree.catalogs.put(catalogKey, catalog);
 
 
-        _log.debug("Ingesting inherited metadata (if any) for catalog '"+catalog.getName()+"'");
-        InheritedMetadataManager.ingestInheritedMetadata(catalog);
+    }
 
-        _log.debug("Ingesting NcML datasets (if any) for catalog '"+catalog.getName()+"'");
-        NcmlManager.ingestNcml(catalog);
 
-        _catalogs.put(catalogKey, catalog);
+    /**
+     * Makes the catalogs in the tree available. The caller must hold _catalogLock.
+     *
+     * @param tree The catalogs to install.
+     * @throws Exception When the inherited metadata or NcML content of a
+     * catalog cannot be ingested.
+     */
+    private static void installCatalogTree(CatalogTree tree) throws Exception {
+
+        for (Catalog catalog : tree.catalogs.values()) {
+            _log.debug("Ingesting inherited metadata (if any) for catalog '"+catalog.getName()+"'");
+            InheritedMetadataManager.ingestInheritedMetadata(catalog);
+
+            _log.debug("Ingesting NcML datasets (if any) for catalog '"+catalog.getName()+"'");
+            NcmlManager.ingestNcml(catalog);
+        }
 
+        _children.putAll(tree.children);
+        _datasetScans.putAll(tree.datasetScans);
+        _catalogs.putAll(tree.catalogs);
 
+        CatalogWatcher watcher = _watcher;
+        if (watcher != null) {
+            for (Catalog catalog : tree.catalogs.values()) {
+                if (catalog instanceof LocalFileCatalog)
+                    watcher.watch(catalog);
+            }
+        }
     }
 
 
 
-    private static void addDatasetScan(Catalog catalog,Element dssElem) throws BadConfigurationException{
+    private static void addDatasetScan(Catalog catalog,Element dssElem, CatalogTree tree) throws BadConfigurationException{
 
 
         DatasetScan ds = new DatasetScan(catalog,  dssElem,  _besCatalogToThreddsCatalogTransformFilename, _besApi);
@@ -286,7 +345,7 @@ public class CatalogManager {
         PathBuilder pb = new PathBuilder();
 
         pb.append(catalog.getPathPrefix()).append(ds.getPath());
-        _datasetScans.put(pb.toString(),ds);
+        tree.datasetScans.put(pb.toString(),ds);
 
 
     }
@@ -296,6 +355,16 @@ public class CatalogManager {
 
 
     public static Catalog getCatalog(String catalogKey) throws JDOMException, BadConfigurationException, PPTException, IOException, SaxonApiException, BESError {
+        long timerStart = LOOKUP_TIMER.start();
+        try {
+            return getCatalogNoTiming(catalogKey);
+        }
+        finally {
+            LOOKUP_TIMER.stop(timerStart);
+        }
+    }
+
+    private static Catalog getCatalogNoTiming(String catalogKey) throws JDOMException, BadConfigurationException, PPTException, IOException, SaxonApiException, BESError {
         Catalog cat = getCatalogAndUpdateIfRequired(catalogKey);
 
         if(cat == null){
@@ -355,6 +424,11 @@ public class CatalogManager {
     }
 
     /**
+     * When the catalog's file is being watched the catalog is kept current
+     * by the watcher and this is a simple lookup. Otherwise (the watcher is
+     * off, or couldn't watch or stopped watching the catalog's directory)
+     * the catalog file is checked and, if it has changed, the catalog is
+     * rebuilt before it is returned.
      *
      * @param catalogKey   Is the    catalogKeyIntoThe
      * @return
@@ -365,6 +439,10 @@ public class CatalogManager {
         if (catalogKey == null)
             return null;
 
+        CatalogWatcher watcher = _watcher;
+        if (watcher != null && watcher.isWatching(catalogKey))
+            return _catalogs.get(catalogKey);
+
         try {
             _catalogLock.lock();
             _log.debug("getCatalogAndUpdateIfRequired(): Catalog locked.");
@@ -375,32 +453,13 @@ public class CatalogManager {
 
             if (c.needsRefresh()) {
 
-
                 _log.debug("getCatalogAndUpdateIfRequired(): Catalog '" + catalogKey + "' needs to be updated.");
 
-                LocalFileCatalog newCat;
-                try {
-                    newCat = new LocalFileCatalog(c.getPathPrefix(), c.getUrlPrefix(), c.getFileName(), c.getIngestTransformFilename(), c.usesMemoryCache());
-
-                    //Thread.sleep(10000);
-
-                    _log.debug("getCatalogAndUpdateIfRequired(): Purging catalog '" + catalogKey +
-                            "' and it's children from catalog collection.");
-
-                    purgeCatalog(catalogKey);
-
-
-                    _log.debug("getCatalogAndUpdateIfRequired(): Adding new catalog for catalogKey " +
-                            newCat.getCatalogKey() + " to _catalogs collection.");
+                if (!refreshCatalog(catalogKey))
+                    return null;
 
-                    addCatalog(newCat, newCat.usesMemoryCache());
+                return _catalogs.get(catalogKey);
 
-                    return newCat;
-                }
-                catch (Exception e) {
-                    _log.error("getCatalogAndUpdateIfRequired(): Could not update Catalog: " + c.getName()+ "Msg: "+e.getMessage());
-                    return null;
-                }
             } else {
                 _log.debug("getCatalogAndUpdateIfRequired(): Catalog '" + catalogKey + "' does NOT need updated.");
                 return c;
@@ -416,60 +475,132 @@ public class CatalogManager {
     }
 
 
-
     /**
-     * Purges the  THREDDS catalog connected graph from the system, starting at the catalog associated with the
-     * passed catalogKey.
+     * Rebuilds the catalog associated with catalogKey, and the catalogs it
+     * references, if its file has changed. The new catalogs are built without
+     * holding _catalogLock and are swapped in for the old ones in one step.
+     * If the catalog can't be rebuilt the old catalogs stay in place.
      *
-     * @param catalogKey
+     * @param catalogKey The key of the catalog to rebuild.
+     * @return False if the catalog needed to be rebuilt and could not be,
+     * true otherwise.
      */
-    private static void purgeCatalog(String catalogKey) {
-        Catalog catalog;
-        String childCatalogKeys[];
-
+    static boolean refreshCatalog(String catalogKey) {
 
-        if (catalogKey != null) {
+        Catalog c = _catalogs.get(catalogKey);
+        if (c == null || !c.needsRefresh())
+            return true;
 
-            _log.debug("purgeCatalog(): Removing catalog: " + catalogKey);
-            catalog = _catalogs.remove(catalogKey);
-
-            if (catalog == null) {
-                _log.warn("purgeCatalog(): Catalog '" + Scrub.urlContent(catalogKey) + "' not in catalog collection!!");
-            }
+        _log.debug("refreshCatalog(): Rebuilding catalog '{}'", catalogKey);
 
-            childCatalogKeys = _children.get(catalogKey);
-            if (childCatalogKeys != null) {
+        HashSet<String> oldKeys = new HashSet<>();
+        collectCatalogKeys(catalogKey, oldKeys);
 
-                _log.debug("purgeCatalog(): Purging the childCatalogKeys of catalog: " + catalogKey);
+        CatalogTree tree = new CatalogTree(oldKeys);
+        try {
+            LocalFileCatalog newCat = new LocalFileCatalog(c.getPathPrefix(), c.getUrlPrefix(), c.getFileName(), c.getIngestTransformFilename(), c.usesMemoryCache());
+            buildCatalogTree(newCat, newCat.usesMemoryCache(), tree);
+        }
+        catch (Exception e) {
+            _log.error("refreshCatalog(): Could not update Catalog: " + c.getName()+ " Msg: "+e.getMessage());
+            return false;
+        }
 
-                for (String childCatalogKey : childCatalogKeys) {
-                    purgeCatalog(childCatalogKey);
-                }
+        try {
+            _catalogLock.lock();
 
-                _children.remove(catalogKey);
-            } else {
-                _log.info("purgeCatalog(): Catalog '" + Scrub.urlContent(catalogKey) + "' has no childCatalogKeys.");
+            if (_catalogs.get(catalogKey) != c) {
+                _log.debug("refreshCatalog(): Catalog '{}' was replaced while it was being rebuilt.", catalogKey);
+                return true;
             }
 
-            _log.debug("purgeCatalog(): Purging inherited metadata (if any) for catalogKey: " +catalogKey);
-            InheritedMetadataManager.purgeInheritedMetadata(catalogKey);
-
-            _log.debug("purgeCatalog(): Purging NcML data sets (if any) for catalogKey: " +catalogKey);
-            NcmlManager.purgeNcmlDatasets(catalog);
-
+            // The metadata and NcML of the old catalogs is re-ingested from the new ones.
+            for (String oldKey : oldKeys) {
+                InheritedMetadataManager.purgeInheritedMetadata(oldKey);
+                Catalog oldCat = _catalogs.get(oldKey);
+                if (oldCat != null)
+                    NcmlManager.purgeNcmlDatasets(oldCat);
+            }
 
-            // catalog.destroy();
-            _log.debug("purgeCatalog(): Purged catalog: " + catalogKey);
+            // Replace the catalogs in place so that a reader never finds one
+            // missing, then drop what the new tree no longer has.
+            installCatalogTree(tree);
+
+            for (String oldKey : oldKeys) {
+                if (!tree.catalogs.containsKey(oldKey)) {
+                    _catalogs.remove(oldKey);
+                    _children.remove(oldKey);
+                    CatalogWatcher watcher = _watcher;
+                    if (watcher != null)
+                        watcher.unwatch(oldKey);
+                }
+                else if (!tree.children.containsKey(oldKey)) {
+                    _children.remove(oldKey);
+                }
+            }
+            _log.debug("refreshCatalog(): Replaced {} catalogs with {} catalogs.", oldKeys.size(), tree.catalogs.size());
+            return true;
+        }
+        catch (Exception e) {
+            _log.error("refreshCatalog(): Could not install updated Catalog: " + c.getName()+ " Msg: "+e.getMessage());
+            return false;
+        }
+        finally {
+            _catalogLock.unlock();
+        }
+    }
 
 
+    /**
+     * Adds catalogKey and the keys of all of the catalogs below it to keys.
+     */
+    private static void collectCatalogKeys(String catalogKey, Set<String> keys) {
+        if (!keys.add(catalogKey))
+            return;
+        String[] childCatalogKeys = _children.get(catalogKey);
+        if (childCatalogKeys != null) {
+            for (String childCatalogKey : childCatalogKeys) {
+                collectCatalogKeys(childCatalogKey, keys);
+            }
         }
+    }
 
 
+    /**
+     * Starts watching the local catalog files so that changed catalogs are
+     * rebuilt in the background instead of being checked on every request.
+     * Catalogs added after this is called are watched as they are added. The
+     * catalogs whose directories can't be watched, or are no longer watched,
+     * are checked per request as before.
+     */
+    public static void startCatalogWatcher() {
+        if (_watcher != null)
+            return;
+        try {
+            CatalogWatcher watcher = new CatalogWatcher();
+            for (Catalog catalog : _catalogs.values()) {
+                if (catalog instanceof LocalFileCatalog)
+                    watcher.watch(catalog);
+            }
+            watcher.start();
+            _watcher = watcher;
+            _log.info("startCatalogWatcher() - Watching THREDDS catalog files for changes.");
+        }
+        catch (IOException e) {
+            _log.warn("startCatalogWatcher() - Unable to watch THREDDS catalog files, catalogs will " +
+                    "be checked for changes on each request. msg: {}", e.getMessage());
+        }
     }
 
 
+
     public static void destroy() {
 
+        CatalogWatcher watcher = _watcher;
+        _watcher = null;
+        if (watcher != null)
+            watcher.stop();
+
         for (Catalog c : _catalogs.values()) {
             c.destroy();
         }
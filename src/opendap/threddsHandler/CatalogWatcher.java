@@ -0,0 +1,213 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.threddsHandler;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the directories that hold the local THREDDS catalog files and asks
+ * the CatalogManager to rebuild a catalog when its file changes. This keeps
+ * catalog requests from having to check the catalog files themselves, for
+ * the catalogs for which isWatching() is true.
+ */
+class CatalogWatcher implements Runnable {
+
+    // How long to wait for a burst of file system events to finish before
+    // rebuilding the catalogs they touched.
+    private static final long SETTLE_TIME_MS = 500;
+
+    private Logger log;
+
+    private final WatchService _watchService;
+    private final ConcurrentHashMap<WatchKey, Path> _watchedDirs;
+    private final ConcurrentHashMap<Path, WatchKey> _watchKeys;
+    private final ConcurrentHashMap<Path, String> _catalogKeysByFile;
+    private final ConcurrentHashMap<String, Path> _dirsByCatalogKey;
+
+    private Thread _thread;
+    private volatile boolean _running;
+
+    CatalogWatcher() throws IOException {
+        log = org.slf4j.LoggerFactory.getLogger(getClass());
+        _watchService = FileSystems.getDefault().newWatchService();
+        _watchedDirs = new ConcurrentHashMap<>();
+        _watchKeys = new ConcurrentHashMap<>();
+        _catalogKeysByFile = new ConcurrentHashMap<>();
+        _dirsByCatalogKey = new ConcurrentHashMap<>();
+        _running = false;
+    }
+
+    /**
+     * Start watching the file that holds catalog.
+     *
+     * @param catalog A catalog backed by a local file.
+     */
+    void watch(Catalog catalog) {
+        Path catalogFile = Paths.get(catalog.getPathPrefix(), catalog.getFileName()).toAbsolutePath().normalize();
+        Path dir = catalogFile.getParent();
+        try {
+            WatchKey key = dir.register(_watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            _watchedDirs.put(key, dir);
+            _watchKeys.put(dir, key);
+            _catalogKeysByFile.put(catalogFile, catalog.getCatalogKey());
+            _dirsByCatalogKey.put(catalog.getCatalogKey(), dir);
+            log.debug("watch() - Watching {} for catalog '{}'", catalogFile, catalog.getCatalogKey());
+        } catch (IOException | ClosedWatchServiceException e) {
+            log.error("watch() - Unable to watch directory {} msg: {}", dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Stop watching the file that holds the catalog associated with catalogKey.
+     *
+     * @param catalogKey The key of a catalog that is no longer in use.
+     */
+    void unwatch(String catalogKey) {
+        _catalogKeysByFile.values().remove(catalogKey);
+        _dirsByCatalogKey.remove(catalogKey);
+    }
+
+    /**
+     * @param catalogKey The key of a catalog.
+     * @return True if changes to the catalog's file are being reported,
+     * false if the catalog must be checked for changes by the caller.
+     */
+    boolean isWatching(String catalogKey) {
+        if (!_running)
+            return false;
+        Path dir = _dirsByCatalogKey.get(catalogKey);
+        return dir != null && _watchKeys.containsKey(dir);
+    }
+
+    void start() {
+        _running = true;
+        _thread = new Thread(this, "THREDDS-CatalogWatcher");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    void stop() {
+        _running = false;
+        try {
+            _watchService.close();
+        } catch (IOException e) {
+            log.error("stop() - Failed to close WatchService. msg: {}", e.getMessage());
+        }
+        if (_thread != null)
+            _thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        log.info("run() - THREDDS catalog watcher started.");
+        try {
+            while (_running) {
+                Set<String> changed = new HashSet<>();
+
+                WatchKey key = _watchService.take();
+                collectChangedCatalogs(key, changed);
+
+                // Let the writer finish and pick up anything else that changed.
+                Thread.sleep(SETTLE_TIME_MS);
+                while ((key = _watchService.poll()) != null) {
+                    collectChangedCatalogs(key, changed);
+                }
+
+                refresh(changed);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("run() - Stopping. ({})", e.getClass().getSimpleName());
+        } finally {
+            _running = false;
+            log.info("run() - THREDDS catalog watcher stopped.");
+        }
+    }
+
+    private void collectChangedCatalogs(WatchKey key, Set<String> changed) {
+        Path dir = _watchedDirs.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.warn("collectChangedCatalogs() - Lost file system events, checking every catalog.");
+                changed.addAll(_catalogKeysByFile.values());
+            } else if (dir != null) {
+                Path file = dir.resolve((Path) event.context());
+                String catalogKey = _catalogKeysByFile.get(file);
+                if (catalogKey != null) {
+                    log.debug("collectChangedCatalogs() - {} {}", event.kind().name(), file);
+                    changed.add(catalogKey);
+                }
+            }
+        }
+
+        if (!key.reset()) {
+            log.warn("collectChangedCatalogs() - No longer watching {}, its catalogs will be checked " +
+                    "on each request.", dir);
+            _watchedDirs.remove(key);
+            if (dir != null)
+                _watchKeys.remove(dir, key);
+        }
+    }
+
+    private void refresh(Set<String> changed) {
+        // Parents first, rebuilding a parent rebuilds its children.
+        List<String> catalogKeys = new ArrayList<>(changed);
+        Collections.sort(catalogKeys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return a.length() - b.length();
+            }
+        });
+
+        for (String catalogKey : catalogKeys) {
+            try {
+                CatalogManager.refreshCatalog(catalogKey);
+            } catch (Exception e) {
+                log.error("refresh() - Failed to refresh catalog '{}' msg: {}", catalogKey, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.threddsHandler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the HTML produced by rendering THREDDS catalogs so that requests for
+ * a catalog that has not changed can be answered without building the
+ * catalog document or running the presentation XSLT again.
+ * <p/>
+ * Callers are responsible for building a key that captures everything the
+ * rendered page depends on (the catalog key, the catalog's last modified
+ * time, and the transform parameters). Entries are evicted least recently
+ * used first once the total size of the cached pages exceeds the limit.
+ */
+class RenderedHtmlCache {
+
+    private final long _maxBytes;
+    private long _currentBytes;
+
+    private final LinkedHashMap<String, byte[]> _pages;
+
+    private long _hits;
+    private long _misses;
+
+    /**
+     * @param maxBytes The maximum total size, in bytes, of the cached pages.
+     *                 A value less than or equal to zero disables the cache.
+     */
+    RenderedHtmlCache(long maxBytes) {
+        _maxBytes = maxBytes;
+        _currentBytes = 0;
+        _pages = new LinkedHashMap<>(16, 0.75f, true);
+        _hits = 0;
+        _misses = 0;
+    }
+
+    boolean isEnabled() {
+        return _maxBytes > 0;
+    }
+
+    /**
+     * @param key The key the page was stored under.
+     * @return The rendered page, or null if it is not in the cache.
+     */
+    synchronized byte[] get(String key) {
+        byte[] page = _pages.get(key);
+        if (page == null)
+            _misses++;
+        else
+            _hits++;
+        return page;
+    }
+
+    /**
+     * Stores a rendered page. Pages larger than the cache itself are not
+     * stored.
+     *
+     * @param key  The key to store the page under.
+     * @param page The rendered page.
+     */
+    synchronized void put(String key, byte[] page) {
+        if (!isEnabled() || page.length > _maxBytes)
+            return;
+
+        byte[] previous = _pages.put(key, page);
+        if (previous != null)
+            _currentBytes -= previous.length;
+        _currentBytes += page.length;
+
+        Iterator<Map.Entry<String, byte[]>> it = _pages.entrySet().iterator();
+        while (_currentBytes > _maxBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            _currentBytes -= eldest.getValue().length;
+            it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        _pages.clear();
+        _currentBytes = 0;
+    }
+
+    synchronized long getHitCount() {
+        return _hits;
+    }
+
+    synchronized long getMissCount() {
+        return _misses;
+    }
+
+    synchronized long getCurrentSize() {
+        return _currentBytes;
+    }
+}
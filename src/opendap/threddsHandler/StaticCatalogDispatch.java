@@ -29,6 +29,7 @@ import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
 import opendap.bes.BESError;
 import opendap.bes.BadConfigurationException;
+import opendap.bes.BesDispatchHandler;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.coreServlet.*;
 import opendap.dap.Request;
@@ -37,8 +38,7 @@ import opendap.dap.User;
 import opendap.gateway.BesGatewayApi;
 import opendap.http.error.BadGateway;
 import opendap.http.error.BadRequest;
-import opendap.logging.Timer;
-import opendap.logging.Procedure;
+import opendap.logging.PhaseTimer;
 import opendap.ppt.PPTException;
 import opendap.xml.Transformer;
 import org.jdom.Element;
@@ -51,9 +51,9 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.stream.StreamSource;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides Dispatch Services for the XSLT based THREDDS catalog Handler.
@@ -63,7 +63,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * Date: Apr 18, 2008
  * Time: 3:46:50 PM
  */
-public class StaticCatalogDispatch implements DispatchHandler {
+public class StaticCatalogDispatch implements BesDispatchHandler {
 
 
     private Logger log;
@@ -75,14 +75,20 @@ public class StaticCatalogDispatch implements DispatchHandler {
     private String _prefix;
     private boolean _useMemoryCache = false;
     private boolean _allowRemoteCatalogTraversal = false;
+    private boolean _watchCatalogFiles = false;
 
     private String _catalogToHtmlTransformFile = "/xsl/threddsCatalogPresentation.xsl";
-    private Transformer _catalogToHtmlTransform = null;
-    private ReentrantLock _catalogToHtmlTransformLock;
+    private String _catalogToHtmlXslt = null;
 
     private String _datasetToHtmlTransformFile = "/xsl/threddsDatasetDetail.xsl";
-    private Transformer _datasetToHtmlTransform = null;
-    private ReentrantLock _datasetToHtmlTransformLock;
+    private String _datasetToHtmlXslt = null;
+
+    // Rendered HTML views of the local catalogs, keyed on everything the page depends on.
+    private static final long DEFAULT_HTML_CACHE_SIZE = 16 * 1024 * 1024;
+
+    private static final PhaseTimer REQUEST_TIMER = PhaseTimer.named("thredds.request");
+    private static final PhaseTimer LAST_MODIFIED_TIMER = PhaseTimer.named("thredds.lastModified");
+    private RenderedHtmlCache _htmlCache = new RenderedHtmlCache(0);
 
 
     private String _besNodeToDatasetScanCatalogTrasformFile = "/xsl/besNodeToDatasetScanCatalog.xsl";
@@ -146,7 +152,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
                                            HttpServletResponse response) throws Exception {
 
 
-        Procedure timedProc = Timer.start();
+        long timedProc = REQUEST_TIMER.start();
         try {
             User user = new User(request);
 
@@ -194,7 +200,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
             }
         }
         finally {
-            Timer.stop(timedProc);
+            REQUEST_TIMER.stop(timedProc);
         }
 
     }
@@ -300,51 +306,44 @@ public class StaticCatalogDispatch implements DispatchHandler {
         //XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
         //log.debug("browseRemoteDataset() - BES Combined TypeMatch: {}",typeMatch);
 
-        _datasetToHtmlTransformLock.lock();
         try {
-            try {
-                _datasetToHtmlTransform.reloadTransformIfRequired();
-
-                // Build the catalog document as an XdmNode.
-                XdmNode catDoc = _datasetToHtmlTransform.build(new StreamSource(catDocIs));
+            // The compiled stylesheet is shared, the Transformer is ours alone.
+            Transformer datasetToHtmlTransform = new Transformer(_datasetToHtmlXslt);
 
-                _datasetToHtmlTransform.setParameter("serviceContext", oRequest.getContextPath());
-                _datasetToHtmlTransform.setParameter("docsService", oRequest.getDocsServiceLocalID());
-                _datasetToHtmlTransform.setParameter("targetDataset", targetDataset);
-                _datasetToHtmlTransform.setParameter("remoteCatalog", remoteCatalog);
-                _datasetToHtmlTransform.setParameter("remoteRelativeURL", remoteRelativeURL);
-                _datasetToHtmlTransform.setParameter("remoteHost", remoteHost);
-                _datasetToHtmlTransform.setParameter("typeMatch", typeMatch);
+            // Build the catalog document as an XdmNode.
+            XdmNode catDoc = datasetToHtmlTransform.build(new StreamSource(catDocIs));
 
+            datasetToHtmlTransform.setParameter("serviceContext", oRequest.getContextPath());
+            datasetToHtmlTransform.setParameter("docsService", oRequest.getDocsServiceLocalID());
+            datasetToHtmlTransform.setParameter("targetDataset", targetDataset);
+            datasetToHtmlTransform.setParameter("remoteCatalog", remoteCatalog);
+            datasetToHtmlTransform.setParameter("remoteRelativeURL", remoteRelativeURL);
+            datasetToHtmlTransform.setParameter("remoteHost", remoteHost);
+            datasetToHtmlTransform.setParameter("typeMatch", typeMatch);
 
-                // Set up the Http headers.
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
 
-                // Send the transformed document.
-                _datasetToHtmlTransform.transform(catDoc, response.getOutputStream());
+            // Set up the Http headers.
+            response.setContentType("text/html");
+            response.setHeader("Content-Description", "thredds_catalog");
+            response.setStatus(HttpServletResponse.SC_OK);
 
-                log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+            // Send the transformed document.
+            datasetToHtmlTransform.transform(catDoc, response.getOutputStream());
 
+            log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
 
-            } catch (SaxonApiException sapie) {
-                throw new BadGateway("Could not ingest remote resource as a THREDDS Catalog. msg: "+sapie.getMessage());
-            } finally {
-                _datasetToHtmlTransform.clearAllParameters();
 
-                if (catDocIs != null) {
-                    try {
-                        catDocIs.close();
-                    } catch (IOException e) {
-                        log.error("Failed to close InputStream for " + remoteCatalog + " Error Message: " + e.getMessage());
-                    }
+        } catch (SaxonApiException sapie) {
+            throw new BadGateway("Could not ingest remote resource as a THREDDS Catalog. msg: "+sapie.getMessage());
+        } finally {
+            if (catDocIs != null) {
+                try {
+                    catDocIs.close();
+                } catch (IOException e) {
+                    log.error("Failed to close InputStream for " + remoteCatalog + " Error Message: " + e.getMessage());
                 }
             }
         }
-        finally {
-            _datasetToHtmlTransformLock.unlock();
-        }
 
 
     }
@@ -402,44 +401,35 @@ public class StaticCatalogDispatch implements DispatchHandler {
         //XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
         //log.debug("browseRemoteDataset() - BES Combined TypeMatch: {}",typeMatch);
 
-        _catalogToHtmlTransformLock.lock();
         try {
-            try {
-                _catalogToHtmlTransform.reloadTransformIfRequired();
+            // The compiled stylesheet is shared, the Transformer is ours alone.
+            Transformer catalogToHtmlTransform = new Transformer(_catalogToHtmlXslt);
 
-                // Build the catalog document as an XdmNode.
-                XdmNode catDoc = _catalogToHtmlTransform.build(new StreamSource(catDocIs));
+            // Build the catalog document as an XdmNode.
+            XdmNode catDoc = catalogToHtmlTransform.build(new StreamSource(catDocIs));
 
-                _catalogToHtmlTransform.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
-                _catalogToHtmlTransform.setParameter("dapService", oRequest.getServiceLocalId());
-                //_datasetToHtmlTransform.setParameter("serviceContext", oRequest.getServiceLocalId());
-                _catalogToHtmlTransform.setParameter("docsService", oRequest.getDocsServiceLocalID());
+            catalogToHtmlTransform.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
+            catalogToHtmlTransform.setParameter("dapService", oRequest.getServiceLocalId());
+            catalogToHtmlTransform.setParameter("docsService", oRequest.getDocsServiceLocalID());
 
-                _catalogToHtmlTransform.setParameter("remoteHost", remoteHost);
-                _catalogToHtmlTransform.setParameter("remoteRelativeURL", remoteRelativeURL);
-                _catalogToHtmlTransform.setParameter("remoteCatalog", remoteCatalog);
-                _catalogToHtmlTransform.setParameter("typeMatch", typeMatch);
+            catalogToHtmlTransform.setParameter("remoteHost", remoteHost);
+            catalogToHtmlTransform.setParameter("remoteRelativeURL", remoteRelativeURL);
+            catalogToHtmlTransform.setParameter("remoteCatalog", remoteCatalog);
+            catalogToHtmlTransform.setParameter("typeMatch", typeMatch);
 
 
-                // Set up the Http headers.
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
+            // Set up the Http headers.
+            response.setContentType("text/html");
+            response.setHeader("Content-Description", "thredds_catalog");
+            response.setStatus(HttpServletResponse.SC_OK);
 
-                // Send the transformed documet.
-                _catalogToHtmlTransform.transform(catDoc, response.getOutputStream());
+            // Send the transformed documet.
+            catalogToHtmlTransform.transform(catDoc, response.getOutputStream());
 
-                log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+            log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
 
-            } catch (SaxonApiException sapie) {
-                throw new BadGateway("Could not ingest remote resource as a THREDDS Catalog. msg: "+sapie.getMessage());
-            } finally {
-                // Clean up the transform before releasing it.
-                _catalogToHtmlTransform.clearAllParameters();
-            }
-        }
-        finally {
-            _catalogToHtmlTransformLock.unlock();
+        } catch (SaxonApiException sapie) {
+            throw new BadGateway("Could not ingest remote resource as a THREDDS Catalog. msg: "+sapie.getMessage());
         }
 
 
@@ -451,146 +441,150 @@ public class StaticCatalogDispatch implements DispatchHandler {
                                      String catalogKey,
                                      String query) throws IOException, JDOMException, SaxonApiException, BESError {
 
-
-        XdmNode catDoc;
-
-        _datasetToHtmlTransformLock.lock();
         try {
-            try {
-                _datasetToHtmlTransform.reloadTransformIfRequired();
-
-                Request orq = new Request(null, request);
-
-
-                Catalog cat = CatalogManager.getCatalog(catalogKey);
-
-                if (cat != null) {
-                    log.debug("\nFound catalog: " + catalogKey + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    catDoc = cat.getCatalogAsXdmNode(_datasetToHtmlTransform.getProcessor());
-                    if (catDoc == null) {
-                        String msg = "FAILED to retrieve catalog document associated with file '" + cat.getFileName() + "' UNABLE TO FORMULATE A RESPONSE.";
-                        log.error("sendCatalogHTML() - {}", msg);
-                        throw new BadConfigurationException(msg);
-
-                    }
-                    log.debug("catDoc.getServiceUrl(): " + catDoc.getBaseURI());
-                } else {
-                    log.error("Can't find catalog: " + Scrub.urlContent(catalogKey) + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "Can't find catalog: " + Scrub.urlContent(catalogKey));
-                    return;
-                }
-
-
-                String targetDataset = query.substring("dataset=".length(), query.length());
-
-                //query = "//*";
-
-                log.debug("targetDataset: " + targetDataset);
-
-                // Pass the docsService  parameter to the transform
-                _datasetToHtmlTransform.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
-                _datasetToHtmlTransform.setParameter("docsService", orq.getDocsServiceLocalID());
-                _datasetToHtmlTransform.setParameter("targetDataset", targetDataset);
-
-
-                AuthenticationControls.setLoginParameters(_datasetToHtmlTransform, request);
-
-
-                // Set up the http headers.
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
-
-
-                // Send the transformed documet.
-                _datasetToHtmlTransform.transform(catDoc, response.getOutputStream());
+            Request orq = new Request(null, request);
 
-                log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+            String targetDataset = query.substring("dataset=".length(), query.length());
+            log.debug("targetDataset: " + targetDataset);
 
+            String serviceContext = _dispatchServlet.getServletContext().getContextPath();
+            String docsService = orq.getDocsServiceLocalID();
 
-            } catch (BadConfigurationException e) {
-                e.printStackTrace();
-            } catch (PPTException e) {
-                e.printStackTrace();
-            } finally {
-                _datasetToHtmlTransform.clearAllParameters();
+            sendRenderedCatalog(request, response, catalogKey, _datasetToHtmlXslt,
+                    "serviceContext", serviceContext,
+                    "docsService", docsService,
+                    "targetDataset", targetDataset);
 
-            }
-        }
-        finally {
-            _datasetToHtmlTransformLock.unlock();
+        } catch (BadConfigurationException e) {
+            e.printStackTrace();
+        } catch (PPTException e) {
+            e.printStackTrace();
         }
-
-
     }
 
     private void sendCatalogHTML(HttpServletRequest request, HttpServletResponse response, String catalogKey)
             throws SaxonApiException, IOException, JDOMException, BadConfigurationException, PPTException, BESError {
 
-        _catalogToHtmlTransformLock.lock();
-        try {
-
-            try {
-                Request orq = new Request(null, request);
+        Request orq = new Request(null, request);
 
+        String serviceContext = _dispatchServlet.getServletContext().getContextPath();
+        String dapService = orq.getServiceLocalId();
+        String docsService = orq.getDocsServiceLocalID();
 
-                _catalogToHtmlTransform.reloadTransformIfRequired();
+        sendRenderedCatalog(request, response, catalogKey, _catalogToHtmlXslt,
+                "serviceContext", serviceContext,
+                "dapService", dapService,
+                "docsService", docsService);
+    }
 
-                XdmNode catDoc;
 
-                Catalog cat = CatalogManager.getCatalog(catalogKey);
+    /**
+     * Sends the HTML view of a local catalog produced by the XSLT at xsltDoc.
+     * The rendered page is cached on the catalog key, the catalog's last
+     * modified time, the stylesheet's last modified time, the login state
+     * and the transform parameters, so that repeat requests for an unchanged
+     * catalog are answered with the cached bytes. Pages that can't be
+     * cached, or any page when the cache is off, are transformed straight
+     * into the response.
+     *
+     * @param request The request being serviced.
+     * @param response The response to write the page to.
+     * @param catalogKey The key of the catalog to render.
+     * @param xsltDoc The path to the presentation XSLT.
+     * @param transformParams Alternating XSLT parameter names and values.
+     */
+    private void sendRenderedCatalog(HttpServletRequest request,
+                                     HttpServletResponse response,
+                                     String catalogKey,
+                                     String xsltDoc,
+                                     String... transformParams)
+            throws SaxonApiException, IOException, JDOMException, BadConfigurationException, PPTException, BESError {
 
-                if (cat != null) {
-                    log.debug("\nFound catalog: " + catalogKey + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    catDoc = cat.getCatalogAsXdmNode(_catalogToHtmlTransform.getProcessor());
-                    if (catDoc == null) {
-                        String msg = "FAILED to retrieve catalog document associated with file '" + cat.getFileName() + "' UNABLE TO FORMULATE A RESPONSE.";
-                        log.error("sendCatalogHTML() - {}", msg);
-                        throw new BadConfigurationException(msg);
+        long requestTime = System.currentTimeMillis();
 
-                    }
-
-                    log.debug("catDoc.getServiceUrl(): " + catDoc.getBaseURI());
-                } else {
-                    log.error("Can't find catalog: " + Scrub.urlContent(catalogKey) + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "Can't find catalog: " + Scrub.urlContent(catalogKey));
-                    return;
-                }
+        Catalog cat = CatalogManager.getCatalog(catalogKey);
 
+        if (cat == null) {
+            log.error("Can't find catalog: " + Scrub.urlContent(catalogKey) + "   " +
+                            "    prefix: " + _prefix
+            );
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Can't find catalog: " + Scrub.urlContent(catalogKey));
+            return;
+        }
+        log.debug("\nFound catalog: " + catalogKey + "   " +
+                        "    prefix: " + _prefix
+        );
+
+        // Get the last modified time before the content so that a concurrent
+        // update can only make the cached page look older than it is.
+        long lastModified = cat.getLastModified();
+
+        // Catalogs that are built on demand report the current time, there's
+        // no point in caching pages that can never be asked for again.
+        boolean cacheable = _htmlCache.isEnabled() && lastModified < requestTime;
+
+        String cacheKey = null;
+        byte[] page = null;
+        if (cacheable) {
+            StringBuilder key = new StringBuilder();
+            key.append(xsltDoc).append('|').append(new File(xsltDoc).lastModified());
+            key.append('|').append(catalogKey).append('|').append(lastModified);
+            key.append('|').append(AuthenticationControls.getUserId(request));
+            for (String param : transformParams) {
+                key.append('|').append(param);
+            }
+            cacheKey = key.toString();
+            page = _htmlCache.get(cacheKey);
+        }
 
-                // Send the catalog using the transform.
+        if (page != null) {
+            log.debug("Sending cached HTML view of THREDDS catalog {}", catalogKey);
+            setCatalogHtmlHeaders(response);
+            response.setContentLength(page.length);
+            response.getOutputStream().write(page);
+            return;
+        }
 
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
+        // The compiled stylesheet is shared, the Transformer is ours alone.
+        Transformer transformer = new Transformer(xsltDoc);
 
-                _catalogToHtmlTransform.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
-                _catalogToHtmlTransform.setParameter("dapService", orq.getServiceLocalId());
-                _catalogToHtmlTransform.setParameter("docsService", orq.getDocsServiceLocalID());
+        XdmNode catDoc = cat.getCatalogAsXdmNode(transformer.getProcessor());
+        if (catDoc == null) {
+            String msg = "FAILED to retrieve catalog document associated with file '" + cat.getFileName() + "' UNABLE TO FORMULATE A RESPONSE.";
+            log.error("sendRenderedCatalog() - {}", msg);
+            throw new BadConfigurationException(msg);
 
-                AuthenticationControls.setLoginParameters(_catalogToHtmlTransform, request);
+        }
+        log.debug("catDoc.getServiceUrl(): " + catDoc.getBaseURI());
 
-                _catalogToHtmlTransform.transform(catDoc, response.getOutputStream());
+        for (int i = 0; i + 1 < transformParams.length; i += 2) {
+            transformer.setParameter(transformParams[i], transformParams[i + 1]);
+        }
+        AuthenticationControls.setLoginParameters(transformer, request);
 
-                log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+        if (cacheable) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            transformer.transform(catDoc, baos);
+            page = baos.toByteArray();
+            _htmlCache.put(cacheKey, page);
 
-            } finally {
-                _catalogToHtmlTransform.clearAllParameters();
-            }
+            setCatalogHtmlHeaders(response);
+            response.setContentLength(page.length);
+            response.getOutputStream().write(page);
         }
-        finally {
-            _catalogToHtmlTransformLock.unlock();
+        else {
+            // Nothing will keep the page, so don't hold it in memory.
+            setCatalogHtmlHeaders(response);
+            transformer.transform(catDoc, response.getOutputStream());
         }
 
+        log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+    }
 
+    private void setCatalogHtmlHeaders(HttpServletResponse response) {
+        response.setContentType("text/html");
+        response.setHeader("Content-Description", "thredds_catalog");
+        response.setStatus(HttpServletResponse.SC_OK);
     }
 
 
@@ -647,6 +641,8 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
         String ingestTransformFile = ServletUtil.getSystemPath(servlet, _staticCatalogIngestTransformFile);
 
+        long htmlCacheSize = DEFAULT_HTML_CACHE_SIZE;
+
         Element threddsService = _config.getChild("ThreddsService");
         if (threddsService != null) {
             s = threddsService.getAttributeValue("prefix");
@@ -686,6 +682,29 @@ public class StaticCatalogDispatch implements DispatchHandler {
                 }
             }
 
+            s = threddsService.getAttributeValue("watchCatalogs");
+            if (s != null){
+                if(s.equalsIgnoreCase("true")) {
+                    _watchCatalogFiles = true;
+                }
+                else {
+                    _watchCatalogFiles = false;
+                }
+            }
+
+            // The total size, in bytes, of the rendered catalog pages to
+            // keep. Zero turns the cache off.
+            s = threddsService.getAttributeValue("htmlCacheSize");
+            if (s != null){
+                try {
+                    htmlCacheSize = Long.parseLong(s);
+                }
+                catch (NumberFormatException nfe) {
+                    throw new BadConfigurationException("The ThreddsService attribute htmlCacheSize must be " +
+                            "an integer value. Found: " + s);
+                }
+            }
+
             Element e;
             e = threddsService.getChild("ingestTransformFile");
             if (e != null) {
@@ -696,6 +715,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
         log.debug("init() - prefix: {}", _prefix);
         log.debug("init() - useMemoryCache: {}", _useMemoryCache);
         log.debug("init() - allowRemoteCatalogTraversal: {}", _allowRemoteCatalogTraversal);
+        log.debug("init() - watchCatalogs: {}", _watchCatalogFiles);
         log.debug("init() - Using ingest transform file: " + ingestTransformFile);
 
 
@@ -748,52 +768,25 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
         log.debug("init() - THREDDS catalog.xml (and children thereof) have been ingested.");
 
-
-        log.debug("init() - Loading XSLT for thredds presentation views.");
-
-        // Create a lock for use with the thread-unsafe transformer.
-        _catalogToHtmlTransformLock = new ReentrantLock(true);
-
-        try {
-            _catalogToHtmlTransformLock.lock();
-
-            // ---------------------
-            // Get XSLT document name
-            String catalogToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _catalogToHtmlTransformFile);
-
-            // Build an cache an XSLT transformer for the XSLT document.
-            _catalogToHtmlTransform = new Transformer(catalogToHtmlXslt);
+        if (_watchCatalogFiles)
+            CatalogManager.startCatalogWatcher();
 
 
-            log.debug("init() - XSLT file \"" + catalogToHtmlXslt + "\"loaded & parsed. " +
-                    "Transfrom object created and cached. " +
-                    "Transform lock created.");
-        }
-        finally {
-            _catalogToHtmlTransformLock.unlock();
-        }
-
-
-        // Create a lock for use with the thread-unsafe transformer.
-        _datasetToHtmlTransformLock = new ReentrantLock(true);
-
-        try {
-            _datasetToHtmlTransformLock.lock();
+        log.debug("init() - Loading XSLT for thredds presentation views.");
 
-            // ---------------------
-            // Get XSLT document name
-            String datasetToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _datasetToHtmlTransformFile);
+        // ---------------------
+        // Get XSLT document names. Each request gets its own Transformer,
+        // the compiled stylesheets are shared between them.
+        _catalogToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _catalogToHtmlTransformFile);
+        Transformer.compile(_catalogToHtmlXslt);
+        log.debug("init() - XSLT file \"" + _catalogToHtmlXslt + "\" loaded & compiled.");
 
-            // Build an cache an XSLT transformer for the XSLT document.
-            _datasetToHtmlTransform = new Transformer(datasetToHtmlXslt);
+        _datasetToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _datasetToHtmlTransformFile);
+        Transformer.compile(_datasetToHtmlXslt);
+        log.debug("init() - XSLT file \"" + _datasetToHtmlXslt + "\" loaded & compiled.");
 
-            log.debug("init() - XSLT file \"" + datasetToHtmlXslt + "\"loaded & parsed. " +
-                    "Transfrom object created and cached. " +
-                    "Transform lock created.");
-        }
-        finally {
-            _datasetToHtmlTransformLock.unlock();
-        }
+        _htmlCache = new RenderedHtmlCache(htmlCacheSize);
+        log.debug("init() - HTML cache size: {} bytes", htmlCacheSize);
 
 
         log.info("init() - Initialized.");
@@ -846,7 +839,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
     public long getLastModified(HttpServletRequest req) {
 
-        Procedure timedProc = Timer.start();
+        long timedProc = LAST_MODIFIED_TIMER.start();
 
         RequestCache.openThreadCache();
 
@@ -863,7 +856,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
             log.error("Failed to get a last modified time for '{}' msg: {}", Scrub.urlContent(catalogKey), e.getMessage());
         }
         finally {
-            Timer.stop(timedProc);
+            LAST_MODIFIED_TIMER.stop(timedProc);
         }
 
         return new Date().getTime();
@@ -872,6 +865,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
     public void destroy() {
 
         CatalogManager.destroy();
+        _htmlCache.clear();
         log.info("Destroy Complete");
 
 
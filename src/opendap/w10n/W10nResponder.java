@@ -350,8 +350,7 @@ public class W10nResponder {
             throws OPeNDAPException, JDOMException, IOException, SaxonApiException {
 
         MediaType mt = w10nRequest.getBestMediaType();
-        Document besNode = new Document();
-        besApi.getBesNode(w10nRequest.getValidResourcePath(), besNode);
+        Document besNode = besApi.getSharedBesNode(w10nRequest.getValidResourcePath());
         if(log.isDebugEnabled()) {
             XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
             log.debug("sendMetaResponseForFileOrDir() - Catalog from BES: {}\n", xmlo.outputString(besNode));
@@ -34,8 +34,7 @@ import opendap.coreServlet.Debug;
 import opendap.coreServlet.OPeNDAPException;
 import opendap.coreServlet.Scrub;
 import opendap.logging.LogUtil;
-import opendap.logging.Timer;
-import opendap.logging.Procedure;
+import opendap.logging.PhaseTimer;
 import opendap.services.ServicesRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +54,8 @@ public class W10nServlet extends HttpServlet   {
 
     private static final Logger LOG = LoggerFactory.getLogger(W10nServlet.class);
     private static final W10nResponder W10N_RESPONDER = new W10nResponder();
+    private static final PhaseTimer REQUEST_TIMER = PhaseTimer.named("w10n.request");
+    private static final PhaseTimer LAST_MODIFIED_TIMER = PhaseTimer.named("w10n.lastModified");
 
     /**
      * ************************************************************************
@@ -92,7 +93,7 @@ public class W10nServlet extends HttpServlet   {
         long reqno = _reqNumber.incrementAndGet();
         LogUtil.logServerAccessStart(req, LogUtil.HYRAX_LAST_MODIFIED_ACCESS_LOG_ID, "LastModified", Long.toString(reqno));
         long lmt = new Date().getTime();
-        Procedure timedProcedure = Timer.start();
+        long timedProcedure = LAST_MODIFIED_TIMER.start();
         try {
             if (ReqInfo.isServiceOnlyRequest(req)) {
                 return lmt;
@@ -102,7 +103,7 @@ public class W10nServlet extends HttpServlet   {
             LOG.error("Caught: {}  Message: {} ", e.getClass().getName(), e.getMessage());
         } finally {
             LogUtil.logServerAccessEnd(HttpServletResponse.SC_OK, LogUtil.HYRAX_LAST_MODIFIED_ACCESS_LOG_ID);
-            Timer.stop(timedProcedure);
+            LAST_MODIFIED_TIMER.stop(timedProcedure);
         }
         return lmt;
     }
@@ -113,7 +114,7 @@ public class W10nServlet extends HttpServlet   {
 
         int request_status = HttpServletResponse.SC_OK;
         try {
-            Procedure timedProc = Timer.start();
+            long timedProc = REQUEST_TIMER.start();
             try {
                 if(LicenseManager.isExpired(request)){
                     LicenseManager.sendLicenseExpiredPage(request,response);
@@ -137,7 +138,7 @@ public class W10nServlet extends HttpServlet   {
             }
             finally {
                 LOG.info("doGet(): Response completed.\n");
-                Timer.stop(timedProc);
+                REQUEST_TIMER.stop(timedProc);
             }
         }
         catch (Throwable t) {
@@ -162,9 +163,6 @@ public class W10nServlet extends HttpServlet   {
             LogUtil.logServerAccessEnd(request_status, LogUtil.HYRAX_ACCESS_LOG_ID);
             RequestCache.closeThreadCache();
         }
-
-        LOG.info(Timer.report());
-        Timer.reset();
     }
 
     //**************************************************************************
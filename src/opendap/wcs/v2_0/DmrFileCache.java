@@ -0,0 +1,207 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2020 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.wcs.v2_0;
+
+import opendap.bes.caching.LruFileStore;
+import opendap.namespaces.DAP4;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A size bounded, on disk cache of DMR documents.
+ *
+ * Each DMR is held in its own file of an LruFileStore, named by the (already
+ * hashed) cache id of the dataset. A cached DMR is used as long as it is
+ * younger than the time to live and its dataset hasn't been modified since
+ * it was written. Otherwise the DMR is retrieved again.
+ *
+ * Concurrent retrievals of the same DMR are coalesced, so that concurrent
+ * requests for one dataset make a single trip to the DAP service and share
+ * its result, while requests for other datasets proceed. A new DMR is
+ * written to a temporary file and checked before being moved into place
+ * atomically, so readers (which don't lock) only ever see complete DMRs, and
+ * an error response from the DAP service is never cached.
+ *
+ * When the files in the cache exceed the maximum size the least recently
+ * used ones are deleted.
+ */
+class DmrFileCache {
+
+    /**
+     * Writes a DMR to a stream, the source of the DMRs that are not (or no
+     * longer) in the cache.
+     */
+    interface DmrSource {
+        void writeDmr(OutputStream os) throws IOException, WcsException;
+    }
+
+    private static final String DMR_SUFFIX = ".dmr.xml";
+
+    private Logger _log;
+
+    private LruFileStore _store;
+    private long _ttl;
+
+    private ConcurrentHashMap<String, FutureTask<Element>> _inFlight;
+
+    /**
+     * @param cacheDir The directory in which to keep the DMR files. It is
+     *                 created if it doesn't exist. DMR files already in it
+     *                 are adopted.
+     * @param maxSize The maximum number of bytes to keep in the cache.
+     * @param ttl The time to live, in milliseconds, of a cached DMR.
+     * @throws IOException When the cache directory can't be created.
+     */
+    DmrFileCache(File cacheDir, long maxSize, long ttl) throws IOException {
+        _log = LoggerFactory.getLogger(getClass());
+        _store = new LruFileStore(cacheDir, DMR_SUFFIX, maxSize);
+        _ttl = ttl;
+        _inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the DMR with the passed cache id, retrieving it from the
+     * source if it isn't in the cache or if the cached copy is too old.
+     *
+     * @param cacheId The cache id of the DMR. It's used as a file name.
+     * @param lastModified The last modified time of the dataset, in ms since
+     *                     the epoch, or -1 if that isn't known.
+     * @param source Where to get the DMR if the cache can't provide it.
+     * @return The root element of the DMR. It belongs to the caller.
+     */
+    Element getDmr(final String cacheId, long lastModified, final DmrSource source)
+            throws IOException, JDOMException, WcsException {
+
+        Element dmr = readValidDmr(cacheId, lastModified);
+        if (dmr != null)
+            return dmr;
+
+        FutureTask<Element> task = new FutureTask<>(new Callable<Element>() {
+            @Override
+            public Element call() throws Exception {
+                return retrieveDmr(cacheId, source);
+            }
+        });
+        FutureTask<Element> inFlight = _inFlight.putIfAbsent(cacheId, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                _inFlight.remove(cacheId, task);
+            }
+        } else {
+            _log.debug("getDmr() - Waiting for the retrieval of cacheId: {}", cacheId);
+        }
+
+        try {
+            // Everyone that shared the retrieval gets their own copy.
+            return (Element) inFlight.get().clone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the DMR for cacheId: " + cacheId, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof JDOMException) throw (JDOMException) cause;
+            if (cause instanceof WcsException) throw (WcsException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Writes the DMR from source into the cache.
+     *
+     * @return The root element of the new DMR.
+     */
+    private Element retrieveDmr(String cacheId, DmrSource source) throws IOException, JDOMException, WcsException {
+
+        _log.debug("retrieveDmr() - Retrieving DMR for cacheId: {}", cacheId);
+
+        File tmpFile = _store.createTempFile(cacheId);
+        try {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                source.writeDmr(os);
+            }
+            Element dmr = opendap.xml.Util.getDocumentRoot(tmpFile);
+            if (!dmr.getName().equals(DAP4.DATASET)) {
+                throw new IOException("The DAP service returned a " + dmr.getName() +
+                        " document where a DMR was expected.");
+            }
+            _store.commit(tmpFile, cacheId);
+            return dmr;
+        } finally {
+            if (tmpFile.exists() && !tmpFile.delete())
+                _log.warn("Unable to delete temporary file {}", tmpFile);
+        }
+    }
+
+    /**
+     * @return The cached DMR, or null if it isn't cached, is too old, or
+     * was evicted while it was being read.
+     */
+    private Element readValidDmr(String cacheId, long lastModified) throws JDOMException {
+
+        File dmrFile = _store.getFile(cacheId);
+        long written = dmrFile.lastModified();
+        if (written == 0)
+            return null;
+
+        if (System.currentTimeMillis() - written > _ttl) {
+            _log.debug("readValidDmr() - Cached DMR {} has expired.", cacheId);
+            return null;
+        }
+        if (lastModified > written) {
+            _log.debug("readValidDmr() - The dataset for cached DMR {} has been modified.", cacheId);
+            return null;
+        }
+        try {
+            Element dmr = opendap.xml.Util.getDocumentRoot(dmrFile);
+            _store.touch(cacheId);
+            return dmr;
+        } catch (IOException e) {
+            // Pruned out from under us.
+            _log.debug("readValidDmr() - Unable to read cached DMR {} msg: {}", cacheId, e.getMessage());
+            return null;
+        }
+    }
+
+    long getCurrentSize() { return _store.getCurrentSize(); }
+}
@@ -37,14 +37,9 @@ import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 
 import javax.xml.bind.*;
 import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
 import java.io.*;
 import java.math.BigInteger;
 import java.util.*;
@@ -62,6 +57,8 @@ import static java.lang.Double.NaN;
  * @todo This class needs a thoughtful "serialization" to persist itself so that we don't have to do the dynamic part every single time.
  */
 public class DynamicCoverageDescription extends CoverageDescription {
+    private static volatile JAXBContext _wcsJaxbContext = null;
+
     private Logger _log;
     private Element _myDMR;
     private DynamicService _dynamicService;
@@ -141,7 +138,9 @@ public class DynamicCoverageDescription extends CoverageDescription {
     }
 
     /**
-     * Uses JAXB to build a Dataset object from the passed DMR.
+     * Uses JAXB to build a Dataset object from the passed DMR. The DMR is
+     * handed to JAXB straight from the JDOM tree, using the shared
+     * opendap.dap4 JAXBContext.
      *
      * @param dmr The root element of the DMR document to process
      * @return The Dataset object created by JAXB.
@@ -149,22 +148,14 @@ public class DynamicCoverageDescription extends CoverageDescription {
      */
     protected Dataset buildDataset(Element dmr) throws WcsException {
         try {
-            JAXBContext jc = JAXBContext.newInstance(Dataset.class);
-            Unmarshaller um = jc.createUnmarshaller();
-            XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
-            String dmrXml = xmlo.outputString(dmr);
-            InputStream is = new ByteArrayInputStream(dmrXml.getBytes("UTF-8"));
-            XMLInputFactory factory = opendap.xml.Util.getXmlInputFactory();
-            XMLStreamReader xsr = factory.createXMLStreamReader(is);
-            XMLReaderWithNamespaceInMyPackageDotInfo xr = new XMLReaderWithNamespaceInMyPackageDotInfo(xsr);
-            Dataset dataset = (Dataset) um.unmarshal(xr);
+            Dataset dataset = Dap4JaxbContext.unmarshal(dmr);
             if (dataset == null) {
                 String msg = "JAXB failed to produce a Dataset from the DMR.";
                 _log.debug(msg);
                 throw new WcsException(msg, WcsException.NO_APPLICABLE_CODE);
             }
             return dataset;
-        } catch (JAXBException | UnsupportedEncodingException | XMLStreamException e) {
+        } catch (JAXBException e) {
             StringBuilder sb = new StringBuilder();
             sb.append("Unable to build Dataset instance from JDOM DMR document.");
             sb.append(" Caught ").append(e.getClass().getName());
@@ -852,6 +843,28 @@ public class DynamicCoverageDescription extends CoverageDescription {
         return field;
     }
 
+    /**
+     * Returns the JAXBContext for the net.opengis.wcs.v_2_0 package, building it on first use.
+     * A JAXBContext is thread safe and expensive to build (it's most of the cost of a
+     * DescribeCoverage) so one is shared by every DynamicCoverageDescription.
+     *
+     * @return The shared JAXBContext for net.opengis.wcs.v_2_0
+     * @throws JAXBException When the context can't be built.
+     */
+    private static JAXBContext getWcsJaxbContext() throws JAXBException {
+        JAXBContext jc = _wcsJaxbContext;
+        if (jc == null) {
+            synchronized (DynamicCoverageDescription.class) {
+                jc = _wcsJaxbContext;
+                if (jc == null) {
+                    jc = JAXBContext.newInstance("net.opengis.wcs.v_2_0");
+                    _wcsJaxbContext = jc;
+                }
+            }
+        }
+        return jc;
+    }
+
     /**
      * Converts the JAXB generated CoverageDescriptionType to a JDOM representation of the CoverageDescription
      *
@@ -875,8 +888,7 @@ public class DynamicCoverageDescription extends CoverageDescription {
         Marshaller jaxbMarshaller;
 
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance("net.opengis.wcs.v_2_0");
-            jaxbMarshaller = jaxbContext.createMarshaller();
+            jaxbMarshaller = getWcsJaxbContext().createMarshaller();
         } catch (JAXBException e) {
             String msg = "Failed to get JAXB Marshaller! JAXBException Message: " + e.getMessage();
             _log.error(msg);
@@ -910,31 +922,22 @@ public class DynamicCoverageDescription extends CoverageDescription {
         // marshal coverage description into console (more specifically, System.out)
         //jaxbMarshaller.marshal(new JAXBElement(new QName("http://www.opengis.net/wcs/2.0", "wcs"), CoverageDescriptionType.class, cd), System.out);
 
-        // TODO: marshal this into the OLFS JDOM object representation of CoverageDescription...more directly
-
-        DocumentBuilder db = opendap.xml.Util.getDocumentBuilder();
-        if(db == null){
-            throw new WcsException("coverageDescriptionType2JDOM() - OUCH!! Failed to get DocumentBuilder!", WcsException.NO_APPLICABLE_CODE);
-        }
-        Document doc = db.newDocument();
-
         //////////////////////////////////////////////////////////////////////////////////////////
         // per https://stackoverflow.com/questions/819720/no-xmlrootelement-generated-by-jaxb/
         // method#2: wrap WCS Coverage Description as JAXB Element using Object Factory
-        // marshal coverage description into a org.w3c.dom.Document...first
-
-        // ... and then convert the resultant org.w3c.dom.Document to JDOM (1.1.3) ..which is what OLFS runs on
-        // (for JDOM 2, the Builder would be org.jdom2.input.DOMBuilder)
+        // and marshal it straight into a JDOM (1.1.3) Document ..which is what OLFS runs on.
+        // The SAXHandler builds the JDOM tree from the marshaller's SAX events, so there's
+        // no intermediate org.w3c.dom.Document to build and then convert.
         net.opengis.wcs.v_2_0.ObjectFactory wcsObjFactory = new net.opengis.wcs.v_2_0.ObjectFactory();
+        org.jdom.input.SAXHandler jdomHandler = new org.jdom.input.SAXHandler();
         try {
-            jaxbMarshaller.marshal(wcsObjFactory.createCoverageDescription(cd), doc);
+            jaxbMarshaller.marshal(wcsObjFactory.createCoverageDescription(cd), jdomHandler);
         } catch (JAXBException e) {
             String msg = "Failed to get marshall CoverageDescription! JAXBException Message: " + e.getMessage();
             _log.error(msg);
             throw new WcsException(msg, WcsException.NO_APPLICABLE_CODE);
         }
-        org.jdom.input.DOMBuilder jdb = new org.jdom.input.DOMBuilder();
-        org.jdom.Document jdoc = jdb.build(doc);
+        org.jdom.Document jdoc = jdomHandler.getDocument();
 
         // gotcha!  This is what integrates into OLFS (mostly).
         // The rest of CoverageDescription object can be derive from whatever has been captured so far
@@ -33,13 +33,14 @@ import opendap.bes.dap2Responders.BesApi;
 import opendap.coreServlet.RequestCache;
 import opendap.dap.User;
 import opendap.dap4.QueryParameters;
+import opendap.http.HttpResponseCache;
 import opendap.http.Util;
 import opendap.ppt.PPTException;
 import opendap.services.ServicesRegistry;
 import opendap.viewers.WcsService;
 import opendap.wcs.srs.SimpleSrs;
 import org.apache.commons.codec.binary.Hex;
-import org.jdom.Document;
+import org.apache.http.HttpStatus;
 import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.input.SAXBuilder;
@@ -54,11 +55,11 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 /**
  * This catalog doesn't maintain a catalog persay, but uses incoming requests to access remote services to build a
@@ -69,7 +70,6 @@ public class DynamicServiceCatalog implements WcsCatalog{
     private Logger _log;
     private boolean _intialized;
 
-    // private String _cacheDir;
 
    // private ConcurrentHashMap<String,SimpleSrs> _defaultSRS;
 
@@ -77,17 +77,40 @@ public class DynamicServiceCatalog implements WcsCatalog{
 
     private ConcurrentHashMap<String,DynamicService> _dynamicServices;
 
+    public static final String CACHE_DIRECTORY_ELEMENT_NAME = "CacheDirectory";
+
+    public static final String DMR_CACHE_ELEMENT_NAME = "DmrCache";
+    public static final long DMR_CACHE_MAX_SIZE_DEFAULT = 104857600; // 100 MB
+    public static final long DMR_CACHE_TTL_DEFAULT = 3600; // seconds
+
+    public static final String COVERAGE_CACHE_ELEMENT_NAME = "CoverageDescriptionCache";
+    public static final int COVERAGE_CACHE_MAX_ENTRIES_DEFAULT = 100;
+    public static final long COVERAGE_CACHE_TTL_DEFAULT = 600; // seconds
+
+    // Second tier: DMR documents on disk. Null until init() is called.
+    private DmrFileCache _dmrCache;
+
+    // First tier: the DynamicCoverageDescriptions built from the DMRs, in
+    // least recently used order. Access is synchronized on the map.
+    private CoverageCache _coverageCache;
+    private long _coverageCacheTtl;
+
 
 
     public DynamicServiceCatalog(){
         _intialized = false;
         _log = LoggerFactory.getLogger(getClass());
         _dynamicServices = new ConcurrentHashMap<>();
+        _dmrCache = null;
+        _coverageCache = null;
     }
 
     /**
      * <pre>
      *    <WcsCatalog className="opendap.wcs.v2_0.DynamicServiceCatalog" >
+     *        <CacheDirectory>/etc/olfs/cache/wcs</CacheDirectory>
+     *        <DmrCache maxSize="104857600" ttl="3600" />
+     *        <CoverageDescriptionCache maxEntries="100" ttl="600" />
      *        <DynamicService name="lds" href="http://localhost:8080/opendap/" />
      *    </WcsCatalog>
      * </pre>
@@ -139,30 +162,7 @@ public class DynamicServiceCatalog implements WcsCatalog{
         }
         */
 
-        /*
-        e1 = config.getChild("CacheDirectory");
-        if(e1==null){
-
-            String defaultCacheDir = cacheDir + this.getClass().getSimpleName();
-
-            File defaultCatDir = new File(defaultCacheDir);
-
-            if(!defaultCatDir.exists()){
-                if(!defaultCatDir.mkdirs()){
-                    msg = "Default Cache Directory ("+defaultCacheDir+")does not exist and cannot be " +
-                            "created. Could not find CoveragesDirectory element in " +
-                            "configuration element: "+ xmlo.outputString(config);
-                    _log.error(msg);
-                    throw new IOException(msg);
-                }
-            }
-            _cacheDir = defaultCacheDir;
-        }
-        else {
-            _cacheDir =  e1.getTextTrim();
-        }
-        _log.debug("WCS-2.0 Cache Directory: " + _cacheDir);
-        */
+        initCaches(config, cacheDir);
 
         List<Element> dynamicServices = config.getChildren("DynamicService");
         for(Element dsElement:dynamicServices) {
@@ -190,6 +190,59 @@ public class DynamicServiceCatalog implements WcsCatalog{
         _intialized = true;
     }
 
+    /**
+     * Builds the two cache tiers from the (optional) CacheDirectory, DmrCache and
+     * CoverageDescriptionCache elements of the configuration. The DMR files go in the
+     * CacheDirectory, which defaults to a directory named for this class in cacheDir.
+     *
+     * @param config The WcsCatalog configuration element.
+     * @param cacheDir The directory into which the catalog may write persistent content.
+     * @throws IOException When the cache directory can't be used.
+     * @throws BadConfigurationException When an attribute value is not a positive number.
+     */
+    private void initCaches(Element config, String cacheDir) throws IOException, BadConfigurationException {
+
+        File dmrCacheDir;
+        Element e1 = config.getChild(CACHE_DIRECTORY_ELEMENT_NAME);
+        if(e1==null){
+            dmrCacheDir = new File(cacheDir, this.getClass().getSimpleName());
+        }
+        else {
+            dmrCacheDir = new File(e1.getTextTrim());
+        }
+        _log.debug("WCS-2.0 Cache Directory: {}", dmrCacheDir);
+
+        e1 = config.getChild(DMR_CACHE_ELEMENT_NAME);
+        long maxSize = getPositiveLongAttribute(e1, "maxSize", DMR_CACHE_MAX_SIZE_DEFAULT);
+        long ttl = getPositiveLongAttribute(e1, "ttl", DMR_CACHE_TTL_DEFAULT);
+        _dmrCache = new DmrFileCache(dmrCacheDir, maxSize, ttl * 1000);
+
+        e1 = config.getChild(COVERAGE_CACHE_ELEMENT_NAME);
+        long maxEntries = getPositiveLongAttribute(e1, "maxEntries", COVERAGE_CACHE_MAX_ENTRIES_DEFAULT);
+        _coverageCacheTtl = getPositiveLongAttribute(e1, "ttl", COVERAGE_CACHE_TTL_DEFAULT) * 1000;
+        _coverageCache = new CoverageCache(maxEntries);
+        _log.info("DmrCache maxSize: {} bytes, ttl: {} s. CoverageDescriptionCache maxEntries: {}, ttl: {} s",
+                new Object[]{maxSize, ttl, maxEntries, _coverageCacheTtl / 1000});
+    }
+
+    private long getPositiveLongAttribute(Element e, String name, long defaultValue) throws BadConfigurationException {
+        if(e==null)
+            return defaultValue;
+        String s = e.getAttributeValue(name);
+        if(s==null)
+            return defaultValue;
+        try {
+            long value = Long.parseLong(s);
+            if(value > 0)
+                return value;
+        }
+        catch (NumberFormatException nfe){
+            // Fall through to the exception below.
+        }
+        throw new BadConfigurationException("The "+e.getName()+" attribute '"+name+
+                "' must be a positive integer. value: "+s);
+    }
+
     private String anyId2CacheId(String someId) throws WcsException {
         if(someId==null)
             return null;
@@ -209,27 +262,6 @@ public class DynamicServiceCatalog implements WcsCatalog{
 
 
 
-    private Element getDmrFromBes(User user, String besDatasource, String datasetUrl)
-            throws WcsException, IOException, JDOMException {
-
-        if(!BESManager.isInitialized())
-            throw new WcsException("The BESManager has not been configured. " +
-                    "Unable to access BES!",WcsException.NO_APPLICABLE_CODE);
-        BesApi besApi = new BesApi();
-        QueryParameters qp = new QueryParameters();
-        try {
-            Document dmrDoc = new Document();
-            besApi.getDMRDocument(user, besDatasource, qp, datasetUrl, dmrDoc);
-            return dmrDoc.detachRootElement();
-        } catch (BadConfigurationException | PPTException | BESError error) {
-            String msg = "Failed to get DMR from BES! Caught " + error.getClass().getName() +
-                    " Message: " + error.getMessage();
-            _log.error("getCachedDMR() - {}", msg);
-            throw new IOException(msg, error);
-        }
-    }
-
-
     private void writeDmrFromBes(User user, String besDatasource, String datasetUrl, OutputStream fos)
             throws WcsException, IOException {
         
@@ -265,132 +297,127 @@ public class DynamicServiceCatalog implements WcsCatalog{
         // Have we been here before in this thread/request?
         // Check the RequestCache and get the goods that will be there if
         // the answer to the question is true.
-        String responseCacheKey = this.getClass().getName()+".getDMR()";
+        String responseCacheKey = this.getClass().getName()+".getDMR()"+coverageId;
         Element dmr  = (Element) RequestCache.get(responseCacheKey);
         if(dmr!=null)
             return dmr;
-        
-        String datasetUrl = getDapDatsetUrl(coverageId);
-        _log.debug("getDMR() - DAP Dataset URL: {}", datasetUrl);
-        if (datasetUrl == null)
-            return null;
 
-        if (datasetUrl.startsWith(Util.BES_PROTOCOL)) {
-            // Build the BES Data Source name from the datasetUrl by stripping the protocol part.
-            String besDatasource = datasetUrl.substring(Util.BES_PROTOCOL.length());
-            // Get the DMR element for the besDatasource from the BES.
-            Element dmrElement = getDmrFromBes(user, besDatasource, datasetUrl);
-            dmrElement.setAttribute("name", coverageId);
+        dmr = getCachedDMR(user, coverageId);
+        if(dmr!=null) {
             // Throw a ref to it in the per-thread request cache so we don't do this again within a request
-            RequestCache.put(responseCacheKey,dmrElement);
-            // Done!
-            return dmrElement;
+            RequestCache.put(responseCacheKey, dmr);
         }
-
-        if (datasetUrl.startsWith(Util.HTTP_PROTOCOL) ||
-                datasetUrl.startsWith(Util.HTTPS_PROTOCOL)) {
-            // Buid the DMR request URL
-            String dmrUrl = datasetUrl + ".dmr.xml";
-            _log.debug("getDMR() - DMR URL: {}", dmrUrl);
-            // Go get the bytes.
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            opendap.http.Util.writeRemoteContent(dmrUrl, WcsServiceManager.getCredentialsProvider(), baos);
-            // Parse the bytes into JDOM
-            SAXBuilder sb = new SAXBuilder();
-            Document dmrDoc = sb.build(new ByteArrayInputStream(baos.toByteArray()));
-            // Get the DMR element and set it's name
-            Element dmrElement = dmrDoc.detachRootElement();
-            dmrElement.setAttribute("name", coverageId);
-            // Throw a ref to it in the per-thread request cache so we don't do this again within a request
-            RequestCache.put(responseCacheKey,dmrElement);
-            // Done!
-            return dmrElement;
-        }
-        String msg = "Unrecognized protocol: " + datasetUrl;
-        _log.error("getDMR() - {}", msg);
-        throw new IOException(msg);
+        return dmr;
     }
 
 
-
-
     /**
-     * Prototype DMR retrieval using a rudimentary cache.
-     * This implmentation has the following known issues:
-     * - No size control.
-     * - No ejection operation
-     * - no read lock.
-     * Plus more that will surely turn up.
-     * FIXME: Make a cache based retrieval work here. Use a cache lib?  It would be best if the cache could accept both the DMR JDOM Element and the DynamicCoverageDescription object.
-     * @param coverageId  The cacheId (aka cache file name)
-     * @return
+     * Retrieves the DMR for the coverage by way of the DMR cache. When
+     * the cache isn't available (init() was never called) the DMR is
+     * retrieved directly from the DAP service.
+     *
+     * @param coverageId  The name of the Coverage
+     * @return The DMR of the DAP dataset associated with the coverage.
      */
-
-    private Element getCachedDMR(User user, String coverageId) throws IOException, JDOMException, InterruptedException, WcsException {
+    private Element getCachedDMR(final User user, String coverageId)
+            throws IOException, JDOMException, InterruptedException, WcsException {
 
         _log.debug("getCachedDMR() - BEGIN coverageId: {}",coverageId);
 
-        String _cacheDir = "/tmp";
-        ReentrantReadWriteLock _cacheLock = new ReentrantReadWriteLock();
-
-        String datasetUrl = getDapDatsetUrl(coverageId);
+        final String datasetUrl = getDapDatsetUrl(coverageId);
         _log.debug("getCachedDMR() - DAP Dataset URL: {}",datasetUrl);
         if(datasetUrl==null)
             return null;
 
-        String datasetCacheId = anyId2CacheId(datasetUrl);
-        _log.debug("getCachedDMR() - datasetCacheId: {}", datasetCacheId);
+        DmrFileCache.DmrSource source = new DmrFileCache.DmrSource() {
+            @Override
+            public void writeDmr(OutputStream os) throws IOException, WcsException {
+                writeDmrFromDapService(user, datasetUrl, os);
+            }
+        };
 
-        String dmrCacheFileName = datasetCacheId + ".dmr.xml";
-        File dmrCacheFile = new File(_cacheDir, dmrCacheFileName);
+        Element dmrElement;
+        // Remote DMRs are already cached, and revalidated, by the HttpResponseCache.
+        if(_dmrCache==null || !datasetUrl.startsWith(Util.BES_PROTOCOL)){
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            source.writeDmr(baos);
+            SAXBuilder sb = new SAXBuilder();
+            dmrElement = sb.build(new ByteArrayInputStream(baos.toByteArray())).detachRootElement();
+        }
+        else {
+            String datasetCacheId = anyId2CacheId(datasetUrl + getUserCacheId(user));
+            _log.debug("getCachedDMR() - datasetCacheId: {}", datasetCacheId);
+            dmrElement = _dmrCache.getDmr(datasetCacheId, getDatasetLastModified(datasetUrl), source);
+        }
+        dmrElement.setAttribute("name",coverageId);
+        return dmrElement;
+    }
 
 
-        // TODO Improve by adding a shared read lock. jhrg 9/18/17
-        WriteLock writeLock = _cacheLock.writeLock();
+    /**
+     * Writes the DMR of the dataset at datasetUrl, which may be a BES (bes://)
+     * or a remote (http:// or https://) dataset, to the passed stream.
+     */
+    private void writeDmrFromDapService(User user, String datasetUrl, OutputStream os)
+            throws IOException, WcsException {
 
-        writeLock.lock();
-        try {
-            if(dmrCacheFile.exists()){
-                _log.debug("getCachedDMR() - Reading cached DMR.");
-                Element dmrElement = opendap.xml.Util.getDocumentRoot(dmrCacheFile);
-                dmrElement.setAttribute("name",coverageId);
-                return dmrElement;
-            }
-            else {
-                _log.debug("getCachedDMR() - Retrieving DMR from DAP service");
-                FileOutputStream fos = new FileOutputStream(dmrCacheFile);
-
-                try {
-                    if (datasetUrl.startsWith(Util.BES_PROTOCOL)) {
-                        String besDatasource = datasetUrl.substring(Util.BES_PROTOCOL.length());
-                        writeDmrFromBes(user, besDatasource,datasetUrl,fos);
-                    } else if (datasetUrl.startsWith(Util.HTTP_PROTOCOL) || datasetUrl.startsWith(Util.HTTPS_PROTOCOL)) {
-                        String dmrUrl = datasetUrl + ".dmr.xml";
-                        _log.debug("getCachedDMR() - DMR URL: {}",dmrUrl);
-
-                        opendap.http.Util.writeRemoteContent(dmrUrl, WcsServiceManager.getCredentialsProvider(), fos);
-                    } else {
-                        String msg = "Unrecognized protocol: " + datasetUrl;
-                        _log.error("getCachedDMR() - {}", msg);
-                        throw new IOException(msg);
-                    }
-                }
-                finally {
-                    fos.close();
-                }
-                // FIXME Add something to limit cache size and to purge the stuff.
-                Element dmrElement = opendap.xml.Util.getDocumentRoot(dmrCacheFile);
-                // TODO QC the dmrElement to be sure it's not a DAP error object and then maybe uncache it if it's an error.
-                dmrElement.setAttribute("name",coverageId);
-                return dmrElement;
+        if (datasetUrl.startsWith(Util.BES_PROTOCOL)) {
+            String besDatasource = datasetUrl.substring(Util.BES_PROTOCOL.length());
+            writeDmrFromBes(user, besDatasource, datasetUrl, os);
+        }
+        else if (datasetUrl.startsWith(Util.HTTP_PROTOCOL) || datasetUrl.startsWith(Util.HTTPS_PROTOCOL)) {
+            String dmrUrl = datasetUrl + ".dmr.xml";
+            _log.debug("writeDmrFromDapService() - DMR URL: {}",dmrUrl);
+            // The same credentials are used for every user, so every user can share the cached response.
+            HttpResponseCache.Response dmrResponse =
+                    HttpResponseCache.get(dmrUrl, WcsServiceManager.getCredentialsProvider(), null);
+            if (dmrResponse.getStatus() != HttpStatus.SC_OK) {
+                String msg = "Unable to retrieve the DMR " + dmrUrl + " The server returned the HTTP status: " +
+                        dmrResponse.getStatus();
+                _log.error("writeDmrFromDapService() - {}", msg);
+                throw new IOException(msg);
             }
+            dmrResponse.writeBody(os);
         }
-        finally {
-            writeLock.unlock();
+        else {
+            String msg = "Unrecognized protocol: " + datasetUrl;
+            _log.error("writeDmrFromDapService() - {}", msg);
+            throw new IOException(msg);
         }
     }
 
 
+    /**
+     * Returns the last modified time of a BES dataset as reported by the BES. Remote
+     * datasets return -1 (unknown) and so are only subject to the caches' time to live.
+     * See BesApi.getMetadataLastModified(), which only asks the BES when the answer can
+     * come from the BesNodeCache. The value is kept in the RequestCache for the rest of
+     * the request.
+     *
+     * @param datasetUrl The DAP dataset URL of the coverage.
+     * @return The last modified time in ms since the epoch, or -1 if it is not known.
+     */
+    private long getDatasetLastModified(String datasetUrl) {
+        if (!datasetUrl.startsWith(Util.BES_PROTOCOL) || !BESManager.isInitialized())
+            return -1;
+
+        String responseCacheKey = this.getClass().getName()+".getDatasetLastModified()"+datasetUrl;
+        Long lastModified = (Long) RequestCache.get(responseCacheKey);
+        if(lastModified==null){
+            String besDatasource = datasetUrl.substring(Util.BES_PROTOCOL.length());
+            lastModified = new BesApi().getMetadataLastModified(besDatasource);
+            RequestCache.put(responseCacheKey,lastModified);
+        }
+        return lastModified;
+    }
+
+    private String getUserCacheId(User user){
+        if(user==null || user.getUID()==null)
+            return "|not_logged_in";
+        return "|" + user.getUID();
+    }
+
+
     @Override
     public boolean hasCoverage(User user, String coverageId) throws InterruptedException {
         try {
@@ -405,7 +432,10 @@ public class DynamicServiceCatalog implements WcsCatalog{
     }
 
     /**
-     * TODO In this method should be set up to utilize a cached instance of the DynamicCoverageDescription object as the getDMR() method does for the DMR document.
+     * Returns the DynamicCoverageDescription for the coverage. Descriptions are kept in
+     * an in-memory LRU cache until their time to live expires or the underlying dataset
+     * changes, after which they are rebuilt from the (possibly cached) DMR.
+     *
      * @param coverageId The Coverage ID (wcs:Identifier)
      * @return
      * @throws InterruptedException
@@ -418,11 +448,29 @@ public class DynamicServiceCatalog implements WcsCatalog{
             // Have we been here before in this thread/request?
             // Check the RequestCache and get the goods that will be there if
             // the answer to the question is true.
-            String responseCacheKey = this.getClass().getName()+".getCoverageDescription()";
+            String responseCacheKey = this.getClass().getName()+".getCoverageDescription()"+coverageId;
             CoverageDescription coverageDescription  = (CoverageDescription) RequestCache.get(responseCacheKey);
             if(coverageDescription!=null)
                 return coverageDescription;
 
+            String datasetUrl = getDapDatsetUrl(coverageId);
+            if(datasetUrl==null)
+                return null;
+            long lastModified = getDatasetLastModified(datasetUrl);
+
+            String coverageCacheKey = coverageId + getUserCacheId(user);
+            if(_coverageCache!=null) {
+                CachedCoverage cached;
+                synchronized (_coverageCache) {
+                    cached = _coverageCache.get(coverageCacheKey);
+                }
+                if (cached != null && cached.isValid(lastModified, _coverageCacheTtl)) {
+                    _log.debug("getCoverageDescription() - Using cached CoverageDescription for {}", coverageId);
+                    RequestCache.put(responseCacheKey, cached.coverageDescription);
+                    return cached.coverageDescription;
+                }
+            }
+
             Element dmr = getDMR(user, coverageId);
             if(dmr==null)
                 return null;
@@ -432,6 +480,11 @@ public class DynamicServiceCatalog implements WcsCatalog{
                 return null;
 
             coverageDescription = new DynamicCoverageDescription(dmr,dynamicService);
+            if(_coverageCache!=null) {
+                synchronized (_coverageCache) {
+                    _coverageCache.put(coverageCacheKey, new CachedCoverage(coverageDescription));
+                }
+            }
             RequestCache.put(responseCacheKey,coverageDescription);
             return coverageDescription;
 
@@ -542,7 +595,11 @@ public class DynamicServiceCatalog implements WcsCatalog{
 
     @Override
     public void destroy() {
-
+        if(_coverageCache!=null) {
+            synchronized (_coverageCache) {
+                _coverageCache.clear();
+            }
+        }
     }
 
     @Override
@@ -589,4 +646,48 @@ public class DynamicServiceCatalog implements WcsCatalog{
     }
 
 
+    /**
+     * The CoverageDescriptions most recently used, at most maxEntries of them.
+     * Access is synchronized on the instance.
+     */
+    private static class CoverageCache extends LinkedHashMap<String, CachedCoverage> {
+        private static final long serialVersionUID = 1L;
+
+        private final long maxEntries;
+
+        CoverageCache(long maxEntries){
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedCoverage> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    /**
+     * A DynamicCoverageDescription in the in-memory cache, along with when it was built.
+     */
+    private static class CachedCoverage {
+        final CoverageDescription coverageDescription;
+        final long created;
+
+        CachedCoverage(CoverageDescription coverageDescription){
+            this.coverageDescription = coverageDescription;
+            created = System.currentTimeMillis();
+        }
+
+        /**
+         * @param lastModified The dataset's last modified time, or -1 if that isn't known.
+         * @param ttl The time to live in ms.
+         * @return True if the description is younger than ttl and than the dataset.
+         */
+        boolean isValid(long lastModified, long ttl){
+            long now = System.currentTimeMillis();
+            return now - created <= ttl && lastModified <= created;
+        }
+    }
+
+
 }
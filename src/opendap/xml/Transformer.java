@@ -28,6 +28,7 @@ package opendap.xml;
 
 import net.sf.saxon.s9api.*;
 import opendap.io.HyraxStringEncoding;
+import opendap.logging.PhaseTimer;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -45,6 +46,8 @@ import javax.xml.transform.stream.StreamSource;
 import java.io.*;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: ndp
@@ -59,6 +62,25 @@ public class Transformer {
         log = org.slf4j.LoggerFactory.getLogger(Transformer.class);
     }
 
+    /**
+     * All Transformers built from a stylesheet path share this Processor so
+     * that the compiled stylesheets in XSLT_CACHE can be used by all of them.
+     * A Processor (and the XsltExecutables it compiles) is thread safe, the
+     * XsltTransformer instances loaded from them are not.
+     */
+    private static final Processor SHARED_PROCESSOR = new Processor(false);
+
+    /**
+     * Compiled stylesheets, keyed by the path of the stylesheet.
+     */
+    private static final ConcurrentHashMap<String, CachedXslt> XSLT_CACHE = new ConcurrentHashMap<>();
+
+    private static final AtomicLong XSLT_CACHE_HITS = new AtomicLong(0);
+    private static final AtomicLong XSLT_CACHE_MISSES = new AtomicLong(0);
+    private static final AtomicLong XSLT_COMPILES = new AtomicLong(0);
+
+    private static final PhaseTimer TRANSFORM_TIMER = PhaseTimer.named("xslt.transform");
+
     private Processor proc;
     private Serializer serializer;
     private XsltTransformer transform;
@@ -75,12 +97,20 @@ public class Transformer {
         builder = null;
     }
 
+    /**
+     * Makes a Transformer for the stylesheet xsltDocument. The compiled
+     * stylesheet comes from a process wide cache, so only the first
+     * Transformer made for a particular stylesheet (or the first one made
+     * after the stylesheet file has been modified) pays to compile it.
+     *
+     * @param xsltDocument The path to the XSLT stylesheet.
+     * @throws SaxonApiException When the stylesheet cannot be compiled.
+     */
     public Transformer(String xsltDocument) throws SaxonApiException {
         this();
 
-        proc = new Processor(false);
         xsltDoc = xsltDocument;
-        init(proc, new StreamSource(xsltDoc));
+        init(SHARED_PROCESSOR, new StreamSource(xsltDoc));
 
     }
 
@@ -146,14 +176,133 @@ public class Transformer {
 
 
     private void loadTransform(StreamSource xsltDocStream) throws SaxonApiException{
-        // Get an XSLT compiler with our transform in it.
-        XsltCompiler comp = proc.newXsltCompiler();
-        XsltExecutable exp = comp.compile(xsltDocStream);
+        XsltExecutable exp;
+        if(xsltDoc!=null && proc==SHARED_PROCESSOR) {
+            exp = getCachedXsltExecutable(xsltDoc);
+        }
+        else {
+            // Get an XSLT compiler with our transform in it.
+            XsltCompiler comp = proc.newXsltCompiler();
+            exp = comp.compile(xsltDocStream);
+            XSLT_COMPILES.incrementAndGet();
+        }
         transform = exp.load(); // loads the transform file.
         cacheTime = new Date();
 
     }
 
+
+    /**
+     * Compiles the stylesheet at xsltDocument into the compiled stylesheet
+     * cache, so that a bad stylesheet is found before it is first used.
+     *
+     * @param xsltDocument The path to the XSLT stylesheet.
+     * @throws SaxonApiException When the stylesheet cannot be compiled.
+     */
+    public static void compile(String xsltDocument) throws SaxonApiException {
+        getCachedXsltExecutable(xsltDocument);
+    }
+
+    /**
+     * Returns the compiled form of the stylesheet at xsltDocument, compiling
+     * it if it is not in the cache or if the file has been modified since it
+     * was compiled. Threads that need the same stylesheet while it is being
+     * compiled wait for that compilation rather than doing their own.
+     *
+     * @param xsltDocument The path to the XSLT stylesheet.
+     * @return The compiled stylesheet.
+     * @throws SaxonApiException When the stylesheet cannot be compiled.
+     */
+    private static XsltExecutable getCachedXsltExecutable(String xsltDocument) throws SaxonApiException {
+
+        CachedXslt cachedXslt = XSLT_CACHE.get(xsltDocument);
+        if(cachedXslt==null){
+            CachedXslt newEntry = new CachedXslt(xsltDocument);
+            cachedXslt = XSLT_CACHE.putIfAbsent(xsltDocument, newEntry);
+            if(cachedXslt==null)
+                cachedXslt = newEntry;
+        }
+        return cachedXslt.getExecutable();
+    }
+
+    /**
+     * @return The number of times a Transformer got its stylesheet from the
+     * compiled stylesheet cache without compiling it.
+     */
+    public static long getXsltCacheHits(){
+        return XSLT_CACHE_HITS.get();
+    }
+
+    /**
+     * @return The number of times a Transformer had to compile its stylesheet
+     * because it was not in the compiled stylesheet cache or had been
+     * modified.
+     */
+    public static long getXsltCacheMisses(){
+        return XSLT_CACHE_MISSES.get();
+    }
+
+    /**
+     * @return The total number of stylesheet compilations performed, both for
+     * the cache and for Transformers that can't use it.
+     */
+    public static long getXsltCompileCount(){
+        return XSLT_COMPILES.get();
+    }
+
+    /**
+     * Drops all of the compiled stylesheets from the cache.
+     */
+    public static void clearXsltCache(){
+        XSLT_CACHE.clear();
+    }
+
+
+    /**
+     * A compiled stylesheet and the time at which it was compiled. The
+     * lastModified time of the stylesheet file is checked each time the
+     * executable is requested so that edits to the stylesheet are picked up
+     * without a restart.
+     */
+    private static class CachedXslt {
+        private final String xsltDocument;
+        private volatile XsltExecutable executable;
+        private volatile long compileTime;
+
+        CachedXslt(String xsltDocument){
+            this.xsltDocument = xsltDocument;
+            executable = null;
+            compileTime = 0;
+        }
+
+        XsltExecutable getExecutable() throws SaxonApiException {
+            XsltExecutable exp = executable;
+            if(exp!=null && !isModified()) {
+                XSLT_CACHE_HITS.incrementAndGet();
+                return exp;
+            }
+            synchronized (this) {
+                if(executable==null || isModified()) {
+                    XSLT_CACHE_MISSES.incrementAndGet();
+                    log.debug("Compiling XSLT {}", xsltDocument);
+                    long now = System.currentTimeMillis();
+                    XsltCompiler comp = SHARED_PROCESSOR.newXsltCompiler();
+                    executable = comp.compile(new StreamSource(xsltDocument));
+                    compileTime = now;
+                    XSLT_COMPILES.incrementAndGet();
+                }
+                else {
+                    XSLT_CACHE_HITS.incrementAndGet();
+                }
+                return executable;
+            }
+        }
+
+        private boolean isModified(){
+            return new File(xsltDocument).lastModified() > compileTime;
+        }
+    }
+
     public Processor getProcessor(){
         return proc;
     }
@@ -245,23 +394,33 @@ public class Transformer {
         serializer.setOutputStream(os);
         transform.setInitialContextNode(doc);
         transform.setDestination(serializer);
-        transform.transform();
+        timedTransform();
     }
 
     public void transform(Source s, OutputStream os) throws SaxonApiException {
         serializer.setOutputStream(os);
         transform.setSource(s);
         transform.setDestination(serializer);
-        transform.transform();
+        timedTransform();
     }
 
     public void transform() throws SaxonApiException {
-        transform.transform();
+        timedTransform();
     }
 
     public void transform(Source s) throws SaxonApiException {
         transform.setSource(s);
-        transform.transform();
+        timedTransform();
+    }
+
+    private void timedTransform() throws SaxonApiException {
+        long timerStart = TRANSFORM_TIMER.start();
+        try {
+            transform.transform();
+        }
+        finally {
+            TRANSFORM_TIMER.stop(timerStart);
+        }
     }
 
 
@@ -274,7 +433,7 @@ public class Transformer {
         serializer.setOutputStream(os);
         transform.setSource(s);
         transform.setDestination(serializer);
-        transform.transform();
+        timedTransform();
         ByteArrayInputStream bis = new ByteArrayInputStream(os.toByteArray());
 
         log.debug("Transformed document is "+os.size()+" bytes.");
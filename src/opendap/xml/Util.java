@@ -25,8 +25,7 @@
  */
 package opendap.xml;
 
-import opendap.logging.Procedure;
-import opendap.logging.Timer;
+import opendap.logging.PhaseTimer;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -62,6 +61,7 @@ import java.util.regex.Pattern;
 public class Util {
 
     private static final Logger log;
+    private static final PhaseTimer PARSE_TIMER = PhaseTimer.named("xml.parse");
     static {
         log = org.slf4j.LoggerFactory.getLogger(Util.class);
     }
@@ -95,26 +95,26 @@ public class Util {
             throw new IOException(msg);
         }
         SAXBuilder sb = new SAXBuilder();
-        Procedure saxParserProc = Timer.start();
+        long saxParserProc = PARSE_TIMER.start();
         Document doc = sb.build(f);
-        Timer.stop(saxParserProc);
+        PARSE_TIMER.stop(saxParserProc);
         return doc;
     }
 
     public static Document getDocument(InputStream f)throws IOException, JDOMException{
         SAXBuilder sb = new SAXBuilder();
-        Procedure saxParserProc = Timer.start();
+        long saxParserProc = PARSE_TIMER.start();
         Document doc = sb.build(f);
-        Timer.stop(saxParserProc);
+        PARSE_TIMER.stop(saxParserProc);
         return doc;
     }
 
 
     public static Document getDocument(URL url)throws IOException, JDOMException {
         SAXBuilder sb = new SAXBuilder();
-        Procedure saxParserProc = Timer.start();
+        long saxParserProc = PARSE_TIMER.start();
         Document doc = sb.build(url);
-        Timer.stop(saxParserProc);
+        PARSE_TIMER.stop(saxParserProc);
         return doc;
     }
 
@@ -338,7 +338,6 @@ public class Util {
 
         ch.qos.logback.classic.Logger log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Util.class);
 
-        Timer.enable();
         XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
         ch.qos.logback.classic.Level debugLevel = ch.qos.logback.classic.Level.INFO;
 
@@ -362,7 +361,7 @@ public class Util {
 
         }
 
-        log.info("Timer Report:\n{}",Timer.report());
+        log.info("Timer Report:\n{}",PhaseTimer.getReport());
 
     }
 